@@ -46,11 +46,14 @@ public class App
     System.out.println();
   }
 
-  public static void main( String[] args )
+  // "simulate" runs the simulator, anything else goes to the load
+  // generator.
+  public static void main( String[] args ) throws Exception
   {
-    DnsResolver resolver = new DnsResolver();
-    Answer.ResourceRecord rr = resolver.query("www.google.com", QType.A, QClass.IN);
-    System.out.println("Query Result: " + rr);
+    if(args.length > 0 && args[0].equals("simulate"))
+      Simulator.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+    else
+      LoadGenerator.main(args);
   }
 }
 
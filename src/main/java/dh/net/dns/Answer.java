@@ -5,8 +5,9 @@ import dh.net.dns.QType;
 
 
 import java.util.List;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.Locale;
+import java.util.Set;
+import java.util.HashSet;
 import java.util.ArrayList;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -15,16 +16,86 @@ public class Answer
 {
   public static class ResourceRecord
   {
+    ResourceRecord() {}
+
+    /**
+     * Creates a record from RDATA that contains no compression
+     * pointers, such as the output of wireData().
+     */
+    ResourceRecord(String domainName, QType type, QClass recordClass,
+                   long ttl, byte[] data)
+    {
+      this.domainName = domainName;
+      this.type = type;
+      this.recordClass = recordClass;
+      this.ttl = ttl;
+      this.dataLength = data.length;
+      this.data = data;
+    }
+
+    /**
+     * Creates a record whose RDATA is already decoded.
+     */
+    ResourceRecord(String domainName, QType type, QClass recordClass,
+                   long ttl, RData rdata)
+    {
+      this(domainName, type, recordClass, ttl, rdata.toWire());
+      this.rdata = rdata;
+    }
+
     String domainName;
     QType type;
     QClass recordClass;
     long ttl;
   
-    // TODO: figure out how to parse represent the data in a nice
-    // OO way..
+    // Raw RDATA as it appeared on the wire, names within it may be
+    // compression pointers into the original packet.
     int dataLength;
     byte[] data;
 
+    /**
+     * Returns the decoded RDATA of this record.  Decoding happens on
+     * the first call, so callers that only read the raw bytes of
+     * address records never pay for it.
+     *
+     * @throws MalformedNameException if a name in the RDATA can't be
+     *         expanded.
+     */
+    public RData rdata()
+    {
+      RData result = rdata;
+      if(result == null)
+      {
+        synchronized(this)
+        {
+          result = rdata;
+          if(result == null)
+          {
+            if(packet != null)
+              result = RData.decode(type, packet, rdataOffset, dataLength);
+            else
+              result = RData.decode(type, data, 0, dataLength);
+
+            rdata = result;
+            // Names are expanded now, the packet can be let go.
+            packet = null;
+          }
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Returns the RDATA in wire format with every name written out in
+     * full, suitable for storing away from the original packet.
+     */
+    byte[] wireData()
+    {
+      if(RData.containsNames(type))
+        return rdata().toWire();
+      return data;
+    }
+
     public String toString()
     {
       String result = domainName + "\t" +
@@ -32,21 +103,15 @@ public class Answer
                       recordClass + "\t" +
                       type + "\t";
 
-      if(type == QType.A)
-      {
-        String ipAddress = String.valueOf(0xFF & data[0]) + "." +
-                           String.valueOf(0xFF & data[1]) + "." +
-                           String.valueOf(0xFF & data[2]) + "." +
-                           String.valueOf(0xFF & data[3]);
-        result += ipAddress;
-      }
-      else if(type == QType.NS)
-      {
-        String nameserverAddr = new String(data);
-        result += nameserverAddr;
-      }
+      result += rdata();
       return result;
     }
+
+    // The packet this record was parsed from and where its RDATA
+    // begins, only held on to until names in the RDATA are expanded.
+    private byte[] packet;
+    private int rdataOffset;
+    private volatile RData rdata;
   }
 
   /**
@@ -70,6 +135,11 @@ public class Answer
         !this.additionalRecords.isEmpty()) );
   }
 
+  public Header getHeader()
+  {
+    return header;
+  }
+
   public boolean hasNameserverHints()
   {
     return !this.authorityNameservers.isEmpty();
@@ -85,34 +155,70 @@ public class Answer
     return authorityNameservers;
   }
 
+  public List<ResourceRecord> getAdditionalRecords()
+  {
+    return additionalRecords;
+  }
+
   /**
-   * Return the list of name servers that we can use in referrals.
+   * Returns the zone a referral delegates, the owner of its NS records,
+   * or null if it has none or they have more than one owner.
    */
-  public Map<String, ResourceRecord> referralNameservers()
+  public String referralZone()
   {
-    Map<String, ResourceRecord> result = new HashMap<>();
+    String zone = null;
+    for(ResourceRecord rr : authorityNameservers)
+    {
+      if(rr.type != QType.NS)
+        continue;
+      if(zone == null)
+        zone = rr.domainName;
+      else if(!zone.equalsIgnoreCase(rr.domainName))
+        return null;
+    }
+    return zone;
+  }
 
-    // TODO: re-write using aggregate operations.
-    // TODO: tidy up data structures used in parsing to use map
-    // instead of these lists...
+  /**
+   * Returns the address records, A and AAAA, given as glue for the name
+   * servers of a referral, leaving out any for hosts outside the given
+   * zone: a server can only vouch for names in the zones it serves.
+   */
+  public List<ResourceRecord> referralGlue(String zone)
+  {
+    Set<String> nameServers = new HashSet<>();
     for(ResourceRecord rr : authorityNameservers)
     {
       if(rr.type == QType.NS && rr.recordClass == QClass.IN)
+        nameServers.add(((RData.NS)rr.rdata()).name().toLowerCase(Locale.ROOT));
+    }
+
+    List<ResourceRecord> result = new ArrayList<>();
+    for(ResourceRecord rr : additionalRecords)
+    {
+      if((rr.type == QType.A || rr.type == QType.AAAA) &&
+         rr.recordClass == QClass.IN &&
+         nameServers.contains(rr.domainName.toLowerCase(Locale.ROOT)) &&
+         isWithin(rr.domainName, zone))
       {
-        String nameServer = new String(rr.data);
-        for(ResourceRecord aRR : additionalRecords)
-        {
-          if(aRR.domainName.compareTo(nameServer) == 0 &&
-             aRR.type == QType.A && aRR.recordClass == QClass.IN)
-          {
-            result.put(nameServer, aRR);
-          }
-        }
+        result.add(rr);
       }
     }
     return result;
   }
 
+  // True if the name is the zone or lies below it, whatever the case of
+  // either.
+  private static boolean isWithin(String name, String zone)
+  {
+    if(zone.isEmpty() || name.equalsIgnoreCase(zone))
+      return true;
+    return name.length() > zone.length() + 1 &&
+           name.regionMatches(true, name.length() - zone.length(), zone, 0,
+                              zone.length()) &&
+           name.charAt(name.length() - zone.length() - 1) == '.';
+  }
+
   /**
    * Static factory method to produce an Answer instance from a byte stream,
    * most commonly returned from a DNS Server.
@@ -188,16 +294,10 @@ public class Answer
     // Eat the questions
     while(numQuestionsToSkip > 0)
     {
-      byte b = fullPacketBuffer.get();
-      // TODO: This will only work if the question wasn't compressed
-      // which we assume for now, it wasn't.
-
-      // Read the domain name until a '\0'
-      while(b != 0x0)
-      {
-        b = fullPacketBuffer.get();
-      }
-      System.out.println();
+      // Skip the name, which may be compressed.
+      int nameOffset = fullPacketBuffer.position();
+      fullPacketBuffer.position(
+        nameOffset + expandDNS(answerStream, nameOffset).offsetFromInitial);
       fullPacketBuffer.getShort();
       fullPacketBuffer.getShort();
 
@@ -234,7 +334,7 @@ public class Answer
   }
 
   // Utility class to store the results of the expandDNS() function.
-  private static class DnsExpansionResult
+  static class DnsExpansionResult
   {
     // Name expansion should set this to the DNS name.
     public String dnsName;
@@ -244,6 +344,21 @@ public class Answer
     public int offsetFromInitial;
   }
 
+  /**
+   * Thrown for names that can't be expanded.  A hostile server can
+   * send these as fast as we can read them, so the instances are shared
+   * and capture neither a stack trace nor suppressed exceptions.
+   */
+  static class MalformedNameException extends RuntimeException
+  {
+    MalformedNameException(String message)
+    {
+      super(message, null, false, false);
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
   /**
    * Expands a domain name in a DNS packet for QNAME, NAME and RDATA fields
    * following the compression scheme outlined in RFC 1035.
@@ -252,77 +367,97 @@ public class Answer
    *
    * Note: in the RDATA case it must be applied to RDATA that represents
    * chained fields.
+   *
+   * The work done is bounded whatever the packet holds: a pointer must
+   * lead to somewhere before the labels it ends, so the walk can't
+   * loop, at most MAX_POINTER_HOPS are followed, and the name may be
+   * at most MAX_NAME_LENGTH bytes on the wire.  Every read is checked
+   * against the length of the packet.
+   *
+   * @throws MalformedNameException if any of these are broken.
    */
-  private static DnsExpansionResult expandDNS(byte[] packet, int initialOffset)
+  static DnsExpansionResult expandDNS(byte[] packet, int initialOffset)
   {
     // A domain name can be defined as
     // 1). A regular sequence of labels.
     // 2). A pointer.
     // 3). A sequence of labels ending in a pointer.
-    DnsExpansionResult result = new DnsExpansionResult();
-    result.dnsName = "";
-
-    boolean shouldCountOffset = true;
-
+    StringBuilder name = new StringBuilder();
     int offset = initialOffset;
-
-    while(offset < packet.length)
+    // Start of the run of labels being read, pointers must go below it.
+    int runStart = initialOffset;
+    // Where the name ends in its original position, known once we
+    // reach a pointer or the root label.
+    int end = -1;
+    int wireLength = 0;
+    int hops = 0;
+
+    while(true)
     {
-      byte val = packet[offset++];
-      if(shouldCountOffset)
-        ++result.offsetFromInitial;
-
-      if(val == 0x0)
-        break;
+      if(offset < 0 || offset >= packet.length)
+        throw TRUNCATED_NAME;
 
-      // Pointer
-      switch( (val & 0xC0) )
+      int val = packet[offset] & 0xFF;
+      switch(val & 0xC0)
       {
         // Label
         case 0x00:
         {
-          byte[] label = new byte[val];
-          int index = 0;
-          while(index < val)
+          // Including the root label still to come.
+          wireLength += val + 1;
+          if(wireLength + (val == 0 ? 0 : 1) > MAX_NAME_LENGTH)
+            throw NAME_TOO_LONG;
+
+          if(val == 0)
           {
-            label[index++] = packet[offset++];
-            if(shouldCountOffset)
-              ++result.offsetFromInitial;
+            if(end < 0)
+              end = offset + 1;
+
+            DnsExpansionResult result = new DnsExpansionResult();
+            result.dnsName = name.toString();
+            result.offsetFromInitial = end - initialOffset;
+            return result;
           }
 
+          if(offset + 1 + val > packet.length)
+            throw TRUNCATED_NAME;
+
           // Append label
-          result.dnsName += "." + new String(label);
+          if(name.length() > 0)
+            name.append('.');
+          for(int i = offset + 1; i <= offset + val; ++i)
+            name.append((char)(packet[i] & 0xFF));
+          offset += 1 + val;
         }
         break;
 
         // Pointer
         case 0xC0:
         {
+          if(offset + 1 >= packet.length)
+            throw TRUNCATED_NAME;
+          if(end < 0)
+            end = offset + 2;
+
           // Move the pointer to the offset described and continue
           // reading from there.
-          int newOffset = val & 0x3F;
-          newOffset = newOffset << 8;
-
-          int lowByte = packet[offset++] & 0xFF;
-          if(shouldCountOffset)
-            ++result.offsetFromInitial;
-          newOffset |= lowByte;
-          shouldCountOffset = false;
-
-          offset = newOffset;
+          int target = ((val & 0x3F) << 8) | (packet[offset + 1] & 0xFF);
+          if(target >= runStart)
+            throw POINTER_NOT_BACKWARDS;
+          if(++hops > MAX_POINTER_HOPS)
+            throw TOO_MANY_POINTERS;
+
+          runStart = target;
+          offset = target;
         }
         break;
 
         // TODO: Could be extended label (RFC 2673) or other
         // error.
         default:
-          throw new IllegalArgumentException("Unsupported DNS label type, aborting.");
+          throw UNSUPPORTED_LABEL;
       }
     }
-
-    // Trim the leading '.'
-    result.dnsName = result.dnsName.substring(1);
-    return result;
   }
 
   /**
@@ -347,34 +482,43 @@ public class Answer
     int inClass = packet.getShort();
     result.recordClass = QClass.valueOf(inClass);
 
-    long ttl = packet.getInt();
-    result.ttl = ttl;
-
-    // Certain types of records contain domain names too.
-    if(result.type == QType.NS)
-    {
-      int rdlength = packet.getShort();
+    long ttl = packet.getInt() & 0xFFFFFFFFL;
+    // RFC 2181: TTLs with the top bit set are treated as zero.
+    result.ttl = ttl > Integer.MAX_VALUE ? 0 : ttl;
 
-      currentOffset = packet.position();
-      expansionResult =
-        Answer.expandDNS(packet.array(), currentOffset);
+    int rdlength = packet.getShort() & 0xFFFF;
+    result.dataLength = rdlength;
 
-      packet.position(currentOffset + expansionResult.offsetFromInitial);
-      result.dataLength = expansionResult.dnsName.length();
-      result.data = expansionResult.dnsName.getBytes();
-    }
-    else
+    // Certain types of records contain domain names too, these are
+    // expanded against the packet when the RDATA is first decoded.
+    if(RData.containsNames(result.type))
     {
-      int rdlength = packet.getShort();
-      result.dataLength = rdlength;
-
-      byte[] rdData = new byte[rdlength];
-      packet.get(rdData, 0, rdlength);
-      result.data = rdData;
+      result.packet = packet.array();
+      result.rdataOffset = packet.position();
     }
+
+    byte[] rdData = new byte[rdlength];
+    packet.get(rdData, 0, rdlength);
+    result.data = rdData;
     return result;
   }
 
+  // Longest name allowed on the wire (RFC 1035 section 2.3.4).
+  static final int MAX_NAME_LENGTH = 255;
+  // Most compression pointers followed within one name.
+  static final int MAX_POINTER_HOPS = 32;
+
+  private static final MalformedNameException TRUNCATED_NAME =
+    new MalformedNameException("Name runs past end of packet.");
+  private static final MalformedNameException NAME_TOO_LONG =
+    new MalformedNameException("Name longer than 255 bytes.");
+  private static final MalformedNameException POINTER_NOT_BACKWARDS =
+    new MalformedNameException("Compression pointer doesn't point backwards.");
+  private static final MalformedNameException TOO_MANY_POINTERS =
+    new MalformedNameException("Too many compression pointers in name.");
+  private static final MalformedNameException UNSUPPORTED_LABEL =
+    new MalformedNameException("Unsupported DNS label type.");
+
   private Answer() {}
   private Header header;
 
@@ -0,0 +1,458 @@
+package dh.net.dns;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A record cache capped by the estimated memory its RRsets occupy,
+ * using W-TinyLFU admission and eviction.
+ *
+ * New entries enter a small LRU window.  Entries leaving the window are
+ * only admitted to the main cache if a frequency sketch says they're
+ * requested more often than the entry they would displace, so a scan of
+ * one-off names can't flush names that are queried constantly.  The
+ * main cache is a segmented LRU: entries hit again while on probation
+ * are promoted to the protected segment.
+ *
+ * Lookups read a concurrent map without taking any lock.  The policy's
+ * lists and sketch are only touched under a lock, so lookups record
+ * what they saw in one of several small buffers, picked by thread, to
+ * be replayed against the policy when a buffer fills or something is
+ * stored.  A lookup finding its buffer full while another thread holds
+ * the lock drops its record rather than wait; the policy only needs a
+ * good sample of what's being asked for.
+ */
+public class BoundedRecordCache implements RecordCache
+{
+  /**
+   * Why an entry left the cache.
+   */
+  public enum EvictionReason
+  {
+    // Its TTL ran out.
+    EXPIRED,
+    // Room was needed and it was the least valuable entry.
+    SIZE,
+    // It lost out to a more frequently used entry on leaving the window.
+    ADMISSION
+  }
+
+  public BoundedRecordCache(long maxBytes)
+  {
+    if(maxBytes <= 0)
+      throw new IllegalArgumentException("Cache size must be positive.");
+
+    this.maxBytes = maxBytes;
+    this.windowMaxBytes = Math.max(1, maxBytes / 100);
+    this.protectedMaxBytes = (maxBytes - windowMaxBytes) / 5 * 4;
+
+    this.entries = new ConcurrentHashMap<>();
+    this.sketch = new FrequencySketch(
+        (int)Math.min(1 << 26, Math.max(16, maxBytes / AVERAGE_ENTRY_SIZE)));
+
+    this.window = new Segment();
+    this.probation = new Segment();
+    this.protectedSegment = new Segment();
+
+    this.evictions = new EnumMap<>(EvictionReason.class);
+    for(EvictionReason reason : EvictionReason.values())
+      evictions.put(reason, new AtomicLong());
+
+    int buffers = Integer.highestOneBit(
+      Math.max(1, Runtime.getRuntime().availableProcessors() * 2) - 1) << 1;
+    this.readBuffers = new ReadBuffer[buffers];
+    for(int i = 0; i < buffers; ++i)
+      readBuffers[i] = new ReadBuffer();
+  }
+
+  @Override
+  public RRset get(String name, QType type, QClass qClass, long now)
+  {
+    ResourceRecordKey key = new ResourceRecordKey(name, type, qClass);
+    Node node = entries.get(key);
+
+    // Misses count too, a name asked for often enough earns its place
+    // once it's resolved.
+    afterRead(node != null ? node : key);
+    if(node == null)
+      return null;
+
+    RRset value = node.value;
+    if(value.isExpired(now))
+    {
+      if(evictionLock.tryLock())
+      {
+        try
+        {
+          drainReadBuffers();
+          if(node.segment != null && node.value.isExpired(now))
+            remove(node, EvictionReason.EXPIRED);
+        }
+        finally
+        {
+          evictionLock.unlock();
+        }
+      }
+      return null;
+    }
+    return value;
+  }
+
+  @Override
+  public void put(RRset rrset, long now)
+  {
+    ResourceRecordKey key =
+      new ResourceRecordKey(rrset.getName(), rrset.getType(),
+                            rrset.getRecordClass());
+    long weight = estimateSize(rrset);
+    if(weight > maxBytes)
+      return;
+
+    evictionLock.lock();
+    try
+    {
+      drainReadBuffers();
+      Node node = entries.get(key);
+      if(node != null)
+      {
+        node.segment.bytes += weight - node.weight;
+        totalBytes += weight - node.weight;
+        node.value = rrset;
+        node.weight = weight;
+        onAccess(node);
+      }
+      else
+      {
+        node = new Node(key, rrset, weight);
+        entries.put(key, node);
+        window.addFirst(node);
+        totalBytes += weight;
+      }
+
+      evict(now);
+    }
+    finally
+    {
+      evictionLock.unlock();
+    }
+  }
+
+  @Override
+  public int size()
+  {
+    return entries.size();
+  }
+
+  /**
+   * Estimated bytes held by the cache.
+   */
+  public long weightedSize()
+  {
+    evictionLock.lock();
+    try
+    {
+      return totalBytes;
+    }
+    finally
+    {
+      evictionLock.unlock();
+    }
+  }
+
+  /**
+   * Number of entries that have left the cache for the given reason.
+   */
+  public long evictionCount(EvictionReason reason)
+  {
+    return evictions.get(reason).get();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  // Records a lookup, of the node found or the key of a miss, in the
+  // calling thread's buffer, replaying the buffer once it's full if
+  // nobody else is busy with the policy.
+  private void afterRead(Object read)
+  {
+    ReadBuffer buffer = readBuffers[
+      (int)Thread.currentThread().getId() & (readBuffers.length - 1)];
+    if(buffer.offer(read))
+      return;
+
+    if(evictionLock.tryLock())
+    {
+      try
+      {
+        drainReadBuffers();
+        buffer.offer(read);
+      }
+      finally
+      {
+        evictionLock.unlock();
+      }
+    }
+  }
+
+  // Applies the lookups recorded so far to the policy.  Only called
+  // holding the lock.
+  private void drainReadBuffers()
+  {
+    for(ReadBuffer buffer : readBuffers)
+    {
+      Object read;
+      while((read = buffer.poll()) != null)
+      {
+        if(read instanceof Node)
+        {
+          Node node = (Node)read;
+          sketch.increment(node.key.hashCode());
+          // It may have left the cache since.
+          if(node.segment != null)
+            onAccess(node);
+        }
+        else
+        {
+          sketch.increment(read.hashCode());
+        }
+      }
+    }
+  }
+
+  private void onAccess(Node node)
+  {
+    if(node.segment == window)
+    {
+      window.moveToFront(node);
+    }
+    else if(node.segment == probation)
+    {
+      // Used again while on probation, promote it.
+      probation.remove(node);
+      protectedSegment.addFirst(node);
+
+      while(protectedSegment.bytes > protectedMaxBytes &&
+            protectedSegment.tail != node)
+      {
+        Node demoted = protectedSegment.tail;
+        protectedSegment.remove(demoted);
+        probation.addFirst(demoted);
+      }
+    }
+    else
+    {
+      protectedSegment.moveToFront(node);
+    }
+  }
+
+  /**
+   * Moves entries that have overflowed the window into probation as
+   * candidates, then evicts until the cache is within its limit.  Each
+   * eviction pits the oldest candidate against the least recently used
+   * entry on probation and drops whichever is used less often.
+   */
+  private void evict(long now)
+  {
+    Node candidate = null;
+    while(window.bytes > windowMaxBytes && window.tail != null)
+    {
+      Node overflow = window.tail;
+      window.remove(overflow);
+      probation.addFirst(overflow);
+      if(candidate == null)
+        candidate = overflow;
+    }
+
+    while(totalBytes > maxBytes)
+    {
+      Node victim = probation.tail;
+      if(victim == null)
+        victim = protectedSegment.tail != null ? protectedSegment.tail
+                                               : window.tail;
+
+      if(victim.value.isExpired(now))
+      {
+        if(victim == candidate)
+          candidate = candidate.prev;
+        remove(victim, EvictionReason.EXPIRED);
+        continue;
+      }
+
+      if(candidate == null || candidate == victim ||
+         candidate.segment != probation)
+      {
+        remove(victim, EvictionReason.SIZE);
+        continue;
+      }
+
+      int candidateFreq = sketch.frequency(candidate.key.hashCode());
+      int victimFreq = sketch.frequency(victim.key.hashCode());
+      if(candidateFreq > victimFreq)
+      {
+        remove(victim, EvictionReason.SIZE);
+      }
+      else
+      {
+        Node rejected = candidate;
+        candidate = candidate.prev;
+        remove(rejected, EvictionReason.ADMISSION);
+      }
+    }
+  }
+
+  private void remove(Node node, EvictionReason reason)
+  {
+    node.segment.remove(node);
+    entries.remove(node.key, node);
+    totalBytes -= node.weight;
+    evictions.get(reason).incrementAndGet();
+  }
+
+  /**
+   * Rough number of heap bytes taken by the RRset and its map entry.
+   */
+  static long estimateSize(RRset rrset)
+  {
+    long size = ENTRY_OVERHEAD + 2L * rrset.getName().length();
+    for(Answer.ResourceRecord rr : rrset)
+      size += RECORD_OVERHEAD + rr.dataLength;
+    return size;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  private static class Node
+  {
+    Node(ResourceRecordKey key, RRset value, long weight)
+    {
+      this.key = key;
+      this.value = value;
+      this.weight = weight;
+    }
+
+    final ResourceRecordKey key;
+    volatile RRset value;
+    long weight;
+
+    Segment segment;
+    Node prev;
+    Node next;
+  }
+
+  /**
+   * An LRU list, most recently used at the head.
+   */
+  private static class Segment
+  {
+    void addFirst(Node node)
+    {
+      node.segment = this;
+      node.prev = null;
+      node.next = head;
+      if(head != null)
+        head.prev = node;
+      head = node;
+      if(tail == null)
+        tail = node;
+      bytes += node.weight;
+    }
+
+    void remove(Node node)
+    {
+      if(node.prev != null)
+        node.prev.next = node.next;
+      else
+        head = node.next;
+
+      if(node.next != null)
+        node.next.prev = node.prev;
+      else
+        tail = node.prev;
+
+      node.prev = null;
+      node.next = null;
+      node.segment = null;
+      bytes -= node.weight;
+    }
+
+    void moveToFront(Node node)
+    {
+      if(head == node)
+        return;
+      remove(node);
+      addFirst(node);
+    }
+
+    Node head;
+    Node tail;
+    long bytes;
+  }
+
+  /**
+   * A bounded ring of lookups, written by any thread and read under the
+   * lock.  Writers that lose a race for a slot or find the ring full
+   * give up at once.
+   */
+  private static class ReadBuffer
+  {
+    // Returns false if the ring is full.  A write lost to another
+    // thread counts as done.
+    boolean offer(Object read)
+    {
+      long tail = writes.get();
+      if(tail - reads >= SIZE)
+        return false;
+      if(writes.compareAndSet(tail, tail + 1))
+        slots.lazySet((int)tail & MASK, read);
+      return true;
+    }
+
+    // The next lookup, or null once there are no more published.
+    Object poll()
+    {
+      int index = (int)reads & MASK;
+      Object read = slots.get(index);
+      if(read == null)
+        return null;
+      slots.lazySet(index, null);
+      reads = reads + 1;
+      return read;
+    }
+
+    private static final int SIZE = 16;
+    private static final int MASK = SIZE - 1;
+
+    private final AtomicReferenceArray<Object> slots =
+      new AtomicReferenceArray<>(SIZE);
+    private final AtomicLong writes = new AtomicLong();
+
+    // Only advanced under the lock, read by writers.
+    private volatile long reads;
+  }
+
+  // Object headers, key, map entry, RRset and list links.
+  private static final long ENTRY_OVERHEAD = 200;
+  // Record object, its fields and the RDATA array header.
+  private static final long RECORD_OVERHEAD = 80;
+  private static final long AVERAGE_ENTRY_SIZE = 400;
+
+  private final long maxBytes;
+  private final long windowMaxBytes;
+  private final long protectedMaxBytes;
+  private long totalBytes;
+
+  private final Map<ResourceRecordKey, Node> entries;
+  private final FrequencySketch sketch;
+  private final Segment window;
+  private final Segment probation;
+  private final Segment protectedSegment;
+
+  private final Map<EvictionReason, AtomicLong> evictions;
+
+  // Guards the policy: the segments, the sketch and the byte counts.
+  private final ReentrantLock evictionLock = new ReentrantLock();
+  private final ReadBuffer[] readBuffers;
+}
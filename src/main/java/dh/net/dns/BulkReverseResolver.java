@@ -0,0 +1,262 @@
+package dh.net.dns;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * Reverse (PTR) resolution of many addresses at once.
+ *
+ * Addresses are grouped by the reverse zone they most likely share, a
+ * /24 for IPv4 and a /64 for IPv6.  One address from each group is
+ * resolved first, which leaves the group's delegation in the resolver's
+ * cache; the rest of the group is then resolved concurrently starting
+ * from that delegation, so a whole /24 costs one referral walk from the
+ * root rather than 256.
+ *
+ * The queries are sent as Priority.BULK, so interactive queries sharing
+ * the resolver don't wait behind them.
+ */
+public class BulkReverseResolver
+{
+  public BulkReverseResolver(DnsResolver resolver, int concurrency)
+  {
+    if(concurrency < 1)
+      throw new IllegalArgumentException("Concurrency must be at least 1.");
+
+    this.resolver = resolver;
+    this.executor = Executors.newFixedThreadPool(concurrency);
+  }
+
+  /**
+   * Resolves the PTR records of every address.
+   *
+   * @return a map from each address to its PTR RRset, which is empty
+   *         if the address has no reverse name and null if it couldn't
+   *         be resolved.
+   */
+  public Map<InetAddress, RRset> resolve(Collection<InetAddress> addresses)
+    throws InterruptedException
+  {
+    // Group the addresses by reverse zone, keeping their order.
+    Map<String, List<InetAddress>> groups = new LinkedHashMap<>();
+    for(InetAddress address : addresses)
+    {
+      String zone = groupName(address);
+      List<InetAddress> group = groups.get(zone);
+      if(group == null)
+      {
+        group = new ArrayList<>();
+        groups.put(zone, group);
+      }
+      group.add(address);
+    }
+
+    Map<InetAddress, RRset> results = new ConcurrentHashMap<>();
+
+    // First one address per group, to discover each delegation...
+    List<Future<?>> pending = new ArrayList<>();
+    for(List<InetAddress> group : groups.values())
+      pending.add(submit(group.get(0), results));
+    await(pending);
+
+    // ...then everything else, which starts at those delegations.
+    pending.clear();
+    for(List<InetAddress> group : groups.values())
+    {
+      for(int i = 1; i < group.size(); ++i)
+        pending.add(submit(group.get(i), results));
+    }
+    await(pending);
+
+    // Failures can't be stored in a ConcurrentHashMap, fill them in as
+    // nulls in a map that allows them.
+    Map<InetAddress, RRset> ordered = new LinkedHashMap<>();
+    for(InetAddress address : addresses)
+      ordered.put(address, results.get(address));
+    return ordered;
+  }
+
+  /**
+   * Resolves the PTR records of every address in a CIDR range such as
+   * "192.0.2.0/24" or "2001:db8::/120".
+   */
+  public Map<InetAddress, RRset> resolveRange(String cidr)
+    throws InterruptedException
+  {
+    return resolve(expandRange(cidr));
+  }
+
+  /**
+   * Stops the worker threads once outstanding lookups finish.
+   */
+  public void shutdown()
+  {
+    executor.shutdown();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Returns the name under in-addr.arpa or ip6.arpa holding the PTR
+   * records for the address.
+   */
+  public static String reverseName(InetAddress address)
+  {
+    byte[] bytes = address.getAddress();
+    StringBuilder result = new StringBuilder();
+    if(address instanceof Inet4Address)
+    {
+      for(int i = bytes.length - 1; i >= 0; --i)
+        result.append(bytes[i] & 0xFF).append('.');
+      result.append("in-addr.arpa");
+    }
+    else
+    {
+      for(int i = bytes.length - 1; i >= 0; --i)
+      {
+        result.append(HEX_DIGITS[bytes[i] & 0xF]).append('.');
+        result.append(HEX_DIGITS[(bytes[i] >> 4) & 0xF]).append('.');
+      }
+      result.append("ip6.arpa");
+    }
+    return result.toString();
+  }
+
+  /**
+   * Lists every address in a CIDR range.
+   *
+   * @throws IllegalArgumentException if the range is malformed, its
+   *         base isn't an address literal or it holds more than 2^24
+   *         addresses.
+   */
+  public static List<InetAddress> expandRange(String cidr)
+  {
+    int slash = cidr.indexOf('/');
+    if(slash < 0)
+      throw new IllegalArgumentException("Missing prefix length: " + cidr);
+
+    byte[] base;
+    int prefixLength;
+    try
+    {
+      base = parseLiteral(cidr.substring(0, slash));
+      prefixLength = Integer.parseInt(cidr.substring(slash + 1));
+    }
+    catch(UnknownHostException | NumberFormatException e)
+    {
+      throw new IllegalArgumentException("Bad CIDR range: " + cidr, e);
+    }
+
+    int hostBits = base.length * 8 - prefixLength;
+    if(prefixLength < 0 || hostBits < 0)
+      throw new IllegalArgumentException("Bad prefix length: " + cidr);
+    if(hostBits > MAX_RANGE_BITS)
+      throw new IllegalArgumentException("Range too large: " + cidr);
+
+    // Clear the host bits of the base address.
+    for(int bit = 0; bit < hostBits; ++bit)
+    {
+      int index = base.length - 1 - bit / 8;
+      base[index] &= (byte)~(1 << (bit % 8));
+    }
+
+    List<InetAddress> result = new ArrayList<>(1 << hostBits);
+    for(int host = 0; host < (1 << hostBits); ++host)
+    {
+      byte[] address = base.clone();
+      for(int i = 0; i < 4 && i < address.length; ++i)
+        address[address.length - 1 - i] |= (byte)(host >>> (8 * i));
+      try
+      {
+        result.add(InetAddress.getByAddress(address));
+      }
+      catch(UnknownHostException e)
+      {
+        // Only thrown for addresses of an illegal length.
+        throw new IllegalStateException(e);
+      }
+    }
+    return result;
+  }
+
+  // The bytes of an address literal, which getByName() parses without
+  // going to DNS.
+  private static byte[] parseLiteral(String text)
+    throws UnknownHostException
+  {
+    if(text.indexOf(':') < 0 && !IPV4_LITERAL.matcher(text).matches())
+      throw new UnknownHostException("Not an address literal: " + text);
+    return InetAddress.getByName(text).getAddress();
+  }
+
+  // Reverse name of the /24 or /64 containing the address.
+  private static String groupName(InetAddress address)
+  {
+    String name = reverseName(address);
+    int labelsToDrop = address instanceof Inet4Address ? 1 : 16;
+    int start = 0;
+    for(int i = 0; i < labelsToDrop; ++i)
+      start = name.indexOf('.', start) + 1;
+    return name.substring(start);
+  }
+
+  private Future<?> submit(final InetAddress address,
+                           final Map<InetAddress, RRset> results)
+  {
+    return executor.submit(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        RRset ptr = resolver.query(reverseName(address), QType.PTR, QClass.IN,
+                                   DnsResolver.DEFAULT_QUERY_TIMEOUT,
+                                   Priority.BULK);
+        if(ptr != null)
+          results.put(address, ptr);
+      }
+    });
+  }
+
+  private static void await(List<Future<?>> futures)
+    throws InterruptedException
+  {
+    for(Future<?> future : futures)
+    {
+      try
+      {
+        future.get();
+      }
+      catch(ExecutionException e)
+      {
+        // One failed lookup shouldn't sink the batch, it's left
+        // without a result.
+        e.getCause().printStackTrace();
+      }
+    }
+  }
+
+  // Four decimal octets, each at most 255.
+  private static final Pattern IPV4_LITERAL = Pattern.compile(
+    "((25[0-5]|2[0-4][0-9]|1[0-9][0-9]|[1-9]?[0-9])\\.){3}" +
+    "(25[0-5]|2[0-4][0-9]|1[0-9][0-9]|[1-9]?[0-9])");
+
+  // Largest range expandRange() will list, 2^24 addresses.
+  private static final int MAX_RANGE_BITS = 24;
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final DnsResolver resolver;
+  private final ExecutorService executor;
+}
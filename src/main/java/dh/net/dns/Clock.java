@@ -0,0 +1,22 @@
+package dh.net.dns;
+
+/**
+ * Where the resolver gets the time from, so that it can be run against
+ * simulated time as well as the real thing.
+ */
+interface Clock
+{
+  /**
+   * Nanoseconds since some fixed point, as System.nanoTime() is.
+   */
+  long nanoTime();
+
+  Clock SYSTEM = new Clock()
+  {
+    @Override
+    public long nanoTime()
+    {
+      return System.nanoTime();
+    }
+  };
+}
@@ -6,6 +6,8 @@ import java.util.*;
 import java.nio.*;
 import java.nio.channels.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 
 /**
  * DnsResolver represents provides the ability to invoke queries into the
@@ -26,94 +28,245 @@ import java.util.concurrent.*;
  * public void registerOnNewARecordAddedToZoneCallback(callback)
  *
  */
-public class DnsResolver
+public class DnsResolver implements Closeable
 {
 
   public DnsResolver()
   {
-    this.nextQueryID = 0;
-    this.inProgressQueries = new LinkedList<>();
-    this.rrCache = new ConcurrentHashMap<>();
+    this(new Builder());
   }
 
   /**
-   * Used to represent a name server.
+   * Builder for resolvers that need something other than the default
+   * configuration.
    */
-  private class Nameserver
+  public static class Builder
   {
-    public Nameserver(String hostName, int b1, int b2, int b3, int b4)
+    public Builder() {}
+
+    public DnsResolver build()
     {
-      this.hostName = hostName;
+      return new DnsResolver(this);
+    }
 
-      ipv4 = new byte[4];
-      ipv4[0] = (byte)b1;
-      ipv4[1] = (byte)b2;
-      ipv4[2] = (byte)b3;
-      ipv4[3] = (byte)b4;
+    /**
+     * Sets where resolved RRsets are cached, by default a
+     * BoundedRecordCache of DEFAULT_CACHE_BYTES.
+     */
+    public Builder setRecordCache(RecordCache val)
+    {
+      this.recordCache = val;
+      return this;
     }
 
-    public byte[] address()
-    { 
-      return Arrays.copyOf(ipv4, ipv4.length);
+    /**
+     * Sets the records answered locally without going upstream, by
+     * default none.
+     */
+    public Builder setLocalData(LocalZoneData val)
+    {
+      this.localData = val;
+      return this;
     }
-    private final byte[] ipv4;
-    private final String hostName;
 
-    @Override
-    public boolean equals(Object o)
+    /**
+     * Sets how many queries may be awaiting an answer from any one
+     * name server, by default DEFAULT_MAX_PER_SERVER.
+     */
+    public Builder setMaxOutstandingPerServer(int val)
     {
-      if(o == this)
-        return true;
+      this.maxPerServer = val;
+      return this;
+    }
 
-      if(!(o instanceof Nameserver))
-        return false;
+    /**
+     * Sets how many queries may be awaiting an answer from the name
+     * servers of any one zone, by default DEFAULT_MAX_PER_ZONE.
+     */
+    public Builder setMaxOutstandingPerZone(int val)
+    {
+      this.maxPerZone = val;
+      return this;
+    }
 
-      Nameserver ns = (Nameserver)o;
-      if(hostName.equals(ns.hostName) &&
-         Arrays.equals(ipv4, ns.ipv4))
-      {
-        return true;
-      }
+    /**
+     * Sets the most queries per second sent to any one name server,
+     * by default DEFAULT_MAX_RATE.  Servers that drop queries are sent
+     * fewer.
+     */
+    public Builder setMaxQueriesPerSecond(double val)
+    {
+      this.maxRate = val;
+      return this;
+    }
 
-      return false;
+    /**
+     * Forwards every query to a recursive resolver over TLS instead of
+     * resolving it from the root, by default queries aren't forwarded.
+     */
+    public Builder setForwarder(DotUpstream val)
+    {
+      this.forwarder = val;
+      return this;
     }
 
-    @Override
-    public int hashCode()
+    /**
+     * Asks the member of the group owning each question for its answer
+     * before resolving the question from the root, by default there's
+     * no group.  The group's serve() answers the other members.
+     */
+    public Builder setPeers(PeerGroup val)
     {
-      int result = 17;
-      result = 31 * result + Arrays.hashCode(ipv4);
-      result = 31 * result + hostName.hashCode();
-      return result;
+      this.peers = val;
+      return this;
     }
 
-    @Override
-    public String toString()
+    /**
+     * Records every query resolved in the log, by default queries
+     * aren't logged.
+     */
+    public Builder setQueryLog(QueryLog val)
+    {
+      this.queryLog = val;
+      return this;
+    }
+
+    /**
+     * Sets how many encoded responses respond() keeps for answering
+     * repeated questions, by default DEFAULT_MESSAGE_CACHE_ENTRIES.
+     * Zero turns the message cache off.
+     */
+    public Builder setMessageCacheSize(int val)
+    {
+      this.messageCacheSize = val;
+      return this;
+    }
+
+    /**
+     * Sets how many I/O threads talk to name servers, each with its own
+     * selector and sockets serving a shard of the queries, by default
+     * one per processor.
+     */
+    public Builder setReactorThreads(int val)
+    {
+      this.reactorThreads = val;
+      return this;
+    }
+
+    /**
+     * Sets the clock the resolver goes by, by default the system's.
+     */
+    Builder setClock(Clock val)
+    {
+      this.clock = val;
+      return this;
+    }
+
+    /**
+     * Sets what carries queries to name servers instead of the
+     * reactors, by default nothing.
+     */
+    Builder setTransport(Transport val)
+    {
+      this.transport = val;
+      return this;
+    }
+
+    /**
+     * Sets where the resolver's random choices come from, so that a
+     * simulation can be repeated, by default a per-thread generator.
+     */
+    Builder setRandom(Random val)
     {
-      return hostName + "(" + String.valueOf(0xFF & ipv4[0]) + "." +
-                              String.valueOf(0xFF & ipv4[1]) + "." +
-                              String.valueOf(0xFF & ipv4[2]) + "." +
-                              String.valueOf(0xFF & ipv4[3]) + ")";
+      this.random = val;
+      return this;
     }
+
+    private RecordCache recordCache = null;
+    private LocalZoneData localData = null;
+    private Clock clock = Clock.SYSTEM;
+    private Random random = null;
+    private Transport transport = null;
+    private DotUpstream forwarder = null;
+    private PeerGroup peers = null;
+    private QueryLog queryLog = null;
+    private int maxPerServer = DEFAULT_MAX_PER_SERVER;
+    private int maxPerZone = DEFAULT_MAX_PER_ZONE;
+    private double maxRate = DEFAULT_MAX_RATE;
+    private int messageCacheSize = DEFAULT_MESSAGE_CACHE_ENTRIES;
+    private int reactorThreads = Runtime.getRuntime().availableProcessors();
   }
 
-  ////////////////////////////////////////////////////////////////////////////
+  private DnsResolver(Builder builder)
+  {
+    this.nextQueryID = new AtomicInteger();
+    this.rrCache = builder.recordCache != null
+      ? builder.recordCache
+      : new BoundedRecordCache(DEFAULT_CACHE_BYTES);
+    this.localData = builder.localData != null
+      ? builder.localData
+      : new LocalZoneData();
+    this.clock = builder.clock;
+    this.transport = builder.transport;
+    this.random = builder.random;
+    this.limiter = new UpstreamLimiter(builder.maxPerServer,
+                                       builder.maxPerZone, builder.maxRate,
+                                       clock);
+    this.forwarder = builder.forwarder;
+    this.peers = builder.peers;
+    this.queryLog = builder.queryLog;
+    this.messageCache = builder.messageCacheSize > 0
+      ? new MessageCache(builder.messageCacheSize)
+      : null;
+    if(builder.reactorThreads < 1)
+      throw new IllegalArgumentException("At least one reactor is needed.");
+    this.reactors = new Reactor[builder.reactorThreads];
+  }
 
   /**
-   * Class used to lookup resource records in our internal cache
+   * Used to represent a name server.
    */
-  private class ResourceRecordKey
+  private class Nameserver
   {
-    public ResourceRecordKey(String n, QType t, QClass q)
+    // An IPv4 or IPv6 address, as 4 or 16 bytes.
+    public Nameserver(String hostName, byte[] address)
     {
-      name = n;
-      type = t;
-      qClass = q;
+      this.hostName = hostName;
+      this.address = Arrays.copyOf(address, address.length);
+      this.inetAddress = toInetAddress(this.address);
+    }
+
+    // From an address literal.
+    public Nameserver(String hostName, String address)
+    {
+      this(hostName, literalAddress(address));
+    }
+
+    private InetAddress toInetAddress(byte[] address)
+    {
+      try
+      {
+        return InetAddress.getByAddress(address);
+      }
+      catch(UnknownHostException e)
+      {
+        // Only thrown for addresses of an illegal length.
+        throw new IllegalArgumentException(e);
+      }
+    }
+
+    public byte[] address()
+    { 
+      return Arrays.copyOf(address, address.length);
     }
 
-    public String name;
-    public QType type;
-    public QClass qClass;
+    public InetAddress inetAddress()
+    {
+      return inetAddress;
+    }
+    private final byte[] address;
+    private final InetAddress inetAddress;
+    private final String hostName;
 
     @Override
     public boolean equals(Object o)
@@ -121,16 +274,16 @@ public class DnsResolver
       if(o == this)
         return true;
 
-      if(!(o instanceof ResourceRecordKey))
+      if(!(o instanceof Nameserver))
         return false;
 
-      ResourceRecordKey rhs = (ResourceRecordKey)o;
-      if(name.equals(rhs.name) &&
-         type == rhs.type &&
-         qClass == rhs.qClass)
+      Nameserver ns = (Nameserver)o;
+      if(hostName.equals(ns.hostName) &&
+         Arrays.equals(address, ns.address))
       {
         return true;
       }
+
       return false;
     }
 
@@ -138,25 +291,40 @@ public class DnsResolver
     public int hashCode()
     {
       int result = 17;
-      result = 31 * result + name.hashCode();
-      result = 31 * result + type.getValue();
-      result = 31 * result + qClass.getValue();
+      result = 31 * result + Arrays.hashCode(address);
+      result = 31 * result + hostName.hashCode();
       return result;
     }
 
     @Override
     public String toString()
     {
-      String result = "( " + name + ", " + type + ", " + qClass + ")";
-      return result;
+      return hostName + "(" + inetAddress.getHostAddress() + ")";
     }
   }
 
+  ////////////////////////////////////////////////////////////////////////////
+
   ////////////////////////////////////////////////////////////////////////////
   private class Zone
   {
+    public Zone(String name)
+    {
+      this.name = name.toLowerCase(Locale.ROOT);
+    }
+
+    // The zone's apex, "" for the root.
+    public final String name;
+
     public Set<Nameserver> knownNameServers =
       Collections.synchronizedSet(new HashSet<Nameserver>());
+
+    // Number of labels in the zone name, deeper zones are closer to
+    // the answer.
+    public int depth()
+    {
+      return labelCount(name);
+    }
   }
 
   ////////////////////////////////////////////////////////////////////////////
@@ -173,26 +341,255 @@ public class DnsResolver
     public Question question;
     public Zone currentZone;
 
-    // Used to store nameservers we're currently awaiting responses
-    // from.
-    public Selector pendingResponses;
+    // The reactor (or other transport) the query's transmissions go
+    // through, chosen by the hash of the name first asked about, and
+    // where it delivers their responses.
+    public int shard;
+    public Transport transport;
+    public final BlockingQueue<Transport.Response> inbox =
+      new LinkedBlockingQueue<>();
     public int pendingResponseNumRetry;
+
+    // RRsets learnt from the latest response to this query.
+    public Map<ResourceRecordKey, RRset> answers;
+
+    // Number of CNAME/DNAME links followed so far.
+    public int chainLength;
+
+    // The zone at which we last waited on a concurrent resolution of
+    // the same name, each zone is only waited on once.
+    public Zone sharedStepZone;
+
+    // Name servers of the current zone ordered best first, and the
+    // position of the next one we'll transmit to.
+    public List<Nameserver> candidates;
+    public int nextCandidate;
+
+    // Whether the candidates are all sidelined, being all there is.
+    public boolean candidatesSidelined;
+
+    // Transmissions made in the current zone, one per name server.
+    public Map<Nameserver, Transmission> transmissions;
+
+    // When (clock.nanoTime()) the next hedge or retransmission goes
+    // out if no answer has arrived by then.
+    public long nextTransmitAt;
+
+    // Set while every candidate is at its limit and the next
+    // transmission is waiting for one to free up.
+    public boolean throttled;
+
+    // When (clock.nanoTime()) the whole resolution must be done by,
+    // and by when the current zone should have answered if the rest
+    // of the walk is to fit.
+    public long deadline;
+    public long stepDeadline;
+
+    // Set, from any thread, once the caller has lost interest.
+    public volatile boolean cancelled;
+
+    // The question in flight to the forwarder, if any.
+    public volatile Future<byte[]> forwarded;
+
+    // Set for questions asked by another member of the peer group,
+    // which are never passed on to a third, and while the member that
+    // owns the active question is still to be asked.
+    public boolean fromPeer;
+    public boolean askPeer;
+
+    // Where the owner's answer arrives, and the owner that didn't answer
+    // within the group's timeout with the exchange its answer may yet
+    // come back on, until settleLatePeer() judges it.
+    public final BlockingQueue<Transport.Response> peerInbox =
+      new LinkedBlockingQueue<>();
+    public InetSocketAddress latePeer;
+    public Transport.Exchange latePeerExchange;
+
+    // The class of work its transmissions are sent as.
+    public Priority priority;
+
+    // For the query log, the name first asked about, when (Unix time
+    // and clock.nanoTime()), and every server a transmission went to.
+    public String askedName;
+    public long askedAtMillis;
+    public long startedAt;
+    public List<InetAddress> serversAsked;
   }
 
-  public Answer.ResourceRecord query(String name, QType type, QClass qClass)
+  /**
+   * A query sent to a single name server, attached to the channel the
+   * response will arrive on.
+   */
+  private class Transmission
   {
-    Question.Builder qb = new Question.Builder();
-    qb.setID(nextID());
-    qb.setOpCode(OpCode.QUERY);
-    qb.addQuestion(name, type, qClass);
-    Question initialQuestion = qb.build();
+    public Nameserver nameserver;
+    public Transport.Exchange exchange;
+    public long sentAt;
+
+    // Per Karn's algorithm a response to a retransmitted query can't
+    // be matched to a send time, so it doesn't produce an RTT sample.
+    public boolean retransmitted;
+
+    // Whether this counts towards the server's and zone's outstanding
+    // queries, until it's answered or given up on.
+    public boolean holdsSlot;
+    public String zone;
+    public Priority priority;
+    public boolean timedOut;
+  }
+
+  /**
+   * Resolves the given question, following any CNAME or DNAME aliases
+   * along the way, taking at most DEFAULT_QUERY_TIMEOUT.
+   *
+   * @return every record of the requested type held by the name at the
+   *         end of the alias chain, an empty RRset if the name or data
+   *         doesn't exist, or null if the question couldn't be resolved.
+   */
+  public RRset query(String name, QType type, QClass qClass)
+  {
+    return query(name, type, qClass, DEFAULT_QUERY_TIMEOUT);
+  }
+
+  /**
+   * Resolves the given question, giving up once timeoutMillis have
+   * passed.  The time is shared out between the zones still to be
+   * walked, so no one slow zone uses it all waiting on retransmissions.
+   *
+   * @return as query(name, type, qClass), null too if time ran out.
+   */
+  public RRset query(String name, QType type, QClass qClass,
+                     long timeoutMillis)
+  {
+    return query(name, type, qClass, timeoutMillis, Priority.INTERACTIVE);
+  }
+
+  /**
+   * As query(name, type, qClass, timeoutMillis), with the query's
+   * messages to name servers sent as the given class of work.
+   */
+  public RRset query(String name, QType type, QClass qClass,
+                     long timeoutMillis, Priority priority)
+  {
+    return resolve(newQuery(name, type, qClass, timeoutMillis, priority));
+  }
+
+  /**
+   * Resolves the given question on a worker thread, within
+   * timeoutMillis.  Cancelling the future abandons the resolution
+   * straight away, releasing the exchanges it has with name servers.
+   *
+   * @return a future completed as query(name, type, qClass,
+   *         timeoutMillis) would return.
+   */
+  public CompletableFuture<RRset> queryAsync(String name, QType type,
+                                             QClass qClass, long timeoutMillis)
+  {
+    return queryAsync(name, type, qClass, timeoutMillis, Priority.INTERACTIVE);
+  }
+
+  /**
+   * As queryAsync(name, type, qClass, timeoutMillis), sent as the given
+   * class of work.
+   */
+  public CompletableFuture<RRset> queryAsync(String name, QType type,
+                                             QClass qClass, long timeoutMillis,
+                                             Priority priority)
+  {
+    final Query query =
+      newQuery(name, type, qClass, timeoutMillis, priority);
+    final CompletableFuture<RRset> result = new CompletableFuture<>();
+    result.whenComplete(new BiConsumer<RRset, Throwable>()
+    {
+      @Override
+      public void accept(RRset rrset, Throwable failure)
+      {
+        if(result.isCancelled())
+          cancel(query);
+      }
+    });
+
+    workers.execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if(result.isDone())
+          return;
+        try
+        {
+          result.complete(resolve(query));
+        }
+        catch(RuntimeException e)
+        {
+          result.completeExceptionally(e);
+        }
+      }
+    });
+    return result;
+  }
 
-    // Generate the query object and store the root zone as the
-    // current query.
+  private Query newQuery(String name, QType type, QClass qClass,
+                         long timeoutMillis, Priority priority)
+  {
     Query query = new Query();
-    query.pendingResponseNumRetry = 5;
-    query.question = initialQuestion;
-    query.currentZone = rootZone();
+    query.priority = priority;
+    if(queryLog != null)
+    {
+      query.askedName = name;
+      query.askedAtMillis = System.currentTimeMillis();
+      query.startedAt = clock.nanoTime();
+      query.serversAsked = new ArrayList<>();
+    }
+    query.shard = name.hashCode();
+    query.deadline =
+      clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    restartQuery(query, name, type, qClass);
+    return query;
+  }
+
+  // Abandons the query, waking it if it's waiting on a response.
+  private void cancel(Query aq)
+  {
+    aq.cancelled = true;
+    aq.inbox.offer(CANCELLED);
+    aq.peerInbox.offer(CANCELLED);
+    Future<byte[]> forwarded = aq.forwarded;
+    if(forwarded != null)
+      forwarded.cancel(false);
+  }
+
+  private boolean expired(Query aq)
+  {
+    return aq.cancelled || clock.nanoTime() - aq.deadline >= 0;
+  }
+
+  private RRset resolve(Query query)
+  {
+    RRset result;
+    try
+    {
+      result = resolveSteps(query);
+    }
+    finally
+    {
+      settleLatePeer(query);
+    }
+    if(queryLog != null)
+    {
+      QuestionRecord qr = query.question.getQuestions().get(0);
+      queryLog.record(query.askedName, qr.qtype, qr.qclass, query.priority,
+                      result, query.serversAsked, query.askedAtMillis,
+                      clock.nanoTime() - query.startedAt);
+    }
+    return result;
+  }
+
+  private RRset resolveSteps(Query query)
+  {
+    // Each resolution keeps its own stack, so any number of threads
+    // can resolve at once, sharing only the caches.
+    Deque<Query> inProgressQueries = new LinkedList<>();
 
     // Push the query to the inpr query queue
     inProgressQueries.addFirst(query);
@@ -200,9 +597,11 @@ public class DnsResolver
     // The algorithm is roughly thus.
     // 1). Check if the query is available from the cache of
     // existing RRs we've got.
-    // 2). If not, deliver to all name servers in the zone nearest
+    // 2). If the cache knows the name is an alias, start again with
+    // the name it points at.
+    // 3). If not, deliver to the name servers in the zone nearest
     // to us.
-    // 3). Process the response, if it gives us the answer return it
+    // 4). Process the response, if it gives us the answer return it
     // (after caching) otherwise follow any links.
     //
     // When we allow for multiple queries we'll basically move this
@@ -214,283 +613,1789 @@ public class DnsResolver
     {
       // Always work from the top of the stack.
       Query aq = inProgressQueries.peekFirst();
+      if(expired(aq))
+      {
+        if(TRACE)
+          System.out.println(aq.cancelled ? "Query cancelled."
+                                          : "Out of time.");
+        break;
+      }
 
       QuestionRecord qr = aq.question.getQuestions().get(0);
 
-      Answer.ResourceRecord rrFromCache =
-        recordInCache(qr.qname, qr.qtype, qr.qclass);
+      RRset rrFromCache = lookup(aq, qr.qname, qr.qtype, qr.qclass);
+      String alias = null;
+      if(rrFromCache == null)
+        alias = aliasTarget(aq, qr);
 
       if(inProgressQueries.size() == 1 && rrFromCache != null)
       {
+        releaseTransmissions(aq);
+        inProgressQueries.clear();
         return rrFromCache;
       }
       else if(inProgressQueries.size() > 1 && rrFromCache != null)
       {
         // Pop ourselves of the stack and continue
-        System.out.println("Found answer" + rrFromCache);
+        if(TRACE)
+          System.out.println("Found answer" + rrFromCache);
+        releaseTransmissions(aq);
         inProgressQueries.removeFirst();
         continue;
       }
-      else
+      else if(alias != null)
       {
-        // Nothing in the local cache? Send out the question to
-        // all name servers in the current zone.
-        deliverQueryToCurrentZone(aq.question, aq);
-
-        // Next, wait for a response from any of the name servers.
-        while(aq.pendingResponseNumRetry > 0)
+        // Chase the alias within this resolution, links already in
+        // the cache are followed without going to the network.
+        if(++aq.chainLength > MAX_CHAIN_LENGTH)
         {
-          if(procesDNSResponse(aq) == 0) break;
+          if(TRACE)
+            System.out.println("Alias chain too long at " + qr.qname);
+          break;
         }
+        if(TRACE)
+          System.out.println(qr.qname + " is an alias for " + alias);
+        restartQuery(aq, alias, qr.qtype, qr.qclass);
+        continue;
       }
-    }
-
-    return null;
-  }
-
-  /**
-   * Return -1 if we timed out, else return 0.
-   */
-  private int procesDNSResponse(Query aq)
-  {
-    try
-    {
-      int numReadyChannels =
-        aq.pendingResponses.select(DnsResolver.PER_SELECT_TIMEOUT);
-
-      if(numReadyChannels > 0)
+      else
       {
-        // Get the channels that say they're ready.
-        Set<SelectionKey> selectedKeys =
-          aq.pendingResponses.selectedKeys();
-
-        // Get any responses from the server.
-        Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
-        while(keyIterator.hasNext())
+        // Let concurrent resolutions of the same name (say an AAAA
+        // query alongside this A query) wait on this step rather than
+        // repeat it, referrals don't depend on the question type.
+        String stepKey = aq.currentZone.name + "|" +
+                         qr.qname.toLowerCase(Locale.ROOT);
+        CountDownLatch step = new CountDownLatch(1);
+        CountDownLatch existing = inFlightSteps.putIfAbsent(stepKey, step);
+        boolean leader = existing == null;
+
+        if(!leader && aq.sharedStepZone != aq.currentZone)
         {
-          SelectionKey key = keyIterator.next();
-
-          if(key.isReadable())
+          // Once it's done, check the cache again: we may have been
+          // referred further down or learnt the name is an alias.
+          aq.sharedStepZone = aq.currentZone;
+          awaitSharedStep(aq, qr, existing);
+          if(aq.pendingResponseNumRetry <= 0)
           {
-            DatagramChannel channel = (DatagramChannel)key.channel();
-            ByteBuffer recvBuff = ByteBuffer.allocate(65536);
-            int bytesReady = channel.read(recvBuff);
+            if(TRACE)
+              System.out.println("Giving up on " + qr.qname);
+            break;
+          }
+          continue;
+        }
 
-            Answer response = Answer.answerFromByteStream(recvBuff.array());
-            cacheAnswer(response);
+        try
+        {
+          if(aq.askPeer && askPeer(aq))
+          {
+            // The owner's answer is checked for at the top.
+          }
+          else if(forwarder != null)
+          {
+            // The upstream resolver does the walk for us.
+            forwardQuery(aq);
+          }
+          else
+          {
+            // Nothing in the local cache? Send out the question to
+            // all name servers in the current zone.
+            deliverQueryToCurrentZone(aq.question, aq);
 
-            // See if we have a referral, this means we need to generate
-            // a new request.
-            if(response.isFullReferralResponse())
+            // Next, wait for a response from any of the name servers.
+            while(aq.pendingResponseNumRetry > 0)
             {
-              System.out.println("Got referral.");
-              // Create a new zone which contains the name servers we're
-              // being suggested could help.
-              Zone newZone = zoneFromResponse(response);
-
-              // Reset the active query.
-              aq.pendingResponseNumRetry = 5;
-              aq.currentZone = newZone;
-
-              // Break out the loop and let the next round check if we got
-              // lucky in the cache, or, transmit this new query.
-              return 0;
+              if(procesDNSResponse(aq) == 0) break;
             }
-//            else if(response.hasNameserverHints())
-//            {
-//              // We might hit this if we reached a name server that new of
-//              // another name server that could provide us with a response
-//              // but wasn't kind enough to provide us with a glue record!
-//              //
-//              // In which case, we build a new DNS Question packet.
-//              // Generate a new Query stick it on the top of the stack
-//              // and start the processing loop again!
-//              Question.Builder qb = new Question.Builder();
-//              qb.setID(nextID());
-//              qb.setOpCode(OpCode.QUERY);
-//
-//              List<Answer.ResourceRecord> nsList =
-//                response.getAuthorityNameservers();
-//              Answer.ResourceRecord first = nsList.get(0);
-//              qb.addQuestion(new String(first.data), first.type, first.recordClass);
-//            //  for(Answer.ResourceRecord rr : nsList)
-//            //  {
-//            //    System.out.println("Adding " + rr + " to new question");
-//            //    qb.addQuestion(new String(rr.data), rr.type, rr.recordClass);
-//            //  }
-//
-//              Question newQuestion = qb.build();
-//
-//              // Generate the query object and store the root zone as the
-//              // current query.
-//              Query query = new Query();
-//              query.pendingResponseNumRetry = 5;
-//              query.question = newQuestion;
-//              query.currentZone = rootZone();
-//
-//              // Push the query to the inpr query queue
-//              inProgressQueries.addFirst(query);
-//              return 0;
-//            }
           }
+        }
+        finally
+        {
+          if(leader)
+          {
+            inFlightSteps.remove(stepKey, step);
+            step.countDown();
+          }
+        }
 
-          keyIterator.remove();
+        // Every server in the zone has been tried as often as we're
+        // prepared to, give up on the query.
+        if(aq.pendingResponseNumRetry <= 0)
+        {
+          if(TRACE)
+            System.out.println("Giving up on " + qr.qname);
+          break;
         }
       }
-      else
-      {
-        System.out.println("Timed out!");
-        --aq.pendingResponseNumRetry;
-        return -1;
-      }
-    }
-    catch(IOException e)
-    {
-      e.printStackTrace();
     }
 
-    return 0;
+    for(Query aq : inProgressQueries)
+      releaseTransmissions(aq);
+    inProgressQueries.clear();
+
+    return null;
   }
 
-  private Answer.ResourceRecord recordInCache(String name, QType type, QClass qClass)
+  /**
+   * Answers a DNS query from a client, as a recursive server would,
+   * following the query with an answer section holding the CNAMEs
+   * leading to the answer and the answer itself.
+   *
+   * Responses are kept whole in the message cache, so answering a
+   * repeated question costs a copy with the ID and TTLs patched rather
+   * than encoding the records again.  The response isn't truncated to
+   * fit any transport, that's left to the caller.
+   *
+   * @return the encoded response, or null if the message is too broken
+   *         to answer or is itself a response.
+   */
+  public byte[] respond(byte[] query)
   {
-    ResourceRecordKey key = new ResourceRecordKey(name, type, qClass);
-
-    Deque<Answer.ResourceRecord> records = rrCache.get(key);
-    if(records == null)
-      return null;
-
-    // Always take the most recent (which is the first element)
-    return records.peekFirst();
+    return respond(query, false);
   }
 
+  /**
+   * As respond(query), for a question asked by another member of the
+   * peer group, so resolved here whoever owns it.
+   */
+  byte[] respondToPeer(byte[] query)
+  {
+    return respond(query, true);
+  }
 
-  private Zone zoneFromResponse(Answer response)
+  private byte[] respond(byte[] query, boolean fromPeer)
   {
-    Zone result = new Zone();
-    Map<String, Answer.ResourceRecord> newNameServers = response.referralNameservers();
+    if(query.length < MessageCache.HEADER_LENGTH || (query[2] & 0x80) != 0)
+      return null;
 
-    for(Map.Entry<String, Answer.ResourceRecord> ns : newNameServers.entrySet())
+    int opCode = (query[2] >> 3) & 0x0F;
+    int questions = ((query[4] & 0xFF) << 8) | (query[5] & 0xFF);
+    if(opCode != OpCode.QUERY.getValue())
     {
-      byte[] ipv4 = ns.getValue().data;
+      return errorResponse(query, MessageCache.HEADER_LENGTH,
+                           Header.RCODE_NOT_IMPLEMENTED);
+    }
 
-      result.knownNameServers.add(
-          new Nameserver(ns.getKey(), ipv4[0], ipv4[1], ipv4[2], ipv4[3]));
+    // The one question, which the message cache keys on as it stands
+    // so it mustn't be compressed.
+    int questionEnd = -1;
+    String name = null;
+    if(questions == 1)
+    {
+      try
+      {
+        Answer.DnsExpansionResult qname =
+          Answer.expandDNS(query, MessageCache.HEADER_LENGTH);
+        int nameLength = qname.dnsName.isEmpty() ? 1
+                                                 : qname.dnsName.length() + 2;
+        if(qname.offsetFromInitial == nameLength)
+        {
+          questionEnd = MessageCache.HEADER_LENGTH + nameLength + 4;
+          name = qname.dnsName;
+        }
+      }
+      catch(Answer.MalformedNameException e)
+      {
+        // Answered below.
+      }
+    }
+    if(questionEnd < 0 || questionEnd > query.length)
+    {
+      return errorResponse(query, MessageCache.HEADER_LENGTH,
+                           Header.RCODE_FORMAT_ERROR);
     }
-    return result;
-  }
 
-  // Delivers the specified query to al) name servers in the
-  // current zone.
-  private void deliverQueryToCurrentZone(Question query, Query aq)
-  {
-    try
+    int rawType = ((query[questionEnd - 4] & 0xFF) << 8) |
+                  (query[questionEnd - 3] & 0xFF);
+    int rawClass = ((query[questionEnd - 2] & 0xFF) << 8) |
+                   (query[questionEnd - 1] & 0xFF);
+    QType type = QType.valueOf(rawType);
+    QClass qClass = QClass.valueOf(rawClass);
+
+    long now = clock.nanoTime();
+    if(messageCache != null)
     {
-      // Create a new Selector to allow us to multiplex the UDP packets
-      if(aq.pendingResponses != null)
+      byte[] cached = messageCache.get(query, questionEnd, now);
+      if(cached != null)
       {
-        // TODO: Also clean up all channels in the selector calling close
-        // on them, otherwise we'll run out of filehandles!!!!
-        aq.pendingResponses.close();
+        // Logged from the header, which is all we know without
+        // decoding the records.
+        if(queryLog != null)
+        {
+          queryLog.record(name, type, qClass, Priority.INTERACTIVE,
+                          cached[3] & 0x0F,
+                          ((cached[6] & 0xFF) << 8) | (cached[7] & 0xFF),
+                          System.currentTimeMillis(), clock.nanoTime() - now);
+        }
+        return cached;
       }
+    }
 
-      // Open a new selector.
-      aq.pendingResponses = Selector.open();
+    if(type.getValue() != rawType || qClass.getValue() != rawClass)
+      return errorResponse(query, questionEnd, Header.RCODE_NOT_IMPLEMENTED);
+
+    Query resolution = newQuery(name, type, qClass, DEFAULT_QUERY_TIMEOUT,
+                                Priority.INTERACTIVE);
+    resolution.fromPeer = fromPeer;
+    resolution.askPeer = false;
+    RRset rrset = resolve(resolution);
+    if(rrset == null)
+      return errorResponse(query, questionEnd, Header.RCODE_SERVER_FAILURE);
+
+    // The CNAMEs leading to the answer, as far as we still hold them.
+    List<RRset> answer = new ArrayList<>();
+    String owner = name;
+    for(int links = 0; links < MAX_CHAIN_LENGTH &&
+                       !owner.equalsIgnoreCase(rrset.getName()); ++links)
+    {
+      RRset cname = localData.lookup(owner, QType.CNAME, qClass);
+      if(cname == null)
+        cname = recordInCache(owner, QType.CNAME, qClass);
+      if(cname == null || cname.isEmpty())
+        break;
+      answer.add(cname);
+      owner = ((RData.CNAME)cname.get(0).rdata()).name();
+    }
+    answer.add(rrset);
+
+    // A negative answer says which kind it is, with the zone's SOA in
+    // the authority section if we have it (RFC 2308).
+    byte rcode = rrset.isNameError() ? Header.RCODE_NAME_ERROR
+                                     : Header.RCODE_NO_ERROR;
+    Answer.ResourceRecord soa = rrset.soa();
+
+    now = clock.nanoTime();
+    long expiresAt = now + TimeUnit.SECONDS.toNanos(MAX_CACHE_TTL);
+    boolean cacheable = true;
+    int records = 0;
+    int length = questionEnd;
+    for(RRset part : answer)
+    {
+      // Local data doesn't expire, nor is it worth caching.
+      if(localData.lookup(part.getName(), part.getType(), qClass) != null)
+        cacheable = false;
+      else
+        expiresAt = Math.min(expiresAt, part.expiresAt());
 
-      byte[] packetData = query.getPacket();
-      System.out.println(aq.currentZone.knownNameServers.size() + " NS to contact");
-      // Send packet to each name server in the current zone.
-      for(Nameserver ns : aq.currentZone.knownNameServers)
+      for(Answer.ResourceRecord rr : part)
       {
-        System.out.println("Contacting " + ns);
-        // Create a DatagramChannel and connect to the specified DNS Server.
-        DatagramChannel channel = DatagramChannel.open();
-        InetAddress address = InetAddress.getByAddress(ns.address());
-        channel.connect(new InetSocketAddress(address, 53));
+        length += (rr.domainName.equalsIgnoreCase(name)
+                   ? 2 : RData.encodeName(rr.domainName).length) +
+                  10 + rr.wireData().length;
+        ++records;
+      }
+    }
+    if(soa != null)
+    {
+      length += RData.encodeName(soa.domainName).length + 10 +
+                soa.wireData().length;
+    }
 
-        // Send and query to each DNS server.
-        ByteBuffer buff = ByteBuffer.wrap(packetData);
-        int bytesWritten = channel.write(buff);
+    ByteBuffer response = ByteBuffer.allocate(length);
+    response.put(responseHeader(query, rcode, 1, records, soa != null ? 1 : 0));
+    response.put(query, MessageCache.HEADER_LENGTH,
+                 questionEnd - MessageCache.HEADER_LENGTH);
+    for(RRset part : answer)
+    {
+      long remaining =
+        Math.max(0, TimeUnit.NANOSECONDS.toSeconds(part.expiresAt() - now));
+      boolean local = !cacheable &&
+        localData.lookup(part.getName(), part.getType(), qClass) != null;
 
-        // Channel will be used in a selector so set to non-blocking
-        channel.configureBlocking(false);
-        channel.register(aq.pendingResponses, SelectionKey.OP_READ);
+      for(Answer.ResourceRecord rr : part)
+      {
+        // The question's name is always at the same offset.
+        if(rr.domainName.equalsIgnoreCase(name))
+          response.putShort((short)(0xC000 | MessageCache.HEADER_LENGTH));
+        else
+          response.put(RData.encodeName(rr.domainName));
+
+        byte[] data = rr.wireData();
+        response.putShort((short)rr.type.getValue());
+        response.putShort((short)rr.recordClass.getValue());
+        response.putInt((int)(local ? rr.ttl : Math.min(rr.ttl, remaining)));
+        response.putShort((short)data.length);
+        response.put(data);
       }
     }
-    catch(IOException e)
+    if(soa != null)
     {
-      e.printStackTrace();
-      System.exit(-1);
+      long remaining =
+        Math.max(0, TimeUnit.NANOSECONDS.toSeconds(rrset.expiresAt() - now));
+      byte[] data = soa.wireData();
+      response.put(RData.encodeName(soa.domainName));
+      response.putShort((short)QType.SOA.getValue());
+      response.putShort((short)soa.recordClass.getValue());
+      response.putInt((int)Math.min(soa.ttl, remaining));
+      response.putShort((short)data.length);
+      response.put(data);
     }
+
+    byte[] message = response.array();
+    if(messageCache != null && cacheable)
+      messageCache.put(message, questionEnd, expiresAt, now);
+    return message;
   }
 
-  private Zone rootZone()
+  // A response with no records, echoing the query's question if
+  // questionEnd is past the header.
+  private static byte[] errorResponse(byte[] query, int questionEnd,
+                                      byte rcode)
   {
-    Zone result = new Zone();
-    result.knownNameServers.add(new Nameserver("A.root-servers.net", 198, 41, 0, 4));
-    result.knownNameServers.add(new Nameserver("B.root-servers.net", 192, 228, 79, 201));
-    result.knownNameServers.add(new Nameserver("C.root-servers.net", 192, 33, 4, 12));
-    result.knownNameServers.add(new Nameserver("D.root-servers.net", 199, 7, 91, 13));
-    result.knownNameServers.add(new Nameserver("E.root-servers.net", 192, 203, 230, 10));
-    result.knownNameServers.add(new Nameserver("F.root-servers.net", 192, 5, 5, 241));
-    result.knownNameServers.add(new Nameserver("G.root-servers.net", 192, 112, 36, 4));
-    result.knownNameServers.add(new Nameserver("H.root-servers.net", 128, 63, 2, 53));
-    result.knownNameServers.add(new Nameserver("I.root-servers.net", 192, 36, 148, 17));
-    result.knownNameServers.add(new Nameserver("J.root-servers.net", 192, 58, 128, 30 ));
-    result.knownNameServers.add(new Nameserver("K.root-servers.net", 193, 0, 14, 129 ));
-    result.knownNameServers.add(new Nameserver("L.root-servers.net", 199, 7, 83, 42 ));
-    result.knownNameServers.add(new Nameserver("M.root-servers.net", 202, 12, 27, 33 ));
-    
-    return result;
+    byte[] response = Arrays.copyOf(
+      responseHeader(query, rcode,
+                     questionEnd > MessageCache.HEADER_LENGTH ? 1 : 0, 0, 0),
+      questionEnd);
+    System.arraycopy(query, MessageCache.HEADER_LENGTH, response,
+                     MessageCache.HEADER_LENGTH,
+                     questionEnd - MessageCache.HEADER_LENGTH);
+    return response;
   }
 
-  /**
-   * Will return a value in the first 16 bits of the result that are
-   * to be used in the ID field of the DNS header.
-   */
-  private int nextID()
+  private static byte[] responseHeader(byte[] query, byte rcode,
+                                       int questions, int answers,
+                                       int authority)
   {
-    nextQueryID++;
-    if(nextQueryID > 65535)
-      nextQueryID = 0;
-    
-    return nextQueryID;
+    byte[] header = new byte[MessageCache.HEADER_LENGTH];
+    header[0] = query[0];
+    header[1] = query[1];
+    // QR, the query's opcode and RD, and recursion available.
+    header[2] = (byte)(0x80 | (query[2] & 0x79));
+    header[3] = (byte)(0x80 | rcode);
+    header[5] = (byte)questions;
+    header[6] = (byte)(answers >> 8);
+    header[7] = (byte)answers;
+    header[9] = (byte)authority;
+    return header;
   }
 
-  private void cacheAnswer(Answer answer)
+  /**
+   * Waits for another resolution of the same name to finish asking the
+   * query's zone.  Should that leave a deeper delegation in the cache
+   * the query moves on to it, should the wait be interrupted the query
+   * is abandoned.
+   */
+  private void awaitSharedStep(Query aq, QuestionRecord qr,
+                                  CountDownLatch step)
   {
-    // Authority answers.
-    List<Answer.ResourceRecord> authAnswers =
-      answer.getAuthorityAnswers();
+    try
+    {
+      long remaining = aq.deadline - clock.nanoTime();
+      step.await(Math.min(TimeUnit.MILLISECONDS.toNanos(SHARED_STEP_WAIT),
+                          remaining), TimeUnit.NANOSECONDS);
+    }
+    catch(InterruptedException e)
+    {
+      // Abandon the query, as when interrupted waiting on a server.
+      Thread.currentThread().interrupt();
+      aq.pendingResponseNumRetry = 0;
+      return;
+    }
 
-    for(Answer.ResourceRecord rr : authAnswers)
+    Zone closest = closestZone(qr.qname, qr.qclass);
+    if(closest.depth() > aq.currentZone.depth())
+    {
+      aq.currentZone = closest;
+      aq.pendingResponseNumRetry = 5;
+    }
+  }
+
+  /**
+   * Resolves both the IPv4 and IPv6 addresses of a name, asking both
+   * questions at once.  Referral steps are shared between the two, so
+   * this costs about as much as a single query.
+   *
+   * With firstFamilyWins set the call returns as soon as one family
+   * has addresses, in the style of Happy Eyeballs (RFC 8305): IPv6
+   * addresses are returned straight away, IPv4 addresses after waiting
+   * a short resolution delay for IPv6 ones to catch up.  The slower
+   * query still completes in the background and fills the cache.
+   *
+   * @return the IPv6 addresses followed by the IPv4 addresses found,
+   *         empty if there are none or neither query could be resolved.
+   */
+  public List<InetAddress> queryAddresses(String name, QClass qClass,
+                                          boolean firstFamilyWins)
+    throws InterruptedException
+  {
+    return queryAddresses(name, qClass, firstFamilyWins,
+                          DEFAULT_QUERY_TIMEOUT);
+  }
+
+  /**
+   * As queryAddresses(name, qClass, firstFamilyWins), with both
+   * queries done or given up within timeoutMillis.  Should the caller
+   * be interrupted both are abandoned.
+   */
+  public List<InetAddress> queryAddresses(String name, QClass qClass,
+                                          boolean firstFamilyWins,
+                                          long timeoutMillis)
+    throws InterruptedException
+  {
+    CompletableFuture<RRset> v4 =
+      queryAsync(name, QType.A, qClass, timeoutMillis);
+    CompletableFuture<RRset> v6 =
+      queryAsync(name, QType.AAAA, qClass, timeoutMillis);
+    try
+    {
+      return awaitAddresses(v4, v6, firstFamilyWins);
+    }
+    catch(InterruptedException e)
     {
-      addRRToCache(rr);
+      v4.cancel(false);
+      v6.cancel(false);
+      throw e;
     }
   }
 
-  private void addRRToCache(Answer.ResourceRecord rr)
+  private List<InetAddress> awaitAddresses(CompletableFuture<RRset> v4,
+                                           CompletableFuture<RRset> v6,
+                                           boolean firstFamilyWins)
+    throws InterruptedException
+  {
+
+    if(firstFamilyWins)
+    {
+      try
+      {
+        CompletableFuture.anyOf(v4, v6).get();
+      }
+      catch(ExecutionException e)
+      {
+        // A failed family just has no addresses.
+      }
+
+      if(hasAddresses(v6))
+        return combineAddresses(v6, v4);
+
+      if(hasAddresses(v4))
+      {
+        try
+        {
+          v6.get(RESOLUTION_DELAY, TimeUnit.MILLISECONDS);
+        }
+        catch(ExecutionException | TimeoutException e)
+        {
+          // Go ahead with what we have.
+        }
+        return combineAddresses(v6, v4);
+      }
+    }
+
+    // Either we want both, or the first family had nothing.
+    try
+    {
+      CompletableFuture.allOf(v4, v6).get();
+    }
+    catch(ExecutionException e)
+    {
+      // Whatever did resolve is still returned below.
+    }
+    return combineAddresses(v6, v4);
+  }
+
+  private static boolean hasAddresses(CompletableFuture<RRset> future)
+  {
+    if(!future.isDone() || future.isCompletedExceptionally())
+      return false;
+
+    RRset rrset = future.getNow(null);
+    return rrset != null && !rrset.isEmpty();
+  }
+
+  // Addresses from whichever of the futures have completed, in order.
+  @SafeVarargs
+  private static List<InetAddress> combineAddresses(
+      CompletableFuture<RRset>... families)
+  {
+    List<InetAddress> result = new ArrayList<>();
+    for(CompletableFuture<RRset> family : families)
+    {
+      if(!hasAddresses(family))
+        continue;
+
+      for(Answer.ResourceRecord rr : family.getNow(null))
+      {
+        RData rdata = rr.rdata();
+        if(rdata instanceof RData.Address)
+          result.add(((RData.Address)rdata).inetAddress());
+      }
+    }
+    return result;
+  }
+
+  // Points the query at a new question, starting again from the closest
+  // zone we have name servers for.
+  private void restartQuery(Query aq, String name, QType type, QClass qClass)
   {
+    Question.Builder qb = new Question.Builder();
+    qb.setID(nextID());
+    qb.setOpCode(OpCode.QUERY);
+    qb.setRecursionDesired(forwarder != null);
+    qb.addQuestion(name, type, qClass);
+
+    aq.question = qb.build();
+    aq.currentZone = closestZone(name, qClass);
+    aq.pendingResponseNumRetry = 5;
+    aq.answers = null;
+    aq.askPeer = peers != null && !aq.fromPeer;
+  }
+
+  /**
+   * Returns the name the question's name is an alias for, either
+   * through a CNAME on the name itself or a DNAME on one of its
+   * ancestors, or null if we don't know of one.
+   */
+  private String aliasTarget(Query aq, QuestionRecord qr)
+  {
+    if(qr.qtype == QType.CNAME)
+      return null;
+
+    RRset cname = lookup(aq, qr.qname, QType.CNAME, qr.qclass);
+    if(cname != null && !cname.isEmpty())
+      return ((RData.CNAME)cname.get(0).rdata()).name();
+
+    // A DNAME redirects everything below its owner.
+    String owner = qr.qname;
+    int dot;
+    while((dot = owner.indexOf('.')) >= 0)
+    {
+      owner = owner.substring(dot + 1);
+      RRset dname = lookup(aq, owner, QType.DNAME, qr.qclass);
+      if(dname != null && !dname.isEmpty())
+      {
+        String target = ((RData.DNAME)dname.get(0).rdata()).name();
+        return qr.qname.substring(0, qr.qname.length() - owner.length()) +
+               target;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Return -1 if the query should keep waiting on its servers (a
+   * timeout, a straggler or a response of no use), else return 0.
+   */
+  private int procesDNSResponse(Query aq)
+  {
+    try
+    {
+      Transport.Response received =
+        aq.transport.receive(aq.inbox, aq.nextTransmitAt);
+
+      if(received == CANCELLED || (received == null && expired(aq)))
+      {
+        aq.pendingResponseNumRetry = 0;
+        return 0;
+      }
+      else if(received != null)
+      {
+        // Ignore stragglers from the servers of a zone we've since
+        // moved on from.
+        Transmission t = (Transmission)received.attachment;
+        if(aq.transmissions == null || aq.transmissions.get(t.nameserver) != t)
+          return -1;
+
+        recordRoundTrip(t);
+        limiter.onResponse(t.nameserver.inetAddress());
+        releaseSlot(t);
+
+        if(handleResponse(aq, received.packet, t.nameserver) == 0)
+        {
+          health.onSuccess(t.nameserver.inetAddress());
+          return 0;
+        }
+
+        // Of no use, handleResponse() has the next server tried now.
+        return -1;
+      }
+      else if(clock.nanoTime() - aq.nextTransmitAt >= 0)
+      {
+        if(TRACE && !aq.throttled)
+          System.out.println("Timed out!");
+        markLateTransmissions(aq);
+        transmitToNextCandidate(aq);
+        return -1;
+      }
+      else
+      {
+        // Woken early with nothing to read, keep waiting.
+        return -1;
+      }
+    }
+    catch(IllegalArgumentException | BufferUnderflowException |
+          Answer.MalformedNameException e)
+    {
+      // A malformed or hostile response, which tells us nothing.  Try
+      // the next server rather than trusting this one.
+      if(TRACE)
+        System.out.println("Malformed response: " + e.getMessage());
+      aq.nextTransmitAt = clock.nanoTime();
+      return -1;
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      aq.pendingResponseNumRetry = 0;
+    }
+
+    return 0;
+  }
+
+  /**
+   * Asks the forwarder the active question, trying again on failures
+   * until the query runs out of retries or time.
+   */
+  private void forwardQuery(Query aq)
+  {
+    while(aq.pendingResponseNumRetry > 0 && !expired(aq))
+    {
+      long timeout = Math.min(TimeUnit.MILLISECONDS.toNanos(FORWARD_TIMEOUT),
+                              aq.deadline - clock.nanoTime());
+      // Published before it's sent, so a cancel never misses it.
+      CompletableFuture<byte[]> response = new CompletableFuture<>();
+      aq.forwarded = response;
+      if(aq.cancelled)
+        response.cancel(false);
+      forwarder.send(aq.question.getPacket(), response);
+
+      try
+      {
+        byte[] packet = response.get(timeout, TimeUnit.NANOSECONDS);
+        if(handleResponse(aq, packet, forwarder) == 0)
+          return;
+      }
+      catch(TimeoutException e)
+      {
+        response.cancel(false);
+        if(TRACE)
+          System.out.println("No response from " + forwarder);
+      }
+      catch(ExecutionException e)
+      {
+        if(TRACE)
+          System.out.println("Forwarding failed: " +
+                             e.getCause().getMessage());
+      }
+      catch(CancellationException e)
+      {
+        return;
+      }
+      catch(InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        response.cancel(false);
+        aq.pendingResponseNumRetry = 0;
+        return;
+      }
+      catch(IllegalArgumentException | BufferUnderflowException |
+            Answer.MalformedNameException e)
+      {
+        if(TRACE)
+          System.out.println("Malformed response: " + e.getMessage());
+      }
+      finally
+      {
+        aq.forwarded = null;
+      }
+      --aq.pendingResponseNumRetry;
+    }
+  }
+
+  /**
+   * Asks the member of the peer group that owns the active question to
+   * answer it, unless it's ours.  The owner resolves it if it has to,
+   * so is waited on for the group's timeout, after which we resolve it
+   * ourselves.  An owner that's merely slower than that isn't counted
+   * as failing: its answer is still listened for, and only if none has
+   * come by the time settleLatePeer() is called is it held against it.
+   *
+   * @return true if the owner answered the question.
+   */
+  private boolean askPeer(Query aq)
+  {
+    aq.askPeer = false;
+    settleLatePeer(aq);
+    QuestionRecord qr = aq.question.getQuestions().get(0);
+    long now = clock.nanoTime();
+    InetSocketAddress owner = peers.ownerOf(qr.qname, qr.qtype, qr.qclass,
+                                            now);
+    if(owner == null)
+      return false;
+
+    Question.Builder qb = new Question.Builder();
+    qb.setID(nextID());
+    qb.setOpCode(OpCode.QUERY);
+    qb.setRecursionDesired(true);
+    qb.addQuestion(qr.qname, qr.qtype, qr.qclass);
+
+    // Attached to the exchange only to tell its response apart from
+    // stragglers of earlier zones.
+    Transmission t = new Transmission();
+    long until = Math.min(aq.deadline, now + peers.timeout());
+    Transport.Exchange exchange = null;
+    try
+    {
+      if(aq.transport == null)
+        aq.transport = transportFor(aq.shard);
+      if(!aq.transport.canReach(owner.getAddress()))
+        return false;
+
+      if(TRACE)
+        System.out.println("Asking peer " + owner);
+      if(aq.serversAsked != null)
+        aq.serversAsked.add(owner.getAddress());
+      exchange = aq.transport.send(qb.build().getPacket(), owner,
+                                   aq.peerInbox, t);
+      while(true)
+      {
+        Transport.Response received =
+          aq.transport.receive(aq.peerInbox, until);
+        if(received == CANCELLED)
+          return false;
+        if(received == null)
+        {
+          // Out of time for the group, but the owner may still answer
+          // while we resolve the question ourselves.
+          if(!expired(aq))
+          {
+            aq.latePeer = owner;
+            aq.latePeerExchange = exchange;
+            exchange = null;
+          }
+          return false;
+        }
+        if(received.attachment != t)
+          continue;
+
+        peers.onAnswer(owner);
+        Answer response = Answer.answerFromByteStream(received.packet);
+        if(response.getHeader().getRCode() == Header.RCODE_NO_ERROR &&
+           response.getAuthorityAnswers().isEmpty())
+        {
+          // There's no such data.  The owner doesn't say for how long,
+          // so it's only good for this query.
+          aq.answers = new HashMap<>();
+          cacheNegativeAnswer(aq, qr, false, null);
+          return true;
+        }
+        return handleResponse(aq, received.packet, owner) == 0;
+      }
+    }
+    catch(IOException e)
+    {
+      if(TRACE)
+        System.out.println("Failed to ask peer " + owner + ": " +
+                           e.getMessage());
+      peers.onTimeout(owner, clock.nanoTime());
+    }
+    catch(IllegalArgumentException | BufferUnderflowException |
+          Answer.MalformedNameException e)
+    {
+      if(TRACE)
+        System.out.println("Malformed response: " + e.getMessage());
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      aq.pendingResponseNumRetry = 0;
+    }
+    finally
+    {
+      if(exchange != null)
+        aq.transport.cancel(exchange);
+    }
+    return false;
+  }
+
+  // Judges the peer that didn't answer askPeer() in time, if any, by
+  // whether its answer has come since, and stops listening for it.
+  private void settleLatePeer(Query aq)
+  {
+    if(aq.latePeer == null)
+      return;
+
+    boolean answered = false;
+    for(Transport.Response late : aq.peerInbox)
+    {
+      if(late != CANCELLED)
+        answered = true;
+    }
+    if(answered)
+      peers.onAnswer(aq.latePeer);
+    else if(!aq.cancelled)
+      peers.onTimeout(aq.latePeer, clock.nanoTime());
+
+    aq.transport.cancel(aq.latePeerExchange);
+    aq.latePeer = null;
+    aq.latePeerExchange = null;
+    aq.peerInbox.clear();
+  }
+
+  /**
+   * Acts on a response to the active question: caches what it holds
+   * and, for a referral, moves the query on to the new zone.
+   *
+   * @return 0 if the query can move on, -1 if the response was of no
+   *         use and the next server should be tried straight away.
+   */
+  private int handleResponse(Query aq, byte[] packet, Object source)
+  {
+    Answer response = Answer.answerFromByteStream(packet);
+    aq.answers = cacheAnswer(response);
+
+    QuestionRecord qr = aq.question.getQuestions().get(0);
+    byte rcode = response.getHeader().getRCode();
+    Answer.ResourceRecord soa = authoritySOA(response);
+
+    // The name doesn't exist, or has no data of this type.
+    if(rcode == Header.RCODE_NAME_ERROR ||
+       (rcode == Header.RCODE_NO_ERROR &&
+        response.getAuthorityAnswers().isEmpty() && soa != null))
+    {
+      cacheNegativeAnswer(aq, qr, rcode == Header.RCODE_NAME_ERROR, soa);
+      return 0;
+    }
+
+    // The answer, or an alias we can follow to it.
+    if(rcode == Header.RCODE_NO_ERROR &&
+       (lookup(aq, qr.qname, qr.qtype, qr.qclass) != null ||
+        aliasTarget(aq, qr) != null))
+    {
+      return 0;
+    }
+
+    // See if we have a referral, this means we need to generate
+    // a new request.
+    if(rcode == Header.RCODE_NO_ERROR && forwarder == null &&
+       response.isFullReferralResponse())
+    {
+      if(TRACE)
+        System.out.println("Got referral.");
+      // A referral must delegate a single zone, below the zone we
+      // asked and holding the name; anything else means the server
+      // isn't authoritative for the name after all, or is lying.
+      String delegated = response.referralZone();
+      if(delegated == null || !isBelow(delegated, aq.currentZone.name) ||
+         !(isBelow(qr.qname, delegated) ||
+           qr.qname.equalsIgnoreCase(delegated)))
+      {
+        if(TRACE)
+          System.out.println("Lame referral to '" + delegated +
+                             "' from " + source);
+        if(source instanceof Nameserver)
+          health.onFailure(((Nameserver)source).inetAddress(),
+                           ServerHealth.Failure.LAME, clock.nanoTime());
+        aq.nextTransmitAt = clock.nanoTime();
+        return -1;
+      }
+
+      // Create a new zone which contains the name servers we're
+      // being suggested could help.
+      Zone newZone = zoneFromResponse(response, delegated,
+                                      aq.currentZone.name);
+
+      // Remember the delegation so later queries below it can
+      // skip straight to these servers.
+      cacheReferral(response);
+
+      // Reset the active query.
+      aq.pendingResponseNumRetry = 5;
+      aq.currentZone = newZone;
+
+      // Break out the loop and let the next round check if we got
+      // lucky in the cache, or, transmit this new query.
+      return 0;
+    }
+//    else if(response.hasNameserverHints())
+//    {
+//      // We might hit this if we reached a name server that new of
+//      // another name server that could provide us with a response
+//      // but wasn't kind enough to provide us with a glue record!
+//      //
+//      // In which case, we build a new DNS Question packet.
+//      // Generate a new Query stick it on the top of the stack
+//      // and start the processing loop again!
+//      Question.Builder qb = new Question.Builder();
+//      qb.setID(nextID());
+//      qb.setOpCode(OpCode.QUERY);
+//
+//      List<Answer.ResourceRecord> nsList =
+//        response.getAuthorityNameservers();
+//      Answer.ResourceRecord first = nsList.get(0);
+//      qb.addQuestion(new String(first.data), first.type, first.recordClass);
+//    //  for(Answer.ResourceRecord rr : nsList)
+//    //  {
+//    //    System.out.println("Adding " + rr + " to new question");
+//    //    qb.addQuestion(new String(rr.data), rr.type, rr.recordClass);
+//    //  }
+//
+//      Question newQuestion = qb.build();
+//
+//      // Generate the query object and store the root zone as the
+//      // current query.
+//      Query query = new Query();
+//      query.pendingResponseNumRetry = 5;
+//      query.question = newQuestion;
+//      query.currentZone = rootZone();
+//
+//      // Push the query to the inpr query queue
+//      inProgressQueries.addFirst(query);
+//      return 0;
+//    }
+
+    // Nothing we can use (a server failure, refusal or a
+    // referral without glue), move on to the next server now
+    // rather than waiting for this one to look late.
+    if(TRACE)
+      System.out.println("Unusable response (RCODE " + rcode +
+                         ") from " + source);
+    if(source instanceof Nameserver &&
+       (rcode == Header.RCODE_SERVER_FAILURE || rcode == Header.RCODE_REFUSED))
+    {
+      health.onFailure(((Nameserver)source).inetAddress(),
+                       rcode == Header.RCODE_REFUSED
+                         ? ServerHealth.Failure.REFUSED
+                         : ServerHealth.Failure.SERVER_FAILURE,
+                       clock.nanoTime());
+    }
+    aq.nextTransmitAt = clock.nanoTime();
+    return -1;
+  }
+
+  /**
+   * Finds an RRset for the query, first among those learnt from the
+   * latest response (so answers with a zero TTL still complete the
+   * query) and then in the cache.
+   */
+  private RRset lookup(Query aq, String name, QType type, QClass qClass)
+  {
+    // Local data overrides anything the name servers say.
+    RRset local = localData.lookup(name, type, qClass);
+    if(local != null)
+      return local;
+
+    if(aq.answers != null)
+    {
+      RRset fresh = aq.answers.get(new ResourceRecordKey(name, type, qClass));
+      if(fresh != null)
+        return fresh;
+    }
+    return recordInCache(name, type, qClass);
+  }
+
+  private RRset recordInCache(String name, QType type, QClass qClass)
+  {
+    return rrCache.get(name, type, qClass, clock.nanoTime());
+  }
+
+  // The delegated zone with the servers the referral gave addresses
+  // for.  Glue for servers outside the new zone but inside the one the
+  // referral came from, as for a root referral to com with servers in
+  // net, is used for this step but never cached.
+  private Zone zoneFromResponse(Answer response, String zoneName,
+                                String fromZone)
+  {
+    Zone result = new Zone(zoneName);
+    for(Answer.ResourceRecord glue : response.referralGlue(fromZone))
+    {
+      if(glue.dataLength == 4 || glue.dataLength == 16)
+        result.knownNameServers.add(new Nameserver(glue.domainName, glue.data));
+    }
+    return result;
+  }
+
+  /**
+   * Returns the deepest zone enclosing the name whose name servers and
+   * their addresses are in the cache, or the root zone if there isn't
+   * one.
+   */
+  private Zone closestZone(String name, QClass qClass)
+  {
+    String zone = name;
+    while(!zone.isEmpty())
+    {
+      RRset nsSet = recordInCache(zone, QType.NS, qClass);
+      if(nsSet != null && !nsSet.isEmpty())
+      {
+        Zone result = new Zone(zone);
+        for(Answer.ResourceRecord ns : nsSet)
+        {
+          String hostName = ((RData.NS)ns.rdata()).name();
+          addNameservers(result, hostName,
+                         recordInCache(hostName, QType.A, QClass.IN), 4);
+          addNameservers(result, hostName,
+                         recordInCache(hostName, QType.AAAA, QClass.IN), 16);
+        }
+
+        if(!result.knownNameServers.isEmpty())
+          return result;
+      }
+
+      int dot = zone.indexOf('.');
+      zone = dot < 0 ? "" : zone.substring(dot + 1);
+    }
+    return rootZone();
+  }
+
+  // Adds a server for each address of the set that is of the length
+  // expected for its type.
+  private void addNameservers(Zone zone, String hostName, RRset addresses,
+                              int length)
+  {
+    if(addresses == null)
+      return;
+
+    for(Answer.ResourceRecord a : addresses)
+    {
+      if(a.dataLength == length)
+        zone.knownNameServers.add(new Nameserver(hostName, a.data));
+    }
+  }
+
+  // Delivers the specified query to the best name server in the
+  // current zone, further servers are brought in by
+  // transmitToNextCandidate() as each one turns out to be slow.
+  private void deliverQueryToCurrentZone(Question query, Query aq)
+  {
+    try
+    {
+      if(aq.transmissions != null)
+        releaseTransmissions(aq);
+
+      if(aq.transport == null)
+        aq.transport = transportFor(aq.shard);
+      aq.transmissions = new HashMap<>();
+
+      // This zone's share of the time left, an even split between it
+      // and the zones that may lie between it and the name.
+      long now = clock.nanoTime();
+      String name = aq.question.getQuestions().get(0).qname;
+      aq.stepDeadline = now + (aq.deadline - now) /
+        Math.max(1, labelCount(name) - aq.currentZone.depth());
+
+      // Rank the servers by how quickly we expect them to answer.  A
+      // server's IPv4 and IPv6 addresses are ranked separately, so a
+      // dual-stack server is reached over whichever path is faster.
+      aq.candidates = new ArrayList<>(aq.currentZone.knownNameServers);
+      Collections.sort(aq.candidates, new Comparator<Nameserver>()
+      {
+        @Override
+        public int compare(Nameserver lhs, Nameserver rhs)
+        {
+          return Long.compare(statsFor(lhs).expectedRtt(),
+                              statsFor(rhs).expectedRtt());
+        }
+      });
+      aq.nextCandidate = 0;
+
+      // Leave out servers that have been failing, unless that leaves
+      // none, in which case they're all we have.  Addresses of a family
+      // we have no sockets for are left out regardless.
+      List<Nameserver> healthy = new ArrayList<>();
+      List<Nameserver> reachable = new ArrayList<>();
+      for(Nameserver ns : aq.candidates)
+      {
+        if(!aq.transport.canReach(ns.inetAddress()))
+          continue;
+        reachable.add(ns);
+        if(health.usable(ns.inetAddress(), now))
+          healthy.add(ns);
+      }
+      aq.candidatesSidelined = healthy.isEmpty();
+      aq.candidates = aq.candidatesSidelined ? reachable : healthy;
+
+      if(TRACE)
+        System.out.println(aq.candidates.size() + " NS to contact");
+      transmitToNextCandidate(aq);
+    }
+    catch(IOException e)
+    {
+      // No sockets to send from, as once the resolver is closed.
+      if(TRACE)
+        System.out.println("Can't send queries: " + e.getMessage());
+      aq.pendingResponseNumRetry = 0;
+    }
+  }
+
+  /**
+   * Sends the active question to the next name server in line and
+   * schedules the following transmission.  If the server isn't heard
+   * from within its usual latency the next send is a hedged duplicate
+   * to the next best server; once every server has been tried we go
+   * round again, retransmitting with each server's backed off timeout.
+   */
+  private void transmitToNextCandidate(Query aq)
+  {
+    if(aq.candidates.isEmpty())
+    {
+      aq.pendingResponseNumRetry = 0;
+      return;
+    }
+
+    // Take the first server in line that's under its limits, or if
+    // none are wait for one to free up.
+    long now = clock.nanoTime();
+    String zone = aq.currentZone.name;
+    int size = aq.candidates.size();
+    Nameserver ns = null;
+    int position = aq.nextCandidate;
+    boolean newSlot = false;
+    long wait = Long.MAX_VALUE;
+    for(int i = 0; i < size && ns == null; ++i)
+    {
+      position = (aq.nextCandidate + i) % size;
+      Nameserver candidate = aq.candidates.get(position);
+      Transmission previous = aq.transmissions.get(candidate);
+      if(previous != null && previous.holdsSlot)
+      {
+        if(limiter.tryResend(candidate.inetAddress(), aq.priority, now))
+          ns = candidate;
+      }
+      else if(limiter.tryAcquire(candidate.inetAddress(), zone, aq.priority,
+                                 now))
+      {
+        // A server due a probe is only sent the one, so this query is
+        // passed over should another have become it meanwhile.
+        if(previous != null || aq.candidatesSidelined ||
+           health.claim(candidate.inetAddress(), now))
+        {
+          ns = candidate;
+          newSlot = true;
+        }
+        else
+          limiter.release(candidate.inetAddress(), zone, aq.priority);
+      }
+
+      if(ns == null)
+        wait = Math.min(wait,
+                        limiter.waitTime(candidate.inetAddress(), zone,
+                                         aq.priority, now));
+    }
+
+    aq.throttled = ns == null;
+    if(ns == null)
+    {
+      aq.nextTransmitAt = Math.min(aq.deadline, now +
+        Math.max(wait, TimeUnit.MILLISECONDS.toNanos(MIN_THROTTLE_WAIT)));
+      return;
+    }
+
+    // Skipping past the end of the list counts as a round, as does
+    // sending to the last server.
+    if(position < aq.nextCandidate || position == size - 1)
+      --aq.pendingResponseNumRetry;
+    aq.nextCandidate = (position + 1) % size;
+
+    try
+    {
+      byte[] packet = aq.question.getPacket();
+      Transmission t = aq.transmissions.get(ns);
+      if(t == null)
+      {
+        if(TRACE)
+          System.out.println("Contacting " + ns);
+        if(aq.serversAsked != null)
+          aq.serversAsked.add(ns.inetAddress());
+        t = new Transmission();
+        t.nameserver = ns;
+        t.exchange = aq.transport.send(packet,
+                                     new InetSocketAddress(ns.inetAddress(), 53),
+                                     aq.inbox, t);
+        aq.transmissions.put(ns, t);
+      }
+      else
+      {
+        if(TRACE)
+          System.out.println("Retransmitting to " + ns);
+        t.retransmitted = true;
+        t.timedOut = false;
+        aq.transport.resend(t.exchange, packet);
+      }
+
+      if(newSlot)
+      {
+        t.holdsSlot = true;
+        t.zone = zone;
+        t.priority = aq.priority;
+      }
+      t.sentAt = clock.nanoTime();
+    }
+    catch(IOException e)
+    {
+      // Unreachable server, move straight on to the next.
+      if(TRACE)
+        System.out.println("Failed to contact " + ns + ": " +
+                           e.getMessage());
+      health.onFailure(ns.inetAddress(), ServerHealth.Failure.TIMEOUT,
+                       clock.nanoTime());
+      if(newSlot)
+        limiter.release(ns.inetAddress(), zone, aq.priority);
+      aq.nextTransmitAt = clock.nanoTime();
+      return;
+    }
+
+    // Hedge once this server is late, or if it's the only server left
+    // to try just wait out its retransmission timeout.
+    RttEstimator stats = statsFor(ns);
+    Nameserver next = aq.candidates.get(aq.nextCandidate);
+    long delay = next.equals(ns) ? stats.retransmitTimeout()
+                                 : stats.hedgeDelay(HEDGE_PERCENTILE);
+
+    // Once the zone has had its share of the time, move on through
+    // its servers quickly rather than waiting out their timeouts, and
+    // never wait past the deadline.
+    now = clock.nanoTime();
+    long minWait = TimeUnit.MILLISECONDS.toNanos(MIN_HOP_WAIT);
+    long hedgeWait = Math.min(TimeUnit.MILLISECONDS.toNanos(delay),
+                              Math.max(aq.stepDeadline - now, minWait));
+    aq.nextTransmitAt = Math.min(aq.deadline, now + hedgeWait);
+  }
+
+  // True if the name lies strictly below the zone, whatever the case of
+  // either.
+  static boolean isBelow(String name, String zone)
+  {
+    if(zone.isEmpty())
+      return !name.isEmpty();
+    return name.length() > zone.length() + 1 &&
+           name.regionMatches(true, name.length() - zone.length(), zone, 0,
+                              zone.length()) &&
+           name.charAt(name.length() - zone.length() - 1) == '.';
+  }
+
+  private static int labelCount(String name)
+  {
+    if(name.isEmpty())
+      return 0;
+
+    int labels = 1;
+    for(int i = 0; i < name.length(); ++i)
+    {
+      if(name.charAt(i) == '.')
+        ++labels;
+    }
+    return labels;
+  }
+
+  /**
+   * Backs off every server that has now gone a full retransmission
+   * timeout without answering.
+   */
+  private void markLateTransmissions(Query aq)
+  {
+    long now = clock.nanoTime();
+    for(Transmission t : aq.transmissions.values())
+    {
+      RttEstimator stats = statsFor(t.nameserver);
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(now - t.sentAt);
+      if(!t.timedOut && elapsed >= stats.retransmitTimeout())
+      {
+        t.timedOut = true;
+        stats.onTimeout();
+        health.onFailure(t.nameserver.inetAddress(),
+                         ServerHealth.Failure.TIMEOUT, now);
+        limiter.onLoss(t.nameserver.inetAddress(), now);
+        releaseSlot(t);
+      }
+    }
+  }
+
+  private void recordRoundTrip(Transmission t)
+  {
+    if(t == null || t.retransmitted)
+      return;
+
+    long rtt = TimeUnit.NANOSECONDS.toMillis(clock.nanoTime() - t.sentAt);
+    statsFor(t.nameserver).addSample(rtt);
+  }
+
+  // Ends every exchange made with the servers of the current zone.
+  private void releaseTransmissions(Query aq)
+  {
+    if(aq.transmissions == null)
+      return;
+
+    for(Transmission t : aq.transmissions.values())
+    {
+      releaseSlot(t);
+      aq.transport.cancel(t.exchange);
+    }
+    aq.transmissions = null;
+    aq.inbox.clear();
+  }
+
+  // The reactor serving the shard, started on first use, unless the
+  // resolver was given a transport of its own.
+  private Transport transportFor(int shard) throws IOException
+  {
+    if(transport != null)
+      return transport;
+
+    int index = Math.floorMod(shard, reactors.length);
+    synchronized(reactors)
+    {
+      if(closed)
+        throw new IOException("Resolver closed.");
+      if(reactors[index] == null)
+        reactors[index] = new Reactor("dnsj-reactor-" + index);
+      return reactors[index];
+    }
+  }
+
+  // Stops a transmission counting towards its server's and zone's
+  // outstanding queries.
+  private void releaseSlot(Transmission t)
+  {
+    if(t != null && t.holdsSlot)
+    {
+      t.holdsSlot = false;
+      limiter.release(t.nameserver.inetAddress(), t.zone, t.priority);
+    }
+  }
+
+  private RttEstimator statsFor(Nameserver ns)
+  {
+    RttEstimator stats = serverStats.get(ns.inetAddress());
+    if(stats == null)
+    {
+      serverStats.putIfAbsent(ns.inetAddress(),
+                              random != null ? new RttEstimator(random)
+                                             : new RttEstimator());
+      stats = serverStats.get(ns.inetAddress());
+    }
+    return stats;
+  }
+
+  private Zone rootZone()
+  {
+    Zone result = new Zone("");
+    for(String[] hint : ROOT_HINTS)
+    {
+      for(int i = 1; i < hint.length; ++i)
+        result.knownNameServers.add(new Nameserver(hint[0], hint[i]));
+    }
+    return result;
+  }
+
+  // The bytes of an IPv4 or IPv6 address literal.
+  private static byte[] literalAddress(String literal)
+  {
+    try
+    {
+      // Literals are parsed, not looked up.
+      return InetAddress.getByName(literal).getAddress();
+    }
+    catch(UnknownHostException e)
+    {
+      throw new IllegalArgumentException("Bad address " + literal, e);
+    }
+  }
+
+  /**
+   * Will return a value in the first 16 bits of the result that are
+   * to be used in the ID field of the DNS header.
+   */
+  private int nextID()
+  {
+    return nextQueryID.incrementAndGet() & 0xFFFF;
+  }
+
+  /**
+   * Caches every RRset in the answer section of the response.
+   *
+   * @return the RRsets found, keyed as they are in the cache.
+   */
+  Map<ResourceRecordKey, RRset> cacheAnswer(Answer answer)
+  {
+    // Authority answers.
+    return cacheRecords(answer.getAuthorityAnswers());
+  }
+
+  /**
+   * Caches the NS records of a referral along with the glue addresses
+   * of those name servers that lie inside the delegated zone.  Nothing
+   * is cached from a referral whose NS records have several owners.
+   */
+  void cacheReferral(Answer referral)
+  {
+    String zone = referral.referralZone();
+    if(zone == null)
+      return;
+
+    List<Answer.ResourceRecord> nameservers = new ArrayList<>();
+    for(Answer.ResourceRecord rr : referral.getAuthorityNameservers())
+    {
+      if(rr.type == QType.NS)
+        nameservers.add(rr);
+    }
+
+    cacheRecords(nameservers);
+    cacheRecords(referral.referralGlue(zone));
+  }
+
+  /**
+   * Groups the records into RRsets and caches them.
+   *
+   * @return the RRsets found, keyed as they are in the cache.
+   */
+  private Map<ResourceRecordKey, RRset> cacheRecords(
+      List<Answer.ResourceRecord> rrs)
+  {
+    Map<ResourceRecordKey, List<Answer.ResourceRecord>> grouped =
+      new LinkedHashMap<>();
+    for(Answer.ResourceRecord rr : rrs)
+    {
+      // A name in the RDATA that can't be expanded leaves the record
+      // no use, drop it here rather than wherever it's read.
+      if(!decodes(rr))
+      {
+        if(TRACE)
+          System.out.println("Dropping malformed " + rr.type + " record for " +
+                             rr.domainName);
+        continue;
+      }
+
+      ResourceRecordKey key =
+        new ResourceRecordKey(rr.domainName, rr.type, rr.recordClass);
+
+      List<Answer.ResourceRecord> records = grouped.get(key);
+      if(records == null)
+      {
+        records = new ArrayList<>();
+        grouped.put(key, records);
+      }
+      records.add(rr);
+    }
+
+    Map<ResourceRecordKey, RRset> result = new HashMap<>();
+    for(Map.Entry<ResourceRecordKey, List<Answer.ResourceRecord>> entry :
+        grouped.entrySet())
+    {
+      List<Answer.ResourceRecord> records = entry.getValue();
+
+      // An RRset lives as long as its shortest lived record.
+      long ttl = Long.MAX_VALUE;
+      for(Answer.ResourceRecord rr : records)
+        ttl = Math.min(ttl, rr.ttl);
+
+      RRset rrset = new RRset(records.get(0).domainName,
+                              records.get(0).type,
+                              records.get(0).recordClass,
+                              records.toArray(RRset.NO_RECORDS),
+                              expiryFor(ttl));
+      result.put(entry.getKey(), rrset);
+      if(ttl > 0)
+        rrCache.put(rrset, clock.nanoTime());
+    }
+    return result;
+  }
+
+  // True unless the record's RDATA holds names that don't expand.
+  private static boolean decodes(Answer.ResourceRecord rr)
+  {
+    if(!RData.containsNames(rr.type))
+      return true;
+
+    try
+    {
+      rr.rdata();
+      return true;
+    }
+    catch(IllegalArgumentException | BufferUnderflowException |
+          Answer.MalformedNameException e)
+    {
+      return false;
+    }
+  }
+
+  /**
+   * Loads every record of a master file into the cache, each RRset
+   * living for its TTL from now.
+   *
+   * Records are cached as they're parsed.  An RRset's records are
+   * expected to be adjacent, as in files written by name servers; one
+   * split up in the file is merged with what's already cached.
+   *
+   * @return the number of records loaded.
+   */
+  public long preload(MasterFileParser parser) throws IOException
+  {
+    CacheLoader loader = new CacheLoader();
+    long records = parser.parse(loader);
+    loader.flush();
+    return records;
+  }
+
+  /**
+   * Stops the resolver's I/O threads and workers, closing their sockets,
+   * and closes the peer group and forwarder it was built with.  Queries
+   * still waiting on a name server hear nothing more and time out.  The
+   * record cache and query log are left to their owner.
+   */
+  @Override
+  public void close()
+  {
+    synchronized(reactors)
+    {
+      closed = true;
+      for(int i = 0; i < reactors.length; ++i)
+      {
+        if(reactors[i] != null)
+          reactors[i].close();
+        reactors[i] = null;
+      }
+    }
+    workers.shutdownNow();
+    if(peers != null)
+      peers.close();
+    if(forwarder != null)
+      forwarder.close();
+  }
+
+  /**
+   * Collects consecutive records of the same RRset and caches each
+   * RRset once it's complete.
+   */
+  private class CacheLoader implements RecordSink
+  {
+    @Override
+    public void add(Answer.ResourceRecord rr)
+    {
+      if(!pending.isEmpty())
+      {
+        Answer.ResourceRecord first = pending.get(0);
+        if(first.type != rr.type || first.recordClass != rr.recordClass ||
+           !first.domainName.equalsIgnoreCase(rr.domainName))
+        {
+          flush();
+        }
+      }
+      pending.add(rr);
+    }
+
+    void flush()
+    {
+      if(pending.isEmpty())
+        return;
+
+      Answer.ResourceRecord first = pending.get(0);
+      long now = clock.nanoTime();
+      long ttl = Long.MAX_VALUE;
+      for(Answer.ResourceRecord rr : pending)
+        ttl = Math.min(ttl, rr.ttl);
+      long expiresAt = expiryFor(ttl);
+
+      RRset cached = rrCache.get(first.domainName, first.type,
+                                 first.recordClass, now);
+      if(cached != null && !cached.isEmpty())
+      {
+        for(Answer.ResourceRecord rr : cached)
+        {
+          if(!containsRecord(pending, rr))
+            pending.add(rr);
+        }
+        expiresAt = Math.min(expiresAt, cached.expiresAt());
+      }
+
+      if(ttl > 0)
+      {
+        rrCache.put(new RRset(first.domainName, first.type,
+                              first.recordClass,
+                              pending.toArray(RRset.NO_RECORDS), expiresAt),
+                    now);
+      }
+      pending.clear();
+    }
+
+    private boolean containsRecord(List<Answer.ResourceRecord> records,
+                                   Answer.ResourceRecord rr)
+    {
+      for(Answer.ResourceRecord other : records)
+      {
+        if(Arrays.equals(other.wireData(), rr.wireData()))
+          return true;
+      }
+      return false;
+    }
+
+    private final List<Answer.ResourceRecord> pending = new ArrayList<>();
+  }
+
+  /**
+   * Records that the question has no answer, either because the name
+   * doesn't exist or because it has no data of the type.  Per RFC 2308
+   * this is cached for the lesser of the SOA's TTL and minimum field,
+   * and not at all if the server didn't include an SOA.
+   */
+  private void cacheNegativeAnswer(Query aq, QuestionRecord qr,
+                                   boolean nameError,
+                                   Answer.ResourceRecord soa)
+  {
+    long ttl = 0;
+    if(soa != null)
+      ttl = Math.min(soa.ttl, ((RData.SOA)soa.rdata()).minimum());
+
     ResourceRecordKey key =
-      new ResourceRecordKey(rr.domainName, rr.type, rr.recordClass);
+      new ResourceRecordKey(qr.qname, qr.qtype, qr.qclass);
+    RRset negative = RRset.negative(qr.qname, qr.qtype, qr.qclass, nameError,
+                                    soa, expiryFor(ttl));
+
+    aq.answers.put(key, negative);
+    if(ttl > 0)
+      rrCache.put(negative, clock.nanoTime());
+  }
 
-    Deque<Answer.ResourceRecord> records = rrCache.get(key);
-    if(records == null)
+  private Answer.ResourceRecord authoritySOA(Answer response)
+  {
+    for(Answer.ResourceRecord rr : response.getAuthorityNameservers())
     {
-      records = new LinkedList<>();
-      rrCache.put(key, records);
+      if(rr.type == QType.SOA)
+        return rr;
     }
+    return null;
+  }
 
-    records.addFirst(rr);
+  // clock.nanoTime() at which something with this TTL expires.
+  private long expiryFor(long ttlSeconds)
+  {
+    long ttl = Math.min(Math.max(ttlSeconds, 0), MAX_CACHE_TTL);
+    return clock.nanoTime() + TimeUnit.SECONDS.toNanos(ttl);
   }
 
-  private int nextQueryID;
-  private static final int PER_SELECT_TIMEOUT = 2000;
+  private final AtomicInteger nextQueryID;
+
+  // Percentile of a server's recent round trip times after which the
+  // query is duplicated to the next best server.
+  private static final double HEDGE_PERCENTILE = 0.9;
+
+  // Round trip statistics for every name server we've talked to,
+  // shared by all queries.
+  private final Map<InetAddress, RttEstimator> serverStats =
+    new ConcurrentHashMap<>();
+
+  // Name servers that have been timing out, failing or lame, and are
+  // skipped until their backoff runs out.
+  private final ServerHealth<InetAddress> health = new ServerHealth<>();
 
-  // Used to maintain a stack
-  private Deque<Query> inProgressQueries;
 
   // Cache of resource records that we've received while traversing.
-  Map<ResourceRecordKey, Deque<Answer.ResourceRecord>> rrCache;
+  private final RecordCache rrCache;
+
+  // I/O threads for talking to name servers, each serving the queries
+  // whose shard hashes to it.  Guarded by itself.
+  private final Reactor[] reactors;
+
+  // Set once close() has stopped the reactors, guarded by them.
+  private boolean closed;
+
+  // Carries every query in place of the reactors, or null.
+  private final Transport transport;
+
+  // Where all the resolver's times come from.
+  private final Clock clock;
+
+  // Seeded source of random choices, or null for ThreadLocalRandom.
+  private final Random random;
+
+  // Caps and paces the queries sent to each name server and zone.
+  private final UpstreamLimiter limiter;
+
+  // Resolver every query is forwarded to, or null to resolve from
+  // the root.
+  private final DotUpstream forwarder;
+
+  // Records answered without going upstream.
+  private final LocalZoneData localData;
+
+  // Resolvers that share their answers with us, or null.
+  private final PeerGroup peers;
+
+  // Where every resolved query is recorded, or null.
+  private final QueryLog queryLog;
+
+  // Encoded responses to questions respond() has answered, or null if
+  // they aren't kept.
+  private final MessageCache messageCache;
+
+  // The root servers, each with its IPv4 and IPv6 address.
+  static final String[][] ROOT_HINTS = {
+    { "A.root-servers.net", "198.41.0.4", "2001:503:ba3e::2:30" },
+    { "B.root-servers.net", "192.228.79.201", "2801:1b8:10::b" },
+    { "C.root-servers.net", "192.33.4.12", "2001:500:2::c" },
+    { "D.root-servers.net", "199.7.91.13", "2001:500:2d::d" },
+    { "E.root-servers.net", "192.203.230.10", "2001:500:a8::e" },
+    { "F.root-servers.net", "192.5.5.241", "2001:500:2f::f" },
+    { "G.root-servers.net", "192.112.36.4", "2001:500:12::d0d" },
+    { "H.root-servers.net", "128.63.2.53", "2001:500:1::53" },
+    { "I.root-servers.net", "192.36.148.17", "2001:7fe::53" },
+    { "J.root-servers.net", "192.58.128.30", "2001:503:c27::2:30" },
+    { "K.root-servers.net", "193.0.14.129", "2001:7fd::1" },
+    { "L.root-servers.net", "199.7.83.42", "2001:500:9f::42" },
+    { "M.root-servers.net", "202.12.27.33", "2001:dc3::35" },
+  };
+
+  // Whether each step of every resolution is reported on stdout, which
+  // is set with -Ddnsj.trace=true and only worth it for a few queries.
+  private static final boolean TRACE = Boolean.getBoolean("dnsj.trace");
+
+  // Wakes a query that's been cancelled while it waits for responses.
+  private static final Transport.Response CANCELLED =
+    new Transport.Response(null, null);
+
+  // How long a query may take unless the caller says otherwise (ms).
+  public static final long DEFAULT_QUERY_TIMEOUT = 10000;
+
+  // Shortest wait on a server once its zone has used up its share of
+  // the query's time (ms).
+  private static final long MIN_HOP_WAIT = 5;
+
+  // Longest wait for a forwarded query's response (ms).
+  private static final long FORWARD_TIMEOUT = 2000;
+
+  // Longest alias chain we'll follow before assuming a loop.
+  private static final int MAX_CHAIN_LENGTH = 16;
+
+  // Referral steps currently being worked on, keyed by zone and name,
+  // so concurrent resolutions of one name can share them.
+  private final ConcurrentMap<String, CountDownLatch> inFlightSteps =
+    new ConcurrentHashMap<>();
+
+  // Runs the individual queries of combined lookups.
+  private final ExecutorService workers =
+    Executors.newCachedThreadPool(new ThreadFactory()
+    {
+      @Override
+      public Thread newThread(Runnable r)
+      {
+        Thread thread = new Thread(r, "dnsj-worker");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+  // Longest we'll wait on another resolution's referral step (ms).
+  private static final long SHARED_STEP_WAIT = 2000;
+
+  // How long an IPv4 answer waits for IPv6 addresses to arrive when
+  // only the first family is wanted (RFC 8305 recommends 50 ms).
+  private static final long RESOLUTION_DELAY = 50;
+
+  // Memory the default record cache may use.
+  public static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+
+  // Default limits on the queries sent upstream.
+  public static final int DEFAULT_MAX_PER_SERVER = 64;
+  public static final int DEFAULT_MAX_PER_ZONE = 256;
+  public static final double DEFAULT_MAX_RATE = 1000;
+
+  // Responses the default message cache holds.
+  public static final int DEFAULT_MESSAGE_CACHE_ENTRIES = 10000;
+
+  // Shortest wait for a server to free up, so a throttled query
+  // doesn't spin (ms).
+  private static final long MIN_THROTTLE_WAIT = 1;
+
+  // Upper bound on how long anything is cached for (one week).
+  private static final long MAX_CACHE_TTL = 604800;
 }
 
@@ -0,0 +1,466 @@
+package dh.net.dns;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * DNS over TLS (RFC 7858) to a recursive resolver we forward to.
+ *
+ * A single connection is kept open and queries are pipelined on it
+ * (RFC 7766): each is given an ID unique on the connection, and
+ * responses, which may arrive in any order, are matched back to their
+ * queries by that ID.  Should the connection drop, the queries waiting
+ * on it fail and the next query opens a new one, resuming the previous
+ * TLS session where the server allows so the reconnect costs a single
+ * round trip.
+ *
+ * The server's certificate is checked against serverName.
+ */
+public class DotUpstream implements Closeable
+{
+  public DotUpstream(InetSocketAddress server, String serverName)
+    throws NoSuchAlgorithmException
+  {
+    this(server, serverName, SSLContext.getDefault());
+  }
+
+  /**
+   * @param context supplies the trust store and, by keeping its client
+   *        session cache, the sessions to resume.
+   */
+  public DotUpstream(InetSocketAddress server, String serverName,
+                     SSLContext context)
+  {
+    this.server = server;
+    this.serverName = serverName;
+    this.context = context;
+  }
+
+  /**
+   * Sends the query and returns its response, waiting at most
+   * timeoutMillis.
+   *
+   * @throws IOException if the connection fails or the response doesn't
+   *         arrive in time.
+   */
+  public byte[] exchange(byte[] query, long timeoutMillis) throws IOException
+  {
+    CompletableFuture<byte[]> response = send(query);
+    try
+    {
+      return response.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+    catch(TimeoutException e)
+    {
+      response.cancel(false);
+      throw new IOException("No response from " + server + " within " +
+                            timeoutMillis + "ms");
+    }
+    catch(ExecutionException e)
+    {
+      if(e.getCause() instanceof IOException)
+        throw (IOException)e.getCause();
+      throw new IOException(e.getCause());
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      response.cancel(false);
+      throw new IOException("Interrupted waiting for " + server);
+    }
+  }
+
+  /**
+   * Sends the query without waiting for its response.  The response
+   * carries the query's original ID.  Should there be no connection,
+   * the query goes once one is opened, which happens in the background,
+   * so the caller never waits longer than it waits on the response.
+   */
+  public CompletableFuture<byte[]> send(byte[] query)
+  {
+    CompletableFuture<byte[]> response = new CompletableFuture<>();
+    send(query, response);
+    return response;
+  }
+
+  /**
+   * As send(query), completing the given response, which the caller
+   * may cancel (or have cancelled) before the query goes.
+   */
+  void send(final byte[] query, final CompletableFuture<byte[]> response)
+  {
+    if(query.length < 12 || query.length > 0xFFFF)
+    {
+      response.completeExceptionally(
+        new IllegalArgumentException("Not a DNS message."));
+      return;
+    }
+
+    CompletableFuture<Connection> pending;
+    try
+    {
+      pending = connection();
+    }
+    catch(IOException e)
+    {
+      response.completeExceptionally(e);
+      return;
+    }
+    pending.whenComplete(new BiConsumer<Connection, Throwable>()
+    {
+      @Override
+      public void accept(Connection connection, Throwable failure)
+      {
+        if(failure != null)
+        {
+          response.completeExceptionally(failure);
+          return;
+        }
+        try
+        {
+          connection.send(query, response);
+        }
+        catch(IOException e)
+        {
+          response.completeExceptionally(e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Number of TLS handshakes made, and how many of those resumed an
+   * earlier session.
+   */
+  public long handshakes()
+  {
+    return handshakes.get();
+  }
+
+  public long resumedHandshakes()
+  {
+    return resumedHandshakes.get();
+  }
+
+  /**
+   * Number of queries sent and still awaiting a response.
+   */
+  public synchronized int outstanding()
+  {
+    Connection current = opened(connecting);
+    return current == null ? 0 : current.outstanding.size();
+  }
+
+  @Override
+  public String toString()
+  {
+    return serverName + "(" + server + ", TLS)";
+  }
+
+  @Override
+  public void close()
+  {
+    Connection current;
+    synchronized(this)
+    {
+      closed = true;
+      current = opened(connecting);
+      connecting = null;
+    }
+    // One still being opened is closed by its opener.
+    if(current != null)
+      current.fail(new IOException("Upstream closed."));
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Sets the longest wait for the server's side of the TLS handshake,
+   * in milliseconds.
+   */
+  void setHandshakeTimeout(int millis)
+  {
+    handshakeTimeout = millis;
+  }
+
+  /**
+   * The open connection, or its opening, starting that if there's
+   * neither.  The connect and handshake happen on a thread of their
+   * own, bounded by their timeouts, so no caller waits on them.
+   */
+  private synchronized CompletableFuture<Connection> connection()
+    throws IOException
+  {
+    if(closed)
+      throw new IOException("Upstream closed.");
+    if(connecting == null ||
+       (connecting.isDone() && opened(connecting) == null))
+    {
+      final CompletableFuture<Connection> opening = new CompletableFuture<>();
+      connecting = opening;
+      Thread opener = new Thread(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          open(opening);
+        }
+      }, "dot-connect-" + server);
+      opener.setDaemon(true);
+      opener.start();
+    }
+    return connecting;
+  }
+
+  private void open(CompletableFuture<Connection> opening)
+  {
+    try
+    {
+      Connection opened = new Connection();
+      synchronized(this)
+      {
+        if(closed)
+        {
+          opened.fail(new IOException("Upstream closed."));
+          throw new IOException("Upstream closed.");
+        }
+      }
+      opening.complete(opened);
+    }
+    catch(IOException | RuntimeException e)
+    {
+      opening.completeExceptionally(e);
+    }
+  }
+
+  // The connection once opened, or null if it's still being opened,
+  // couldn't be opened or has since failed.
+  private static Connection opened(CompletableFuture<Connection> connecting)
+  {
+    if(connecting == null || !connecting.isDone() ||
+       connecting.isCompletedExceptionally())
+    {
+      return null;
+    }
+    Connection current = connecting.getNow(null);
+    return current.failed ? null : current;
+  }
+
+  /**
+   * One TLS connection with the queries outstanding on it.
+   */
+  private class Connection implements Runnable
+  {
+    Connection() throws IOException
+    {
+      long start = System.currentTimeMillis();
+
+      // Sessions are cached by host and port, so each reconnect offers
+      // the last session for resumption.
+      Socket tcp = new Socket();
+      try
+      {
+        tcp.connect(server, CONNECT_TIMEOUT);
+        tcp.setTcpNoDelay(true);
+        // A server that accepts but never answers mustn't stall the
+        // handshake forever.  The reader waits as long as it takes.
+        tcp.setSoTimeout(handshakeTimeout);
+        socket = (SSLSocket)context.getSocketFactory().createSocket(
+            tcp, serverName, server.getPort(), true);
+        SSLParameters parameters = socket.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        socket.setSSLParameters(parameters);
+        socket.startHandshake();
+        tcp.setSoTimeout(0);
+      }
+      catch(IOException e)
+      {
+        tcp.close();
+        throw e;
+      }
+
+      // A resumed session was created before this handshake began.
+      SSLSession session = socket.getSession();
+      handshakes.incrementAndGet();
+      if(session.getCreationTime() < start)
+        resumedHandshakes.incrementAndGet();
+
+      output = socket.getOutputStream();
+      input = new DataInputStream(socket.getInputStream());
+
+      Thread reader = new Thread(this, "dot-" + server);
+      reader.setDaemon(true);
+      reader.start();
+    }
+
+    void send(byte[] query, CompletableFuture<byte[]> response)
+      throws IOException
+    {
+      // Given up on before it could go.
+      if(response.isDone())
+        return;
+
+      // Give the query an ID no other outstanding query on this
+      // connection has.
+      if(outstanding.size() >= MAX_OUTSTANDING)
+        throw new IOException("Too many queries outstanding to " + server);
+
+      final Pending pending = new Pending(query, response);
+      int candidate;
+      do
+      {
+        candidate = nextID.getAndIncrement() & 0xFFFF;
+      } while(outstanding.putIfAbsent(candidate, pending) != null);
+      final int id = candidate;
+
+      // Free the ID of a query the caller has given up on.
+      response.whenComplete(new BiConsumer<byte[], Throwable>()
+      {
+        @Override
+        public void accept(byte[] message, Throwable failure)
+        {
+          outstanding.remove(id, pending);
+        }
+      });
+
+      byte[] frame = new byte[query.length + 2];
+      frame[0] = (byte)(query.length >> 8);
+      frame[1] = (byte)query.length;
+      System.arraycopy(query, 0, frame, 2, query.length);
+      frame[2] = (byte)(id >> 8);
+      frame[3] = (byte)id;
+
+      try
+      {
+        synchronized(output)
+        {
+          output.write(frame);
+          output.flush();
+        }
+      }
+      catch(IOException e)
+      {
+        outstanding.remove(id);
+        fail(e);
+        throw e;
+      }
+    }
+
+    // Reads responses until the connection goes.
+    @Override
+    public void run()
+    {
+      try
+      {
+        while(true)
+        {
+          int length = input.readUnsignedShort();
+          byte[] message = new byte[length];
+          input.readFully(message);
+          if(length < 12)
+            continue;
+
+          int id = ((message[0] & 0xFF) << 8) | (message[1] & 0xFF);
+          Pending pending = outstanding.remove(id);
+          if(pending == null)
+            continue;
+
+          // Hand back the ID the caller used.
+          message[0] = pending.query[0];
+          message[1] = pending.query[1];
+          pending.response.complete(message);
+        }
+      }
+      catch(EOFException e)
+      {
+        fail(new IOException("Connection to " + server + " closed."));
+      }
+      catch(IOException e)
+      {
+        fail(e);
+      }
+    }
+
+    // Fails every outstanding query and closes the connection.
+    void fail(IOException cause)
+    {
+      failed = true;
+      try
+      {
+        socket.close();
+      }
+      catch(IOException e)
+      {
+        // Already going away.
+      }
+
+      for(Integer id : outstanding.keySet())
+      {
+        Pending pending = outstanding.remove(id);
+        if(pending != null)
+          pending.response.completeExceptionally(cause);
+      }
+    }
+
+    private final SSLSocket socket;
+    private final OutputStream output;
+    private final DataInputStream input;
+    private final Map<Integer, Pending> outstanding = new ConcurrentHashMap<>();
+    private final AtomicInteger nextID = new AtomicInteger();
+    private volatile boolean failed;
+  }
+
+  private static class Pending
+  {
+    Pending(byte[] query, CompletableFuture<byte[]> response)
+    {
+      this.query = Arrays.copyOf(query, 2);
+      this.response = response;
+    }
+
+    final byte[] query;
+    final CompletableFuture<byte[]> response;
+  }
+
+  // Most queries in flight on a connection, leaving IDs to spare.
+  private static final int MAX_OUTSTANDING = 60000;
+
+  // Longest wait for the TCP connection to be accepted (ms).
+  private static final int CONNECT_TIMEOUT = 5000;
+
+  // Longest wait for the server's side of the TLS handshake (ms).
+  private static final int HANDSHAKE_TIMEOUT = 5000;
+
+  private final InetSocketAddress server;
+  private final String serverName;
+  private final SSLContext context;
+
+  // The connection, or its opening while that's under way.
+  private CompletableFuture<Connection> connecting;
+  private boolean closed;
+  private volatile int handshakeTimeout = HANDSHAKE_TIMEOUT;
+
+  private final AtomicLong handshakes = new AtomicLong();
+  private final AtomicLong resumedHandshakes = new AtomicLong();
+}
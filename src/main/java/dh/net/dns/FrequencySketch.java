@@ -0,0 +1,95 @@
+package dh.net.dns;
+
+/**
+ * A count-min sketch of 4-bit counters estimating how often each key
+ * has been seen recently, as used by TinyLFU admission.
+ *
+ * Every counter is halved once the number of increments reaches ten
+ * times the table width, so old popularity fades and a name that was
+ * hot an hour ago doesn't stay in the cache on reputation alone.
+ *
+ * Not thread safe, callers synchronize.
+ */
+class FrequencySketch
+{
+  FrequencySketch(int expectedEntries)
+  {
+    int width = Integer.highestOneBit(Math.max(16, expectedEntries) - 1) << 1;
+    // Sixteen 4-bit counters per long.
+    this.table = new long[Math.max(1, width / 16) * DEPTH];
+    this.rowLength = table.length / DEPTH;
+    this.sampleSize = 10 * width;
+  }
+
+  /**
+   * Returns the estimated number of recent occurrences of the key,
+   * at most 15.
+   */
+  int frequency(int hash)
+  {
+    int h = spread(hash);
+    int min = MAX_COUNT;
+    for(int row = 0; row < DEPTH; ++row)
+    {
+      int counter = counterIndex(h, row);
+      long word = table[row * rowLength + (counter >>> 4)];
+      int count = (int)((word >>> ((counter & 15) << 2)) & 0xF);
+      min = Math.min(min, count);
+    }
+    return min;
+  }
+
+  void increment(int hash)
+  {
+    int h = spread(hash);
+    boolean added = false;
+    for(int row = 0; row < DEPTH; ++row)
+    {
+      int counter = counterIndex(h, row);
+      int word = row * rowLength + (counter >>> 4);
+      int shift = (counter & 15) << 2;
+      if(((table[word] >>> shift) & 0xF) < MAX_COUNT)
+      {
+        table[word] += 1L << shift;
+        added = true;
+      }
+    }
+
+    if(added && ++additions >= sampleSize)
+      reset();
+  }
+
+  // Halves every counter.
+  private void reset()
+  {
+    for(int i = 0; i < table.length; ++i)
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    additions /= 2;
+  }
+
+  // Picks the counter for the row from an independent-ish hash.
+  private int counterIndex(int h, int row)
+  {
+    int x = (h + SEEDS[row]) * SEEDS[row];
+    x ^= x >>> 17;
+    return x & (rowLength * 16 - 1);
+  }
+
+  private static int spread(int x)
+  {
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    return (x >>> 16) ^ x;
+  }
+
+  private static final int DEPTH = 4;
+  private static final int MAX_COUNT = 15;
+  private static final long RESET_MASK = 0x7777777777777777L;
+  private static final int[] SEEDS =
+    { 0x97cb3127, 0xb0f49b3d, 0x3c6ef372, 0xc2b2ae35 };
+
+  private final long[] table;
+  private final int rowLength;
+  private final int sampleSize;
+  private int additions;
+}
@@ -191,6 +191,21 @@ public class Header
     return buffer.array();
   }
 
+  public int getID()
+  {
+    return this.id;
+  }
+
+  public byte getRCode()
+  {
+    return this.rcode;
+  }
+
+  public boolean isAuthoritative()
+  {
+    return this.authorativeAnswer;
+  }
+
   public int getQuestionCount()
   {
     return this.questionCount;
@@ -233,6 +248,14 @@ public class Header
                     
   }
 
+  // Response codes (RFC 1035 section 4.1.1).
+  public static final byte RCODE_NO_ERROR = 0;
+  public static final byte RCODE_FORMAT_ERROR = 1;
+  public static final byte RCODE_SERVER_FAILURE = 2;
+  public static final byte RCODE_NAME_ERROR = 3;
+  public static final byte RCODE_NOT_IMPLEMENTED = 4;
+  public static final byte RCODE_REFUSED = 5;
+
   private Header(Builder builder)
   {
     this.id = builder.id;
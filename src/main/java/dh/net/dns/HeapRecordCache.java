@@ -0,0 +1,52 @@
+package dh.net.dns;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An unbounded record cache, a concurrent map from name/type/class to
+ * RRset held on the Java heap.  The resolver's default is a
+ * BoundedRecordCache.
+ */
+public class HeapRecordCache implements RecordCache
+{
+  public HeapRecordCache()
+  {
+    this.rrCache = new ConcurrentHashMap<>();
+  }
+
+  @Override
+  public RRset get(String name, QType type, QClass qClass, long now)
+  {
+    ResourceRecordKey key = new ResourceRecordKey(name, type, qClass);
+
+    RRset records = rrCache.get(key);
+    if(records == null)
+      return null;
+
+    if(records.isExpired(now))
+    {
+      rrCache.remove(key, records);
+      return null;
+    }
+
+    return records;
+  }
+
+  @Override
+  public void put(RRset rrset, long now)
+  {
+    ResourceRecordKey key =
+      new ResourceRecordKey(rrset.getName(), rrset.getType(),
+                            rrset.getRecordClass());
+    rrCache.put(key, rrset);
+  }
+
+  @Override
+  public int size()
+  {
+    return rrCache.size();
+  }
+
+  private final Map<ResourceRecordKey, RRset> rrCache;
+}
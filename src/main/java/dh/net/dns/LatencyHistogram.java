@@ -0,0 +1,84 @@
+package dh.net.dns;
+
+/**
+ * Histogram of latencies in nanoseconds with log-linear buckets: each
+ * power of two is split into 16 buckets, so a percentile is reported
+ * to within about 6% whatever its magnitude.
+ *
+ * Not thread safe, keep one per thread and merge them.
+ */
+class LatencyHistogram
+{
+  void record(long nanos)
+  {
+    ++counts[bucketFor(Math.max(0, nanos))];
+    ++count;
+    max = Math.max(max, nanos);
+  }
+
+  void merge(LatencyHistogram other)
+  {
+    for(int i = 0; i < counts.length; ++i)
+      counts[i] += other.counts[i];
+    count += other.count;
+    max = Math.max(max, other.max);
+  }
+
+  long count()
+  {
+    return count;
+  }
+
+  long max()
+  {
+    return max;
+  }
+
+  /**
+   * Returns the latency the given fraction of samples are at or below,
+   * rounded up to the top of its bucket.
+   */
+  long percentile(double fraction)
+  {
+    if(count == 0)
+      return 0;
+
+    long rank = (long)Math.ceil(fraction * count);
+    long seen = 0;
+    for(int i = 0; i < counts.length; ++i)
+    {
+      seen += counts[i];
+      if(seen >= Math.max(1, rank))
+        return Math.min(max, highestValueIn(i));
+    }
+    return max;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  private static int bucketFor(long value)
+  {
+    if(value < SUB_BUCKETS)
+      return (int)value;
+
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int)(value >>> (exponent - 4)) & (SUB_BUCKETS - 1);
+    return SUB_BUCKETS + (exponent - 4) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long highestValueIn(int bucket)
+  {
+    if(bucket < SUB_BUCKETS)
+      return bucket;
+
+    int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + 4;
+    long subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+    return ((SUB_BUCKETS + subBucket + 1) << (exponent - 4)) - 1;
+  }
+
+  private static final int SUB_BUCKETS = 16;
+
+  private final long[] counts = new long[SUB_BUCKETS * 61];
+  private long count;
+  private long max;
+}
@@ -0,0 +1,525 @@
+package dh.net.dns;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generates query load in the style of dnsperf, against a name server
+ * over UDP or against an embedded resolver, and reports the rate
+ * achieved, latency, losses and response codes.
+ *
+ * Usage: LoadGenerator -d queryfile [-s server] [-p port] [--resolver]
+ *                      [-c clients] [-q outstanding] [-Q qps]
+ *                      [-l seconds] [-t timeout]
+ *
+ * The query file holds a question per line, a name and a type such as
+ * "www.example.com A"; blank lines and lines starting with '#' are
+ * skipped.  Queries go out in file order, round and round until the
+ * time limit if one is given, otherwise once through the file.  With
+ * -Q they are paced at that rate, otherwise sent as fast as the limit
+ * on outstanding queries allows.  A query unanswered after the timeout
+ * (seconds) is counted as lost.
+ *
+ * Against a server the queries are spread over -c sockets.  With
+ * --resolver they are answered by DnsResolver.respond() on -q threads
+ * instead, so the resolver's own capacity can be measured.
+ */
+public class LoadGenerator
+{
+  public static void main(String[] args) throws Exception
+  {
+    Path queryFile = null;
+    String server = "127.0.0.1";
+    int port = 53;
+    boolean embedded = false;
+    int clients = 1;
+    int maxOutstanding = 100;
+    double qps = 0;
+    long seconds = 0;
+    double timeout = 5;
+
+    for(int i = 0; i < args.length; ++i)
+    {
+      boolean hasValue = i + 1 < args.length;
+      if(args[i].equals("-d") && hasValue)
+        queryFile = Paths.get(args[++i]);
+      else if(args[i].equals("-s") && hasValue)
+        server = args[++i];
+      else if(args[i].equals("-p") && hasValue)
+        port = Integer.parseInt(args[++i]);
+      else if(args[i].equals("--resolver"))
+        embedded = true;
+      else if(args[i].equals("-c") && hasValue)
+        clients = Integer.parseInt(args[++i]);
+      else if(args[i].equals("-q") && hasValue)
+        maxOutstanding = Integer.parseInt(args[++i]);
+      else if(args[i].equals("-Q") && hasValue)
+        qps = Double.parseDouble(args[++i]);
+      else if(args[i].equals("-l") && hasValue)
+        seconds = Long.parseLong(args[++i]);
+      else if(args[i].equals("-t") && hasValue)
+        timeout = Double.parseDouble(args[++i]);
+      else
+      {
+        usage();
+        return;
+      }
+    }
+    if(queryFile == null || clients < 1 || maxOutstanding < 1 ||
+       maxOutstanding > clients * MAX_PER_CLIENT || qps < 0 ||
+       seconds < 0 || timeout <= 0)
+    {
+      usage();
+      return;
+    }
+
+    List<byte[]> queries = readQueries(queryFile);
+    if(queries.isEmpty())
+    {
+      System.out.println("No queries in " + queryFile);
+      return;
+    }
+    System.out.println("Read " + queries.size() + " queries from " +
+                       queryFile);
+
+    LoadGenerator generator = new LoadGenerator(
+      queries, maxOutstanding, qps, (long)(timeout * 1000));
+    Result result;
+    if(embedded)
+    {
+      System.out.println("Sending to the embedded resolver...");
+      result = generator.run(new DnsResolver(), seconds);
+    }
+    else
+    {
+      InetSocketAddress target =
+        new InetSocketAddress(InetAddress.getByName(server), port);
+      System.out.println("Sending to " + target + "...");
+      result = generator.run(target, clients, seconds);
+    }
+    result.print();
+  }
+
+  private static void usage()
+  {
+    System.out.println("Usage: LoadGenerator -d queryfile [-s server] " +
+                       "[-p port] [--resolver] [-c clients] " +
+                       "[-q outstanding] [-Q qps] [-l seconds] [-t timeout]");
+  }
+
+  /**
+   * Reads the query file, encoding each question as a recursive query
+   * with ID 0.
+   */
+  static List<byte[]> readQueries(Path file) throws IOException
+  {
+    List<byte[]> queries = new ArrayList<>();
+    int lineNumber = 0;
+    for(String line : Files.readAllLines(file, StandardCharsets.UTF_8))
+    {
+      ++lineNumber;
+      line = line.trim();
+      if(line.isEmpty() || line.startsWith("#"))
+        continue;
+
+      String[] fields = line.split("\\s+");
+      String name = fields[0];
+      if(name.endsWith("."))
+        name = name.substring(0, name.length() - 1);
+
+      QType type;
+      try
+      {
+        type = fields.length > 1
+          ? QType.valueOf(fields[1].toUpperCase(Locale.ROOT))
+          : QType.A;
+      }
+      catch(IllegalArgumentException e)
+      {
+        System.out.println(file + ":" + lineNumber + ": unknown type " +
+                           fields[1] + ", skipped");
+        continue;
+      }
+
+      queries.add(new Question.Builder().setID(0).setOpCode(OpCode.QUERY)
+                  .setRecursionDesired(true)
+                  .addQuestion(name, type, QClass.IN).build().getPacket());
+    }
+    return queries;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * @param maxOutstanding most queries awaiting a response at once.
+   * @param qps rate to send at, or 0 for as fast as possible.
+   */
+  LoadGenerator(List<byte[]> queries, int maxOutstanding, double qps,
+                long timeoutMillis)
+  {
+    this.queries = queries;
+    this.maxOutstanding = maxOutstanding;
+    this.interval = qps > 0 ? (long)(TimeUnit.SECONDS.toNanos(1) / qps) : 0;
+    this.timeout = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+  }
+
+  /**
+   * Sends the queries to a server over UDP.
+   *
+   * @param seconds how long to keep sending for, or 0 to go once
+   *        through the queries.
+   */
+  Result run(InetSocketAddress server, int clients, long seconds)
+    throws IOException, InterruptedException
+  {
+    Semaphore permits = new Semaphore(maxOutstanding);
+    Client[] sockets = new Client[clients];
+    Thread[] receivers = new Thread[clients];
+    try
+    {
+      for(int i = 0; i < clients; ++i)
+      {
+        sockets[i] = new Client(server, permits);
+        receivers[i] = new Thread(sockets[i], "load-client-" + i);
+        receivers[i].start();
+      }
+
+      long start = System.nanoTime();
+      long end = start + TimeUnit.SECONDS.toNanos(seconds);
+      long sent = 0;
+      while(seconds > 0 ? System.nanoTime() - end < 0 : sent < queries.size())
+      {
+        if(interval > 0)
+          parkUntil(start + sent * interval);
+
+        // Lost queries hand their permits back once they time out.
+        if(!permits.tryAcquire(SWEEP_INTERVAL, TimeUnit.MILLISECONDS))
+          continue;
+
+        sockets[(int)(sent % clients)].send(
+          queries.get((int)(sent % queries.size())));
+        ++sent;
+      }
+
+      // Give the last queries their chance to be answered.
+      long drainUntil = System.nanoTime() + timeout;
+      while(permits.availablePermits() < maxOutstanding &&
+            System.nanoTime() - drainUntil < 0)
+      {
+        Thread.sleep(1);
+      }
+
+      Result total = new Result();
+      total.sent = sent;
+      total.elapsed = System.nanoTime() - start;
+      for(int i = 0; i < clients; ++i)
+      {
+        sockets[i].stop();
+        receivers[i].join();
+        total.merge(sockets[i].result);
+      }
+      // Still outstanding at the end counts as lost.
+      total.lost += total.sent - total.completed - total.lost;
+      return total;
+    }
+    finally
+    {
+      for(Client client : sockets)
+      {
+        if(client != null)
+          client.stop();
+      }
+    }
+  }
+
+  /**
+   * Has the resolver answer the queries, on maxOutstanding threads.
+   */
+  Result run(final DnsResolver resolver, long seconds)
+    throws InterruptedException
+  {
+    final long start = System.nanoTime();
+    final long end = start + TimeUnit.SECONDS.toNanos(seconds);
+    final boolean once = seconds == 0;
+    final AtomicLong next = new AtomicLong();
+
+    Thread[] workers = new Thread[maxOutstanding];
+    final Result[] results = new Result[maxOutstanding];
+    for(int i = 0; i < workers.length; ++i)
+    {
+      final Result result = new Result();
+      results[i] = result;
+      workers[i] = new Thread(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          while(true)
+          {
+            long n = next.getAndIncrement();
+            if(once ? n >= queries.size() : System.nanoTime() - end >= 0)
+              return;
+            if(interval > 0)
+              parkUntil(start + n * interval);
+
+            byte[] query = queries.get((int)(n % queries.size())).clone();
+            query[0] = (byte)(n >> 8);
+            query[1] = (byte)n;
+
+            long sentAt = System.nanoTime();
+            byte[] response = resolver.respond(query);
+            long latency = System.nanoTime() - sentAt;
+
+            ++result.sent;
+            if(response == null || latency >= timeout)
+            {
+              ++result.lost;
+              continue;
+            }
+            ++result.completed;
+            ++result.rcodes[response[3] & 0x0F];
+            result.latencies.record(latency);
+          }
+        }
+      }, "load-worker-" + i);
+      workers[i].start();
+    }
+
+    Result total = new Result();
+    for(int i = 0; i < workers.length; ++i)
+    {
+      workers[i].join();
+      total.merge(results[i]);
+    }
+    total.elapsed = System.nanoTime() - start;
+    return total;
+  }
+
+  private static void parkUntil(long due)
+  {
+    long wait;
+    while((wait = due - System.nanoTime()) > 0)
+      LockSupport.parkNanos(wait);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * One UDP socket to the server and the queries outstanding on it.
+   * Queries are sent from the generator's thread; the client's own
+   * thread reads the responses and times out queries gone unanswered.
+   */
+  private class Client implements Runnable
+  {
+    Client(InetSocketAddress server, Semaphore permits) throws SocketException
+    {
+      this.socket = new DatagramSocket();
+      this.socket.connect(server);
+      this.socket.setSoTimeout((int)SWEEP_INTERVAL);
+      this.permits = permits;
+    }
+
+    void send(byte[] query) throws IOException
+    {
+      // Only this thread hands out IDs, so a free one stays free.
+      int id;
+      do
+      {
+        id = nextID++ & 0xFFFF;
+      } while(sentAt.get(id) != FREE);
+
+      long now = System.nanoTime();
+      sentAt.set(id, now == FREE ? now + 1 : now);
+
+      byte[] packet = query.clone();
+      packet[0] = (byte)(id >> 8);
+      packet[1] = (byte)id;
+      try
+      {
+        socket.send(new DatagramPacket(packet, packet.length));
+      }
+      catch(PortUnreachableException e)
+      {
+        // Reported for an earlier send, this one went; it'll be lost.
+      }
+    }
+
+    void stop()
+    {
+      stopped = true;
+    }
+
+    @Override
+    public void run()
+    {
+      byte[] buffer = new byte[MAX_MESSAGE_SIZE];
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      long lastSweep = System.nanoTime();
+      try
+      {
+        while(!stopped)
+        {
+          try
+          {
+            packet.setLength(buffer.length);
+            socket.receive(packet);
+            if(packet.getLength() >= MessageCache.HEADER_LENGTH)
+              received(buffer);
+          }
+          catch(SocketTimeoutException | PortUnreachableException e)
+          {
+            // Nothing arrived, or nobody's listening.
+          }
+
+          long now = System.nanoTime();
+          if(now - lastSweep >= TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL))
+          {
+            sweep(now);
+            lastSweep = now;
+          }
+        }
+      }
+      catch(IOException e)
+      {
+        System.out.println("Receiving failed: " + e.getMessage());
+      }
+      finally
+      {
+        socket.close();
+      }
+    }
+
+    private void received(byte[] response)
+    {
+      int id = ((response[0] & 0xFF) << 8) | (response[1] & 0xFF);
+      long sent = sentAt.get(id);
+      if(sent == FREE || !sentAt.compareAndSet(id, sent, FREE))
+        return;
+
+      ++result.completed;
+      ++result.rcodes[response[3] & 0x0F];
+      result.latencies.record(System.nanoTime() - sent);
+      permits.release();
+    }
+
+    // Gives up on queries that have gone unanswered too long.
+    private void sweep(long now)
+    {
+      for(int id = 0; id < sentAt.length(); ++id)
+      {
+        long sent = sentAt.get(id);
+        if(sent != FREE && now - sent >= timeout &&
+           sentAt.compareAndSet(id, sent, FREE))
+        {
+          ++result.lost;
+          permits.release();
+        }
+      }
+    }
+
+    private final DatagramSocket socket;
+    private final Semaphore permits;
+    // When each ID was sent, FREE if it isn't outstanding.
+    private final AtomicLongArray sentAt = new AtomicLongArray(MAX_PER_CLIENT);
+    private int nextID;
+    private volatile boolean stopped;
+    // Only written by the client's thread.
+    private final Result result = new Result();
+  }
+
+  /**
+   * What a run achieved.
+   */
+  static class Result
+  {
+    void merge(Result other)
+    {
+      sent += other.sent;
+      completed += other.completed;
+      lost += other.lost;
+      for(int i = 0; i < rcodes.length; ++i)
+        rcodes[i] += other.rcodes[i];
+      latencies.merge(other.latencies);
+    }
+
+    void print()
+    {
+      double seconds = elapsed / (double)TimeUnit.SECONDS.toNanos(1);
+      System.out.println("Queries sent:       " + sent);
+      System.out.printf("Queries completed:  %d (%.2f%%)%n", completed,
+                        percentOfSent(completed));
+      System.out.printf("Queries lost:       %d (%.2f%%)%n", lost,
+                        percentOfSent(lost));
+      System.out.printf("Run time:           %.3fs%n", seconds);
+      System.out.printf("Queries per second: %.0f%n", completed / seconds);
+      System.out.printf("Latency (ms): p50 %.3f, p90 %.3f, p99 %.3f, " +
+                        "p99.9 %.3f, max %.3f%n",
+                        latencies.percentile(0.5) / 1e6,
+                        latencies.percentile(0.9) / 1e6,
+                        latencies.percentile(0.99) / 1e6,
+                        latencies.percentile(0.999) / 1e6,
+                        latencies.max() / 1e6);
+      System.out.println("Response codes:");
+      for(int i = 0; i < rcodes.length; ++i)
+      {
+        if(rcodes[i] > 0)
+          System.out.printf("  %-10s %d (%.2f%%)%n", rcodeName(i), rcodes[i],
+                            100.0 * rcodes[i] / completed);
+      }
+    }
+
+    private double percentOfSent(long count)
+    {
+      return sent == 0 ? 0 : 100.0 * count / sent;
+    }
+
+    private static String rcodeName(int rcode)
+    {
+      return rcode < RCODE_NAMES.length ? RCODE_NAMES[rcode]
+                                        : "RCODE" + rcode;
+    }
+
+    long sent;
+    long completed;
+    long lost;
+    long elapsed;
+    final long[] rcodes = new long[16];
+    final LatencyHistogram latencies = new LatencyHistogram();
+  }
+
+  private static final String[] RCODE_NAMES = {
+    "NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED"
+  };
+
+  // Queries each socket can have outstanding, one per ID.
+  private static final int MAX_PER_CLIENT = 0x10000;
+  private static final long FREE = 0;
+  private static final int MAX_MESSAGE_SIZE = 65536;
+
+  // How often lost queries are looked for (ms).
+  private static final long SWEEP_INTERVAL = 10;
+
+  private final List<byte[]> queries;
+  private final int maxOutstanding;
+  // Between sends when pacing, 0 when not (ns).
+  private final long interval;
+  private final long timeout;
+}
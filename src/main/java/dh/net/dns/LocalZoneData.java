@@ -0,0 +1,388 @@
+package dh.net.dns;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Records answered locally instead of being resolved: local zones,
+ * individual records (including wildcards) and hosts file entries.
+ *
+ * Everything is held in a trie keyed by labels from the right, so
+ * "www.corp.internal" is found under "internal", then "corp", then
+ * "www".  Lookups walk the question's name in place and hand back
+ * RRsets built when the data was added, so a positive answer costs no
+ * allocation.  Negative and wildcard answers allocate the RRset naming
+ * the question.
+ *
+ * A name below a local zone that has no data of the requested type is
+ * answered negatively rather than sent upstream.  Outside local zones,
+ * a name with some local data answers negatively for the types it
+ * doesn't have, and any other name is left to the resolver.
+ *
+ * Only class IN is held.  Populate the data before handing it to a
+ * resolver, it isn't safe to change while being queried.
+ */
+public class LocalZoneData implements RecordSink
+{
+  public LocalZoneData() {}
+
+  /**
+   * Makes the name a local zone: names at or below it that aren't
+   * given data here don't exist.
+   */
+  public void addZone(String name)
+  {
+    nodeFor(stripDot(name)).zone = true;
+  }
+
+  /**
+   * Adds a record.  An owner name starting with "*." makes it a
+   * wildcard for the names below the rest of the owner.
+   */
+  @Override
+  public void add(Answer.ResourceRecord rr)
+  {
+    if(rr.recordClass != QClass.IN)
+      throw new IllegalArgumentException("Only class IN can be held locally.");
+
+    String owner = stripDot(rr.domainName);
+    Node node;
+    if(owner.equals("*") || owner.startsWith("*."))
+    {
+      Node parent = nodeFor(owner.length() == 1 ? "" : owner.substring(2));
+      if(parent.wildcard == null)
+        parent.wildcard = new Node("*");
+      node = parent.wildcard;
+    }
+    else
+      node = nodeFor(owner);
+
+    node.add(owner, rr);
+  }
+
+  /**
+   * Loads a master file as a local zone with the given origin.
+   *
+   * @return the number of records loaded.
+   */
+  public long loadZone(Path file, String origin) throws IOException
+  {
+    addZone(origin);
+    return new MasterFileParser(file, origin).parse(this);
+  }
+
+  /**
+   * Adds an address for a name, as a hosts file entry would.
+   */
+  public void addHost(String name, InetAddress address)
+  {
+    QType type = address instanceof Inet4Address ? QType.A : QType.AAAA;
+    byte[] bytes = address.getAddress();
+    add(new Answer.ResourceRecord(
+        stripDot(name), type, QClass.IN, HOSTS_TTL,
+        type == QType.A ? new RData.A(bytes) : new RData.AAAA(bytes)));
+  }
+
+  /**
+   * Adds the entries of a hosts file, lines of an address followed by
+   * the names that have it.
+   *
+   * @return the number of addresses added.
+   */
+  public int loadHostsFile(Path file) throws IOException
+  {
+    int added = 0;
+    int lineNumber = 0;
+    try(BufferedReader reader =
+          Files.newBufferedReader(file, StandardCharsets.UTF_8))
+    {
+      String line;
+      while((line = reader.readLine()) != null)
+      {
+        ++lineNumber;
+        int hash = line.indexOf('#');
+        if(hash >= 0)
+          line = line.substring(0, hash);
+
+        String[] fields = line.trim().split("\\s+");
+        if(fields.length < 2)
+          continue;
+
+        InetAddress address = parseLiteral(fields[0]);
+        if(address == null)
+          throw new IOException(file + ":" + lineNumber + ": bad address " +
+                                fields[0]);
+
+        for(int i = 1; i < fields.length; ++i)
+        {
+          addHost(fields[i], address);
+          ++added;
+        }
+      }
+    }
+    return added;
+  }
+
+  /**
+   * Answers the question from local data.
+   *
+   * @return the matching RRset, an empty RRset if the name or data
+   *         doesn't exist locally (isNameError() telling which), or
+   *         null if the question should be resolved as usual.
+   */
+  public RRset lookup(String name, QType type, QClass qClass)
+  {
+    if(qClass != QClass.IN)
+      return null;
+
+    Node node = root;
+    boolean inZone = root.zone;
+    int end = name.length();
+    if(end > 0 && name.charAt(end - 1) == '.')
+      --end;
+
+    while(end > 0)
+    {
+      int start = name.lastIndexOf('.', end - 1) + 1;
+      Node child = node.child(name, start, end);
+      if(child == null)
+      {
+        // The name doesn't exist, unless a wildcard covers it.
+        if(node.wildcard != null)
+          return synthesize(node.wildcard, name, type, qClass);
+        return inZone ? noSuchName(name, type, qClass) : null;
+      }
+      node = child;
+      inZone |= node.zone;
+      end = start - 1;
+    }
+
+    RRset rrset = node.rrset(type);
+    if(rrset != null)
+      return rrset;
+
+    // A local alias is followed by the resolver once it asks for the
+    // CNAME.
+    if(node.rrset(QType.CNAME) != null)
+      return null;
+    if(node.rrsetCount > 0 || inZone)
+      return noData(name, type, qClass);
+    return null;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  // Answers from a wildcard, with the question's name as owner.
+  private static RRset synthesize(Node wildcard, String name, QType type,
+                                  QClass qClass)
+  {
+    RRset source = wildcard.rrset(type);
+    if(source == null)
+    {
+      // A wildcard alias is followed once the resolver asks for the
+      // CNAME.
+      if(wildcard.rrset(QType.CNAME) != null)
+        return null;
+      return noData(name, type, qClass);
+    }
+
+    Answer.ResourceRecord[] records = new Answer.ResourceRecord[source.size()];
+    for(int i = 0; i < records.length; ++i)
+    {
+      Answer.ResourceRecord rr = source.get(i);
+      records[i] = new Answer.ResourceRecord(name, rr.type, rr.recordClass,
+                                             rr.ttl, rr.rdata());
+    }
+    return new RRset(name, type, qClass, records, NEVER_EXPIRES);
+  }
+
+  private static RRset noData(String name, QType type, QClass qClass)
+  {
+    return RRset.negative(name, type, qClass, false, null, NEVER_EXPIRES);
+  }
+
+  private static RRset noSuchName(String name, QType type, QClass qClass)
+  {
+    return RRset.negative(name, type, qClass, true, null, NEVER_EXPIRES);
+  }
+
+  // Finds the node for the name, creating it and its ancestors if
+  // needed.
+  private Node nodeFor(String name)
+  {
+    Node node = root;
+    int end = name.length();
+    while(end > 0)
+    {
+      int start = name.lastIndexOf('.', end - 1) + 1;
+      Node child = node.child(name, start, end);
+      if(child == null)
+        child = node.addChild(name.substring(start, end));
+      node = child;
+      end = start - 1;
+    }
+    return node;
+  }
+
+  private static String stripDot(String name)
+  {
+    return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+  }
+
+  // An address literal, or null if it isn't one.
+  private static InetAddress parseLiteral(String text)
+  {
+    // Anything else would make getByName() go to DNS.
+    if(text.indexOf(':') < 0 && !text.matches("[0-9.]+"))
+      return null;
+    try
+    {
+      return InetAddress.getByName(text);
+    }
+    catch(UnknownHostException e)
+    {
+      return null;
+    }
+  }
+
+  // Case-insensitive hash of name[start, end), without a substring.
+  private static int labelHash(String name, int start, int end)
+  {
+    int h = 0;
+    for(int i = start; i < end; ++i)
+    {
+      char c = name.charAt(i);
+      if(c >= 'A' && c <= 'Z')
+        c += 'a' - 'A';
+      h = 31 * h + c;
+    }
+    return h ^ (h >>> 16);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * A label in the trie, its children held in an open addressed table.
+   */
+  private static class Node
+  {
+    Node(String label)
+    {
+      this.label = label;
+    }
+
+    Node child(String name, int start, int end)
+    {
+      if(children == null)
+        return null;
+
+      int length = end - start;
+      int mask = children.length - 1;
+      for(int i = labelHash(name, start, end) & mask; ; i = (i + 1) & mask)
+      {
+        Node child = children[i];
+        if(child == null)
+          return null;
+        if(child.label.length() == length &&
+           child.label.regionMatches(true, 0, name, start, length))
+        {
+          return child;
+        }
+      }
+    }
+
+    Node addChild(String label)
+    {
+      if(children == null)
+        children = new Node[4];
+      else if((childCount + 1) * 4 > children.length * 3)
+      {
+        Node[] old = children;
+        children = new Node[old.length * 2];
+        for(Node child : old)
+        {
+          if(child != null)
+            insert(child);
+        }
+      }
+
+      Node child = new Node(label);
+      insert(child);
+      ++childCount;
+      return child;
+    }
+
+    private void insert(Node child)
+    {
+      int mask = children.length - 1;
+      int i = labelHash(child.label, 0, child.label.length()) & mask;
+      while(children[i] != null)
+        i = (i + 1) & mask;
+      children[i] = child;
+    }
+
+    RRset rrset(QType type)
+    {
+      for(int i = 0; i < rrsetCount; ++i)
+      {
+        if(rrsets[i].getType() == type)
+          return rrsets[i];
+      }
+      return null;
+    }
+
+    // Adds the record to the RRset of its type.
+    void add(String owner, Answer.ResourceRecord rr)
+    {
+      for(int i = 0; i < rrsetCount; ++i)
+      {
+        RRset existing = rrsets[i];
+        if(existing.getType() != rr.type)
+          continue;
+
+        Answer.ResourceRecord[] records = new Answer.ResourceRecord[existing.size() + 1];
+        for(int j = 0; j < existing.size(); ++j)
+        {
+          if(Arrays.equals(existing.get(j).wireData(), rr.wireData()))
+            return;
+          records[j] = existing.get(j);
+        }
+        records[existing.size()] = rr;
+        rrsets[i] = new RRset(owner, rr.type, rr.recordClass, records,
+                              NEVER_EXPIRES);
+        return;
+      }
+
+      if(rrsetCount == rrsets.length)
+        rrsets = Arrays.copyOf(rrsets, rrsetCount * 2);
+      rrsets[rrsetCount++] =
+        new RRset(owner, rr.type, rr.recordClass,
+                  new Answer.ResourceRecord[] { rr }, NEVER_EXPIRES);
+    }
+
+    final String label;
+    Node[] children;
+    int childCount;
+
+    Node wildcard;
+    boolean zone;
+
+    RRset[] rrsets = new RRset[1];
+    int rrsetCount;
+  }
+
+  // Hosts file entries aren't meant to be cached downstream.
+  private static final long HOSTS_TTL = 0;
+
+  // Local RRsets never go in the cache, their expiry is never read.
+  private static final long NEVER_EXPIRES = 0;
+
+  private final Node root = new Node("");
+}
@@ -0,0 +1,441 @@
+package dh.net.dns;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A record cache in a memory-mapped file, shared by every process on
+ * the host that opens the same file, so a name resolved by one is
+ * cached for all of them without any messages passing between them.
+ *
+ * The file holds a hash table of fixed size slots, grouped in buckets
+ * of WAYS; an RRset can only live in the bucket its key hashes to,
+ * replacing the entry there that expires soonest once the bucket is
+ * full.  RRsets are kept in wire format, and those too large for a
+ * slot aren't cached.
+ *
+ * Readers take no locks.  Each slot carries a sequence number that a
+ * writer makes odd while it rewrites the slot, seqlock style, and a
+ * checksum of its contents: a reader that sees an odd or changed
+ * sequence number, or contents that don't match their checksum (a
+ * tear the sequence numbers missed), reads again or treats the slot as
+ * a miss.  Writers of a bucket exclude each other with a lock on its
+ * region of the file, and within the process a lock per stripe of
+ * buckets, as file locks are held per process.
+ *
+ * Expiry is stored in wall clock time, as System.nanoTime() readings
+ * mean nothing to another process.  Each process converts using the
+ * offset between the clocks when it opened the file.
+ *
+ * The file starts with a header:
+ *
+ *   long  magic
+ *   int   slot count
+ *   int   slot size
+ *
+ * and each slot is laid out as:
+ *
+ *   long  sequence number, odd while being written
+ *   long  key hash, 0 for an empty slot
+ *   long  expiry (wall clock nanoseconds)
+ *   int   CRC-32 of the rest of the slot
+ *   short key length
+ *   byte  key[]       canonical (lower case) wire name, type, class
+ *   short record count
+ *   then per record:
+ *     short rdlength
+ *     byte  rdata[]   uncompressed wire format
+ */
+public class MappedRecordCache implements RecordCache, Closeable
+{
+  /**
+   * Opens the cache in the file, creating it with room for maxBytes of
+   * slots if it doesn't exist.  A file that already holds a cache is
+   * used as it is, whatever its size.
+   */
+  public MappedRecordCache(Path file, long maxBytes) throws IOException
+  {
+    long slots = Math.min(maxBytes, MAX_BYTES) / SLOT_SIZE / WAYS * WAYS;
+    if(slots < WAYS)
+      throw new IllegalArgumentException("Cache must be at least " +
+                                         WAYS * SLOT_SIZE + " bytes.");
+
+    this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                                    StandardOpenOption.READ,
+                                    StandardOpenOption.WRITE);
+    try
+    {
+      // Only one process sets the file up.
+      int slotCount;
+      try(FileLock lock = channel.lock(0, HEADER_SIZE, false))
+      {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        if(header.getLong(0) == MAGIC)
+        {
+          slotCount = header.getInt(8);
+          if(header.getInt(12) != SLOT_SIZE || slotCount % WAYS != 0 ||
+             channel.size() < HEADER_SIZE + (long)slotCount * SLOT_SIZE)
+          {
+            throw new IOException("Incompatible cache in " + file);
+          }
+        }
+        else
+        {
+          slotCount = (int)slots;
+          channel.truncate(0);
+          channel.write(ByteBuffer.allocate(1),
+                        HEADER_SIZE + (long)slotCount * SLOT_SIZE - 1);
+          header.clear();
+          header.putLong(0);
+          header.putInt(slotCount);
+          header.putInt(SLOT_SIZE);
+          header.flip();
+          channel.write(header, 0);
+
+          // The magic number last, once the rest is in place.
+          channel.write((ByteBuffer)ByteBuffer.allocate(8).putLong(MAGIC)
+                                              .flip(), 0);
+        }
+      }
+
+      this.buckets = slotCount / WAYS;
+      this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                             HEADER_SIZE + (long)slotCount * SLOT_SIZE);
+    }
+    catch(IOException | RuntimeException e)
+    {
+      channel.close();
+      throw e;
+    }
+
+    this.wallOffset = TimeUnit.MILLISECONDS.toNanos(
+      System.currentTimeMillis()) - System.nanoTime();
+    this.stripes = new Object[STRIPES];
+    for(int i = 0; i < stripes.length; ++i)
+      stripes[i] = new Object();
+  }
+
+  @Override
+  public RRset get(String name, QType type, QClass qClass, long now)
+  {
+    byte[] key = keyBytes(name, type, qClass);
+    long hash = hash(key);
+    int bucket = bucketOf(hash);
+
+    byte[] slot = new byte[SLOT_SIZE];
+    for(int way = 0; way < WAYS; ++way)
+    {
+      int offset = slotOffset(bucket, way);
+      if(!read(offset, hash, slot))
+        continue;
+
+      ByteBuffer entry = ByteBuffer.wrap(slot);
+      long expiresAt = entry.getLong(EXPIRY_OFFSET) - wallOffset;
+      if(now - expiresAt >= 0 || !keyMatches(entry, key))
+        continue;
+
+      return decode(entry, name, type, qClass, expiresAt, now);
+    }
+    return null;
+  }
+
+  @Override
+  public void put(RRset rrset, long now)
+  {
+    byte[] key = keyBytes(rrset.getName(), rrset.getType(),
+                          rrset.getRecordClass());
+    long hash = hash(key);
+
+    // Encode before taking any locks.
+    ByteBuffer entry = ByteBuffer.allocate(SLOT_SIZE);
+    entry.position(KEY_LENGTH_OFFSET);
+    entry.putShort((short)key.length);
+    entry.put(key);
+    if(entry.remaining() < 2)
+      return;
+    entry.putShort((short)rrset.size());
+    for(Answer.ResourceRecord rr : rrset)
+    {
+      byte[] rdata = rr.wireData();
+      if(entry.remaining() < 2 + rdata.length)
+        return;
+      entry.putShort((short)rdata.length);
+      entry.put(rdata);
+    }
+    if(rrset.isEmpty())
+    {
+      byte[] negative = rrset.negativeData();
+      if(entry.remaining() < negative.length)
+        return;
+      entry.put(negative);
+    }
+    int length = entry.position();
+    entry.putLong(HASH_OFFSET, hash);
+    entry.putLong(EXPIRY_OFFSET, rrset.expiresAt() + wallOffset);
+    entry.putInt(CHECKSUM_OFFSET, checksum(entry.array(), length));
+
+    int bucket = bucketOf(hash);
+    synchronized(stripes[bucket % STRIPES])
+    {
+      try(FileLock lock = channel.lock(slotOffset(bucket, 0),
+                                       WAYS * SLOT_SIZE, false))
+      {
+        write(slotOffset(bucket, victim(bucket, hash, key, now)),
+              entry.array(), length);
+      }
+      catch(IOException e)
+      {
+        // Closed, or the file can't be locked; caching is best effort.
+      }
+    }
+  }
+
+  /**
+   * Number of slots in use, counted by looking at every one of them.
+   */
+  @Override
+  public int size()
+  {
+    int used = 0;
+    for(int bucket = 0; bucket < buckets; ++bucket)
+    {
+      for(int way = 0; way < WAYS; ++way)
+      {
+        if(map.getLong(slotOffset(bucket, way) + HASH_OFFSET) != 0)
+          ++used;
+      }
+    }
+    return used;
+  }
+
+  /**
+   * Stops writing to the file.  The mapping itself goes when it's
+   * garbage collected.
+   */
+  @Override
+  public void close() throws IOException
+  {
+    channel.close();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Copies the slot into the buffer if it holds an entry with the hash,
+   * consistently written.
+   */
+  private boolean read(int offset, long hash, byte[] slot)
+  {
+    for(int attempt = 0; attempt < MAX_READ_ATTEMPTS; ++attempt)
+    {
+      long sequence = map.getLong(offset);
+      if((sequence & 1) != 0)
+        continue;
+      if(map.getLong(offset + HASH_OFFSET) != hash)
+        return false;
+
+      ByteBuffer reader = map.duplicate();
+      reader.position(offset);
+      reader.get(slot);
+      if(map.getLong(offset) != sequence)
+        continue;
+
+      int length = entryLength(slot);
+      if(length > 0 &&
+         ByteBuffer.wrap(slot).getInt(CHECKSUM_OFFSET) ==
+         checksum(slot, length))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void write(int offset, byte[] entry, int length)
+  {
+    long sequence = map.getLong(offset);
+    map.putLong(offset, sequence | 1);
+    ByteBuffer writer = map.duplicate();
+    writer.position(offset + HASH_OFFSET);
+    writer.put(entry, HASH_OFFSET, length - HASH_OFFSET);
+    map.putLong(offset, (sequence | 1) + 1);
+  }
+
+  /**
+   * The way of the bucket to write the key into: its current slot, or
+   * else an empty or expired one, or else the one expiring soonest.
+   * Called holding the bucket's locks, so the slots are stable.
+   */
+  private int victim(int bucket, long hash, byte[] key, long now)
+  {
+    long wallNow = now + wallOffset;
+    int victim = 0;
+    long soonest = Long.MAX_VALUE;
+    byte[] slot = new byte[SLOT_SIZE];
+    for(int way = 0; way < WAYS; ++way)
+    {
+      int offset = slotOffset(bucket, way);
+      long existing = map.getLong(offset + HASH_OFFSET);
+      long expiry = map.getLong(offset + EXPIRY_OFFSET);
+      if(existing == hash && read(offset, hash, slot) &&
+         keyMatches(ByteBuffer.wrap(slot), key))
+      {
+        return way;
+      }
+      if(existing == 0 || expiry - wallNow <= 0)
+        return way;
+      if(expiry < soonest)
+      {
+        soonest = expiry;
+        victim = way;
+      }
+    }
+    return victim;
+  }
+
+  // Length of the entry in the slot, or 0 if it doesn't make sense.
+  private static int entryLength(byte[] slot)
+  {
+    ByteBuffer entry = ByteBuffer.wrap(slot);
+    int pos = KEY_OFFSET + (entry.getShort(KEY_LENGTH_OFFSET) & 0xFFFF);
+    if(pos + 2 > SLOT_SIZE)
+      return 0;
+
+    int count = entry.getShort(pos) & 0xFFFF;
+    pos += 2;
+    for(int i = 0; i < count; ++i)
+    {
+      if(pos + 2 > SLOT_SIZE)
+        return 0;
+      pos += 2 + (entry.getShort(pos) & 0xFFFF);
+      if(pos > SLOT_SIZE)
+        return 0;
+    }
+    if(count == 0)
+    {
+      int negative = RRset.negativeDataLength(slot, pos);
+      if(negative < 0)
+        return 0;
+      pos += negative;
+    }
+    return pos;
+  }
+
+  // Covers everything after the checksum up to the end of the entry.
+  private static int checksum(byte[] entry, int length)
+  {
+    CRC32 crc = new CRC32();
+    crc.update(entry, HASH_OFFSET, CHECKSUM_OFFSET - HASH_OFFSET);
+    crc.update(entry, KEY_LENGTH_OFFSET, length - KEY_LENGTH_OFFSET);
+    return (int)crc.getValue();
+  }
+
+  private static boolean keyMatches(ByteBuffer entry, byte[] key)
+  {
+    if(entry.getShort(KEY_LENGTH_OFFSET) != key.length)
+      return false;
+
+    return Arrays.equals(Arrays.copyOfRange(entry.array(), KEY_OFFSET,
+                                            KEY_OFFSET + key.length),
+                         key);
+  }
+
+  private static RRset decode(ByteBuffer entry, String name, QType type,
+                              QClass qClass, long expiresAt, long now)
+  {
+    long ttl = TimeUnit.NANOSECONDS.toSeconds(expiresAt - now);
+
+    int pos = KEY_OFFSET + entry.getShort(KEY_LENGTH_OFFSET);
+    int count = entry.getShort(pos) & 0xFFFF;
+    pos += 2;
+
+    if(count == 0)
+    {
+      return RRset.fromNegativeData(name, type, qClass, entry.array(), pos,
+                                    expiresAt, ttl);
+    }
+
+    Answer.ResourceRecord[] records = new Answer.ResourceRecord[count];
+    for(int i = 0; i < count; ++i)
+    {
+      int rdlength = entry.getShort(pos) & 0xFFFF;
+      pos += 2;
+      byte[] rdata = Arrays.copyOfRange(entry.array(), pos, pos + rdlength);
+      pos += rdlength;
+
+      records[i] = new Answer.ResourceRecord(name, type, qClass, ttl, rdata);
+    }
+    return new RRset(name, type, qClass, records, expiresAt);
+  }
+
+  private static byte[] keyBytes(String name, QType type, QClass qClass)
+  {
+    byte[] wireName = RData.encodeName(name.toLowerCase(Locale.ROOT));
+    ByteBuffer key = ByteBuffer.allocate(wireName.length + 4);
+    key.put(wireName);
+    key.putShort((short)type.getValue());
+    key.putShort((short)qClass.getValue());
+    return key.array();
+  }
+
+  // 64-bit FNV-1a followed by a final avalanche, never 0 as that marks
+  // an empty slot.
+  private static long hash(byte[] key)
+  {
+    long h = 0xcbf29ce484222325L;
+    for(byte b : key)
+    {
+      h ^= (b & 0xFF);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return h != 0 ? h : 1;
+  }
+
+  private int bucketOf(long hash)
+  {
+    return (int)Long.remainderUnsigned(hash, buckets);
+  }
+
+  private static int slotOffset(int bucket, int way)
+  {
+    return HEADER_SIZE + (bucket * WAYS + way) * SLOT_SIZE;
+  }
+
+  private static final long MAGIC = 0x646e736a4d524332L;  // "dnsjMRC2"
+  private static final int HEADER_SIZE = 64;
+  private static final int SLOT_SIZE = 512;
+  private static final int WAYS = 4;
+  // A single mapping, so under 2GB.
+  private static final long MAX_BYTES = Integer.MAX_VALUE - HEADER_SIZE;
+  private static final int STRIPES = 64;
+  // Reads of a slot being rewritten before giving up on it.
+  private static final int MAX_READ_ATTEMPTS = 8;
+
+  private static final int HASH_OFFSET = 8;
+  private static final int EXPIRY_OFFSET = 16;
+  private static final int CHECKSUM_OFFSET = 24;
+  private static final int KEY_LENGTH_OFFSET = 28;
+  private static final int KEY_OFFSET = 30;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer map;
+  private final int buckets;
+  // Wall clock minus System.nanoTime() when the file was opened.
+  private final long wallOffset;
+  // Lock per stripe of buckets for this process's writers.
+  private final Object[] stripes;
+}
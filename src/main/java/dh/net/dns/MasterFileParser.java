@@ -0,0 +1,578 @@
+package dh.net.dns;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streaming parser for RFC 1035 master (zone) files.
+ *
+ * The file is memory mapped and tokenized in place, and each record is
+ * handed to a {@link RecordSink} as soon as it's parsed, so a file of
+ * hundreds of megabytes never exists as objects all at once.  Supports
+ * $ORIGIN, $TTL, "@", relative names, blank owners, comments, quoted
+ * strings and records spanning lines in parentheses.  $INCLUDE isn't
+ * supported, and records of types we can't parse are skipped with a
+ * warning.
+ *
+ * Names are produced without the trailing dot, as everywhere else in
+ * the resolver.
+ */
+public class MasterFileParser
+{
+  /**
+   * @param origin the initial origin for relative names, may be
+   *        replaced by $ORIGIN in the file.
+   */
+  public MasterFileParser(Path file, String origin)
+  {
+    this.file = file;
+    this.origin = stripDot(origin);
+  }
+
+  /**
+   * Parses the whole file, passing each record to the sink.
+   *
+   * @return the number of records parsed.
+   * @throws IOException if the file can't be read or is malformed, the
+   *         message giving the line.
+   */
+  public long parse(RecordSink sink) throws IOException
+  {
+    try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+    {
+      long size = channel.size();
+      if(size > Integer.MAX_VALUE)
+        throw new IOException(file + ": too large to map");
+
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      position = 0;
+      line = 1;
+
+      long records = 0;
+      while(readEntry())
+      {
+        try
+        {
+          if(!ownerBlank && byteAt(0, 0) == '$')
+            directive();
+          else
+          {
+            Answer.ResourceRecord record = record();
+            if(record != null)
+            {
+              sink.add(record);
+              ++records;
+            }
+          }
+        }
+        catch(IllegalArgumentException e)
+        {
+          throw new IOException(file + ":" + entryLine + ": " + e.getMessage(), e);
+        }
+      }
+      return records;
+    }
+    finally
+    {
+      buffer = null;
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Reads the tokens of the next entry, which ends at a newline outside
+   * parentheses.
+   *
+   * @return false at the end of the file.
+   */
+  private boolean readEntry() throws IOException
+  {
+    tokenCount = 0;
+    int depth = 0;
+    int limit = buffer.limit();
+    boolean lineStart = true;
+
+    while(position < limit)
+    {
+      byte b = buffer.get(position);
+
+      // Leading whitespace means the previous owner is reused.
+      if(lineStart && depth == 0 && tokenCount == 0)
+        ownerBlank = b == ' ' || b == '\t';
+      lineStart = false;
+
+      switch(b)
+      {
+        case '\n':
+          ++position;
+          ++line;
+          lineStart = true;
+          if(depth == 0 && tokenCount > 0)
+            return true;
+          break;
+
+        case ' ':
+        case '\t':
+        case '\r':
+          ++position;
+          break;
+
+        case ';':
+          while(position < limit && buffer.get(position) != '\n')
+            ++position;
+          break;
+
+        case '(':
+          ++depth;
+          ++position;
+          break;
+
+        case ')':
+          if(--depth < 0)
+            throw new IOException(file + ":" + line + ": unbalanced ')'");
+          ++position;
+          break;
+
+        case '"':
+        {
+          if(tokenCount == 0)
+            entryLine = line;
+          int start = ++position;
+          while(position < limit && buffer.get(position) != '"')
+          {
+            if(buffer.get(position) == '\\')
+              ++position;
+            else if(buffer.get(position) == '\n')
+              ++line;
+            ++position;
+          }
+          if(position >= limit)
+            throw new IOException(file + ":" + line + ": unterminated string");
+          addToken(start, position++, true);
+          break;
+        }
+
+        default:
+        {
+          if(tokenCount == 0)
+            entryLine = line;
+          int start = position;
+          while(position < limit && !isDelimiter(buffer.get(position)))
+            ++position;
+          addToken(start, position, false);
+        }
+      }
+    }
+
+    if(depth != 0)
+      throw new IOException(file + ":" + line + ": unbalanced '('");
+    return tokenCount > 0;
+  }
+
+  private static boolean isDelimiter(byte b)
+  {
+    return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == ';' ||
+           b == '(' || b == ')' || b == '"';
+  }
+
+  private void addToken(int start, int end, boolean quoted)
+  {
+    if(tokenCount == tokenStart.length)
+    {
+      tokenStart = Arrays.copyOf(tokenStart, tokenCount * 2);
+      tokenEnd = Arrays.copyOf(tokenEnd, tokenCount * 2);
+      tokenQuoted = Arrays.copyOf(tokenQuoted, tokenCount * 2);
+    }
+    tokenStart[tokenCount] = start;
+    tokenEnd[tokenCount] = end;
+    tokenQuoted[tokenCount] = quoted;
+    ++tokenCount;
+  }
+
+  private void directive()
+  {
+    if(tokenEquals(0, "$ORIGIN"))
+    {
+      origin = absoluteName(1);
+      ownerText = null;
+    }
+    else if(tokenEquals(0, "$TTL"))
+    {
+      defaultTtl = ttl(1);
+    }
+    else
+    {
+      throw new IllegalArgumentException("unsupported directive " + token(0));
+    }
+  }
+
+  private Answer.ResourceRecord record()
+  {
+    int t = 0;
+    if(ownerBlank)
+    {
+      if(owner == null)
+        throw new IllegalArgumentException("no owner for record");
+    }
+    else
+    {
+      // Consecutive records usually share an owner, don't rebuild it.
+      if(ownerText == null || !tokenEquals(0, ownerText))
+      {
+        ownerText = token(0);
+        owner = absoluteName(0);
+      }
+      t = 1;
+    }
+
+    // TTL and class are both optional and may come in either order.
+    long ttl = -1;
+    for(int i = 0; i < 2 && t < tokenCount; ++i)
+    {
+      byte first = byteAt(t, 0);
+      if(first >= '0' && first <= '9')
+        ttl = ttl(t++);
+      else if(tokenEquals(t, "IN"))
+      {
+        recordClass = QClass.IN;
+        ++t;
+      }
+      else if(tokenEquals(t, "CS") || tokenEquals(t, "CH") ||
+              tokenEquals(t, "HS"))
+      {
+        recordClass = QClass.valueOf(token(t++).toUpperCase());
+      }
+    }
+
+    if(ttl >= 0)
+      lastTtl = ttl;
+    else if(defaultTtl >= 0)
+      ttl = defaultTtl;
+    else if(lastTtl >= 0)
+      ttl = lastTtl;
+    else
+      throw new IllegalArgumentException("no TTL and no $TTL");
+
+    QType type = type(t);
+    RData rdata = type != null ? rdata(type, t + 1) : null;
+    if(rdata == null)
+    {
+      // Other servers may know the type, don't lose the rest of the
+      // zone over it.
+      System.out.println(file + ":" + entryLine +
+                         ": skipping record of unsupported type " + token(t));
+      return null;
+    }
+    return new Answer.ResourceRecord(owner, type, recordClass, ttl, rdata);
+  }
+
+  private RData rdata(QType type, int t)
+  {
+    switch(type)
+    {
+      case A:
+        expectTokens(t, 1);
+        return new RData.A(ipv4(t));
+      case AAAA:
+        expectTokens(t, 1);
+        return new RData.AAAA(ipv6(t));
+      case NS:
+        expectTokens(t, 1);
+        return new RData.NS(absoluteName(t));
+      case CNAME:
+        expectTokens(t, 1);
+        return new RData.CNAME(absoluteName(t));
+      case PTR:
+        expectTokens(t, 1);
+        return new RData.PTR(absoluteName(t));
+      case DNAME:
+        expectTokens(t, 1);
+        return new RData.DNAME(absoluteName(t));
+      case MX:
+        expectTokens(t, 2);
+        return new RData.MX((int)number(t, 0xFFFF), absoluteName(t + 1));
+      case SOA:
+        expectTokens(t, 7);
+        return new RData.SOA(absoluteName(t), absoluteName(t + 1),
+                             number(t + 2, 0xFFFFFFFFL), ttl(t + 3),
+                             ttl(t + 4), ttl(t + 5), ttl(t + 6));
+      case SRV:
+        expectTokens(t, 4);
+        return new RData.SRV((int)number(t, 0xFFFF), (int)number(t + 1, 0xFFFF),
+                             (int)number(t + 2, 0xFFFF), absoluteName(t + 3));
+      case TXT:
+      {
+        if(t >= tokenCount)
+          throw new IllegalArgumentException("missing TXT data");
+        // Kept as the bytes in the file, one char to a byte.
+        List<String> strings = new ArrayList<>(tokenCount - t);
+        for(; t < tokenCount; ++t)
+        {
+          String str = unescape(token(t, StandardCharsets.ISO_8859_1));
+          if(str.length() > 255)
+            throw new IllegalArgumentException("TXT string over 255 bytes");
+          strings.add(str);
+        }
+        return new RData.TXT(strings);
+      }
+      default:
+        return null;
+    }
+  }
+
+  private void expectTokens(int t, int count)
+  {
+    if(tokenCount - t != count)
+      throw new IllegalArgumentException("expected " + count +
+                                         " RDATA fields, found " +
+                                         (tokenCount - t));
+  }
+
+  // The record's type, or null if it isn't one we know.
+  private QType type(int t)
+  {
+    if(t >= tokenCount)
+      throw new IllegalArgumentException("missing type");
+    try
+    {
+      return QType.valueOf(token(t).toUpperCase());
+    }
+    catch(IllegalArgumentException e)
+    {
+      return null;
+    }
+  }
+
+  // Dotted quad, parsed straight from the buffer.
+  private byte[] ipv4(int t)
+  {
+    byte[] address = new byte[4];
+    int octet = 0;
+    int value = -1;
+    for(int i = tokenStart[t]; i < tokenEnd[t]; ++i)
+    {
+      byte b = buffer.get(i);
+      if(b == '.' && value >= 0 && octet < 3)
+      {
+        address[octet++] = (byte)value;
+        value = -1;
+      }
+      else if(b >= '0' && b <= '9')
+      {
+        value = (value < 0 ? 0 : value * 10) + (b - '0');
+        if(value > 255)
+          break;
+      }
+      else
+        break;
+    }
+    if(octet != 3 || value < 0 || value > 255)
+      throw new IllegalArgumentException("bad IPv4 address " + token(t));
+    address[3] = (byte)value;
+    return address;
+  }
+
+  private byte[] ipv6(int t)
+  {
+    String text = token(t);
+    // Without a colon getByName() would go to DNS.
+    if(text.indexOf(':') < 0)
+      throw new IllegalArgumentException("bad IPv6 address " + text);
+    try
+    {
+      byte[] address = InetAddress.getByName(text).getAddress();
+      if(address.length == 4)
+      {
+        // An IPv4-mapped address, which Java hands back as IPv4.
+        byte[] mapped = new byte[16];
+        mapped[10] = (byte)0xFF;
+        mapped[11] = (byte)0xFF;
+        System.arraycopy(address, 0, mapped, 12, 4);
+        address = mapped;
+      }
+      return address;
+    }
+    catch(UnknownHostException e)
+    {
+      throw new IllegalArgumentException("bad IPv6 address " + text);
+    }
+  }
+
+  private long number(int t, long max)
+  {
+    long value = 0;
+    for(int i = tokenStart[t]; i < tokenEnd[t]; ++i)
+    {
+      byte b = buffer.get(i);
+      if(b < '0' || b > '9')
+        throw new IllegalArgumentException("bad number " + token(t));
+      value = value * 10 + (b - '0');
+      if(value > max)
+        throw new IllegalArgumentException("number too large " + token(t));
+    }
+    return value;
+  }
+
+  // A TTL in seconds, either plain or with BIND's units as in "1h30m".
+  private long ttl(int t)
+  {
+    if(t >= tokenCount)
+      throw new IllegalArgumentException("missing TTL");
+
+    long total = 0;
+    long value = -1;
+    for(int i = tokenStart[t]; i < tokenEnd[t]; ++i)
+    {
+      byte b = buffer.get(i);
+      if(b >= '0' && b <= '9')
+      {
+        value = (value < 0 ? 0 : value * 10) + (b - '0');
+        if(value > 0xFFFFFFFFL)
+          throw new IllegalArgumentException("TTL too large " + token(t));
+        continue;
+      }
+
+      long unit;
+      switch(b | 0x20)
+      {
+        case 's': unit = 1; break;
+        case 'm': unit = 60; break;
+        case 'h': unit = 3600; break;
+        case 'd': unit = 86400; break;
+        case 'w': unit = 604800; break;
+        default: unit = -1;
+      }
+      if(unit < 0 || value < 0)
+        throw new IllegalArgumentException("bad TTL " + token(t));
+      total += value * unit;
+      value = -1;
+    }
+    if(value >= 0)
+      total += value;
+    if(total > 0xFFFFFFFFL)
+      throw new IllegalArgumentException("TTL too large " + token(t));
+    return total;
+  }
+
+  // The token as a fully qualified name, without the trailing dot.
+  private String absoluteName(int t)
+  {
+    if(t >= tokenCount)
+      throw new IllegalArgumentException("missing name");
+
+    String name = token(t);
+    if(name.equals("@"))
+      return origin;
+    if(name.endsWith("."))
+      return stripDot(name);
+    if(origin.isEmpty())
+      return name;
+    return name + "." + origin;
+  }
+
+  private static String stripDot(String name)
+  {
+    return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+  }
+
+  // Resolves \X and \DDD escapes inside character strings.
+  private static String unescape(String str)
+  {
+    if(str.indexOf('\\') < 0)
+      return str;
+
+    StringBuilder result = new StringBuilder(str.length());
+    for(int i = 0; i < str.length(); ++i)
+    {
+      char c = str.charAt(i);
+      if(c == '\\' && i + 1 < str.length())
+      {
+        if(i + 3 < str.length() && Character.isDigit(str.charAt(i + 1)) &&
+           Character.isDigit(str.charAt(i + 2)) &&
+           Character.isDigit(str.charAt(i + 3)))
+        {
+          int value = Integer.parseInt(str.substring(i + 1, i + 4));
+          if(value > 255)
+            throw new IllegalArgumentException("bad escape \\" +
+                                               str.substring(i + 1, i + 4));
+          result.append((char)value);
+          i += 3;
+        }
+        else
+          result.append(str.charAt(++i));
+      }
+      else
+        result.append(c);
+    }
+    return result.toString();
+  }
+
+  private byte byteAt(int t, int offset)
+  {
+    if(tokenStart[t] + offset >= tokenEnd[t])
+      return 0;
+    return buffer.get(tokenStart[t] + offset);
+  }
+
+  private String token(int t)
+  {
+    return token(t, StandardCharsets.UTF_8);
+  }
+
+  private String token(int t, Charset charset)
+  {
+    int length = tokenEnd[t] - tokenStart[t];
+    if(scratch.length < length)
+      scratch = new byte[Math.max(length, scratch.length * 2)];
+    for(int i = 0; i < length; ++i)
+      scratch[i] = buffer.get(tokenStart[t] + i);
+    return new String(scratch, 0, length, charset);
+  }
+
+  // Case-insensitive ASCII comparison without building a String.
+  private boolean tokenEquals(int t, String text)
+  {
+    if(tokenQuoted[t] || tokenEnd[t] - tokenStart[t] != text.length())
+      return false;
+    for(int i = 0; i < text.length(); ++i)
+    {
+      int b = buffer.get(tokenStart[t] + i);
+      int c = text.charAt(i);
+      if(b != c && ((b | 0x20) != (c | 0x20) || (c | 0x20) < 'a' ||
+                    (c | 0x20) > 'z'))
+        return false;
+    }
+    return true;
+  }
+
+  private final Path file;
+  private MappedByteBuffer buffer;
+  private int position;
+  private int line;
+  private int entryLine;
+
+  private int[] tokenStart = new int[16];
+  private int[] tokenEnd = new int[16];
+  private boolean[] tokenQuoted = new boolean[16];
+  private int tokenCount;
+  private boolean ownerBlank;
+  private byte[] scratch = new byte[256];
+
+  private String origin;
+  private long defaultTtl = -1;
+  private long lastTtl = -1;
+  private QClass recordClass = QClass.IN;
+  private String ownerText;
+  private String owner;
+}
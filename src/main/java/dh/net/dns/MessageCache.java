@@ -0,0 +1,211 @@
+package dh.net.dns;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole encoded responses, keyed by the question they answer, so that a
+ * repeated question is answered by copying bytes rather than encoding
+ * its records afresh.
+ *
+ * Along with each message we keep the offsets of its TTL fields, found
+ * by walking its records once, and the values they held when stored.
+ * A hit copies the message, writes in the query's ID, RD flag and
+ * question (the name as the client cased it), and counts each TTL down
+ * by the seconds the entry has been held.  Entries go once the shortest
+ * lived RRset in them expires, and the least recently used make way for
+ * new ones beyond maxEntries.
+ */
+class MessageCache
+{
+  MessageCache(final int maxEntries)
+  {
+    if(maxEntries < 1)
+      throw new IllegalArgumentException("Cache must hold some messages.");
+
+    this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest)
+      {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Returns the response to the query, or null if there isn't one.
+   *
+   * @param questionEnd offset just past the query's single question.
+   */
+  byte[] get(byte[] query, int questionEnd, long now)
+  {
+    Key key = new Key(query, questionEnd);
+    Entry entry;
+    synchronized(entries)
+    {
+      entry = entries.get(key);
+      if(entry != null && now - entry.expiresAt >= 0)
+      {
+        entries.remove(key);
+        entry = null;
+      }
+    }
+    if(entry == null)
+      return null;
+
+    byte[] response = entry.message.clone();
+    response[0] = query[0];
+    response[1] = query[1];
+    response[2] = (byte)((response[2] & ~RD_FLAG) | (query[2] & RD_FLAG));
+    System.arraycopy(query, HEADER_LENGTH, response, HEADER_LENGTH,
+                     questionEnd - HEADER_LENGTH);
+
+    long held = TimeUnit.NANOSECONDS.toSeconds(now - entry.storedAt);
+    for(int i = 0; i < entry.ttlOffsets.length; ++i)
+      putTtl(response, entry.ttlOffsets[i], Math.max(0, entry.ttls[i] - held));
+    return response;
+  }
+
+  /**
+   * Stores the response, which must hold its question uncompressed
+   * right after the header.  Responses whose records can't be walked
+   * aren't stored.
+   *
+   * @param expiresAt when (System.nanoTime()) it stops being valid.
+   */
+  void put(byte[] response, int questionEnd, long expiresAt, long now)
+  {
+    if(expiresAt - now <= 0)
+      return;
+
+    int[] ttlOffsets = ttlOffsets(response, questionEnd);
+    if(ttlOffsets == null)
+      return;
+
+    Entry entry = new Entry();
+    entry.message = response.clone();
+    entry.ttlOffsets = ttlOffsets;
+    entry.ttls = new long[ttlOffsets.length];
+    for(int i = 0; i < ttlOffsets.length; ++i)
+      entry.ttls[i] = getTtl(response, ttlOffsets[i]);
+    entry.storedAt = now;
+    entry.expiresAt = expiresAt;
+
+    Key key = new Key(response, questionEnd);
+    synchronized(entries)
+    {
+      entries.put(key, entry);
+    }
+  }
+
+  int size()
+  {
+    synchronized(entries)
+    {
+      return entries.size();
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  // Offset of the TTL of every record in the message, or null if the
+  // records run past its end.
+  private static int[] ttlOffsets(byte[] message, int questionEnd)
+  {
+    int records = 0;
+    for(int count = 6; count < HEADER_LENGTH; count += 2)
+      records += ((message[count] & 0xFF) << 8) | (message[count + 1] & 0xFF);
+
+    int[] result = new int[records];
+    int offset = questionEnd;
+    for(int i = 0; i < records; ++i)
+    {
+      // Skip the owner name, its labels up to the root or a pointer.
+      while(offset < message.length && (message[offset] & 0xC0) == 0 &&
+            message[offset] != 0)
+      {
+        offset += 1 + message[offset];
+      }
+      if(offset >= message.length)
+        return null;
+      offset += (message[offset] & 0xC0) == 0xC0 ? 2 : 1;
+
+      // Type and class, then the TTL, then the RDATA's length.
+      result[i] = offset + 4;
+      offset += 10;
+      if(offset > message.length)
+        return null;
+      offset += ((message[offset - 2] & 0xFF) << 8) |
+                (message[offset - 1] & 0xFF);
+    }
+    return offset <= message.length ? result : null;
+  }
+
+  private static long getTtl(byte[] message, int offset)
+  {
+    return ((message[offset] & 0xFFL) << 24) |
+           ((message[offset + 1] & 0xFF) << 16) |
+           ((message[offset + 2] & 0xFF) << 8) |
+           (message[offset + 3] & 0xFF);
+  }
+
+  private static void putTtl(byte[] message, int offset, long ttl)
+  {
+    message[offset] = (byte)(ttl >> 24);
+    message[offset + 1] = (byte)(ttl >> 16);
+    message[offset + 2] = (byte)(ttl >> 8);
+    message[offset + 3] = (byte)ttl;
+  }
+
+  /**
+   * The question section in wire format with the name lower cased, so
+   * questions differing only in case share an entry.
+   */
+  private static class Key
+  {
+    Key(byte[] message, int questionEnd)
+    {
+      bytes = Arrays.copyOfRange(message, HEADER_LENGTH, questionEnd);
+      // Only the name, the type and class that follow it are numbers.
+      for(int i = 0; i < bytes.length - 4; ++i)
+      {
+        if(bytes[i] >= 'A' && bytes[i] <= 'Z')
+          bytes[i] += 'a' - 'A';
+      }
+      hash = Arrays.hashCode(bytes);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      return o instanceof Key && Arrays.equals(bytes, ((Key)o).bytes);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+
+    private final byte[] bytes;
+    private final int hash;
+  }
+
+  private static class Entry
+  {
+    byte[] message;
+    int[] ttlOffsets;
+    long[] ttls;
+    long storedAt;
+    long expiresAt;
+  }
+
+  static final int HEADER_LENGTH = 12;
+  private static final int RD_FLAG = 0x01;
+
+  // Guarded by itself, in least recently used order.
+  private final LinkedHashMap<Key, Entry> entries;
+}
@@ -0,0 +1,442 @@
+package dh.net.dns;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A record cache that keeps RRsets in wire format outside the Java
+ * heap, for caches of millions of names where a heap full of small
+ * record objects would mean long collection pauses.
+ *
+ * Entries are appended to a ring of fixed size direct memory slabs.
+ * When the ring wraps the oldest slab is reused and everything in it is
+ * dropped, so eviction is first in, first out at slab granularity.  The
+ * index is an open addressing (linear probing) hash table, also off
+ * heap, holding the 64-bit hash of each entry's canonical name, type
+ * and class alongside the entry's location.  Nothing is decoded into
+ * record objects until a lookup hits.
+ *
+ * Each entry in a slab is laid out as:
+ *
+ *   int   entry length
+ *   long  expiry (System.nanoTime())
+ *   short key length
+ *   byte  key[]       canonical (lower case) wire name, type, class
+ *   short record count
+ *   then per record:
+ *     short rdlength
+ *     byte  rdata[]   uncompressed wire format
+ */
+public class OffHeapRecordCache implements RecordCache
+{
+  /**
+   * Creates a cache holding up to maxBytes of RRsets, with an index
+   * sized for an average entry of AVERAGE_ENTRY_SIZE bytes.
+   */
+  public OffHeapRecordCache(long maxBytes)
+  {
+    this(maxBytes, (int)Math.min(MAX_ENTRIES,
+                                 Math.max(1, maxBytes / AVERAGE_ENTRY_SIZE)));
+  }
+
+  /**
+   * Creates a cache holding up to maxBytes of RRsets and at most
+   * maxEntries of them.
+   */
+  public OffHeapRecordCache(long maxBytes, int maxEntries)
+  {
+    if(maxBytes < MIN_SLAB_SIZE)
+      throw new IllegalArgumentException("Cache must be at least " +
+                                         MIN_SLAB_SIZE + " bytes.");
+
+    this.slabSize = (int)Math.min(DEFAULT_SLAB_SIZE, maxBytes);
+    int numSlabs = (int)Math.max(2, (maxBytes + slabSize - 1) / slabSize);
+    if(numSlabs > 0xFFFF)
+      throw new IllegalArgumentException("Cache too large for slab size.");
+    if(maxEntries > MAX_ENTRIES)
+      throw new IllegalArgumentException("At most " + MAX_ENTRIES +
+                                         " entries are supported.");
+
+    this.slabs = new ByteBuffer[numSlabs];
+    this.writers = new ByteBuffer[numSlabs];
+    this.generations = new int[numSlabs];
+    for(int i = 0; i < numSlabs; ++i)
+    {
+      slabs[i] = ByteBuffer.allocateDirect(slabSize);
+      writers[i] = slabs[i].duplicate();
+    }
+    this.generations[0] = 1;
+
+    // Keep the table at most half full of live entries.
+    int slots = Integer.highestOneBit(Math.max(16, maxEntries) * 2 - 1) << 1;
+    this.mask = slots - 1;
+    this.maxUsedSlots = slots / 4 * 3;
+    this.maxLiveEntries = slots / 2;
+    this.index =
+      ByteBuffer.allocateDirect(slots * SLOT_BYTES).asLongBuffer();
+
+    this.lock = new ReentrantReadWriteLock();
+  }
+
+  @Override
+  public RRset get(String name, QType type, QClass qClass, long now)
+  {
+    byte[] key = keyBytes(name, type, qClass);
+    long hash = hash(key);
+
+    lock.readLock().lock();
+    try
+    {
+      long location = find(key, hash);
+      if(location == 0)
+        return null;
+
+      ByteBuffer slab = slabs[slabOf(location)];
+      int offset = offsetOf(location);
+      long expiresAt = slab.getLong(offset + EXPIRY_OFFSET);
+      if(now - expiresAt >= 0)
+        return null;
+
+      return decode(slab, offset, name, type, qClass, expiresAt, now);
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void put(RRset rrset, long now)
+  {
+    byte[] key = keyBytes(rrset.getName(), rrset.getType(),
+                          rrset.getRecordClass());
+    long hash = hash(key);
+
+    // Encode before taking the lock.
+    int length = KEY_OFFSET + key.length + 2;
+    byte[][] rdata = new byte[rrset.size()][];
+    for(int i = 0; i < rdata.length; ++i)
+    {
+      rdata[i] = rrset.get(i).wireData();
+      length += 2 + rdata[i].length;
+    }
+    byte[] negative = rrset.isEmpty() ? rrset.negativeData() : null;
+    if(negative != null)
+      length += negative.length;
+    if(length > slabSize)
+      return;
+
+    lock.writeLock().lock();
+    try
+    {
+      if(writePosition + length > slabSize)
+        advanceSlab();
+
+      ByteBuffer writer = writers[writeSlab];
+      writer.position(writePosition);
+      writer.putInt(length);
+      writer.putLong(rrset.expiresAt());
+      writer.putShort((short)key.length);
+      writer.put(key);
+      writer.putShort((short)rdata.length);
+      for(byte[] rd : rdata)
+      {
+        writer.putShort((short)rd.length);
+        writer.put(rd);
+      }
+      if(negative != null)
+        writer.put(negative);
+
+      long location = ((long)generations[writeSlab] << 40) |
+                      ((long)writeSlab << 24) |
+                      writePosition;
+      writePosition += length;
+
+      insert(key, hash, location, now);
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public int size()
+  {
+    lock.readLock().lock();
+    try
+    {
+      return usedSlots;
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  // Returns the location of the live entry for the key, or 0.
+  private long find(byte[] key, long hash)
+  {
+    int slot = (int)hash & mask;
+    while(true)
+    {
+      long location = index.get(slot * 2 + 1);
+      if(location == 0)
+        return 0;
+
+      if(index.get(slot * 2) == hash && isLive(location) &&
+         keyMatches(location, key))
+      {
+        return location;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private void insert(byte[] key, long hash, long location, long now)
+  {
+    int slot = (int)hash & mask;
+    int reusable = -1;
+    while(true)
+    {
+      long existing = index.get(slot * 2 + 1);
+      if(existing == 0)
+      {
+        if(reusable < 0)
+        {
+          reusable = slot;
+          ++usedSlots;
+        }
+        break;
+      }
+
+      if(isLive(existing))
+      {
+        if(index.get(slot * 2) == hash && keyMatches(existing, key))
+        {
+          reusable = slot;
+          break;
+        }
+      }
+      else if(reusable < 0)
+      {
+        // Overwriting (rather than emptying) a dead slot keeps every
+        // probe chain running through it intact.
+        reusable = slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    index.put(reusable * 2, hash);
+    index.put(reusable * 2 + 1, location);
+
+    if(usedSlots > maxUsedSlots)
+      rebuildIndex(now);
+  }
+
+  /**
+   * Moves writing on to the next slab in the ring, dropping whatever it
+   * held.  Bumping the slab's generation invalidates every index entry
+   * pointing into it.
+   */
+  private void advanceSlab()
+  {
+    writeSlab = (writeSlab + 1) % slabs.length;
+    nextGeneration(writeSlab);
+    writePosition = 0;
+  }
+
+  private void nextGeneration(int slab)
+  {
+    generations[slab] = (generations[slab] + 1) & MAX_GENERATION;
+    if(generations[slab] == 0)
+      generations[slab] = 1;
+  }
+
+  /**
+   * Clears dead and expired entries out of the index.  If it's still
+   * too full of live entries the oldest slabs are dropped until it
+   * isn't.
+   */
+  private void rebuildIndex(long now)
+  {
+    int dropped = 0;
+    while(countLive(now) > maxLiveEntries)
+    {
+      // Drop slabs oldest first until enough entries have gone.
+      int victim = (writeSlab + 1 + dropped++) % slabs.length;
+      nextGeneration(victim);
+      if(victim == writeSlab)
+        writePosition = 0;
+    }
+
+    int slots = mask + 1;
+    LongBuffer rebuilt =
+      ByteBuffer.allocateDirect(slots * SLOT_BYTES).asLongBuffer();
+    usedSlots = 0;
+    for(int slot = 0; slot < slots; ++slot)
+    {
+      long location = index.get(slot * 2 + 1);
+      if(!isLiveAndUnexpired(location, now))
+        continue;
+
+      long hash = index.get(slot * 2);
+      int target = (int)hash & mask;
+      while(rebuilt.get(target * 2 + 1) != 0)
+        target = (target + 1) & mask;
+      rebuilt.put(target * 2, hash);
+      rebuilt.put(target * 2 + 1, location);
+      ++usedSlots;
+    }
+    index = rebuilt;
+  }
+
+  private int countLive(long now)
+  {
+    int live = 0;
+    for(int slot = 0; slot <= mask; ++slot)
+    {
+      if(isLiveAndUnexpired(index.get(slot * 2 + 1), now))
+        ++live;
+    }
+    return live;
+  }
+
+  private boolean isLiveAndUnexpired(long location, long now)
+  {
+    if(location == 0 || !isLive(location))
+      return false;
+
+    long expiresAt =
+      slabs[slabOf(location)].getLong(offsetOf(location) + EXPIRY_OFFSET);
+    return now - expiresAt < 0;
+  }
+
+  private boolean isLive(long location)
+  {
+    return generations[slabOf(location)] == (int)(location >>> 40);
+  }
+
+  private boolean keyMatches(long location, byte[] key)
+  {
+    ByteBuffer slab = slabs[slabOf(location)];
+    int offset = offsetOf(location);
+    if(slab.getShort(offset + KEY_LENGTH_OFFSET) != key.length)
+      return false;
+
+    offset += KEY_OFFSET;
+    for(int i = 0; i < key.length; ++i)
+    {
+      if(slab.get(offset + i) != key[i])
+        return false;
+    }
+    return true;
+  }
+
+  private RRset decode(ByteBuffer slab, int offset, String name, QType type,
+                       QClass qClass, long expiresAt, long now)
+  {
+    long ttl = TimeUnit.NANOSECONDS.toSeconds(expiresAt - now);
+
+    int pos = offset + KEY_OFFSET + slab.getShort(offset + KEY_LENGTH_OFFSET);
+    int count = slab.getShort(pos) & 0xFFFF;
+    pos += 2;
+
+    if(count == 0)
+    {
+      byte[] negative = new byte[offset + slab.getInt(offset) - pos];
+      for(int b = 0; b < negative.length; ++b)
+        negative[b] = slab.get(pos + b);
+      return RRset.fromNegativeData(name, type, qClass, negative, 0,
+                                    expiresAt, ttl);
+    }
+
+    Answer.ResourceRecord[] records = new Answer.ResourceRecord[count];
+    for(int i = 0; i < count; ++i)
+    {
+      int rdlength = slab.getShort(pos) & 0xFFFF;
+      pos += 2;
+
+      byte[] rdata = new byte[rdlength];
+      for(int b = 0; b < rdlength; ++b)
+        rdata[b] = slab.get(pos + b);
+      pos += rdlength;
+
+      records[i] = new Answer.ResourceRecord(name, type, qClass, ttl, rdata);
+    }
+    return new RRset(name, type, qClass, records, expiresAt);
+  }
+
+  private static byte[] keyBytes(String name, QType type, QClass qClass)
+  {
+    byte[] wireName = RData.encodeName(name.toLowerCase(Locale.ROOT));
+    ByteBuffer key = ByteBuffer.allocate(wireName.length + 4);
+    key.put(wireName);
+    key.putShort((short)type.getValue());
+    key.putShort((short)qClass.getValue());
+    return key.array();
+  }
+
+  // 64-bit FNV-1a followed by a final avalanche so the low bits used
+  // to pick a slot depend on the whole key.
+  private static long hash(byte[] key)
+  {
+    long h = 0xcbf29ce484222325L;
+    for(byte b : key)
+    {
+      h ^= (b & 0xFF);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private static int slabOf(long location)
+  {
+    return (int)(location >>> 24) & 0xFFFF;
+  }
+
+  private static int offsetOf(long location)
+  {
+    return (int)location & 0xFFFFFF;
+  }
+
+  private static final int DEFAULT_SLAB_SIZE = 16 * 1024 * 1024;
+  private static final int MIN_SLAB_SIZE = 64 * 1024;
+  private static final int AVERAGE_ENTRY_SIZE = 128;
+  private static final int SLOT_BYTES = 16;
+  // Keeps the index within a single direct buffer.
+  private static final int MAX_ENTRIES = 1 << 25;
+  private static final int MAX_GENERATION = 0xFFFFFF;
+
+  private static final int EXPIRY_OFFSET = 4;
+  private static final int KEY_LENGTH_OFFSET = 12;
+  private static final int KEY_OFFSET = 14;
+
+  private final int slabSize;
+  private final ByteBuffer[] slabs;
+  // Duplicates of the slabs used for relative writes, so readers can
+  // carry on using absolute gets on the originals.
+  private final ByteBuffer[] writers;
+  // Index locations pack a 24-bit slab generation, 16-bit slab number
+  // and 24-bit offset, so slabs can be at most 16MB.
+  private final int[] generations;
+  private int writeSlab;
+  private int writePosition;
+
+  private LongBuffer index;
+  private final int mask;
+  private final int maxUsedSlots;
+  private final int maxLiveEntries;
+  private int usedSlots;
+
+  private final ReadWriteLock lock;
+}
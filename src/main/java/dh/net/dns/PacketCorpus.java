@@ -0,0 +1,209 @@
+package dh.net.dns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads a corpus of raw DNS messages for replaying.
+ *
+ * Two formats are understood: classic libpcap captures, from which the
+ * payloads of UDP datagrams to or from port 53 are taken, and files of
+ * messages each preceded by a 2 byte big-endian length, as on a DNS
+ * TCP connection.  pcapng captures, TCP streams and IP fragments aren't
+ * supported, such packets are skipped.
+ */
+class PacketCorpus
+{
+  private PacketCorpus() {}
+
+  /**
+   * Reads every message in the file, telling the format apart by its
+   * first bytes.
+   *
+   * @param responsesOnly with a capture, keep only messages sent from
+   *        port 53 rather than to it.
+   */
+  static List<byte[]> read(Path file, boolean responsesOnly) throws IOException
+  {
+    ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+    if(data.remaining() >= 4)
+    {
+      int magic = data.getInt(0);
+      if(magic == PCAP_MAGIC || magic == PCAP_NANO_MAGIC)
+        return readPcap(data.order(ByteOrder.BIG_ENDIAN), responsesOnly);
+      if(Integer.reverseBytes(magic) == PCAP_MAGIC ||
+         Integer.reverseBytes(magic) == PCAP_NANO_MAGIC)
+        return readPcap(data.order(ByteOrder.LITTLE_ENDIAN), responsesOnly);
+    }
+    return readLengthPrefixed(data, file);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  private static List<byte[]> readLengthPrefixed(ByteBuffer data, Path file)
+    throws IOException
+  {
+    List<byte[]> messages = new ArrayList<>();
+    while(data.remaining() >= 2)
+    {
+      int length = data.getShort() & 0xFFFF;
+      if(length > data.remaining())
+        throw new IOException(file + ": truncated message at offset " +
+                              (data.position() - 2));
+      byte[] message = new byte[length];
+      data.get(message);
+      messages.add(message);
+    }
+    return messages;
+  }
+
+  private static List<byte[]> readPcap(ByteBuffer data, boolean responsesOnly)
+  {
+    // Global header: magic, version, zone, sigfigs, snaplen, link type.
+    int linkType = data.getInt(20);
+    data.position(24);
+
+    // The record headers are in the capturing host's byte order, the
+    // packets themselves in network order.
+    ByteBuffer packets = ByteBuffer.wrap(data.array());
+
+    List<byte[]> messages = new ArrayList<>();
+    while(data.remaining() >= 16)
+    {
+      // Record header: seconds, fraction, captured and original length.
+      data.position(data.position() + 8);
+      int captured = data.getInt();
+      data.getInt();
+      if(captured < 0 || captured > data.remaining())
+        break;
+
+      int start = data.position();
+      byte[] payload = udpPayload(packets, start, start + captured, linkType,
+                                  responsesOnly);
+      if(payload != null)
+        messages.add(payload);
+      data.position(start + captured);
+    }
+    return messages;
+  }
+
+  // The DNS message in a captured frame, or null if it doesn't hold one.
+  private static byte[] udpPayload(ByteBuffer data, int offset, int end,
+                                   int linkType, boolean responsesOnly)
+  {
+    int etherType;
+    switch(linkType)
+    {
+      case LINKTYPE_ETHERNET:
+        if(end - offset < 14)
+          return null;
+        etherType = data.getShort(offset + 12) & 0xFFFF;
+        offset += 14;
+        // Skip any VLAN tags.
+        while(etherType == ETHERTYPE_VLAN && end - offset >= 4)
+        {
+          etherType = data.getShort(offset + 2) & 0xFFFF;
+          offset += 4;
+        }
+        break;
+      case LINKTYPE_LINUX_SLL:
+        if(end - offset < 16)
+          return null;
+        etherType = data.getShort(offset + 14) & 0xFFFF;
+        offset += 16;
+        break;
+      case LINKTYPE_NULL:
+        // Address family in the capturing host's byte order, the IP
+        // header tells us the version anyway.
+        offset += 4;
+        etherType = ipVersionType(data, offset, end);
+        break;
+      case LINKTYPE_RAW:
+      case LINKTYPE_IPV4:
+      case LINKTYPE_IPV6:
+        etherType = ipVersionType(data, offset, end);
+        break;
+      default:
+        return null;
+    }
+
+    int protocol;
+    if(etherType == ETHERTYPE_IPV4)
+    {
+      if(end - offset < 20)
+        return null;
+      int headerLength = (data.get(offset) & 0x0F) * 4;
+      int flagsAndFragment = data.getShort(offset + 6) & 0xFFFF;
+      // Only whole datagrams, not fragments.
+      if((flagsAndFragment & 0x3FFF) != 0)
+        return null;
+      protocol = data.get(offset + 9) & 0xFF;
+      offset += headerLength;
+    }
+    else if(etherType == ETHERTYPE_IPV6)
+    {
+      if(end - offset < 40)
+        return null;
+      // Extension headers aren't followed.
+      protocol = data.get(offset + 6) & 0xFF;
+      offset += 40;
+    }
+    else
+      return null;
+
+    if(protocol != IPPROTO_UDP || end - offset < 8)
+      return null;
+
+    int sourcePort = data.getShort(offset) & 0xFFFF;
+    int destinationPort = data.getShort(offset + 2) & 0xFFFF;
+    if(responsesOnly ? sourcePort != DNS_PORT
+                     : sourcePort != DNS_PORT && destinationPort != DNS_PORT)
+      return null;
+
+    // Short frames are padded, the UDP length says where the message
+    // really ends.
+    int udpLength = data.getShort(offset + 4) & 0xFFFF;
+    if(udpLength >= 8)
+      end = Math.min(end, offset + udpLength);
+
+    offset += 8;
+    if(end - offset < 12)
+      return null;
+    return Arrays.copyOfRange(data.array(), offset, end);
+  }
+
+  private static int ipVersionType(ByteBuffer data, int offset, int end)
+  {
+    if(offset >= end)
+      return 0;
+    switch((data.get(offset) >> 4) & 0x0F)
+    {
+      case 4: return ETHERTYPE_IPV4;
+      case 6: return ETHERTYPE_IPV6;
+      default: return 0;
+    }
+  }
+
+  private static final int PCAP_MAGIC = 0xA1B2C3D4;
+  private static final int PCAP_NANO_MAGIC = 0xA1B23C4D;
+
+  private static final int LINKTYPE_NULL = 0;
+  private static final int LINKTYPE_ETHERNET = 1;
+  private static final int LINKTYPE_RAW = 101;
+  private static final int LINKTYPE_LINUX_SLL = 113;
+  private static final int LINKTYPE_IPV4 = 228;
+  private static final int LINKTYPE_IPV6 = 229;
+
+  private static final int ETHERTYPE_IPV4 = 0x0800;
+  private static final int ETHERTYPE_IPV6 = 0x86DD;
+  private static final int ETHERTYPE_VLAN = 0x8100;
+
+  private static final int IPPROTO_UDP = 17;
+  private static final int DNS_PORT = 53;
+}
@@ -0,0 +1,280 @@
+package dh.net.dns;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A group of resolvers sharing what they resolve, so a name one of
+ * them has looked up needn't be looked up again by the rest.
+ *
+ * Each question is owned by one member, chosen by consistent hashing of
+ * the question onto a ring every member builds the same way from the
+ * same list of members.  A resolver with a group asks the owner before
+ * walking down from the roots itself, as an ordinary recursive DNS
+ * query over UDP; the owner answers from its cache, resolving the
+ * question itself (without asking anyone else in the group) if it has
+ * to.  So each name is resolved upstream by one member rather than by
+ * all of them, and adding or removing a member only moves the
+ * questions it owns.
+ *
+ * An owner that doesn't answer within the timeout is left to answer
+ * late while the member asking resolves the question itself.  Owners
+ * that don't answer at all are skipped as failing name servers are,
+ * their questions going to the next member round the ring meanwhile.
+ * When the owner is the member itself the question is resolved as
+ * usual.
+ *
+ * Every member should be given the same list of members, its own
+ * address among them.  Only questions from the members' hosts are
+ * answered, so nobody else can use the group's resolvers.
+ */
+public class PeerGroup implements Closeable
+{
+  public PeerGroup(InetSocketAddress self, List<InetSocketAddress> members)
+  {
+    this(self, members, DEFAULT_TIMEOUT);
+  }
+
+  /**
+   * @param timeoutMillis how long to wait on the owner of a question
+   *        before resolving it ourselves.
+   */
+  public PeerGroup(InetSocketAddress self, List<InetSocketAddress> members,
+                   long timeoutMillis)
+  {
+    this.self = self;
+    this.timeout = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+    List<InetSocketAddress> all = new ArrayList<>(members);
+    if(!all.contains(self))
+      all.add(self);
+    for(InetSocketAddress member : all)
+    {
+      hosts.add(member.getAddress());
+      for(int i = 0; i < VIRTUAL_NODES; ++i)
+      {
+        String point = member.getAddress().getHostAddress() + ":" +
+                       member.getPort() + "#" + i;
+        ring.put(hash(point), member);
+      }
+    }
+    responders.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Answers the questions of the other members through the resolver,
+   * on a socket bound to our own address, until closed.
+   */
+  public synchronized void serve(final DnsResolver resolver) throws IOException
+  {
+    if(socket != null)
+      throw new IllegalStateException("Already serving.");
+
+    socket = new DatagramSocket(self);
+    final DatagramSocket serving = socket;
+    Thread receiver = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        receive(serving, resolver);
+      }
+    }, "dnsj-peer-" + self.getPort());
+    receiver.setDaemon(true);
+    receiver.start();
+  }
+
+  /**
+   * Returns the member to ask the question, or null if it's ours to
+   * resolve.  Members that have stopped answering are passed over for
+   * the next one round the ring.  The member returned is to be asked at
+   * once, as this claims its probe if it's due one.
+   */
+  InetSocketAddress ownerOf(String name, QType type, QClass qClass, long now)
+  {
+    long point = hash(name.toLowerCase(Locale.ROOT) + "|" + type.getValue() +
+                      "|" + qClass.getValue());
+    Map.Entry<Long, InetSocketAddress> entry = ring.ceilingEntry(point);
+    for(int i = 0; i < ring.size(); ++i)
+    {
+      if(entry == null)
+        entry = ring.firstEntry();
+
+      InetSocketAddress member = entry.getValue();
+      if(member.equals(self))
+        return null;
+      if(health.usable(member, now) && health.claim(member, now))
+        return member;
+      entry = ring.higherEntry(entry.getKey());
+    }
+    return null;
+  }
+
+  // Nanoseconds to wait on an owner.
+  long timeout()
+  {
+    return timeout;
+  }
+
+  void onAnswer(InetSocketAddress member)
+  {
+    health.onSuccess(member);
+  }
+
+  void onTimeout(InetSocketAddress member, long now)
+  {
+    health.onFailure(member, ServerHealth.Failure.TIMEOUT, now);
+  }
+
+  /**
+   * Stops answering other members.
+   */
+  @Override
+  public synchronized void close()
+  {
+    if(socket != null)
+      socket.close();
+    responders.shutdownNow();
+  }
+
+  @Override
+  public String toString()
+  {
+    return "peer group of " + self;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  private void receive(final DatagramSocket serving,
+                       final DnsResolver resolver)
+  {
+    byte[] buffer = new byte[MAX_MESSAGE_SIZE];
+    while(!serving.isClosed())
+    {
+      final DatagramPacket request = new DatagramPacket(buffer, buffer.length);
+      try
+      {
+        serving.receive(request);
+      }
+      catch(SocketException e)
+      {
+        // Closed.
+        return;
+      }
+      catch(IOException e)
+      {
+        System.out.println("Peer receive failed: " + e.getMessage());
+        continue;
+      }
+
+      // Members ask from whichever port their resolver sends on, so
+      // only the host is known.
+      if(!hosts.contains(request.getAddress()))
+        continue;
+
+      final byte[] query = Arrays.copyOf(request.getData(),
+                                         request.getLength());
+      final SocketAddress member = request.getSocketAddress();
+
+      // Answering may mean resolving, so it's done off this thread.
+      // Should the responders fall behind the question is dropped, and
+      // the member asking resolves it itself.
+      responders.execute(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          byte[] response = resolver.respondToPeer(query);
+          if(response == null)
+            return;
+
+          try
+          {
+            serving.send(new DatagramPacket(response, response.length,
+                                            member));
+          }
+          catch(IOException e)
+          {
+            System.out.println("Peer send failed: " + e.getMessage());
+          }
+        }
+      });
+    }
+  }
+
+  private static long hash(String s)
+  {
+    long h = 0xcbf29ce484222325L;
+    for(byte b : s.getBytes(StandardCharsets.UTF_8))
+    {
+      h ^= (b & 0xFF);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  // Points each member has on the ring, so questions are spread evenly
+  // and a member's share is taken over by all the others when it goes.
+  private static final int VIRTUAL_NODES = 160;
+
+  // How long to wait on the owner of a question (ms).
+  public static final long DEFAULT_TIMEOUT = 300;
+
+  // Questions being answered for other members at once, and waiting.
+  private static final int MAX_RESPONDERS = 64;
+  private static final int MAX_WAITING = 1024;
+
+  private static final int MAX_MESSAGE_SIZE = 65536;
+
+  private final InetSocketAddress self;
+  private final long timeout;
+  private final TreeMap<Long, InetSocketAddress> ring = new TreeMap<>();
+
+  // Hosts of the members, the only ones whose questions are answered.
+  private final Set<InetAddress> hosts = new HashSet<>();
+
+  // Members that have stopped answering, kept by address and port as
+  // several may share a host.
+  private final ServerHealth<InetSocketAddress> health = new ServerHealth<>();
+
+  // Socket other members' questions arrive on, once serving.
+  private DatagramSocket socket;
+
+  private final ThreadPoolExecutor responders =
+    new ThreadPoolExecutor(MAX_RESPONDERS, MAX_RESPONDERS, 60,
+                           TimeUnit.SECONDS,
+                           new ArrayBlockingQueue<Runnable>(MAX_WAITING),
+                           new ThreadFactory()
+                           {
+                             @Override
+                             public Thread newThread(Runnable r)
+                             {
+                               Thread thread = new Thread(r, "dnsj-peer");
+                               thread.setDaemon(true);
+                               return thread;
+                             }
+                           },
+                           new ThreadPoolExecutor.DiscardPolicy());
+}
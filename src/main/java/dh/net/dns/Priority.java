@@ -0,0 +1,36 @@
+package dh.net.dns;
+
+/**
+ * How urgently a query's answer is wanted, deciding its share of the
+ * queries the resolver may have outstanding with each name server.
+ *
+ * While queries of several classes are waiting on a server, slots are
+ * handed out in proportion to the classes' weights.  A part of every
+ * limit is kept for the classes that may use the reserve, so however
+ * much bulk work is queued an interactive query never waits behind it
+ * for a slot.
+ */
+public enum Priority
+{
+  /**
+   * Someone is waiting on the answer, the default.
+   */
+  INTERACTIVE(8, true),
+
+  /**
+   * Lookups in bulk, which may take longer when the resolver is busy.
+   */
+  BULK(1, false);
+
+  Priority(int weight, boolean usesReserve)
+  {
+    this.weight = weight;
+    this.usesReserve = usesReserve;
+  }
+
+  // Share of the slots handed out while classes compete for them.
+  final int weight;
+
+  // Whether the class may take the slots and tokens held in reserve.
+  final boolean usesReserve;
+}
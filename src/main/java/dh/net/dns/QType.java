@@ -18,7 +18,9 @@ public enum QType
   MINFO(14),
   MX(15),
   TXT(16),
-  AAAA(28);
+  AAAA(28),
+  SRV(33),
+  DNAME(39);
   
   QType(int val) { this.val = val; }
   public int getValue() { return this.val; }
@@ -62,6 +64,10 @@ public enum QType
         return QType.TXT;
       case 28:
         return QType.AAAA;
+      case 33:
+        return QType.SRV;
+      case 39:
+        return QType.DNAME;
       default:
         return QType.NULL;
     }
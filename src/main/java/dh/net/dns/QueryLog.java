@@ -0,0 +1,537 @@
+package dh.net.dns;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A binary log of every query the resolver answers: the question, how
+ * it was answered, the name servers asked and how long it took.
+ *
+ * Resolving threads only encode an entry and put it in a bounded ring,
+ * claiming a slot with a compare-and-set, so logging never takes a lock
+ * or waits on the disk.  Should the ring fill up, because the disk
+ * can't keep up, entries are dropped and counted rather than holding up
+ * queries.  A writer thread drains the ring in batches, writing each
+ * batch with one system call, and starts a new file once the current
+ * one reaches maxFileBytes, deleting the oldest beyond maxFiles.
+ *
+ * Files are framed as Frame Streams (as dnstap is): a START control
+ * frame naming the content type, a frame per entry, each a 32-bit big
+ * endian length and the entry, then a STOP control frame.  An entry is:
+ *
+ *   byte   format version (1)
+ *   byte   outcome: 0 answered, 1 no such name or data, 2 failed
+ *   byte   priority
+ *   long   when it was asked (Unix time, microseconds)
+ *   int    how long it took (microseconds)
+ *   short  type
+ *   short  class
+ *   short  records in the answer
+ *   byte   name length, then the name
+ *   byte   servers asked, then per server its address length (4 or
+ *          16) and address
+ */
+public class QueryLog implements Closeable
+{
+  /**
+   * Logs to files in the directory, which is created if need be.
+   */
+  public QueryLog(Path directory, long maxFileBytes, int maxFiles)
+    throws IOException
+  {
+    if(maxFileBytes < MIN_FILE_BYTES || maxFiles < 1)
+      throw new IllegalArgumentException("Log must have room for entries.");
+
+    this.directory = directory;
+    this.maxFileBytes = maxFileBytes;
+    this.maxFiles = maxFiles;
+    Files.createDirectories(directory);
+
+    for(int i = 0; i < CAPACITY; ++i)
+      sequences.set(i, i);
+
+    this.writer = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        write();
+      }
+    }, "dnsj-query-log");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * An entry as read back from a log file.
+   */
+  public static class Entry
+  {
+    public String name;
+    public QType type;
+    public QClass qClass;
+    public Priority priority;
+
+    // ANSWERED, NO_DATA or FAILED.
+    public int outcome;
+    public int records;
+    public List<InetAddress> servers = new ArrayList<>();
+
+    public long askedAtMicros;
+    public long elapsedMicros;
+
+    @Override
+    public String toString()
+    {
+      return name + " " + type + " " + OUTCOMES[outcome] + " " + records +
+             " " + elapsedMicros + "us " + servers;
+    }
+  }
+
+  public static final int ANSWERED = 0;
+  public static final int NO_DATA = 1;
+  public static final int FAILED = 2;
+
+  /**
+   * Entries dropped because the writer had fallen behind.
+   */
+  public long dropped()
+  {
+    return dropped.get();
+  }
+
+  /**
+   * Writes out everything logged so far and closes the file.  Entries
+   * logged from now on are dropped, as may be those being logged while
+   * this is called.
+   */
+  @Override
+  public void close() throws IOException
+  {
+    closed = true;
+    LockSupport.unpark(writer);
+    try
+    {
+      writer.join();
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    if(failure != null)
+      throw failure;
+  }
+
+  /**
+   * Reads the entries of a log file, in the order they were written.
+   */
+  public static List<Entry> read(Path file) throws IOException
+  {
+    List<Entry> entries = new ArrayList<>();
+    try(InputStream in = Files.newInputStream(file))
+    {
+      DataInputStream data = new DataInputStream(in);
+      while(true)
+      {
+        int length;
+        try
+        {
+          length = data.readInt();
+        }
+        catch(EOFException e)
+        {
+          return entries;
+        }
+
+        if(length == 0)
+        {
+          // A control frame.
+          data.skipBytes(data.readInt());
+          continue;
+        }
+
+        byte[] frame = new byte[length];
+        data.readFully(frame);
+        entries.add(decode(ByteBuffer.wrap(frame)));
+      }
+    }
+  }
+
+  /**
+   * The log files in the directory, oldest first.
+   */
+  public static List<Path> files(Path directory) throws IOException
+  {
+    List<Path> files = new ArrayList<>();
+    try(DirectoryStream<Path> stream =
+          Files.newDirectoryStream(directory, "dnsj-*" + SUFFIX))
+    {
+      for(Path file : stream)
+        files.add(file);
+    }
+    // Names sort by when the file was started.
+    Collections.sort(files);
+    return files;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Logs a query, answered or not (answer is null if it failed), that
+   * was asked at askedAtMillis (Unix time) and took elapsedNanos.
+   */
+  void record(String name, QType type, QClass qClass, Priority priority,
+              RRset answer, List<InetAddress> servers, long askedAtMillis,
+              long elapsedNanos)
+  {
+    record(name, type, qClass, priority,
+           answer == null ? FAILED : answer.isEmpty() ? NO_DATA : ANSWERED,
+           answer == null ? 0 : answer.size(), servers, askedAtMillis,
+           elapsedNanos);
+  }
+
+  /**
+   * Logs a query answered with a response already encoded, as from the
+   * message cache, by its RCODE and the records in its answer section.
+   * No servers were asked.
+   */
+  void record(String name, QType type, QClass qClass, Priority priority,
+              int rcode, int answers, long askedAtMillis, long elapsedNanos)
+  {
+    int outcome = FAILED;
+    if(rcode == Header.RCODE_NAME_ERROR ||
+       (rcode == Header.RCODE_NO_ERROR && answers == 0))
+      outcome = NO_DATA;
+    else if(rcode == Header.RCODE_NO_ERROR)
+      outcome = ANSWERED;
+    record(name, type, qClass, priority, outcome, answers,
+           Collections.<InetAddress>emptyList(), askedAtMillis, elapsedNanos);
+  }
+
+  private void record(String name, QType type, QClass qClass,
+                      Priority priority, int outcome, int records,
+                      List<InetAddress> servers, long askedAtMillis,
+                      long elapsedNanos)
+  {
+    if(closed)
+    {
+      dropped.incrementAndGet();
+      return;
+    }
+
+    // Names are ASCII on the wire, and the name length fits in a byte.
+    int nameLength = Math.min(name.length(), MAX_NAME_LENGTH);
+    int size = FIXED_SIZE + nameLength;
+    int serverCount = Math.min(servers.size(), MAX_SERVERS);
+    for(int i = 0; i < serverCount; ++i)
+      size += servers.get(i) instanceof Inet4Address ? 5 : 17;
+
+    ByteBuffer entry = ByteBuffer.allocate(LENGTH_SIZE + size);
+    entry.putInt(size);
+    entry.put(VERSION);
+    entry.put((byte)outcome);
+    entry.put((byte)priority.ordinal());
+    entry.putLong(TimeUnit.MILLISECONDS.toMicros(askedAtMillis));
+    entry.putInt((int)Math.min(Integer.MAX_VALUE,
+                               TimeUnit.NANOSECONDS.toMicros(elapsedNanos)));
+    entry.putShort((short)type.getValue());
+    entry.putShort((short)qClass.getValue());
+    entry.putShort((short)records);
+    entry.put((byte)nameLength);
+    for(int i = 0; i < nameLength; ++i)
+      entry.put((byte)name.charAt(i));
+    entry.put((byte)serverCount);
+    for(int i = 0; i < serverCount; ++i)
+    {
+      byte[] address = servers.get(i).getAddress();
+      entry.put((byte)address.length);
+      entry.put(address);
+    }
+
+    if(!offer(entry.array()))
+      dropped.incrementAndGet();
+  }
+
+  /**
+   * Puts the entry in the ring, a bounded multi-producer queue after
+   * Dmitry Vyukov's: each slot's sequence number says whether it's free
+   * for the producer at that position or full for the consumer.
+   *
+   * @return false if the ring is full.
+   */
+  private boolean offer(byte[] entry)
+  {
+    while(true)
+    {
+      long position = tail.get();
+      int index = (int)position & MASK;
+      long sequence = sequences.get(index);
+      if(sequence == position)
+      {
+        if(tail.compareAndSet(position, position + 1))
+        {
+          slots.set(index, entry);
+          sequences.lazySet(index, position + 1);
+          return true;
+        }
+      }
+      else if(sequence < position)
+      {
+        return false;
+      }
+      // Otherwise another producer took the slot, try the next.
+    }
+  }
+
+  // Takes the next entry from the ring, or null if it's empty.  Only
+  // the writer thread calls this.
+  private byte[] poll()
+  {
+    int index = (int)head & MASK;
+    if(sequences.get(index) != head + 1)
+      return null;
+
+    byte[] entry = slots.get(index);
+    slots.set(index, null);
+    sequences.lazySet(index, head + CAPACITY);
+    ++head;
+    return entry;
+  }
+
+  // The writer thread's loop.
+  private void write()
+  {
+    // A batch always fits in a file of its own.
+    ByteBuffer batch = ByteBuffer.allocateDirect((int)Math.min(
+      BATCH_BYTES, maxFileBytes - START.length - STOP.length));
+    try
+    {
+      while(true)
+      {
+        boolean finishing = closed;
+        byte[] entry;
+        while((entry = poll()) != null)
+        {
+          // Can't happen while files have room for MAX_ENTRY_SIZE, but
+          // an entry that doesn't fit mustn't stop the writer.
+          if(entry.length > batch.capacity())
+          {
+            dropped.incrementAndGet();
+            continue;
+          }
+          if(batch.remaining() < entry.length)
+            flush(batch);
+          batch.put(entry);
+        }
+        flush(batch);
+
+        // The last drain after close(), anything logged while it ran
+        // is lost.
+        if(finishing)
+          break;
+        LockSupport.parkNanos(IDLE_WAIT);
+      }
+    }
+    catch(IOException e)
+    {
+      failure = e;
+      System.out.println("Query log failed: " + e.getMessage());
+    }
+    finally
+    {
+      try
+      {
+        closeFile();
+      }
+      catch(IOException e)
+      {
+        if(failure == null)
+          failure = e;
+      }
+    }
+  }
+
+  private void flush(ByteBuffer batch) throws IOException
+  {
+    if(batch.position() == 0)
+      return;
+    batch.flip();
+    writeFrame(batch);
+    batch.clear();
+  }
+
+  // Writes whole frames, moving on to a new file first if they'd take
+  // this one past its size.
+  private void writeFrame(ByteBuffer frames) throws IOException
+  {
+    if(file == null ||
+       fileBytes + frames.remaining() + STOP.length > maxFileBytes)
+    {
+      rotate();
+    }
+    fileBytes += frames.remaining();
+    while(frames.hasRemaining())
+      file.write(frames);
+  }
+
+  private void rotate() throws IOException
+  {
+    closeFile();
+
+    Path path = directory.resolve(String.format("dnsj-%013d-%06d%s",
+                                                System.currentTimeMillis(),
+                                                fileNumber++ % 1000000,
+                                                SUFFIX));
+    file = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                            StandardOpenOption.WRITE);
+    ByteBuffer start = ByteBuffer.wrap(START);
+    fileBytes = start.remaining();
+    while(start.hasRemaining())
+      file.write(start);
+
+    List<Path> files = files(directory);
+    for(int i = 0; i < files.size() - maxFiles; ++i)
+      Files.deleteIfExists(files.get(i));
+  }
+
+  private void closeFile() throws IOException
+  {
+    if(file == null)
+      return;
+
+    ByteBuffer stop = ByteBuffer.wrap(STOP);
+    while(stop.hasRemaining())
+      file.write(stop);
+    file.close();
+    file = null;
+  }
+
+  // An escape (a zero length), the control frame's length, its type and
+  // an optional content type field.
+  private static byte[] controlFrame(int type, byte[] contentType)
+  {
+    int length = 4 + (contentType == null ? 0 : 8 + contentType.length);
+    ByteBuffer frame = ByteBuffer.allocate(8 + length);
+    frame.putInt(0);
+    frame.putInt(length);
+    frame.putInt(type);
+    if(contentType != null)
+    {
+      frame.putInt(FIELD_CONTENT_TYPE);
+      frame.putInt(contentType.length);
+      frame.put(contentType);
+    }
+    return frame.array();
+  }
+
+  private static Entry decode(ByteBuffer frame) throws IOException
+  {
+    try
+    {
+      if(frame.get() != VERSION)
+        throw new IOException("Unknown query log entry version.");
+
+      Entry entry = new Entry();
+      entry.outcome = frame.get();
+      entry.priority = Priority.values()[frame.get()];
+      entry.askedAtMicros = frame.getLong();
+      entry.elapsedMicros = frame.getInt() & 0xFFFFFFFFL;
+      entry.type = QType.valueOf(frame.getShort() & 0xFFFF);
+      entry.qClass = QClass.valueOf(frame.getShort() & 0xFFFF);
+      entry.records = frame.getShort() & 0xFFFF;
+      byte[] name = new byte[frame.get() & 0xFF];
+      frame.get(name);
+      entry.name = new String(name, StandardCharsets.ISO_8859_1);
+      int servers = frame.get() & 0xFF;
+      for(int i = 0; i < servers; ++i)
+      {
+        byte[] address = new byte[frame.get() & 0xFF];
+        frame.get(address);
+        entry.servers.add(InetAddress.getByAddress(address));
+      }
+      return entry;
+    }
+    catch(RuntimeException | UnknownHostException e)
+    {
+      throw new IOException("Corrupt query log entry.", e);
+    }
+  }
+
+  // Entries the ring holds, a power of two.
+  private static final int CAPACITY = 1 << 16;
+  private static final int MASK = CAPACITY - 1;
+
+  // Most bytes written with one call, and how long the writer sleeps
+  // once the ring is empty.
+  private static final int BATCH_BYTES = 256 * 1024;
+  private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private static final byte VERSION = 1;
+  private static final int LENGTH_SIZE = 4;
+  // Everything but the name and the servers, with their counts.
+  private static final int FIXED_SIZE = 23;
+  private static final int MAX_NAME_LENGTH = 255;
+  private static final int MAX_SERVERS = 255;
+
+  // The largest entry, with a full length name and every server asked
+  // over IPv6.  Files are kept to twice that, leaving room for it and
+  // the control frames.
+  private static final int MAX_ENTRY_SIZE =
+    LENGTH_SIZE + FIXED_SIZE + MAX_NAME_LENGTH + MAX_SERVERS * 17;
+  private static final long MIN_FILE_BYTES = 2 * MAX_ENTRY_SIZE;
+
+  // Frame Streams control frames.
+  private static final int CONTROL_START = 2;
+  private static final int CONTROL_STOP = 3;
+  private static final int FIELD_CONTENT_TYPE = 1;
+  private static final byte[] CONTENT_TYPE =
+    "dnsj-query-log-1".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] START = controlFrame(CONTROL_START, CONTENT_TYPE);
+  private static final byte[] STOP = controlFrame(CONTROL_STOP, null);
+
+  private static final String SUFFIX = ".fstrm";
+  private static final String[] OUTCOMES = { "answered", "no data", "failed" };
+
+  private final Path directory;
+  private final long maxFileBytes;
+  private final int maxFiles;
+
+  // The ring: producers claim positions by advancing tail, the writer
+  // consumes from head.
+  private final AtomicReferenceArray<byte[]> slots =
+    new AtomicReferenceArray<>(CAPACITY);
+  private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+  private final AtomicLong tail = new AtomicLong();
+  private long head;
+
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile boolean closed;
+
+  // Only used by the writer thread.
+  private final Thread writer;
+  private FileChannel file;
+  private long fileBytes;
+  private int fileNumber;
+  private volatile IOException failure;
+}
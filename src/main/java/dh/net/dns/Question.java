@@ -5,6 +5,7 @@ import dh.net.dns.OpCode;
 import dh.net.dns.QClass;
 import dh.net.dns.Header;
 
+import java.util.Arrays;
 import java.util.Vector;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -85,7 +86,8 @@ public class Question
       buffer.put(question);
     }
 
-    return buffer.array();
+    // Only the bytes written, servers may reject trailing garbage.
+    return Arrays.copyOf(buffer.array(), buffer.position());
   }
 
   private byte[] formatQuestion(QuestionRecord question)
@@ -0,0 +1,479 @@
+package dh.net.dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Typed view of the RDATA section of a resource record.
+ *
+ * Instances are immutable.  Any domain names inside the RDATA have been
+ * expanded against the packet they arrived in, so unlike the raw bytes
+ * they remain meaningful once the packet is gone.
+ */
+public abstract class RData
+{
+  /**
+   * Decodes length bytes of RDATA starting at offset.  Compressed names
+   * are followed within the given packet, which must therefore be the
+   * complete message the record was read from.
+   */
+  static RData decode(QType type, byte[] packet, int offset, int length)
+  {
+    if(offset + length > packet.length)
+      throw new IllegalArgumentException("RDATA runs past end of packet.");
+
+    ByteBuffer buffer = ByteBuffer.wrap(packet, offset, length);
+    buffer.order(ByteOrder.BIG_ENDIAN);
+
+    switch(type)
+    {
+      case A:
+        if(length != 4)
+          break;
+        return new A(Arrays.copyOfRange(packet, offset, offset + length));
+
+      case AAAA:
+        if(length != 16)
+          break;
+        return new AAAA(Arrays.copyOfRange(packet, offset, offset + length));
+
+      case NS:
+        return new NS(Answer.expandDNS(packet, offset).dnsName);
+
+      case CNAME:
+        return new CNAME(Answer.expandDNS(packet, offset).dnsName);
+
+      case PTR:
+        return new PTR(Answer.expandDNS(packet, offset).dnsName);
+
+      case DNAME:
+        return new DNAME(Answer.expandDNS(packet, offset).dnsName);
+
+      case MX:
+      {
+        int preference = buffer.getShort() & 0xFFFF;
+        String exchange = Answer.expandDNS(packet, offset + 2).dnsName;
+        return new MX(preference, exchange);
+      }
+
+      case SOA:
+      {
+        Answer.DnsExpansionResult mname = Answer.expandDNS(packet, offset);
+        Answer.DnsExpansionResult rname =
+          Answer.expandDNS(packet, offset + mname.offsetFromInitial);
+        buffer.position(offset + mname.offsetFromInitial +
+                        rname.offsetFromInitial);
+        return new SOA(mname.dnsName, rname.dnsName,
+                       buffer.getInt() & 0xFFFFFFFFL,
+                       buffer.getInt() & 0xFFFFFFFFL,
+                       buffer.getInt() & 0xFFFFFFFFL,
+                       buffer.getInt() & 0xFFFFFFFFL,
+                       buffer.getInt() & 0xFFFFFFFFL);
+      }
+
+      case TXT:
+      {
+        // One or more <character-string>s, each a length octet
+        // followed by that many bytes.
+        List<String> strings = new ArrayList<>();
+        int end = offset + length;
+        int pos = offset;
+        while(pos < end)
+        {
+          int len = packet[pos++] & 0xFF;
+          if(pos + len > end)
+            throw new IllegalArgumentException("TXT string overruns RDATA.");
+          strings.add(new String(packet, pos, len,
+                                 StandardCharsets.ISO_8859_1));
+          pos += len;
+        }
+        return new TXT(strings);
+      }
+
+      case SRV:
+      {
+        int priority = buffer.getShort() & 0xFFFF;
+        int weight = buffer.getShort() & 0xFFFF;
+        int port = buffer.getShort() & 0xFFFF;
+        String target = Answer.expandDNS(packet, offset + 6).dnsName;
+        return new SRV(priority, weight, port, target);
+      }
+
+      default:
+      break;
+    }
+
+    return new Unknown(Arrays.copyOfRange(packet, offset, offset + length));
+  }
+
+  /**
+   * Returns true if RDATA of this type can contain (possibly compressed)
+   * domain names, meaning it can't be decoded without its packet.
+   */
+  static boolean containsNames(QType type)
+  {
+    switch(type)
+    {
+      case NS:
+      case CNAME:
+      case PTR:
+      case DNAME:
+      case MX:
+      case SOA:
+      case SRV:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Returns this RDATA in wire format with any names written out in
+   * full, so it can be decoded again without the original packet.
+   */
+  abstract byte[] toWire();
+
+  /**
+   * Encodes a dotted domain name as a sequence of length prefixed
+   * labels terminated by the root label.
+   */
+  static byte[] encodeName(String name)
+  {
+    if(name.endsWith("."))
+      name = name.substring(0, name.length() - 1);
+
+    byte[] chars = name.getBytes();
+    if(chars.length == 0)
+      return new byte[1];
+    if(chars.length > 253)
+      throw new IllegalArgumentException("Domain name too long: " + name);
+
+    byte[] result = new byte[chars.length + 2];
+    int labelStart = 0;
+    for(int i = 0; i <= chars.length; ++i)
+    {
+      if(i == chars.length || chars[i] == '.')
+      {
+        int labelLength = i - labelStart;
+        if(labelLength == 0 || labelLength > 63)
+          throw new IllegalArgumentException("Bad label in name: " + name);
+
+        result[labelStart] = (byte)labelLength;
+        System.arraycopy(chars, labelStart, result, labelStart + 1,
+                         labelLength);
+        labelStart = i + 1;
+      }
+    }
+    return result;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Base for the address records.
+   */
+  public static abstract class Address extends RData
+  {
+    Address(byte[] address)
+    {
+      this.address = address;
+    }
+
+    public byte[] address()
+    {
+      return Arrays.copyOf(address, address.length);
+    }
+
+    public InetAddress inetAddress()
+    {
+      try
+      {
+        return InetAddress.getByAddress(address);
+      }
+      catch(UnknownHostException e)
+      {
+        // Only thrown for addresses of an illegal length.
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    byte[] toWire()
+    {
+      return address();
+    }
+
+    @Override
+    public String toString()
+    {
+      return inetAddress().getHostAddress();
+    }
+
+    private final byte[] address;
+  }
+
+  public static class A extends Address
+  {
+    A(byte[] address) { super(address); }
+  }
+
+  public static class AAAA extends Address
+  {
+    AAAA(byte[] address) { super(address); }
+  }
+
+  /**
+   * Base for the records whose RDATA is a single domain name.
+   */
+  public static abstract class DomainName extends RData
+  {
+    DomainName(String name)
+    {
+      this.name = name;
+    }
+
+    public String name()
+    {
+      return name;
+    }
+
+    @Override
+    byte[] toWire()
+    {
+      return encodeName(name);
+    }
+
+    @Override
+    public String toString()
+    {
+      return name;
+    }
+
+    private final String name;
+  }
+
+  public static class NS extends DomainName
+  {
+    NS(String name) { super(name); }
+  }
+
+  public static class CNAME extends DomainName
+  {
+    CNAME(String name) { super(name); }
+  }
+
+  public static class PTR extends DomainName
+  {
+    PTR(String name) { super(name); }
+  }
+
+  public static class DNAME extends DomainName
+  {
+    DNAME(String name) { super(name); }
+  }
+
+  public static class MX extends RData
+  {
+    MX(int preference, String exchange)
+    {
+      this.preference = preference;
+      this.exchange = exchange;
+    }
+
+    public int preference() { return preference; }
+    public String exchange() { return exchange; }
+
+    @Override
+    byte[] toWire()
+    {
+      byte[] name = encodeName(exchange);
+      ByteBuffer buffer = ByteBuffer.allocate(2 + name.length);
+      buffer.putShort((short)preference);
+      buffer.put(name);
+      return buffer.array();
+    }
+
+    @Override
+    public String toString()
+    {
+      return preference + " " + exchange;
+    }
+
+    private final int preference;
+    private final String exchange;
+  }
+
+  public static class SOA extends RData
+  {
+    SOA(String mname, String rname, long serial, long refresh, long retry,
+        long expire, long minimum)
+    {
+      this.mname = mname;
+      this.rname = rname;
+      this.serial = serial;
+      this.refresh = refresh;
+      this.retry = retry;
+      this.expire = expire;
+      this.minimum = minimum;
+    }
+
+    public String primaryNameserver() { return mname; }
+    public String responsibleMailbox() { return rname; }
+    public long serial() { return serial; }
+    public long refresh() { return refresh; }
+    public long retry() { return retry; }
+    public long expire() { return expire; }
+    public long minimum() { return minimum; }
+
+    @Override
+    byte[] toWire()
+    {
+      byte[] m = encodeName(mname);
+      byte[] r = encodeName(rname);
+      ByteBuffer buffer = ByteBuffer.allocate(m.length + r.length + 20);
+      buffer.put(m);
+      buffer.put(r);
+      buffer.putInt((int)serial);
+      buffer.putInt((int)refresh);
+      buffer.putInt((int)retry);
+      buffer.putInt((int)expire);
+      buffer.putInt((int)minimum);
+      return buffer.array();
+    }
+
+    @Override
+    public String toString()
+    {
+      return mname + " " + rname + " " + serial + " " + refresh + " " +
+             retry + " " + expire + " " + minimum;
+    }
+
+    private final String mname;
+    private final String rname;
+    private final long serial;
+    private final long refresh;
+    private final long retry;
+    private final long expire;
+    private final long minimum;
+  }
+
+  /**
+   * Character strings, one char to each byte as in ISO-8859-1 so any
+   * bytes survive the trip to a String and back.
+   */
+  public static class TXT extends RData
+  {
+    TXT(List<String> strings)
+    {
+      this.strings = Collections.unmodifiableList(strings);
+    }
+
+    public List<String> strings() { return strings; }
+
+    @Override
+    byte[] toWire()
+    {
+      int length = 0;
+      for(String str : strings)
+        length += 1 + str.length();
+
+      ByteBuffer buffer = ByteBuffer.allocate(length);
+      for(String str : strings)
+      {
+        byte[] bytes = str.getBytes(StandardCharsets.ISO_8859_1);
+        buffer.put((byte)bytes.length);
+        buffer.put(bytes);
+      }
+      return buffer.array();
+    }
+
+    @Override
+    public String toString()
+    {
+      String result = "";
+      for(String s : strings)
+        result += "\"" + s + "\" ";
+      return result.trim();
+    }
+
+    private final List<String> strings;
+  }
+
+  public static class SRV extends RData
+  {
+    SRV(int priority, int weight, int port, String target)
+    {
+      this.priority = priority;
+      this.weight = weight;
+      this.port = port;
+      this.target = target;
+    }
+
+    public int priority() { return priority; }
+    public int weight() { return weight; }
+    public int port() { return port; }
+    public String target() { return target; }
+
+    @Override
+    byte[] toWire()
+    {
+      byte[] name = encodeName(target);
+      ByteBuffer buffer = ByteBuffer.allocate(6 + name.length);
+      buffer.putShort((short)priority);
+      buffer.putShort((short)weight);
+      buffer.putShort((short)port);
+      buffer.put(name);
+      return buffer.array();
+    }
+
+    @Override
+    public String toString()
+    {
+      return priority + " " + weight + " " + port + " " + target;
+    }
+
+    private final int priority;
+    private final int weight;
+    private final int port;
+    private final String target;
+  }
+
+  /**
+   * RDATA of a type we don't interpret, kept as raw bytes.
+   */
+  public static class Unknown extends RData
+  {
+    Unknown(byte[] data)
+    {
+      this.data = data;
+    }
+
+    public byte[] data()
+    {
+      return Arrays.copyOf(data, data.length);
+    }
+
+    @Override
+    byte[] toWire()
+    {
+      return data();
+    }
+
+    @Override
+    public String toString()
+    {
+      return "\\# " + data.length;
+    }
+
+    private final byte[] data;
+  }
+
+  RData() {}
+}
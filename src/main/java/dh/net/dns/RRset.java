@@ -0,0 +1,246 @@
+package dh.net.dns;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable set of resource records sharing the same owner name,
+ * type and class, as returned by a resolution and held in the cache.
+ *
+ * An empty RRset is a negative answer: either the name doesn't exist
+ * (isNameError()), or it has no data of this type.  Negative answers
+ * learnt from a name server keep the zone's SOA record that came with
+ * them, to be handed on with the answer (RFC 2308).
+ */
+public class RRset implements Iterable<Answer.ResourceRecord>
+{
+  RRset(String name, QType type, QClass qClass,
+        Answer.ResourceRecord[] records, long expiresAt)
+  {
+    this(name, type, qClass, records, expiresAt, false, null);
+  }
+
+  private RRset(String name, QType type, QClass qClass,
+                Answer.ResourceRecord[] records, long expiresAt,
+                boolean nameError, Answer.ResourceRecord soa)
+  {
+    this.name = name;
+    this.type = type;
+    this.qClass = qClass;
+    this.records = records;
+    this.expiresAt = expiresAt;
+    this.nameError = nameError;
+    this.soa = soa;
+  }
+
+  /**
+   * A negative answer.
+   *
+   * @param nameError true if the name doesn't exist, false if it only
+   *        has no data of this type.
+   * @param soa the SOA record of the zone saying so, or null.
+   */
+  static RRset negative(String name, QType type, QClass qClass,
+                        boolean nameError, Answer.ResourceRecord soa,
+                        long expiresAt)
+  {
+    return new RRset(name, type, qClass, NO_RECORDS, expiresAt, nameError,
+                     soa);
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public QType getType()
+  {
+    return type;
+  }
+
+  public QClass getRecordClass()
+  {
+    return qClass;
+  }
+
+  public int size()
+  {
+    return records.length;
+  }
+
+  public boolean isEmpty()
+  {
+    return records.length == 0;
+  }
+
+  public Answer.ResourceRecord get(int index)
+  {
+    return records[index];
+  }
+
+  /**
+   * Returns true for a negative answer saying the name doesn't exist at
+   * all (NXDOMAIN), rather than that it has no data of this type.
+   */
+  public boolean isNameError()
+  {
+    return nameError;
+  }
+
+  /**
+   * Returns the SOA record that came with a negative answer, or null.
+   */
+  Answer.ResourceRecord soa()
+  {
+    return soa;
+  }
+
+  @Override
+  public Iterator<Answer.ResourceRecord> iterator()
+  {
+    return new Iterator<Answer.ResourceRecord>()
+    {
+      @Override
+      public boolean hasNext()
+      {
+        return next < records.length;
+      }
+
+      @Override
+      public Answer.ResourceRecord next()
+      {
+        if(next >= records.length)
+          throw new NoSuchElementException();
+        return records[next++];
+      }
+
+      @Override
+      public void remove()
+      {
+        throw new UnsupportedOperationException("RRsets are immutable.");
+      }
+
+      private int next = 0;
+    };
+  }
+
+  /**
+   * Returns true once the TTL of this RRset has run out, now being a
+   * System.nanoTime() reading.
+   */
+  boolean isExpired(long now)
+  {
+    return now - expiresAt >= 0;
+  }
+
+  long expiresAt()
+  {
+    return expiresAt;
+  }
+
+  /**
+   * What a negative answer holds beyond its key, for caches that store
+   * RRsets as bytes: a flags byte, then if there's an SOA its owner's
+   * name in wire format and its RDATA preceded by a 2 byte length.
+   */
+  byte[] negativeData()
+  {
+    int flags = (nameError ? NAME_ERROR_FLAG : 0) |
+                (soa != null ? SOA_FLAG : 0);
+    if(soa == null)
+      return new byte[] { (byte)flags };
+
+    byte[] owner = RData.encodeName(soa.domainName);
+    byte[] rdata = soa.wireData();
+    ByteBuffer data = ByteBuffer.allocate(1 + owner.length + 2 + rdata.length);
+    data.put((byte)flags);
+    data.put(owner);
+    data.putShort((short)rdata.length);
+    data.put(rdata);
+    return data.array();
+  }
+
+  /**
+   * Returns the length of the negativeData() found at the offset, or -1
+   * if it runs past the end of the data.
+   */
+  static int negativeDataLength(byte[] data, int offset)
+  {
+    if(offset >= data.length)
+      return -1;
+    if((data[offset] & SOA_FLAG) == 0)
+      return 1;
+
+    // The owner is written uncompressed, label by label.
+    int pos = offset + 1;
+    while(pos < data.length && data[pos] != 0)
+      pos += 1 + (data[pos] & 0xFF);
+    pos += 1;
+    if(pos + 2 > data.length)
+      return -1;
+    pos += 2 + (((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF));
+    return pos <= data.length ? pos - offset : -1;
+  }
+
+  /**
+   * Rebuilds a negative answer from negativeData() found at the offset,
+   * giving its SOA the TTL remaining.
+   *
+   * @throws IllegalArgumentException if the data is malformed.
+   */
+  static RRset fromNegativeData(String name, QType type, QClass qClass,
+                                byte[] data, int offset, long expiresAt,
+                                long ttl)
+  {
+    if(offset >= data.length)
+      throw new IllegalArgumentException("Negative answer data missing.");
+
+    int flags = data[offset];
+    Answer.ResourceRecord soa = null;
+    if((flags & SOA_FLAG) != 0)
+    {
+      Answer.DnsExpansionResult owner = Answer.expandDNS(data, offset + 1);
+      int pos = offset + 1 + owner.offsetFromInitial;
+      if(pos + 2 > data.length)
+        throw new IllegalArgumentException("SOA runs past its entry.");
+      int rdlength = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+      pos += 2;
+      if(pos + rdlength > data.length)
+        throw new IllegalArgumentException("SOA runs past its entry.");
+      soa = new Answer.ResourceRecord(owner.dnsName, QType.SOA, qClass, ttl,
+                                      Arrays.copyOfRange(data, pos,
+                                                         pos + rdlength));
+    }
+    return negative(name, type, qClass, (flags & NAME_ERROR_FLAG) != 0, soa,
+                    expiresAt);
+  }
+
+  @Override
+  public String toString()
+  {
+    if(records.length == 0)
+      return "( " + name + ", " + type + ", " + qClass + ") " +
+             (nameError ? "<no such name>" : "<no data>");
+
+    String result = "";
+    for(Answer.ResourceRecord rr : records)
+      result += rr + "\n";
+    return result.trim();
+  }
+
+  private final String name;
+  private final QType type;
+  private final QClass qClass;
+  private final Answer.ResourceRecord[] records;
+  private final long expiresAt;
+  private final boolean nameError;
+  private final Answer.ResourceRecord soa;
+
+  private static final int NAME_ERROR_FLAG = 1;
+  private static final int SOA_FLAG = 2;
+
+  static final Answer.ResourceRecord[] NO_RECORDS =
+    new Answer.ResourceRecord[0];
+}
@@ -0,0 +1,390 @@
+package dh.net.dns;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One I/O thread with its own selector, through which a shard of the
+ * resolver's queries talk to name servers.  It sends from sockets of
+ * both address families, or just IPv4 ones where the host has no IPv6.
+ *
+ * Queries are pinned to a reactor for their lifetime, so the selector
+ * and the set of exchanges awaiting a response are only shared with the
+ * other queries of the same shard.  Sending happens on the querying
+ * thread; the reactor thread reads responses and hands each to the
+ * inbox of the exchange it answers.
+ *
+ * Every exchange has a socket of its own, bound to a random port, and a
+ * random ID which goes on the wire in place of the query's own.  A
+ * response must come from the server to that port with that ID, and
+ * repeat the query's question, to be accepted, so a spoofer has to
+ * guess both the port and the ID.
+ */
+class Reactor implements Transport, Runnable, Closeable
+{
+  Reactor(String name) throws IOException
+  {
+    this.selector = Selector.open();
+
+    // Hosts without IPv6 only get IPv4 sockets.
+    boolean ipv6 = true;
+    try
+    {
+      DatagramChannel.open(StandardProtocolFamily.INET6).close();
+    }
+    catch(IOException | UnsupportedOperationException e)
+    {
+      ipv6 = false;
+    }
+    this.ipv6 = ipv6;
+
+    Thread thread = new Thread(this, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Returns true if there are sockets of the address's family to send
+   * from.
+   */
+  @Override
+  public boolean canReach(InetAddress address)
+  {
+    return ipv6 || !(address instanceof Inet6Address);
+  }
+
+  private static class Exchange implements Transport.Exchange
+  {
+    private Exchange(DatagramChannel channel, InetSocketAddress server,
+                     int id, int queryID, byte[] question,
+                     Queue<Response> inbox, Object attachment)
+    {
+      this.channel = channel;
+      this.server = server;
+      this.id = id;
+      this.queryID = queryID;
+      this.question = question;
+      this.inbox = inbox;
+      this.attachment = attachment;
+    }
+
+    private final DatagramChannel channel;
+    private final InetSocketAddress server;
+    private final int id;
+    private final int queryID;
+    // The query's question section, which the response must repeat.
+    private final byte[] question;
+    private final Queue<Response> inbox;
+    private final Object attachment;
+  }
+
+  @Override
+  public Transport.Exchange send(byte[] query, InetSocketAddress server,
+                                 Queue<Response> inbox, Object attachment)
+    throws IOException
+  {
+    if(!canReach(server.getAddress()))
+      throw new IOException("No IPv6 sockets to reach " + server);
+    if(!selector.isOpen())
+      throw new IOException("Reactor closed.");
+
+    DatagramChannel channel = open(server.getAddress() instanceof Inet6Address
+                                   ? StandardProtocolFamily.INET6
+                                   : StandardProtocolFamily.INET);
+    int queryID = ((query[0] & 0xFF) << 8) | (query[1] & 0xFF);
+    Exchange exchange = new Exchange(channel, server,
+                                     ThreadLocalRandom.current()
+                                       .nextInt(0x10000),
+                                     queryID, question(query), inbox,
+                                     attachment);
+    outstanding.put(exchange, Boolean.TRUE);
+    try
+    {
+      resend(exchange, query);
+    }
+    catch(IOException e)
+    {
+      cancel(exchange);
+      throw e;
+    }
+
+    // The reactor thread registers the socket, as registering here
+    // could wait on its select.
+    registrations.add(exchange);
+    selector.wakeup();
+    if(!selector.isOpen())
+    {
+      cancel(exchange);
+      throw new IOException("Reactor closed.");
+    }
+    return exchange;
+  }
+
+  @Override
+  public void resend(Transport.Exchange sent, byte[] query) throws IOException
+  {
+    Exchange exchange = (Exchange)sent;
+    ByteBuffer packet = ByteBuffer.wrap(Arrays.copyOf(query, query.length));
+    packet.putShort(0, (short)exchange.id);
+    exchange.channel.send(packet, exchange.server);
+  }
+
+  // Closing the socket drops it from the selector at its next select.
+  @Override
+  public void cancel(Transport.Exchange sent)
+  {
+    Exchange exchange = (Exchange)sent;
+    if(outstanding.remove(exchange) != null)
+      closeQuietly(exchange.channel);
+  }
+
+  @Override
+  public Response receive(BlockingQueue<Response> inbox, long until)
+    throws InterruptedException
+  {
+    return inbox.poll(Math.max(0, until - System.nanoTime()),
+                      TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Number of exchanges awaiting a response.
+   */
+  int outstanding()
+  {
+    return outstanding.size();
+  }
+
+  // Reads responses until closed.  A socket that fails to receive is
+  // left until the selector reports it again, the others being served
+  // meanwhile.
+  @Override
+  public void run()
+  {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_MESSAGE_SIZE);
+    try
+    {
+      while(selector.isOpen())
+      {
+        try
+        {
+          selector.select();
+        }
+        catch(IOException e)
+        {
+          System.out.println("Reactor select failed: " + e.getMessage());
+          continue;
+        }
+        register();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while(keys.hasNext())
+        {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if(key.isValid() && key.isReadable())
+            drain((Exchange)key.attachment(), buffer);
+        }
+      }
+    }
+    catch(ClosedSelectorException e)
+    {
+      // Closed.
+    }
+  }
+
+  // Drains the exchange's socket, handing it any responses that answer
+  // its query.
+  private void drain(Exchange exchange, ByteBuffer buffer)
+  {
+    while(true)
+    {
+      buffer.clear();
+      SocketAddress source;
+      try
+      {
+        source = exchange.channel.receive(buffer);
+      }
+      catch(IOException e)
+      {
+        if(selector.isOpen() && exchange.channel.isOpen())
+          System.out.println("Reactor receive failed: " + e.getMessage());
+        return;
+      }
+      if(source == null)
+        return;
+      buffer.flip();
+      if(!exchange.server.equals(source) ||
+         buffer.remaining() < MessageCache.HEADER_LENGTH ||
+         (buffer.getShort(0) & 0xFFFF) != exchange.id ||
+         !answers(buffer, exchange.question))
+      {
+        continue;
+      }
+
+      // Give the response back the ID of the query it answers.
+      byte[] packet = new byte[buffer.remaining()];
+      buffer.get(packet);
+      packet[0] = (byte)(exchange.queryID >> 8);
+      packet[1] = (byte)exchange.queryID;
+      exchange.inbox.offer(new Response(packet, exchange.attachment));
+    }
+  }
+
+  @Override
+  public void close()
+  {
+    try
+    {
+      selector.close();
+    }
+    catch(IOException e)
+    {
+      // Going away regardless.
+    }
+    for(Exchange exchange : outstanding.keySet())
+      cancel(exchange);
+    registrations.clear();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  // A non-blocking socket bound to a random port, or failing that to
+  // whatever port the system picks.
+  private static DatagramChannel open(ProtocolFamily family)
+    throws IOException
+  {
+    DatagramChannel channel = DatagramChannel.open(family);
+    try
+    {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      boolean bound = false;
+      for(int attempt = 0; attempt < MAX_PORT_ATTEMPTS && !bound; ++attempt)
+      {
+        try
+        {
+          channel.bind(new InetSocketAddress(
+            random.nextInt(MIN_PORT, 0x10000)));
+          bound = true;
+        }
+        catch(BindException e)
+        {
+          // Taken; try another.
+        }
+      }
+      if(!bound)
+        channel.bind(null);
+      channel.configureBlocking(false);
+      return channel;
+    }
+    catch(IOException e)
+    {
+      closeQuietly(channel);
+      throw e;
+    }
+  }
+
+  // Registers the sockets of exchanges sent since the last select,
+  // unless they've been cancelled meanwhile.
+  private void register()
+  {
+    Exchange exchange;
+    while((exchange = registrations.poll()) != null)
+    {
+      try
+      {
+        exchange.channel.register(selector, SelectionKey.OP_READ, exchange);
+      }
+      catch(ClosedChannelException e)
+      {
+        // Cancelled.
+      }
+    }
+  }
+
+  private static void closeQuietly(DatagramChannel channel)
+  {
+    try
+    {
+      channel.close();
+    }
+    catch(IOException e)
+    {
+      // Going away regardless.
+    }
+  }
+
+  // The question section of a query with one question, being its name,
+  // type and class.
+  private static byte[] question(byte[] query)
+  {
+    int end = MessageCache.HEADER_LENGTH;
+    while(end < query.length && query[end] != 0)
+      end += 1 + (query[end] & 0xFF);
+    end = Math.min(end + 5, query.length);
+    return Arrays.copyOfRange(query, MessageCache.HEADER_LENGTH, end);
+  }
+
+  // True if the response has just the question, in any case.
+  private static boolean answers(ByteBuffer response, byte[] question)
+  {
+    if(response.getShort(4) != 1 ||
+       response.remaining() < MessageCache.HEADER_LENGTH + question.length)
+    {
+      return false;
+    }
+    for(int i = 0; i < question.length; ++i)
+    {
+      int a = question[i];
+      int b = response.get(MessageCache.HEADER_LENGTH + i);
+      if(a != b && ((a | 0x20) != (b | 0x20) || (a | 0x20) < 'a' ||
+                    (a | 0x20) > 'z'))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Largest response we'll take over UDP.
+  private static final int MAX_MESSAGE_SIZE = 65536;
+
+  // Random ports tried before leaving the choice to the system.
+  private static final int MAX_PORT_ATTEMPTS = 8;
+
+  // Lowest port bound at random, above the well known ones.
+  private static final int MIN_PORT = 1024;
+
+  private final Selector selector;
+
+  // Whether there are IPv6 sockets.
+  private final boolean ipv6;
+
+  // Exchanges awaiting a response.
+  private final ConcurrentMap<Exchange, Boolean> outstanding =
+    new ConcurrentHashMap<>();
+
+  // Exchanges whose sockets the reactor thread has yet to register.
+  private final Queue<Exchange> registrations =
+    new ConcurrentLinkedQueue<>();
+}
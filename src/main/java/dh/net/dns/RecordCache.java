@@ -0,0 +1,29 @@
+package dh.net.dns;
+
+/**
+ * Storage for the RRsets the resolver learns while resolving.
+ *
+ * Implementations must be safe for use by several threads at once.
+ * Times are System.nanoTime() readings, the same clock RRset expiry is
+ * expressed in.
+ */
+public interface RecordCache
+{
+  /**
+   * Returns the unexpired RRset for the name, type and class, or null
+   * if there isn't one.  Names compare case insensitively.
+   */
+  RRset get(String name, QType type, QClass qClass, long now);
+
+  /**
+   * Stores the RRset, replacing any existing RRset with the same name,
+   * type and class.  Empty RRsets record negative answers.
+   */
+  void put(RRset rrset, long now);
+
+  /**
+   * Number of RRsets currently held, including any that have expired
+   * but haven't been cleared out yet.
+   */
+  int size();
+}
@@ -0,0 +1,10 @@
+package dh.net.dns;
+
+/**
+ * Receives resource records one at a time as they are produced, for
+ * example by the master file parser.
+ */
+public interface RecordSink
+{
+  void add(Answer.ResourceRecord record);
+}
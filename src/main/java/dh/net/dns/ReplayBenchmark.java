@@ -0,0 +1,252 @@
+package dh.net.dns;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a corpus of captured DNS responses through the decoding and
+ * cache ingest path as fast as it will go, and reports throughput,
+ * allocation and latency.
+ *
+ * Usage: ReplayBenchmark corpus [-t threads] [-d seconds] [-w seconds]
+ *                               [--decode-only]
+ *
+ * The corpus is a pcap capture or a file of length-prefixed messages,
+ * see PacketCorpus.  Every thread replays the whole corpus in a loop,
+ * each starting at a different point, for a warm-up period whose
+ * results are thrown away and then for the measured duration.
+ */
+public class ReplayBenchmark
+{
+  public static void main(String[] args) throws Exception
+  {
+    Path corpusFile = null;
+    int threads = Runtime.getRuntime().availableProcessors();
+    long seconds = 10;
+    long warmupSeconds = 5;
+    boolean decodeOnly = false;
+
+    for(int i = 0; i < args.length; ++i)
+    {
+      if(args[i].equals("-t") && i + 1 < args.length)
+        threads = Integer.parseInt(args[++i]);
+      else if(args[i].equals("-d") && i + 1 < args.length)
+        seconds = Long.parseLong(args[++i]);
+      else if(args[i].equals("-w") && i + 1 < args.length)
+        warmupSeconds = Long.parseLong(args[++i]);
+      else if(args[i].equals("--decode-only"))
+        decodeOnly = true;
+      else if(corpusFile == null && !args[i].startsWith("-"))
+        corpusFile = Paths.get(args[i]);
+      else
+      {
+        usage();
+        return;
+      }
+    }
+    if(corpusFile == null || threads < 1 || seconds < 1)
+    {
+      usage();
+      return;
+    }
+
+    List<byte[]> corpus = PacketCorpus.read(corpusFile, true);
+    if(corpus.isEmpty())
+    {
+      System.out.println("No DNS responses in " + corpusFile);
+      return;
+    }
+    long corpusBytes = 0;
+    for(byte[] message : corpus)
+      corpusBytes += message.length;
+    System.out.println("Corpus: " + corpus.size() + " messages, " +
+                       corpusBytes + " bytes");
+
+    ReplayBenchmark benchmark = new ReplayBenchmark(corpus, decodeOnly);
+    if(warmupSeconds > 0)
+    {
+      System.out.println("Warming up for " + warmupSeconds + "s...");
+      benchmark.run(threads, warmupSeconds);
+    }
+
+    System.out.println("Replaying on " + threads + " threads for " +
+                       seconds + "s...");
+    benchmark.run(threads, seconds).print(seconds);
+  }
+
+  private static void usage()
+  {
+    System.out.println("Usage: ReplayBenchmark corpus [-t threads] " +
+                       "[-d seconds] [-w seconds] [--decode-only]");
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  ReplayBenchmark(List<byte[]> corpus, boolean decodeOnly)
+  {
+    this.corpus = corpus;
+    this.decodeOnly = decodeOnly;
+    // A fresh resolver, its cache is what the responses are ingested
+    // into.
+    this.resolver = new DnsResolver();
+  }
+
+  /**
+   * Replays the corpus on the given number of threads.
+   */
+  Result run(int threads, long seconds) throws InterruptedException
+  {
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    final CountDownLatch done = new CountDownLatch(threads);
+    final List<Result> results = new ArrayList<>();
+
+    for(int i = 0; i < threads; ++i)
+    {
+      final int start = (int)((long)corpus.size() * i / threads);
+      final Result result = new Result();
+      results.add(result);
+
+      Thread thread = new Thread(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            replay(start, deadline, result);
+          }
+          finally
+          {
+            done.countDown();
+          }
+        }
+      }, "replay-" + i);
+      thread.start();
+    }
+    done.await();
+
+    Result total = new Result();
+    for(Result result : results)
+      total.merge(result);
+    return total;
+  }
+
+  private void replay(int start, long deadline, Result result)
+  {
+    long allocatedBefore = allocatedBytes();
+
+    int next = start;
+    long now = System.nanoTime();
+    while(now - deadline < 0)
+    {
+      byte[] message = corpus.get(next);
+      next = next + 1 == corpus.size() ? 0 : next + 1;
+
+      try
+      {
+        Answer response = Answer.answerFromByteStream(message);
+        if(!decodeOnly)
+          ingest(response);
+      }
+      catch(RuntimeException e)
+      {
+        // Malformed input is part of real traffic, count it and go on.
+        ++result.errors;
+      }
+
+      long finished = System.nanoTime();
+      result.latencies.record(finished - now);
+      ++result.messages;
+      result.bytes += message.length;
+      now = finished;
+    }
+
+    long allocatedAfter = allocatedBytes();
+    result.allocatedBytes = allocatedBefore < 0 || allocatedAfter < 0
+      ? -1 : allocatedAfter - allocatedBefore;
+  }
+
+  // What the resolver does with a response: cache the answers, and
+  // the delegation if it's a referral.
+  private void ingest(Answer response)
+  {
+    resolver.cacheAnswer(response);
+    if(response.getHeader().getRCode() == Header.RCODE_NO_ERROR &&
+       response.isFullReferralResponse())
+    {
+      resolver.cacheReferral(response);
+    }
+  }
+
+  // Bytes allocated so far by the current thread, or -1 if the JVM
+  // can't tell us.
+  private static long allocatedBytes()
+  {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if(bean instanceof com.sun.management.ThreadMXBean)
+    {
+      com.sun.management.ThreadMXBean sunBean =
+        (com.sun.management.ThreadMXBean)bean;
+      if(sunBean.isThreadAllocatedMemorySupported() &&
+         sunBean.isThreadAllocatedMemoryEnabled())
+      {
+        return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return -1;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * What one or more replay threads measured.
+   */
+  static class Result
+  {
+    void merge(Result other)
+    {
+      messages += other.messages;
+      bytes += other.bytes;
+      errors += other.errors;
+      allocatedBytes = allocatedBytes < 0 || other.allocatedBytes < 0
+        ? -1 : allocatedBytes + other.allocatedBytes;
+      latencies.merge(other.latencies);
+    }
+
+    void print(long seconds)
+    {
+      System.out.println("Messages:    " + messages + " (" + errors +
+                         " malformed)");
+      System.out.printf("Throughput:  %.0f msg/s, %.1f MB/s%n",
+                        messages / (double)seconds,
+                        bytes / (double)seconds / (1024 * 1024));
+      if(allocatedBytes >= 0 && messages > 0)
+        System.out.printf("Allocation:  %.0f bytes/msg%n",
+                          allocatedBytes / (double)messages);
+      else
+        System.out.println("Allocation:  not available on this JVM");
+      System.out.printf("Latency (us): p50 %.2f, p90 %.2f, p99 %.2f, " +
+                        "p99.9 %.2f, max %.2f%n",
+                        latencies.percentile(0.5) / 1000.0,
+                        latencies.percentile(0.9) / 1000.0,
+                        latencies.percentile(0.99) / 1000.0,
+                        latencies.percentile(0.999) / 1000.0,
+                        latencies.max() / 1000.0);
+    }
+
+    long messages;
+    long bytes;
+    long errors;
+    long allocatedBytes;
+    final LatencyHistogram latencies = new LatencyHistogram();
+  }
+
+  private final List<byte[]> corpus;
+  private final boolean decodeOnly;
+  private final DnsResolver resolver;
+}
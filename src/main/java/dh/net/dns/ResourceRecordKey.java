@@ -0,0 +1,57 @@
+package dh.net.dns;
+
+import java.util.Locale;
+
+/**
+ * Class used to lookup resource records in our internal caches.
+ */
+class ResourceRecordKey
+{
+  public ResourceRecordKey(String n, QType t, QClass q)
+  {
+    // Names compare case insensitively.
+    name = n.toLowerCase(Locale.ROOT);
+    type = t;
+    qClass = q;
+  }
+
+  public final String name;
+  public final QType type;
+  public final QClass qClass;
+
+  @Override
+  public boolean equals(Object o)
+  {
+    if(o == this)
+      return true;
+
+    if(!(o instanceof ResourceRecordKey))
+      return false;
+
+    ResourceRecordKey rhs = (ResourceRecordKey)o;
+    if(name.equals(rhs.name) &&
+       type == rhs.type &&
+       qClass == rhs.qClass)
+    {
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    int result = 17;
+    result = 31 * result + name.hashCode();
+    result = 31 * result + type.getValue();
+    result = 31 * result + qClass.getValue();
+    return result;
+  }
+
+  @Override
+  public String toString()
+  {
+    String result = "( " + name + ", " + type + ", " + qClass + ")";
+    return result;
+  }
+}
@@ -0,0 +1,137 @@
+package dh.net.dns;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tracks the round trip times observed for a single name server and
+ * derives a retransmission timeout from them.
+ *
+ * The timeout follows the smoothed mean / mean deviation scheme of
+ * RFC 6298, doubling on every timeout until the next good sample.
+ * A small ring of recent samples is kept as well so the resolver can
+ * ask for a latency percentile when deciding whether to hedge a query
+ * to another server.
+ */
+class RttEstimator
+{
+  RttEstimator()
+  {
+    this(ThreadLocalRandom.current());
+  }
+
+  RttEstimator(Random random)
+  {
+    // Servers we've never heard from get a small random estimate so
+    // they're explored early, without all of them tying for first.
+    this.initialRtt = 1 + random.nextInt(31);
+    this.samples = new long[SAMPLE_WINDOW];
+    this.backoff = 1;
+  }
+
+  /**
+   * Records the round trip time of an unambiguous (not retransmitted)
+   * exchange with this server.
+   */
+  public synchronized void addSample(long rttMillis)
+  {
+    double rtt = Math.max(rttMillis, 0);
+    if(numSamples == 0)
+    {
+      srtt = rtt;
+      rttvar = rtt / 2;
+    }
+    else
+    {
+      rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+      srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+    }
+
+    samples[nextSample] = (long)rtt;
+    nextSample = (nextSample + 1) % samples.length;
+    if(numSamples < samples.length)
+      ++numSamples;
+
+    // A good answer ends any backoff in progress.
+    backoff = 1;
+  }
+
+  /**
+   * Called when a transmission to this server went unanswered for a
+   * full retransmission timeout.
+   */
+  public synchronized void onTimeout()
+  {
+    if(retransmitTimeout() < MAX_RTO_MILLIS)
+      backoff *= 2;
+  }
+
+  /**
+   * The latency we expect from this server, used to rank the servers
+   * of a zone against each other.
+   */
+  public synchronized long expectedRtt()
+  {
+    long base = numSamples == 0 ? initialRtt : (long)srtt;
+    return base * backoff;
+  }
+
+  /**
+   * How long to wait for this server before retransmitting to it.
+   */
+  public synchronized long retransmitTimeout()
+  {
+    double rto = numSamples == 0 ? INITIAL_RTO_MILLIS : srtt + 4 * rttvar;
+    rto *= backoff;
+    return clamp((long)rto, MIN_RTO_MILLIS, MAX_RTO_MILLIS);
+  }
+
+  /**
+   * How long to wait for this server before sending a duplicate of the
+   * query to the next best server.  This is the given percentile of
+   * recent round trip times, never more than the retransmission timeout.
+   */
+  public synchronized long hedgeDelay(double percentile)
+  {
+    long rto = retransmitTimeout();
+    int window = numSamples;
+    if(window < MIN_SAMPLES_FOR_PERCENTILE)
+      return rto;
+
+    long[] sorted = Arrays.copyOf(samples, window);
+    Arrays.sort(sorted);
+    int index = (int)Math.ceil(percentile * window) - 1;
+    long delay = sorted[Math.max(0, Math.min(index, window - 1))];
+    return clamp(delay, MIN_HEDGE_MILLIS, rto);
+  }
+
+  private static long clamp(long val, long min, long max)
+  {
+    return Math.max(min, Math.min(val, max));
+  }
+
+  // Gains from RFC 6298.
+  private static final double ALPHA = 1.0 / 8;
+  private static final double BETA = 1.0 / 4;
+
+  private static final long INITIAL_RTO_MILLIS = 800;
+  private static final long MIN_RTO_MILLIS = 20;
+  private static final long MAX_RTO_MILLIS = 2000;
+  private static final long MIN_HEDGE_MILLIS = 5;
+
+  private static final int SAMPLE_WINDOW = 32;
+  private static final int MIN_SAMPLES_FOR_PERCENTILE = 4;
+
+  private final long initialRtt;
+  private double srtt;
+  private double rttvar;
+  private int backoff;
+
+  private final long[] samples;
+  private int nextSample;
+
+  // Samples held, up to the window, so it can't overflow however long
+  // the server is used.
+  private int numSamples;
+}
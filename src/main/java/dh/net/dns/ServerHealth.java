@@ -0,0 +1,159 @@
+package dh.net.dns;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers which name servers have been failing, so resolution stops
+ * spending timeouts on servers known to be broken.
+ *
+ * Failures are counted per server address until an answer resets them:
+ * a lame delegation or a REFUSED counts heavily enough to sideline the
+ * server at once, timeouts and SERVFAILs only once a few have come in
+ * a row.  A sidelined server is skipped for a backoff period that
+ * doubles with every further failure.  Once it runs out a single query
+ * at a time is let through as a probe, claimed as it's sent, and the
+ * first answer brings the server back.
+ *
+ * Only servers with failures are held, the rest aren't worth a word.
+ * Servers are known by whatever identifies them to the caller, an
+ * address, or an address and port where several share a host.  Times
+ * are System.nanoTime() readings.
+ */
+class ServerHealth<A>
+{
+  enum Failure
+  {
+    TIMEOUT(1),
+    SERVER_FAILURE(1),
+    REFUSED(FAILURE_THRESHOLD),
+    // Answered for a zone it isn't authoritative for.
+    LAME(FAILURE_THRESHOLD);
+
+    Failure(int weight) { this.weight = weight; }
+    private final int weight;
+  }
+
+  /**
+   * Returns true if the server should be sent queries: it isn't
+   * sidelined, or its backoff has run out and no probe is under way.
+   */
+  boolean usable(A server, long now)
+  {
+    Entry entry = servers.get(server);
+    return entry == null || entry.usable(now);
+  }
+
+  /**
+   * Called as a query is sent to the server, making it the probe if the
+   * server is due one.  Returns false if another query already is, in
+   * which case this one shouldn't go.
+   */
+  boolean claim(A server, long now)
+  {
+    Entry entry = servers.get(server);
+    return entry == null || entry.claim(now);
+  }
+
+  void onSuccess(A server)
+  {
+    servers.remove(server);
+  }
+
+  void onFailure(A server, Failure failure, long now)
+  {
+    Entry entry = servers.get(server);
+    if(entry == null)
+    {
+      if(servers.size() >= MAX_ENTRIES)
+        forgetIdle(now);
+      servers.putIfAbsent(server, new Entry());
+      entry = servers.get(server);
+    }
+    entry.onFailure(failure, now);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  // Makes room by dropping servers that aren't currently sidelined.
+  private void forgetIdle(long now)
+  {
+    Iterator<Entry> entries = servers.values().iterator();
+    while(entries.hasNext())
+    {
+      if(!entries.next().sidelined(now))
+        entries.remove();
+    }
+  }
+
+  private static class Entry
+  {
+    synchronized boolean usable(long now)
+    {
+      if(failures < FAILURE_THRESHOLD)
+        return true;
+      return now - sidelinedUntil >= 0 && !probeUnderWay(now);
+    }
+
+    // A server still backing off is only sent queries when there's no
+    // one better, which don't count as probes.
+    synchronized boolean claim(long now)
+    {
+      if(failures < FAILURE_THRESHOLD || now - sidelinedUntil < 0)
+        return true;
+      if(probeUnderWay(now))
+        return false;
+      probing = true;
+      probeSentAt = now;
+      return true;
+    }
+
+    // One probe at a time, unless the last never got a verdict.
+    private boolean probeUnderWay(long now)
+    {
+      return probing && now - probeSentAt < PROBE_WINDOW;
+    }
+
+    synchronized void onFailure(Failure failure, long now)
+    {
+      failures = Math.min(failures + failure.weight, FAILURE_THRESHOLD);
+      if(failures < FAILURE_THRESHOLD)
+        return;
+
+      long backoff = Math.min(BASE_BACKOFF << Math.min(backoffs, 30),
+                              MAX_BACKOFF);
+      ++backoffs;
+      sidelinedUntil = now + backoff;
+      probing = false;
+    }
+
+    synchronized boolean sidelined(long now)
+    {
+      return failures >= FAILURE_THRESHOLD && now - sidelinedUntil < 0;
+    }
+
+    private int failures;
+    private int backoffs;
+    private long sidelinedUntil;
+    private boolean probing;
+    private long probeSentAt;
+  }
+
+  // Failures in a row that sideline a server.
+  private static final int FAILURE_THRESHOLD = 3;
+
+  // First backoff, doubling up to the maximum.
+  private static final long BASE_BACKOFF = TimeUnit.SECONDS.toNanos(1);
+  private static final long MAX_BACKOFF = TimeUnit.MINUTES.toNanos(15);
+
+  // How long a probe has to get a verdict before another is sent.
+  private static final long PROBE_WINDOW = TimeUnit.SECONDS.toNanos(5);
+
+  // Servers held before those not sidelined are forgotten.
+  private static final int MAX_ENTRIES = 10000;
+
+  private final ConcurrentMap<A, Entry> servers =
+    new ConcurrentHashMap<>();
+}
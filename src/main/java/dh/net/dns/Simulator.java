@@ -0,0 +1,574 @@
+package dh.net.dns;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the resolver against simulated name servers in simulated time,
+ * so timeout, retry, hedging and TTL behaviour can be studied over
+ * millions of queries in seconds, and the same seed always gives the
+ * same run.
+ *
+ * Usage: Simulator [-n queries] [-z zones] [-h hosts] [-Q qps]
+ *                  [-L loss] [-r seed]
+ *
+ * The simulator is both the resolver's clock and its transport: time
+ * only moves when the resolver waits for a response, jumping straight
+ * to the next simulated event.  Each server answers after a round trip
+ * drawn from a log-normal distribution about its median, or not at all
+ * with its loss probability.  Servers answer from the zones they're
+ * given: with a referral to a zone delegated below theirs, with an
+ * address made up from the name, or with REFUSED for names outside
+ * their zones.  The root zone must be served at the resolver's root
+ * hints.
+ *
+ * The world main() builds has every name of the form hostH.zoneZ.test,
+ * each zone with two servers of differing speed, and every twentieth
+ * zone with one of them dead; queries for random names arrive at -Q
+ * per simulated second.
+ *
+ * Single threaded: queries are resolved one after another on the
+ * thread that runs them.
+ */
+public class Simulator implements Clock, Transport
+{
+  public static void main(String[] args) throws Exception
+  {
+    int queries = 100000;
+    int zones = 1000;
+    int hosts = 100;
+    double qps = 1000;
+    double loss = 0.01;
+    long seed = 1;
+
+    for(int i = 0; i < args.length; ++i)
+    {
+      boolean hasValue = i + 1 < args.length;
+      if(args[i].equals("-n") && hasValue)
+        queries = Integer.parseInt(args[++i]);
+      else if(args[i].equals("-z") && hasValue)
+        zones = Integer.parseInt(args[++i]);
+      else if(args[i].equals("-h") && hasValue)
+        hosts = Integer.parseInt(args[++i]);
+      else if(args[i].equals("-Q") && hasValue)
+        qps = Double.parseDouble(args[++i]);
+      else if(args[i].equals("-L") && hasValue)
+        loss = Double.parseDouble(args[++i]);
+      else if(args[i].equals("-r") && hasValue)
+        seed = Long.parseLong(args[++i]);
+      else
+      {
+        usage();
+        return;
+      }
+    }
+    if(queries < 1 || zones < 1 || zones > 65536 || hosts < 1 || qps <= 0 ||
+       loss < 0 || loss > 1)
+    {
+      usage();
+      return;
+    }
+
+    Simulator simulator = new Simulator(seed);
+    Random random = new Random(seed);
+    simulator.addZone("", rootServers(30, 0.3, loss));
+    simulator.addZone("test", Arrays.asList(
+      new Server("a.nic.test", "10.0.0.1", 40, 0.3, loss),
+      new Server("b.nic.test", "10.0.1.1", 80, 0.3, loss)));
+    for(int z = 0; z < zones; ++z)
+    {
+      String zone = "zone" + z + ".test";
+      String suffix = "." + (z / 256) + "." + (z % 256);
+      simulator.addZone(zone, Arrays.asList(
+        new Server("ns1." + zone, "10.1" + suffix,
+                   10 + random.nextInt(50), 0.5, loss),
+        new Server("ns2." + zone, "10.2" + suffix,
+                   50 + random.nextInt(150), 0.5, z % 20 == 0 ? 1 : loss)));
+    }
+
+    List<String> names = new ArrayList<>(queries);
+    for(int i = 0; i < queries; ++i)
+    {
+      names.add("host" + random.nextInt(hosts) + ".zone" +
+                random.nextInt(zones) + ".test");
+    }
+
+    DnsResolver resolver = new DnsResolver.Builder()
+      .setClock(simulator).setTransport(simulator)
+      .setRandom(new Random(seed)).build();
+
+    simulator.run(resolver, names, qps).print();
+  }
+
+  private static void usage()
+  {
+    System.out.println("Usage: Simulator [-n queries] [-z zones] " +
+                       "[-h hosts] [-Q qps] [-L loss] [-r seed]");
+  }
+
+  /**
+   * Servers at every root hint address, all alike.
+   */
+  static List<Server> rootServers(double medianMillis, double spread,
+                                  double loss)
+  {
+    List<Server> result = new ArrayList<>();
+    for(String[] hint : DnsResolver.ROOT_HINTS)
+    {
+      for(int i = 1; i < hint.length; ++i)
+        result.add(new Server(hint[0], hint[i], medianMillis, spread, loss));
+    }
+    return result;
+  }
+
+  Simulator(long seed)
+  {
+    this.random = new Random(seed);
+  }
+
+  /**
+   * A simulated name server: where it is, and how quickly and how
+   * reliably it answers.
+   */
+  static class Server
+  {
+    /**
+     * @param medianMillis the median round trip.
+     * @param spread the standard deviation of the round trip's
+     *        logarithm, 0 for a fixed round trip.
+     * @param loss the chance a query goes unanswered.
+     */
+    Server(String hostName, String address, double medianMillis,
+           double spread, double loss)
+    {
+      try
+      {
+        this.address = InetAddress.getByName(address);
+      }
+      catch(UnknownHostException e)
+      {
+        throw new IllegalArgumentException("Bad address " + address, e);
+      }
+      this.hostName = hostName;
+      this.medianMillis = medianMillis;
+      this.spread = spread;
+      this.loss = loss;
+    }
+
+    private final String hostName;
+    private final InetAddress address;
+    private final double medianMillis;
+    private final double spread;
+    private final double loss;
+    private final List<String> zones = new ArrayList<>();
+  }
+
+  /**
+   * Has the servers answer for the zone.  A server may serve several
+   * zones, but is only given once.
+   */
+  void addZone(String zone, List<Server> zoneServers)
+  {
+    zone = zone.toLowerCase(Locale.ROOT);
+    zoneServers = Collections.unmodifiableList(new ArrayList<>(zoneServers));
+    zones.put(zone, zoneServers);
+    for(Server server : zoneServers)
+    {
+      servers.put(server.address, server);
+      server.zones.add(zone);
+    }
+  }
+
+  /**
+   * Sets the TTL of the addresses servers answer with, by default
+   * DEFAULT_ANSWER_TTL.
+   */
+  void setAnswerTtl(long seconds)
+  {
+    this.answerTtl = seconds;
+  }
+
+  /**
+   * Outcome of a run: how many queries were answered and how long they
+   * took in simulated time.
+   */
+  static class Result
+  {
+    long answered;
+    long failed;
+    long simulatedNanos;
+    long elapsedNanos;
+    final LatencyHistogram latencies = new LatencyHistogram();
+
+    void print()
+    {
+      System.out.println("Queries answered:  " + answered);
+      System.out.println("Queries failed:    " + failed);
+      System.out.println(String.format(Locale.ROOT,
+                                       "Simulated time:    %.1f s",
+                                       simulatedNanos / 1e9));
+      System.out.println(String.format(Locale.ROOT,
+                                       "Run time:          %.1f s",
+                                       elapsedNanos / 1e9));
+      System.out.println(String.format(
+        Locale.ROOT, "Latency (ms):      p50 %.1f  p90 %.1f  p99 %.1f  " +
+                     "p99.9 %.1f  max %.1f",
+        latencies.percentile(0.5) / 1e6, latencies.percentile(0.9) / 1e6,
+        latencies.percentile(0.99) / 1e6, latencies.percentile(0.999) / 1e6,
+        latencies.max() / 1e6));
+    }
+  }
+
+  /**
+   * Resolves the A records of the names in turn, starting each at
+   * exponentially distributed intervals so they arrive qps a second
+   * on average, or as soon as the one before is done if that's later.
+   */
+  Result run(DnsResolver resolver, List<String> names, double qps)
+  {
+    Result result = new Result();
+    long started = System.nanoTime();
+    long simulationStart = now;
+    double meanGap = TimeUnit.SECONDS.toNanos(1) / qps;
+    long nextArrival = now;
+    for(String name : names)
+    {
+      if(nextArrival - now > 0)
+        advance(nextArrival - now);
+      nextArrival += (long)(-Math.log(1 - random.nextDouble()) * meanGap);
+
+      long start = now;
+      RRset answer = resolver.query(name, QType.A, QClass.IN);
+      if(answer != null && !answer.isEmpty())
+      {
+        ++result.answered;
+        result.latencies.record(now - start);
+      }
+      else
+      {
+        ++result.failed;
+      }
+    }
+    result.simulatedNanos = now - simulationStart;
+    result.elapsedNanos = System.nanoTime() - started;
+    return result;
+  }
+
+  /**
+   * Lets simulated time pass, delivering the responses due meanwhile.
+   */
+  void advance(long nanos)
+  {
+    long until = now + nanos;
+    while(!events.isEmpty() && events.peek().at - until <= 0)
+    {
+      Delivery next = events.poll();
+      now = Math.max(now, next.at);
+      next.deliver();
+    }
+    now = Math.max(now, until);
+  }
+
+  @Override
+  public long nanoTime()
+  {
+    return now;
+  }
+
+  @Override
+  public Transport.Exchange send(byte[] query, InetSocketAddress server,
+                                 Queue<Response> inbox, Object attachment)
+    throws IOException
+  {
+    Server target = servers.get(server.getAddress());
+    if(target == null)
+      throw new IOException("No simulated server at " + server);
+
+    Exchange exchange = new Exchange(target, inbox, attachment);
+    resend(exchange, query);
+    return exchange;
+  }
+
+  @Override
+  public void resend(Transport.Exchange sent, byte[] query)
+  {
+    Exchange exchange = (Exchange)sent;
+    Server server = exchange.server;
+    if(random.nextDouble() < server.loss)
+      return;
+
+    double rtt = server.medianMillis *
+                 Math.exp(server.spread * random.nextGaussian());
+    long at = now + (long)(rtt * TimeUnit.MILLISECONDS.toNanos(1));
+    events.add(new Delivery(at, nextSequence++, exchange,
+                            respond(server, query)));
+  }
+
+  @Override
+  public void cancel(Transport.Exchange sent)
+  {
+    ((Exchange)sent).cancelled = true;
+  }
+
+  /**
+   * Only simulated servers can be reached.
+   */
+  @Override
+  public boolean canReach(InetAddress address)
+  {
+    return servers.containsKey(address);
+  }
+
+  /**
+   * Runs the simulation until there's a response in the inbox or the
+   * time comes, whichever is first.
+   */
+  @Override
+  public Response receive(BlockingQueue<Response> inbox, long until)
+  {
+    while(true)
+    {
+      Response response = inbox.poll();
+      if(response != null)
+        return response;
+
+      Delivery next = events.peek();
+      if(next == null || next.at - until > 0)
+      {
+        now = Math.max(now, until);
+        return null;
+      }
+      events.poll();
+      now = Math.max(now, next.at);
+      next.deliver();
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  private static class Exchange implements Transport.Exchange
+  {
+    Exchange(Server server, Queue<Response> inbox, Object attachment)
+    {
+      this.server = server;
+      this.inbox = inbox;
+      this.attachment = attachment;
+    }
+
+    private final Server server;
+    private final Queue<Response> inbox;
+    private final Object attachment;
+    private boolean cancelled;
+  }
+
+  // A response due to arrive.
+  private static class Delivery implements Comparable<Delivery>
+  {
+    Delivery(long at, long sequence, Exchange exchange, byte[] packet)
+    {
+      this.at = at;
+      this.sequence = sequence;
+      this.exchange = exchange;
+      this.packet = packet;
+    }
+
+    void deliver()
+    {
+      if(!exchange.cancelled)
+        exchange.inbox.offer(new Response(packet, exchange.attachment));
+    }
+
+    // Ties go in the order sent, so runs repeat exactly.
+    @Override
+    public int compareTo(Delivery rhs)
+    {
+      int order = Long.compare(at, rhs.at);
+      return order != 0 ? order : Long.compare(sequence, rhs.sequence);
+    }
+
+    private final long at;
+    private final long sequence;
+    private final Exchange exchange;
+    private final byte[] packet;
+  }
+
+  // The server's response to the query: a referral, an answer or a
+  // refusal.
+  private byte[] respond(Server server, byte[] query)
+  {
+    Answer.DnsExpansionResult qname =
+      Answer.expandDNS(query, MessageCache.HEADER_LENGTH);
+    int questionEnd = MessageCache.HEADER_LENGTH + qname.offsetFromInitial + 4;
+    String name = qname.dnsName.toLowerCase(Locale.ROOT);
+    int type = ((query[questionEnd - 4] & 0xFF) << 8) |
+               (query[questionEnd - 3] & 0xFF);
+
+    // The deepest of the server's zones holding the name.
+    String zone = null;
+    for(String served : server.zones)
+    {
+      if(within(name, served) &&
+         (zone == null || served.length() > zone.length()))
+      {
+        zone = served;
+      }
+    }
+    if(zone == null)
+      return message(query, questionEnd, Header.RCODE_REFUSED, false,
+                     new ArrayList<byte[]>(), new ArrayList<byte[]>(),
+                     new ArrayList<byte[]>());
+
+    // The closest delegation below it on the way to the name.
+    String cut = null;
+    for(String suffix = name; suffix.length() > zone.length();
+        suffix = suffix.indexOf('.') < 0
+                 ? "" : suffix.substring(suffix.indexOf('.') + 1))
+    {
+      if(zones.containsKey(suffix))
+        cut = suffix;
+    }
+
+    List<byte[]> answers = new ArrayList<>();
+    List<byte[]> authority = new ArrayList<>();
+    List<byte[]> additional = new ArrayList<>();
+    if(cut != null)
+    {
+      List<String> hosts = new ArrayList<>();
+      for(Server ns : zones.get(cut))
+      {
+        if(!hosts.contains(ns.hostName))
+        {
+          hosts.add(ns.hostName);
+          authority.add(record(cut, QType.NS, DELEGATION_TTL,
+                               RData.encodeName(ns.hostName)));
+        }
+        byte[] glue = ns.address.getAddress();
+        additional.add(record(ns.hostName,
+                              glue.length == 4 ? QType.A : QType.AAAA,
+                              DELEGATION_TTL, glue));
+      }
+      return message(query, questionEnd, Header.RCODE_NO_ERROR, false,
+                     answers, authority, additional);
+    }
+
+    // Every name in the zone has an address made up from its hash.
+    int hash = name.hashCode();
+    if(type == QType.A.getValue())
+    {
+      answers.add(record(name, QType.A, answerTtl, new byte[] {
+        (byte)192, 0, 2, (byte)hash }));
+    }
+    else if(type == QType.AAAA.getValue())
+    {
+      byte[] address = new byte[16];
+      address[0] = 0x20;
+      address[1] = 0x01;
+      address[2] = 0x0d;
+      address[3] = (byte)0xb8;
+      ByteBuffer.wrap(address).putInt(12, hash);
+      answers.add(record(name, QType.AAAA, answerTtl, address));
+    }
+    else
+    {
+      authority.add(record(zone, QType.SOA, answerTtl, soa(zone)));
+    }
+    return message(query, questionEnd, Header.RCODE_NO_ERROR, true,
+                   answers, authority, additional);
+  }
+
+  // True if the name is the zone or below it.
+  private static boolean within(String name, String zone)
+  {
+    return zone.isEmpty() || name.equals(zone) ||
+           name.endsWith("." + zone);
+  }
+
+  private byte[] soa(String zone)
+  {
+    String suffix = zone.isEmpty() ? "" : "." + zone;
+    byte[] mname = RData.encodeName("ns" + suffix);
+    byte[] rname = RData.encodeName("hostmaster" + suffix);
+    ByteBuffer rdata = ByteBuffer.allocate(mname.length + rname.length + 20);
+    rdata.put(mname).put(rname);
+    rdata.putInt(1).putInt(3600).putInt(600).putInt(86400);
+    rdata.putInt((int)answerTtl);
+    return rdata.array();
+  }
+
+  private static byte[] record(String name, QType type, long ttl,
+                               byte[] rdata)
+  {
+    byte[] owner = RData.encodeName(name);
+    ByteBuffer record = ByteBuffer.allocate(owner.length + 10 + rdata.length);
+    record.put(owner);
+    record.putShort((short)type.getValue());
+    record.putShort((short)QClass.IN.getValue());
+    record.putInt((int)ttl);
+    record.putShort((short)rdata.length);
+    record.put(rdata);
+    return record.array();
+  }
+
+  private static byte[] message(byte[] query, int questionEnd, byte rcode,
+                                boolean authoritative, List<byte[]> answers,
+                                List<byte[]> authority,
+                                List<byte[]> additional)
+  {
+    int length = questionEnd;
+    for(List<byte[]> section : Arrays.asList(answers, authority, additional))
+    {
+      for(byte[] record : section)
+        length += record.length;
+    }
+
+    ByteBuffer message = ByteBuffer.allocate(length);
+    message.put(query, 0, 2);
+    // QR, the query's opcode and RD, and AA if it's an answer.
+    message.put((byte)(0x80 | (query[2] & 0x79) |
+                       (authoritative ? 0x04 : 0)));
+    message.put(rcode);
+    message.putShort((short)1);
+    message.putShort((short)answers.size());
+    message.putShort((short)authority.size());
+    message.putShort((short)additional.size());
+    message.put(query, MessageCache.HEADER_LENGTH,
+                questionEnd - MessageCache.HEADER_LENGTH);
+    for(List<byte[]> section : Arrays.asList(answers, authority, additional))
+    {
+      for(byte[] record : section)
+        message.put(record);
+    }
+    return message.array();
+  }
+
+  // TTL of the addresses servers answer with (s).
+  public static final long DEFAULT_ANSWER_TTL = 300;
+
+  // TTL of referrals' NS records and glue (s).
+  private static final long DELEGATION_TTL = 86400;
+
+  private final Random random;
+  private long now;
+  private long nextSequence;
+  private long answerTtl = DEFAULT_ANSWER_TTL;
+
+  private final PriorityQueue<Delivery> events = new PriorityQueue<>();
+  private final Map<InetAddress, Server> servers = new HashMap<>();
+  // Servers of each zone, by zone name.
+  private final Map<String, List<Server>> zones = new HashMap<>();
+}
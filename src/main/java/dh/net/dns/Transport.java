@@ -0,0 +1,72 @@
+package dh.net.dns;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * How the resolver exchanges queries and responses with name servers:
+ * over UDP through a Reactor, or through a Simulator.
+ *
+ * Responses are delivered to the inbox given with each query, and the
+ * resolver waits on its inbox through receive() so a transport with a
+ * clock of its own decides how the waiting passes.
+ */
+interface Transport
+{
+  /**
+   * A query sent to one server, waiting for its response.
+   */
+  interface Exchange
+  {
+  }
+
+  /**
+   * A response as delivered to an inbox, with the ID of the query it
+   * answers.
+   */
+  class Response
+  {
+    Response(byte[] packet, Object attachment)
+    {
+      this.packet = packet;
+      this.attachment = attachment;
+    }
+
+    final byte[] packet;
+    final Object attachment;
+  }
+
+  /**
+   * Sends the query to the server, any response being offered to the
+   * inbox along with the attachment until the exchange is cancelled.
+   */
+  Exchange send(byte[] query, InetSocketAddress server, Queue<Response> inbox,
+                Object attachment) throws IOException;
+
+  /**
+   * Sends the query again as part of the same exchange.
+   */
+  void resend(Exchange exchange, byte[] query) throws IOException;
+
+  /**
+   * Stops accepting responses for the exchange.
+   */
+  void cancel(Exchange exchange);
+
+  /**
+   * Returns true if there's a way to send to the address.
+   */
+  boolean canReach(InetAddress address);
+
+  /**
+   * Takes the next response from the inbox, waiting for one until the
+   * time given (Clock.nanoTime()) at the latest.
+   *
+   * @return null if none came by then.
+   */
+  Response receive(BlockingQueue<Response> inbox, long until)
+    throws InterruptedException;
+}
@@ -0,0 +1,395 @@
+package dh.net.dns;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the resolver from flooding any one name server or zone.
+ *
+ * A query may only be sent while its server and zone are under their
+ * limits on outstanding queries, and the server's token bucket has a
+ * token.  Each server's rate adapts AIMD style: it creeps up with every
+ * answer and halves (at most once a second) when queries are lost, so
+ * it settles near the highest rate the server will answer without
+ * dropping.  Queries that can't be sent wait in the resolver.
+ *
+ * Queries are sent on behalf of a Priority class.  Classes that may
+ * not use the reserve can hold at most three quarters of each server's
+ * and zone's slots (rounded up), and must leave a quarter of each
+ * server's tokens.  While
+ * several classes have queries waiting on a server, its slots go to
+ * them in proportion to their weights: each class's virtual time moves
+ * on by 1/weight with every slot it's given, and a class only gets a
+ * slot while no other waiting class is behind it.
+ */
+class UpstreamLimiter
+{
+  UpstreamLimiter(int maxPerServer, int maxPerZone, double maxRate)
+  {
+    this(maxPerServer, maxPerZone, maxRate, Clock.SYSTEM);
+  }
+
+  /**
+   * A limiter whose times come from the clock given.
+   */
+  UpstreamLimiter(int maxPerServer, int maxPerZone, double maxRate,
+                  Clock clock)
+  {
+    if(maxPerServer < 1 || maxPerZone < 1 || maxRate < MIN_RATE)
+      throw new IllegalArgumentException("Limits must allow some queries.");
+
+    this.maxPerServer = maxPerServer;
+    this.maxPerZone = maxPerZone;
+    this.maxRate = maxRate;
+    this.clock = clock;
+  }
+
+  /**
+   * Takes a slot for a new query to the server within the zone, along
+   * with a token to send it.
+   *
+   * @return false if a limit has been reached and it has to wait.
+   */
+  boolean tryAcquire(InetAddress server, String zone, long now)
+  {
+    return tryAcquire(server, zone, Priority.INTERACTIVE, now);
+  }
+
+  /**
+   * As tryAcquire(server, zone, now), for a query of the given class.
+   */
+  boolean tryAcquire(InetAddress server, String zone, Priority priority,
+                     long now)
+  {
+    if(!acquireZone(zone, priority))
+      return false;
+
+    if(stateFor(server).tryAcquire(now, true, priority))
+      return true;
+
+    releaseZone(zone, priority);
+    return false;
+  }
+
+  /**
+   * Takes a token to resend a query that still holds its slot.
+   */
+  boolean tryResend(InetAddress server, long now)
+  {
+    return tryResend(server, Priority.INTERACTIVE, now);
+  }
+
+  boolean tryResend(InetAddress server, Priority priority, long now)
+  {
+    return stateFor(server).tryAcquire(now, false, priority);
+  }
+
+  /**
+   * Gives back the slot of a query that was answered, lost or
+   * abandoned.
+   */
+  void release(InetAddress server, String zone)
+  {
+    release(server, zone, Priority.INTERACTIVE);
+  }
+
+  void release(InetAddress server, String zone, Priority priority)
+  {
+    releaseZone(zone, priority);
+    stateFor(server).release(priority);
+  }
+
+  void onResponse(InetAddress server)
+  {
+    stateFor(server).onResponse();
+  }
+
+  void onLoss(InetAddress server, long now)
+  {
+    stateFor(server).onLoss(now);
+  }
+
+  /**
+   * Nanoseconds until the server might accept another query within
+   * the zone.
+   */
+  long waitTime(InetAddress server, String zone, long now)
+  {
+    return waitTime(server, zone, Priority.INTERACTIVE, now);
+  }
+
+  long waitTime(InetAddress server, String zone, Priority priority, long now)
+  {
+    synchronized(zoneOutstanding)
+    {
+      Slots slots = zoneOutstanding.get(zoneKey(zone));
+      if(slots != null && slots.full(maxPerZone, priority))
+        return SLOT_POLL;
+    }
+    return stateFor(server).waitTime(now, priority);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  // How much of the limit the class may use.
+  private static int available(int limit, Priority priority)
+  {
+    return priority.usesReserve ? limit : limit - limit / RESERVE_DIVISOR;
+  }
+
+  // Zones are counted whatever case their servers wrote them in.
+  private static String zoneKey(String zone)
+  {
+    return zone.toLowerCase(Locale.ROOT);
+  }
+
+  private boolean acquireZone(String zone, Priority priority)
+  {
+    synchronized(zoneOutstanding)
+    {
+      Slots slots = zoneOutstanding.get(zoneKey(zone));
+      if(slots == null)
+      {
+        slots = new Slots();
+        zoneOutstanding.put(zoneKey(zone), slots);
+      }
+      if(slots.full(maxPerZone, priority))
+        return false;
+      slots.take(priority);
+      return true;
+    }
+  }
+
+  private void releaseZone(String zone, Priority priority)
+  {
+    synchronized(zoneOutstanding)
+    {
+      Slots slots = zoneOutstanding.get(zoneKey(zone));
+      if(slots == null)
+        return;
+      slots.give(priority);
+      // Zones are forgotten once idle.
+      if(slots.idle())
+        zoneOutstanding.remove(zoneKey(zone));
+    }
+  }
+
+  /**
+   * Slots taken against one limit, in all and by each class.  Classes
+   * that may not use the reserve can only hold the rest.
+   */
+  private static class Slots
+  {
+    boolean full(int limit, Priority priority)
+    {
+      return total >= limit ||
+             held[priority.ordinal()] >= available(limit, priority);
+    }
+
+    void take(Priority priority)
+    {
+      ++held[priority.ordinal()];
+      ++total;
+    }
+
+    void give(Priority priority)
+    {
+      if(held[priority.ordinal()] > 0)
+      {
+        --held[priority.ordinal()];
+        --total;
+      }
+    }
+
+    boolean idle()
+    {
+      return total == 0;
+    }
+
+    private int total;
+    private final int[] held = new int[CLASSES.length];
+  }
+
+  private ServerState stateFor(InetAddress server)
+  {
+    ServerState state = servers.get(server);
+    if(state == null)
+    {
+      servers.putIfAbsent(server, new ServerState());
+      state = servers.get(server);
+    }
+    return state;
+  }
+
+  private class ServerState
+  {
+    ServerState()
+    {
+      this.rate = Math.max(MIN_RATE, maxRate / 4);
+      this.tokens = burst();
+      this.lastRefill = clock.nanoTime();
+      this.lastDecrease = lastRefill - DECREASE_INTERVAL;
+    }
+
+    synchronized boolean tryAcquire(long now, boolean needsSlot,
+                                    Priority priority)
+    {
+      refill(now);
+      if((needsSlot && outstanding.full(maxPerServer, priority)) ||
+         tokens < 1 + reservedTokens(priority) ||
+         (needsSlot && !hasTurn(priority, now)))
+      {
+        deniedAt[priority.ordinal()] = now;
+        waiting[priority.ordinal()] = true;
+        return false;
+      }
+
+      tokens -= 1;
+      if(needsSlot)
+      {
+        outstanding.take(priority);
+        grant(priority, now);
+      }
+      return true;
+    }
+
+    synchronized void release(Priority priority)
+    {
+      outstanding.give(priority);
+    }
+
+    synchronized void onResponse()
+    {
+      rate = Math.min(maxRate, rate + RATE_INCREASE);
+    }
+
+    synchronized void onLoss(long now)
+    {
+      if(now - lastDecrease < DECREASE_INTERVAL)
+        return;
+      rate = Math.max(MIN_RATE, rate / 2);
+      tokens = Math.min(tokens, burst());
+      lastDecrease = now;
+    }
+
+    synchronized long waitTime(long now, Priority priority)
+    {
+      refill(now);
+      if(outstanding.full(maxPerServer, priority) || !hasTurn(priority, now))
+      {
+        return SLOT_POLL;
+      }
+
+      double needed = 1 + reservedTokens(priority);
+      if(tokens >= needed)
+        return 0;
+      return (long)((needed - tokens) / rate * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    // Tokens the class has to leave in the bucket.
+    private double reservedTokens(Priority priority)
+    {
+      return priority.usesReserve ? 0 : burst() / RESERVE_DIVISOR;
+    }
+
+    // True unless another class with queries waiting, that could be
+    // sent one now, is behind this one in virtual time.
+    private boolean hasTurn(Priority priority, long now)
+    {
+      double own = virtualTime[priority.ordinal()];
+      for(Priority other : CLASSES)
+      {
+        if(other != priority && isWaiting(other, now) &&
+           virtualTime[other.ordinal()] < own &&
+           !outstanding.full(maxPerServer, other) &&
+           tokens >= 1 + reservedTokens(other))
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void grant(Priority priority, long now)
+    {
+      int granted = priority.ordinal();
+      double start = virtualTime[granted];
+      virtualTime[granted] += 1.0 / priority.weight;
+
+      // Classes don't bank the slots they didn't want or couldn't hold,
+      // they start again from where the slot just given out did.
+      for(Priority other : CLASSES)
+      {
+        int i = other.ordinal();
+        if(!isWaiting(other, now) || outstanding.full(maxPerServer, other))
+          virtualTime[i] = Math.max(virtualTime[i], start);
+      }
+    }
+
+    // A query of the class was turned away recently enough that it's
+    // probably still waiting.
+    private boolean isWaiting(Priority priority, long now)
+    {
+      int i = priority.ordinal();
+      return waiting[i] && now - deniedAt[i] < WAITING_WINDOW;
+    }
+
+    private void refill(long now)
+    {
+      double elapsed = (now - lastRefill) / (double)TimeUnit.SECONDS.toNanos(1);
+      if(elapsed > 0)
+      {
+        tokens = Math.min(burst(), tokens + elapsed * rate);
+        lastRefill = now;
+      }
+    }
+
+    // A tenth of a second's worth, so bursts stay short.
+    private double burst()
+    {
+      return Math.max(1, rate / 10);
+    }
+
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+    private long lastDecrease;
+    private final Slots outstanding = new Slots();
+
+    // Per class, its virtual time and whether, and when last, any of
+    // its queries was turned away.
+    private final double[] virtualTime = new double[CLASSES.length];
+    private final boolean[] waiting = new boolean[CLASSES.length];
+    private final long[] deniedAt = new long[CLASSES.length];
+  }
+
+  // Queries per second every server is allowed, however lossy.
+  private static final double MIN_RATE = 5;
+  // Rate gained per answered query.
+  private static final double RATE_INCREASE = 1;
+  private static final long DECREASE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+  // How often to look again at a server that's at its slot limit.
+  private static final long SLOT_POLL = TimeUnit.MILLISECONDS.toNanos(5);
+  // Part of each limit kept in reserve, one in this many.
+  private static final int RESERVE_DIVISOR = 4;
+  // How long a class turned away counts as waiting, long enough to
+  // cover a few polls.
+  private static final long WAITING_WINDOW = 4 * SLOT_POLL;
+
+  private static final Priority[] CLASSES = Priority.values();
+
+  private final int maxPerServer;
+  private final int maxPerZone;
+  private final double maxRate;
+  private final Clock clock;
+
+  private final ConcurrentMap<InetAddress, ServerState> servers =
+    new ConcurrentHashMap<>();
+  // Outstanding queries per zone, guarded by itself.
+  private final Map<String, Slots> zoneOutstanding = new HashMap<>();
+}
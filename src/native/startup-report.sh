@@ -0,0 +1,62 @@
+#!/bin/sh
+# Compares the cold start of the native executable with the jar's: the
+# wall time averaged over a few runs and the peak RSS of each, for the
+# CLI doing nothing but print its usage and for a short simulated
+# batch of queries (no network needed).
+#
+# Usage: startup-report.sh dnsj.jar dnsj [runs]
+#
+# Peak RSS needs GNU time at /usr/bin/time, without it only times are
+# reported.
+
+JAR=$1
+NATIVE=$2
+RUNS=${3:-5}
+RSS_FILE=${TMPDIR:-/tmp}/dnsj-rss.$$
+
+# measure label command...
+measure()
+{
+  label=$1
+  shift
+  total=0
+  peak=0
+  i=0
+  while [ "$i" -lt "$RUNS" ]
+  do
+    start=$(date +%s%N)
+    if [ -x /usr/bin/time ]
+    then
+      /usr/bin/time -o "$RSS_FILE" -f '%M' "$@" >/dev/null 2>&1
+      rss=$(tail -n 1 "$RSS_FILE")
+      [ "$rss" -gt "$peak" ] && peak=$rss
+    else
+      "$@" >/dev/null 2>&1
+    fi
+    end=$(date +%s%N)
+    total=$((total + (end - start) / 1000000))
+    i=$((i + 1))
+  done
+
+  if [ -x /usr/bin/time ]
+  then
+    printf '  %-24s %8d ms %10d KB\n' "$label" $((total / RUNS)) "$peak"
+  else
+    printf '  %-24s %8d ms %10s\n' "$label" $((total / RUNS)) "n/a"
+  fi
+}
+
+echo "Startup, average of $RUNS runs, and peak RSS:"
+measure "jar, usage" java -jar "$JAR"
+if [ -x "$NATIVE" ]
+then
+  measure "native, usage" "$NATIVE"
+fi
+measure "jar, 2000 queries" java -jar "$JAR" simulate -n 2000 -z 100
+if [ -x "$NATIVE" ]
+then
+  measure "native, 2000 queries" "$NATIVE" simulate -n 2000 -z 100
+else
+  echo "No native executable at $NATIVE"
+fi
+rm -f "$RSS_FILE"
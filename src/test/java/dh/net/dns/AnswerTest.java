@@ -0,0 +1,276 @@
+package dh.net.dns;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for response parsing and RDATA decoding.
+ */
+public class AnswerTest
+    extends TestCase
+{
+    public AnswerTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( AnswerTest.class );
+    }
+
+    // Offset of "example.com" in the question section of the packets
+    // built below, used as a compression pointer target.
+    private static final int EXAMPLE_COM = 12;
+
+    private ByteArrayOutputStream packet;
+
+    private void header( int anCount )
+    {
+        header( anCount, 0, 0 );
+    }
+
+    private void header( int anCount, int nsCount, int arCount )
+    {
+        packet = new ByteArrayOutputStream();
+        short16( 0x1234 );
+        short16( 0x8400 );
+        short16( 1 );
+        short16( anCount );
+        short16( nsCount );
+        short16( arCount );
+        name( "example", "com" );
+        short16( QType.A.getValue() );
+        short16( QClass.IN.getValue() );
+    }
+
+    private void short16( int val )
+    {
+        packet.write( ( val >> 8 ) & 0xFF );
+        packet.write( val & 0xFF );
+    }
+
+    private void int32( long val )
+    {
+        short16( (int)( val >> 16 ) );
+        short16( (int)val );
+    }
+
+    private void name( String... labels )
+    {
+        for( String label : labels )
+        {
+            packet.write( label.length() );
+            packet.write( label.getBytes(), 0, label.length() );
+        }
+        packet.write( 0 );
+    }
+
+    private void pointer( int offset )
+    {
+        short16( 0xC000 | offset );
+    }
+
+    private void recordHeader( QType type, int rdLength )
+    {
+        pointer( EXAMPLE_COM );
+        short16( type.getValue() );
+        short16( QClass.IN.getValue() );
+        int32( 300 );
+        short16( rdLength );
+    }
+
+    public void testAddressRecordKeepsRawData()
+    {
+        header( 1 );
+        recordHeader( QType.A, 4 );
+        packet.write( new byte[] { 10, 0, 0, 1 }, 0, 4 );
+
+        Answer answer = Answer.answerFromByteStream( packet.toByteArray() );
+        Answer.ResourceRecord rr = answer.getAuthorityAnswers().get( 0 );
+
+        assertEquals( "example.com", rr.domainName );
+        assertEquals( 4, rr.data.length );
+        assertEquals( "10.0.0.1", rr.rdata().toString() );
+    }
+
+    private void glue( QType type, byte[] address, String... labels )
+    {
+        name( labels );
+        short16( type.getValue() );
+        short16( QClass.IN.getValue() );
+        int32( 300 );
+        short16( address.length );
+        packet.write( address, 0, address.length );
+    }
+
+    public void testReferralGlueOfBothFamilies()
+    {
+        header( 0, 1, 3 );
+        // example.com NS ns.example.com
+        recordHeader( QType.NS, 5 );
+        packet.write( 2 );
+        packet.write( "ns".getBytes(), 0, 2 );
+        pointer( EXAMPLE_COM );
+        glue( QType.A, new byte[] { (byte)192, 0, 2, 53 },
+              "ns", "example", "com" );
+        byte[] ipv6 = new byte[16];
+        ipv6[0] = 0x20;
+        ipv6[1] = 0x01;
+        ipv6[2] = 0x0d;
+        ipv6[3] = (byte)0xb8;
+        ipv6[15] = 0x53;
+        glue( QType.AAAA, ipv6, "NS", "Example", "com" );
+        // Not a server of the referral.
+        glue( QType.A, new byte[] { (byte)192, 0, 2, 99 },
+              "other", "example" );
+
+        Answer answer = Answer.answerFromByteStream( packet.toByteArray() );
+        assertTrue( answer.isFullReferralResponse() );
+        assertEquals( "example.com", answer.referralZone() );
+        List<Answer.ResourceRecord> glue = answer.referralGlue( "example.com" );
+        assertEquals( 2, glue.size() );
+        assertEquals( "192.0.2.53", glue.get( 0 ).rdata().toString() );
+        assertEquals( QType.AAAA, glue.get( 1 ).type );
+        assertEquals( 16, glue.get( 1 ).data.length );
+
+        // Only a server of the zone itself can vouch for its addresses.
+        assertTrue( answer.referralGlue( "example.net" ).isEmpty() );
+        assertEquals( 2, answer.referralGlue( "" ).size() );
+    }
+
+    public void testCompressedNamesExpandAgainstPacket()
+    {
+        header( 2 );
+        // CNAME pointing at "www" + pointer to example.com
+        recordHeader( QType.CNAME, 6 );
+        packet.write( 3 );
+        packet.write( "www".getBytes(), 0, 3 );
+        pointer( EXAMPLE_COM );
+        // MX 10 example.com
+        recordHeader( QType.MX, 4 );
+        short16( 10 );
+        pointer( EXAMPLE_COM );
+
+        Answer answer = Answer.answerFromByteStream( packet.toByteArray() );
+        RData.CNAME cname =
+            (RData.CNAME)answer.getAuthorityAnswers().get( 0 ).rdata();
+        RData.MX mx = (RData.MX)answer.getAuthorityAnswers().get( 1 ).rdata();
+
+        assertEquals( "www.example.com", cname.name() );
+        assertEquals( 10, mx.preference() );
+        assertEquals( "example.com", mx.exchange() );
+    }
+
+    public void testSoaAndSrv()
+    {
+        header( 2 );
+        recordHeader( QType.SOA, 2 + 2 + 20 );
+        pointer( EXAMPLE_COM );
+        pointer( EXAMPLE_COM );
+        int32( 2024010101L );
+        int32( 7200 );
+        int32( 3600 );
+        int32( 1209600 );
+        int32( 0xFFFFFFFFL );
+        recordHeader( QType.SRV, 8 );
+        short16( 1 );
+        short16( 5 );
+        short16( 5060 );
+        pointer( EXAMPLE_COM );
+
+        Answer answer = Answer.answerFromByteStream( packet.toByteArray() );
+        RData.SOA soa = (RData.SOA)answer.getAuthorityAnswers().get( 0 ).rdata();
+        RData.SRV srv = (RData.SRV)answer.getAuthorityAnswers().get( 1 ).rdata();
+
+        assertEquals( "example.com", soa.primaryNameserver() );
+        assertEquals( 2024010101L, soa.serial() );
+        assertEquals( 0xFFFFFFFFL, soa.minimum() );
+        assertEquals( 5060, srv.port() );
+        assertEquals( "example.com", srv.target() );
+    }
+
+    public void testTxtStrings()
+    {
+        header( 1 );
+        recordHeader( QType.TXT, 8 );
+        packet.write( 3 );
+        packet.write( "foo".getBytes(), 0, 3 );
+        packet.write( 3 );
+        packet.write( "bar".getBytes(), 0, 3 );
+
+        Answer answer = Answer.answerFromByteStream( packet.toByteArray() );
+        RData.TXT txt = (RData.TXT)answer.getAuthorityAnswers().get( 0 ).rdata();
+
+        assertEquals( 2, txt.strings().size() );
+        assertEquals( "bar", txt.strings().get( 1 ) );
+    }
+
+    private static void assertRejected( byte[] packet, int offset )
+    {
+        try
+        {
+            Answer.expandDNS( packet, offset );
+            fail( "expected the name to be rejected" );
+        }
+        catch( Answer.MalformedNameException e )
+        {
+            // Expected.
+        }
+    }
+
+    public void testHostileNamesRejected()
+    {
+        // A pointer to itself, and one pointing forwards.
+        assertRejected( new byte[] { 0, 0, (byte)0xC0, 2 }, 2 );
+        assertRejected( new byte[] { (byte)0xC0, 2, 1, 'a', 0 }, 0 );
+
+        // Two names pointing at each other.
+        assertRejected( new byte[] { 1, 'a', (byte)0xC0, 4, 1, 'b', (byte)0xC0, 0 }, 4 );
+
+        // Labels running off the end of the packet.
+        assertRejected( new byte[] { 5, 'a', 'b' }, 0 );
+        assertRejected( new byte[] { 1, 'a' }, 0 );
+
+        // 128 one byte labels make a 257 byte name.
+        byte[] tooLong = new byte[257];
+        for( int i = 0; i < 256; i += 2 )
+        {
+            tooLong[i] = 1;
+            tooLong[i + 1] = 'x';
+        }
+        assertRejected( tooLong, 0 );
+
+        // The root label followed by 40 pointers, each to the one
+        // before: every hop is legal but there are too many.
+        byte[] chain = new byte[1 + 2 * 40];
+        for( int i = 1; i < chain.length; i += 2 )
+        {
+            chain[i] = (byte)0xC0;
+            chain[i + 1] = (byte)Math.max( 0, i - 2 );
+        }
+        assertRejected( chain, chain.length - 2 );
+    }
+
+    public void testRootAndLongestNames()
+    {
+        Answer.DnsExpansionResult root = Answer.expandDNS( new byte[] { 0 }, 0 );
+        assertEquals( "", root.dnsName );
+        assertEquals( 1, root.offsetFromInitial );
+
+        // 127 one byte labels and the root label, exactly 255 bytes.
+        byte[] longest = new byte[255];
+        for( int i = 0; i < 254; i += 2 )
+        {
+            longest[i] = 1;
+            longest[i + 1] = 'x';
+        }
+        Answer.DnsExpansionResult result = Answer.expandDNS( longest, 0 );
+        assertEquals( 253, result.dnsName.length() );
+        assertEquals( 255, result.offsetFromInitial );
+    }
+}
@@ -0,0 +1,73 @@
+package dh.net.dns;
+
+import java.net.InetAddress;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for the reverse names and ranges of bulk PTR lookups.
+ */
+public class BulkReverseResolverTest
+    extends TestCase
+{
+    public BulkReverseResolverTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( BulkReverseResolverTest.class );
+    }
+
+    public void testReverseNames() throws Exception
+    {
+        assertEquals( "4.2.0.192.in-addr.arpa",
+                      BulkReverseResolver.reverseName(
+                          InetAddress.getByName( "192.0.2.4" ) ) );
+        assertEquals( "b.a.9.8.7.6.5.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0."
+                      + "8.b.d.0.1.0.0.2.ip6.arpa",
+                      BulkReverseResolver.reverseName(
+                          InetAddress.getByName( "2001:db8::567:89ab" ) ) );
+    }
+
+    public void testExpandsIPv4Range() throws Exception
+    {
+        List<InetAddress> range =
+            BulkReverseResolver.expandRange( "192.0.2.77/24" );
+        assertEquals( 256, range.size() );
+        assertEquals( InetAddress.getByName( "192.0.2.0" ), range.get( 0 ) );
+        assertEquals( InetAddress.getByName( "192.0.2.77" ), range.get( 77 ) );
+        assertEquals( InetAddress.getByName( "192.0.2.255" ), range.get( 255 ) );
+    }
+
+    public void testExpandsIPv6Range() throws Exception
+    {
+        List<InetAddress> range =
+            BulkReverseResolver.expandRange( "2001:db8::/120" );
+        assertEquals( 256, range.size() );
+        assertEquals( InetAddress.getByName( "2001:db8::" ), range.get( 0 ) );
+        assertEquals( InetAddress.getByName( "2001:db8::ff" ), range.get( 255 ) );
+    }
+
+    public void testRejectsBadRanges()
+    {
+        String[] bad = { "192.0.2.0", "192.0.2.0/33", "192.0.2.0/-1",
+                         "10.0.0.0/7", "256.0.2.0/24", "localhost/24",
+                         "www.example.com/24" };
+        for( String cidr : bad )
+        {
+            try
+            {
+                BulkReverseResolver.expandRange( cidr );
+                fail( cidr );
+            }
+            catch( IllegalArgumentException e )
+            {
+            }
+        }
+    }
+}
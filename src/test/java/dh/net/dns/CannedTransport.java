@@ -0,0 +1,291 @@
+package dh.net.dns;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stands in for the name servers in resolver tests, answering every
+ * query with the response canned for its question and server, or for
+ * its question from any server, or not at all if there isn't one.
+ */
+class CannedTransport implements Transport
+{
+    // Responses by lower case name, type and server address if any,
+    // with any ID.
+    private final Map<String, byte[]> responses = new ConcurrentHashMap<>();
+
+    final AtomicInteger sent = new AtomicInteger();
+
+    // Every question sent, as "name type @address".
+    final List<String> asked = new ArrayList<>();
+
+    // How long responses take to arrive.
+    volatile long delayMillis;
+
+    // Servers that never answer, by address.
+    private final Set<String> silent = ConcurrentHashMap.newKeySet();
+
+    void answer( String name, QType type, byte[] response )
+    {
+        responses.put( key( name, type, null ), response );
+    }
+
+    void answer( String server, String name, QType type, byte[] response )
+    {
+        responses.put( key( name, type, server ), response );
+    }
+
+    void silence( String server )
+    {
+        silent.add( server );
+    }
+
+    int count( String question )
+    {
+        synchronized( asked )
+        {
+            int count = 0;
+            for( String sent : asked )
+            {
+                if( sent.startsWith( question ) )
+                    ++count;
+            }
+            return count;
+        }
+    }
+
+    private static String key( String name, QType type, String server )
+    {
+        return name.toLowerCase() + "|" + type + "|" + server;
+    }
+
+    private static class CannedExchange implements Exchange
+    {
+        String server;
+        Queue<Response> inbox;
+        Object attachment;
+    }
+
+    @Override
+    public Exchange send( byte[] query, InetSocketAddress server,
+                          Queue<Response> inbox, Object attachment )
+    {
+        CannedExchange exchange = new CannedExchange();
+        exchange.server = server.getAddress().getHostAddress();
+        exchange.inbox = inbox;
+        exchange.attachment = attachment;
+        resend( exchange, query );
+        return exchange;
+    }
+
+    @Override
+    public void resend( Exchange exchange, byte[] query )
+    {
+        sent.incrementAndGet();
+        final CannedExchange canned = (CannedExchange)exchange;
+        QuestionRecord qr = questionOf( query );
+        synchronized( asked )
+        {
+            asked.add( qr.qname + " " + qr.qtype + " @" + canned.server );
+        }
+        if( silent.contains( canned.server ) )
+            return;
+        byte[] response =
+            responses.get( key( qr.qname, qr.qtype, canned.server ) );
+        if( response == null )
+            response = responses.get( key( qr.qname, qr.qtype, null ) );
+        if( response == null )
+            return;
+
+        final byte[] copy = response.clone();
+        copy[0] = query[0];
+        copy[1] = query[1];
+        if( delayMillis == 0 )
+        {
+            canned.inbox.offer( new Response( copy, canned.attachment ) );
+            return;
+        }
+
+        Thread later = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep( delayMillis );
+                }
+                catch( InterruptedException e )
+                {
+                    return;
+                }
+                canned.inbox.offer( new Response( copy, canned.attachment ) );
+            }
+        };
+        later.setDaemon( true );
+        later.start();
+    }
+
+    @Override
+    public void cancel( Exchange exchange )
+    {
+    }
+
+    @Override
+    public boolean canReach( InetAddress address )
+    {
+        return true;
+    }
+
+    @Override
+    public Response receive( BlockingQueue<Response> inbox, long until )
+        throws InterruptedException
+    {
+        return inbox.poll( Math.max( 0, until - System.nanoTime() ),
+                           TimeUnit.NANOSECONDS );
+    }
+
+    private static QuestionRecord questionOf( byte[] query )
+    {
+        StringBuilder name = new StringBuilder();
+        int offset = 12;
+        while( query[offset] != 0 )
+        {
+            if( name.length() > 0 )
+                name.append( '.' );
+            name.append( new String( query, offset + 1, query[offset] ) );
+            offset += query[offset] + 1;
+        }
+        int type = ( ( query[offset + 1] & 0xFF ) << 8 ) |
+                   ( query[offset + 2] & 0xFF );
+        return new QuestionRecord( name.toString(),
+                                            QType.valueOf( type ),
+                                            QClass.IN );
+    }
+
+    /**
+     * Builds a response to a single question, records added section by
+     * section.
+     */
+    static class Message
+    {
+        private final ByteArrayOutputStream records =
+            new ByteArrayOutputStream();
+        private final int[] counts = new int[3];
+        private final String name;
+        private final QType type;
+        private final int rcode;
+        private int section;
+
+        Message( String name, QType type, int rcode )
+        {
+            this.name = name;
+            this.type = type;
+            this.rcode = rcode;
+        }
+
+        Message authority()
+        {
+            section = 1;
+            return this;
+        }
+
+        Message additional()
+        {
+            section = 2;
+            return this;
+        }
+
+        Message record( String owner, QType rrType, long ttl, byte[] rdata )
+        {
+            write( records, RData.encodeName( owner ) );
+            short16( records, rrType.getValue() );
+            short16( records, QClass.IN.getValue() );
+            short16( records, (int)( ttl >> 16 ) );
+            short16( records, (int)ttl );
+            short16( records, rdata.length );
+            write( records, rdata );
+            ++counts[section];
+            return this;
+        }
+
+        Message a( String owner, int... octets )
+        {
+            byte[] address = new byte[4];
+            for( int i = 0; i < 4; ++i )
+                address[i] = (byte)octets[i];
+            return record( owner, QType.A, 300, address );
+        }
+
+        Message aaaa( String owner, int... groups )
+        {
+            byte[] address = new byte[16];
+            for( int i = 0; i < 8; ++i )
+            {
+                address[2 * i] = (byte)( groups[i] >> 8 );
+                address[2 * i + 1] = (byte)groups[i];
+            }
+            return record( owner, QType.AAAA, 300, address );
+        }
+
+        Message ns( String zone, String host )
+        {
+            return record( zone, QType.NS, 3600, RData.encodeName( host ) );
+        }
+
+        Message cname( String owner, String target )
+        {
+            return record( owner, QType.CNAME, 300,
+                           RData.encodeName( target ) );
+        }
+
+        Message soa( String zone, long minimum )
+        {
+            ByteArrayOutputStream rdata = new ByteArrayOutputStream();
+            write( rdata, RData.encodeName( "ns." + zone ) );
+            write( rdata, RData.encodeName( "hostmaster." + zone ) );
+            // Serial, refresh, retry and expire, then the minimum.
+            for( int i = 0; i < 8; ++i )
+                short16( rdata, 0 );
+            short16( rdata, (int)( minimum >> 16 ) );
+            short16( rdata, (int)minimum );
+            return record( zone, QType.SOA, 3600, rdata.toByteArray() );
+        }
+
+        byte[] build()
+        {
+            ByteArrayOutputStream packet = new ByteArrayOutputStream();
+            short16( packet, 0 );
+            short16( packet, 0x8400 | 0x80 | rcode );
+            short16( packet, 1 );
+            for( int count : counts )
+                short16( packet, count );
+            write( packet, RData.encodeName( name ) );
+            short16( packet, type.getValue() );
+            short16( packet, QClass.IN.getValue() );
+            write( packet, records.toByteArray() );
+            return packet.toByteArray();
+        }
+
+        private static void short16( ByteArrayOutputStream out, int val )
+        {
+            out.write( ( val >> 8 ) & 0xFF );
+            out.write( val & 0xFF );
+        }
+
+        private static void write( ByteArrayOutputStream out, byte[] bytes )
+        {
+            out.write( bytes, 0, bytes.length );
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package dh.net.dns;
+
+import java.net.BindException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for resolving against canned name server responses.
+ */
+public class DnsResolverTest
+    extends TestCase
+{
+    public DnsResolverTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( DnsResolverTest.class );
+    }
+
+    private static final int NXDOMAIN = 3;
+    private static final int SERVFAIL = 2;
+
+    private CannedTransport servers;
+    private DnsResolver resolver;
+
+    @Override
+    protected void setUp()
+    {
+        servers = new CannedTransport();
+        resolver = new DnsResolver.Builder().setTransport( servers ).build();
+    }
+
+    public void testFollowsAliasChain()
+    {
+        servers.answer( "a.example", QType.A,
+            new CannedTransport.Message( "a.example", QType.A, 0 )
+                .cname( "a.example", "b.example" )
+                .cname( "b.example", "c.example" )
+                .cname( "c.example", "d.example" )
+                .a( "d.example", 192, 0, 2, 4 )
+                .build() );
+
+        RRset answer = resolver.query( "a.example", QType.A, QClass.IN, 5000 );
+        assertNotNull( answer );
+        assertEquals( "d.example", answer.getName() );
+        assertEquals( 1, answer.size() );
+        assertEquals( "192.0.2.4", answer.get( 0 ).rdata().toString() );
+
+        // Every link was cached, so the middle of the chain needs no
+        // more questions.
+        int sent = servers.sent.get();
+        RRset middle = resolver.query( "b.example", QType.A, QClass.IN, 5000 );
+        assertNotNull( middle );
+        assertEquals( "192.0.2.4", middle.get( 0 ).rdata().toString() );
+        assertEquals( sent, servers.sent.get() );
+    }
+
+    public void testCachesNameError()
+    {
+        servers.answer( "missing.example", QType.A,
+            new CannedTransport.Message( "missing.example", QType.A, NXDOMAIN )
+                .authority().soa( "example", 300 )
+                .build() );
+
+        RRset answer =
+            resolver.query( "missing.example", QType.A, QClass.IN, 5000 );
+        assertNotNull( answer );
+        assertTrue( answer.isEmpty() );
+
+        int sent = servers.sent.get();
+        RRset again =
+            resolver.query( "missing.example", QType.A, QClass.IN, 5000 );
+        assertNotNull( again );
+        assertTrue( again.isEmpty() );
+        assertEquals( sent, servers.sent.get() );
+    }
+
+    public void testGivesUpOnServerFailure()
+    {
+        servers.answer( "broken.example", QType.A,
+            new CannedTransport.Message( "broken.example", QType.A, SERVFAIL )
+                .build() );
+
+        long start = System.nanoTime();
+        RRset answer =
+            resolver.query( "broken.example", QType.A, QClass.IN, 10000 );
+        long elapsedMillis = ( System.nanoTime() - start ) / 1000000;
+
+        // Each server is tried and found of no use, rather than asked
+        // again until the timeout.
+        assertNull( answer );
+        assertTrue( "took " + elapsedMillis, elapsedMillis < 5000 );
+        assertTrue( "sent " + servers.sent.get(),
+                    servers.sent.get() <= 5 * 2 * DnsResolver.ROOT_HINTS.length );
+    }
+
+    public void testAddressFamiliesShareReferral() throws Exception
+    {
+        // The roots refer both questions to example, whose server has
+        // the addresses.
+        for( QType type : new QType[] { QType.A, QType.AAAA } )
+        {
+            servers.answer( "www.example", type,
+                new CannedTransport.Message( "www.example", type, 0 )
+                    .authority().ns( "example", "ns.example" )
+                    .additional().a( "ns.example", 192, 0, 2, 53 )
+                    .build() );
+        }
+        servers.answer( "192.0.2.53", "www.example", QType.A,
+            new CannedTransport.Message( "www.example", QType.A, 0 )
+                .a( "www.example", 192, 0, 2, 80 )
+                .build() );
+        servers.answer( "192.0.2.53", "www.example", QType.AAAA,
+            new CannedTransport.Message( "www.example", QType.AAAA, 0 )
+                .aaaa( "www.example", 0x2001, 0xdb8, 0, 0, 0, 0, 0, 0x80 )
+                .build() );
+
+        // Slow enough that both questions are at the root at once.
+        servers.delayMillis = 200;
+        assertEquals( Arrays.asList( InetAddress.getByName( "2001:db8::80" ),
+                                     InetAddress.getByName( "192.0.2.80" ) ),
+                      resolver.queryAddresses( "www.example", QClass.IN,
+                                               false, 5000 ) );
+
+        // One walk from the root, then each family from example.
+        assertEquals( 1, servers.count( "www.example" ) -
+                         servers.count( "www.example A @192.0.2.53" ) -
+                         servers.count( "www.example AAAA @192.0.2.53" ) );
+        assertEquals( 1, servers.count( "www.example A @192.0.2.53" ) );
+        assertEquals( 1, servers.count( "www.example AAAA @192.0.2.53" ) );
+    }
+
+    public void testMixedCaseReferralIsFollowed()
+    {
+        // The roots refer to com, whose server writes the zone it
+        // delegates in its own case.
+        servers.answer( "www.example.com", QType.A,
+            new CannedTransport.Message( "www.example.com", QType.A, 0 )
+                .authority().ns( "com", "a.gtld.net" )
+                .additional().a( "a.gtld.net", 192, 0, 2, 10 )
+                .build() );
+        servers.answer( "192.0.2.10", "www.example.com", QType.A,
+            new CannedTransport.Message( "www.example.com", QType.A, 0 )
+                .authority().ns( "Example.COM", "ns.Example.COM" )
+                .additional().a( "ns.Example.COM", 192, 0, 2, 53 )
+                .build() );
+        servers.answer( "192.0.2.53", "www.example.com", QType.A,
+            new CannedTransport.Message( "www.example.com", QType.A, 0 )
+                .a( "www.example.com", 192, 0, 2, 80 )
+                .build() );
+
+        RRset answer =
+            resolver.query( "www.example.com", QType.A, QClass.IN, 5000 );
+        assertNotNull( answer );
+        assertEquals( "192.0.2.80", answer.get( 0 ).rdata().toString() );
+        assertEquals( 1, servers.count( "www.example.com A @192.0.2.10" ) );
+        assertEquals( 1, servers.count( "www.example.com A @192.0.2.53" ) );
+
+        assertTrue( DnsResolver.isBelow( "Example.COM", "com" ) );
+        assertTrue( DnsResolver.isBelow( "www.example.com", "EXAMPLE.com" ) );
+        assertFalse( DnsResolver.isBelow( "Example.COM", "example.com" ) );
+        assertFalse( DnsResolver.isBelow( "notexample.com", "Example.com" ) );
+    }
+
+    // The roots refer every question to com, whose server has its
+    // address in net.
+    private void referToCom( String name )
+    {
+        servers.answer( name, QType.A,
+            new CannedTransport.Message( name, QType.A, 0 )
+                .authority().ns( "com", "a.gtld-servers.net" )
+                .additional().a( "a.gtld-servers.net", 192, 0, 2, 10 )
+                .build() );
+    }
+
+    public void testReferralsCannotPoisonTheCache()
+    {
+        RecordCache cache = new HeapRecordCache();
+        resolver = new DnsResolver.Builder().setTransport( servers )
+                                            .setRecordCache( cache ).build();
+
+        // Glue for a server outside example.com, and an address that
+        // isn't glue at all.
+        referToCom( "www.example.com" );
+        servers.answer( "192.0.2.10", "www.example.com", QType.A,
+            new CannedTransport.Message( "www.example.com", QType.A, 0 )
+                .authority().ns( "example.com", "ns.example.com" )
+                .ns( "example.com", "ns.evil.net" )
+                .additional().a( "ns.example.com", 192, 0, 2, 53 )
+                .a( "ns.evil.net", 192, 0, 2, 66 )
+                .a( "www.bank.com", 192, 0, 2, 66 )
+                .build() );
+        servers.answer( "192.0.2.53", "www.example.com", QType.A,
+            new CannedTransport.Message( "www.example.com", QType.A, 0 )
+                .a( "www.example.com", 192, 0, 2, 80 ).build() );
+
+        RRset answer =
+            resolver.query( "www.example.com", QType.A, QClass.IN, 5000 );
+        assertNotNull( answer );
+        assertEquals( "192.0.2.80", answer.get( 0 ).rdata().toString() );
+        assertEquals( 2, cache.get( "example.com", QType.NS, QClass.IN,
+                                    System.nanoTime() ).size() );
+        assertNotNull( cache.get( "ns.example.com", QType.A, QClass.IN,
+                                  System.nanoTime() ) );
+        assertNull( cache.get( "ns.evil.net", QType.A, QClass.IN,
+                               System.nanoTime() ) );
+        assertNull( cache.get( "www.bank.com", QType.A, QClass.IN,
+                               System.nanoTime() ) );
+        assertNull( cache.get( "a.gtld-servers.net", QType.A, QClass.IN,
+                               System.nanoTime() ) );
+
+        // NS records for a second zone riding along, and a delegation of
+        // a zone the name isn't in, are both refused.
+        referToCom( "www.shop.com" );
+        servers.answer( "192.0.2.10", "www.shop.com", QType.A,
+            new CannedTransport.Message( "www.shop.com", QType.A, 0 )
+                .authority().ns( "shop.com", "ns.shop.com" )
+                .ns( "bank.com", "ns.shop.com" )
+                .additional().a( "ns.shop.com", 192, 0, 2, 66 )
+                .build() );
+        referToCom( "www.cafe.com" );
+        servers.answer( "192.0.2.10", "www.cafe.com", QType.A,
+            new CannedTransport.Message( "www.cafe.com", QType.A, 0 )
+                .authority().ns( "bank.com", "ns.bank.com" )
+                .additional().a( "ns.bank.com", 192, 0, 2, 66 )
+                .build() );
+
+        assertNull( resolver.query( "www.shop.com", QType.A, QClass.IN, 2000 ) );
+        assertNull( resolver.query( "www.cafe.com", QType.A, QClass.IN, 2000 ) );
+        assertNull( cache.get( "shop.com", QType.NS, QClass.IN,
+                               System.nanoTime() ) );
+        assertNull( cache.get( "bank.com", QType.NS, QClass.IN,
+                               System.nanoTime() ) );
+        assertNull( cache.get( "ns.bank.com", QType.A, QClass.IN,
+                               System.nanoTime() ) );
+        assertEquals( 0, servers.count( "www.shop.com A @192.0.2.66" ) );
+        assertEquals( 0, servers.count( "www.cafe.com A @192.0.2.66" ) );
+    }
+
+    public void testMalformedAliasIsIgnored()
+    {
+        // The second link points past the end of the packet, so only
+        // the first can be followed.
+        servers.answer( "a.example", QType.A,
+            new CannedTransport.Message( "a.example", QType.A, 0 )
+                .cname( "a.example", "b.example" )
+                .record( "b.example", QType.CNAME, 300,
+                         new byte[] { (byte)0xFF, (byte)0xFF } )
+                .a( "c.example", 192, 0, 2, 3 )
+                .build() );
+        servers.answer( "b.example", QType.A,
+            new CannedTransport.Message( "b.example", QType.A, 0 )
+                .a( "b.example", 192, 0, 2, 2 )
+                .build() );
+
+        RRset answer = resolver.query( "a.example", QType.A, QClass.IN, 5000 );
+        assertNotNull( answer );
+        assertEquals( "b.example", answer.getName() );
+        assertEquals( "192.0.2.2", answer.get( 0 ).rdata().toString() );
+
+        // Served from the cache with the good link only.
+        byte[] query = new Question.Builder().setID( 7 )
+            .setOpCode( OpCode.QUERY ).setRecursionDesired( true )
+            .addQuestion( "a.example", QType.A, QClass.IN ).build().getPacket();
+        Answer response = Answer.answerFromByteStream( resolver.respond( query ) );
+        assertEquals( 0, response.getHeader().getRCode() );
+        assertEquals( 2, response.getAuthorityAnswers().size() );
+        assertEquals( "b.example",
+                      ( (RData.CNAME)response.getAuthorityAnswers().get( 0 )
+                          .rdata() ).name() );
+    }
+
+    public void testCloseReleasesSockets() throws Exception
+    {
+        DatagramSocket probe =
+            new DatagramSocket( 0, InetAddress.getLoopbackAddress() );
+        InetSocketAddress self =
+            (InetSocketAddress)probe.getLocalSocketAddress();
+        probe.close();
+
+        // Nothing is resolved before closing, so no name server is
+        // asked; the reactors' sockets are ReactorTest's concern.
+        PeerGroup group = new PeerGroup( self, Arrays.asList( self ) );
+        DnsResolver closing = new DnsResolver.Builder()
+            .setPeers( group ).setReactorThreads( 1 ).build();
+        group.serve( closing );
+        closing.close();
+
+        // The peer socket is free again once its receiver has woken,
+        // and queries fail at once rather than waiting on sockets that
+        // are gone.
+        DatagramSocket rebound = null;
+        for( int i = 0; rebound == null; ++i )
+        {
+            try
+            {
+                rebound = new DatagramSocket( self );
+            }
+            catch( BindException e )
+            {
+                if( i == 20 )
+                    throw e;
+                Thread.sleep( 50 );
+            }
+        }
+        rebound.close();
+        long start = System.nanoTime();
+        assertNull( closing.query( "www.example", QType.A, QClass.IN, 5000 ) );
+        assertTrue( System.nanoTime() - start < 2000000000L );
+    }
+}
@@ -0,0 +1,383 @@
+package dh.net.dns;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests DNS over TLS against a local stand-in server.
+ */
+public class DotUpstreamTest
+    extends TestCase
+{
+    public DotUpstreamTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( DotUpstreamTest.class );
+    }
+
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    private static KeyStore keyStore() throws Exception
+    {
+        KeyStore store = KeyStore.getInstance( "PKCS12" );
+        try( InputStream in =
+                 DotUpstreamTest.class.getResourceAsStream( "/dot-test.p12" ) )
+        {
+            store.load( in, PASSWORD );
+        }
+        return store;
+    }
+
+    private static SSLContext clientContext() throws Exception
+    {
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(
+            TrustManagerFactory.getDefaultAlgorithm() );
+        trust.init( keyStore() );
+        SSLContext context = SSLContext.getInstance( "TLS" );
+        context.init( null, trust.getTrustManagers(), null );
+        return context;
+    }
+
+    /**
+     * Answers every A query with 192.0.2.1, replying to each batch of
+     * queries in reverse order and closing the connection after
+     * responsesPerConnection responses.
+     */
+    private static class StandInServer implements Runnable
+    {
+        StandInServer( int batchSize, int responsesPerConnection ) throws Exception
+        {
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm() );
+            keys.init( keyStore(), PASSWORD );
+            SSLContext context = SSLContext.getInstance( "TLS" );
+            context.init( keys.getKeyManagers(), null, null );
+
+            this.socket = (SSLServerSocket)context.getServerSocketFactory()
+                .createServerSocket( 0, 16, InetAddress.getLoopbackAddress() );
+            this.batchSize = batchSize;
+            this.responsesPerConnection = responsesPerConnection;
+
+            Thread thread = new Thread( this, "dot-stand-in" );
+            thread.setDaemon( true );
+            thread.start();
+        }
+
+        InetSocketAddress address()
+        {
+            return new InetSocketAddress( InetAddress.getLoopbackAddress(),
+                                          socket.getLocalPort() );
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while( true )
+                {
+                    try( Socket client = socket.accept() )
+                    {
+                        serve( client );
+                    }
+                    catch( IOException e )
+                    {
+                        // Client went away, wait for the next.
+                    }
+                }
+            }
+            catch( Exception e )
+            {
+                // Server socket closed.
+            }
+        }
+
+        private void serve( Socket client ) throws IOException
+        {
+            DataInputStream in = new DataInputStream( client.getInputStream() );
+            DataOutputStream out = new DataOutputStream( client.getOutputStream() );
+            int responses = 0;
+            while( responses < responsesPerConnection )
+            {
+                List<byte[]> batch = new ArrayList<>();
+                while( batch.size() < batchSize )
+                {
+                    byte[] query = new byte[in.readUnsignedShort()];
+                    in.readFully( query );
+                    batch.add( query );
+                }
+                for( int i = batch.size() - 1; i >= 0; --i )
+                {
+                    byte[] response = answer( batch.get( i ) );
+                    out.writeShort( response.length );
+                    out.write( response );
+                    ++responses;
+                }
+                out.flush();
+            }
+        }
+
+        private static byte[] answer( byte[] query )
+        {
+            byte[] response = Arrays.copyOf( query, query.length + 16 );
+            response[2] = (byte)0x81;
+            response[3] = (byte)0x80;
+            response[7] = 1;
+            byte[] record = { (byte)0xC0, 12, 0, 1, 0, 1, 0, 0, 0, 60, 0, 4,
+                              (byte)192, 0, 2, 1 };
+            System.arraycopy( record, 0, response, query.length, record.length );
+            return response;
+        }
+
+        void close() throws IOException
+        {
+            socket.close();
+        }
+
+        private final SSLServerSocket socket;
+        private final int batchSize;
+        private final int responsesPerConnection;
+    }
+
+    private static byte[] query( int id, String name )
+    {
+        return new Question.Builder().setID( id ).setOpCode( OpCode.QUERY )
+            .setRecursionDesired( true ).addQuestion( name, QType.A, QClass.IN )
+            .build().getPacket();
+    }
+
+    public void testPipelinedOutOfOrder() throws Exception
+    {
+        StandInServer server = new StandInServer( 2, Integer.MAX_VALUE );
+        DotUpstream upstream =
+            new DotUpstream( server.address(), "localhost", clientContext() );
+        try
+        {
+            // Both share an ID, the upstream tells them apart itself.
+            CompletableFuture<byte[]> first = upstream.send( query( 7, "a.example" ) );
+            CompletableFuture<byte[]> second = upstream.send( query( 7, "b.example" ) );
+
+            byte[] a = first.get( 5, TimeUnit.SECONDS );
+            byte[] b = second.get( 5, TimeUnit.SECONDS );
+            assertEquals( 7, ( a[0] << 8 ) | a[1] );
+            assertEquals( 7, ( b[0] << 8 ) | b[1] );
+            assertEquals( 'a', a[13] );
+            assertEquals( 'b', b[13] );
+            assertEquals( 1, upstream.handshakes() );
+        }
+        finally
+        {
+            upstream.close();
+            server.close();
+        }
+    }
+
+    public void testReconnectResumesSession() throws Exception
+    {
+        StandInServer server = new StandInServer( 1, 1 );
+        DotUpstream upstream =
+            new DotUpstream( server.address(), "localhost", clientContext() );
+        try
+        {
+            upstream.exchange( query( 1, "a.example" ), 5000 );
+            // The server has hung up, wait for the client to notice.
+            Thread.sleep( 200 );
+            upstream.exchange( query( 2, "b.example" ), 5000 );
+
+            assertEquals( 2, upstream.handshakes() );
+            assertEquals( 1, upstream.resumedHandshakes() );
+        }
+        finally
+        {
+            upstream.close();
+            server.close();
+        }
+    }
+
+    public void testResolverForwards() throws Exception
+    {
+        StandInServer server = new StandInServer( 1, Integer.MAX_VALUE );
+        DotUpstream upstream =
+            new DotUpstream( server.address(), "localhost", clientContext() );
+        try
+        {
+            DnsResolver resolver =
+                new DnsResolver.Builder().setForwarder( upstream ).build();
+            RRset rrset = resolver.query( "www.example.com", QType.A, QClass.IN );
+            assertEquals( 1, rrset.size() );
+            assertEquals( "192.0.2.1", rrset.get( 0 ).rdata().toString() );
+        }
+        finally
+        {
+            upstream.close();
+            server.close();
+        }
+    }
+
+    public void testResolverGivesUpAtDeadline() throws Exception
+    {
+        // Waits for a second query before answering, so never does.
+        StandInServer server = new StandInServer( 2, Integer.MAX_VALUE );
+        DotUpstream upstream =
+            new DotUpstream( server.address(), "localhost", clientContext() );
+        try
+        {
+            DnsResolver resolver =
+                new DnsResolver.Builder().setForwarder( upstream ).build();
+            long start = System.nanoTime();
+            assertNull( resolver.query( "www.example.com", QType.A, QClass.IN,
+                                        300 ) );
+            long elapsed = ( System.nanoTime() - start ) / 1000000;
+            assertTrue( "took " + elapsed + "ms", elapsed < 1500 );
+            assertEquals( 0, upstream.outstanding() );
+        }
+        finally
+        {
+            upstream.close();
+            server.close();
+        }
+    }
+
+    public void testCancelledQueryIsAbandoned() throws Exception
+    {
+        StandInServer server = new StandInServer( 2, Integer.MAX_VALUE );
+        DotUpstream upstream =
+            new DotUpstream( server.address(), "localhost", clientContext() );
+        try
+        {
+            DnsResolver resolver =
+                new DnsResolver.Builder().setForwarder( upstream ).build();
+            CompletableFuture<RRset> future = resolver.queryAsync(
+                "www.example.com", QType.A, QClass.IN, 10000 );
+            for( int i = 0; i < 500 && upstream.outstanding() == 0; ++i )
+                Thread.sleep( 10 );
+            assertEquals( 1, upstream.outstanding() );
+
+            future.cancel( false );
+            assertEquals( 0, upstream.outstanding() );
+        }
+        finally
+        {
+            upstream.close();
+            server.close();
+        }
+    }
+
+    public void testStalledHandshakeTimesOut() throws Exception
+    {
+        // Accepts connections, as the kernel does for a listening
+        // socket, but never says a word.
+        final ServerSocket silent =
+            new ServerSocket( 0, 16, InetAddress.getLoopbackAddress() );
+        final DotUpstream upstream = new DotUpstream(
+            new InetSocketAddress( InetAddress.getLoopbackAddress(),
+                                   silent.getLocalPort() ),
+            "localhost", clientContext() );
+        upstream.setHandshakeTimeout( 1000 );
+        try
+        {
+            final long[] elapsed = new long[1];
+            final IOException[] failure = new IOException[1];
+            Thread asking = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    long start = System.nanoTime();
+                    try
+                    {
+                        upstream.exchange( query( 1, "a.example" ), 30000 );
+                    }
+                    catch( IOException e )
+                    {
+                        failure[0] = e;
+                    }
+                    elapsed[0] = ( System.nanoTime() - start ) / 1000000;
+                }
+            };
+            asking.start();
+
+            // Others aren't held up while the handshake waits.
+            Thread.sleep( 200 );
+            long start = System.nanoTime();
+            assertEquals( 0, upstream.outstanding() );
+            assertTrue( ( System.nanoTime() - start ) / 1000000 < 100 );
+
+            asking.join( 10000 );
+            assertNotNull( failure[0] );
+            assertTrue( "took " + elapsed[0] + "ms",
+                        elapsed[0] >= 900 && elapsed[0] < 5000 );
+            assertEquals( 0, upstream.handshakes() );
+        }
+        finally
+        {
+            upstream.close();
+            silent.close();
+        }
+    }
+
+    public void testStalledHandshakeKeepsToDeadline() throws Exception
+    {
+        final ServerSocket silent =
+            new ServerSocket( 0, 16, InetAddress.getLoopbackAddress() );
+        DotUpstream upstream = new DotUpstream(
+            new InetSocketAddress( InetAddress.getLoopbackAddress(),
+                                   silent.getLocalPort() ),
+            "localhost", clientContext() );
+        try
+        {
+            // The handshake would take its full timeout to fail; the
+            // query is over long before.
+            DnsResolver resolver =
+                new DnsResolver.Builder().setForwarder( upstream ).build();
+            long start = System.nanoTime();
+            assertNull( resolver.query( "www.example.com", QType.A, QClass.IN,
+                                        300 ) );
+            long elapsed = ( System.nanoTime() - start ) / 1000000;
+            assertTrue( "took " + elapsed + "ms", elapsed < 1500 );
+
+            start = System.nanoTime();
+            try
+            {
+                upstream.exchange( query( 1, "a.example" ), 200 );
+                fail();
+            }
+            catch( IOException e )
+            {
+                // Timed out.
+            }
+            elapsed = ( System.nanoTime() - start ) / 1000000;
+            assertTrue( "took " + elapsed + "ms", elapsed < 1500 );
+        }
+        finally
+        {
+            upstream.close();
+            silent.close();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package dh.net.dns;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for the latency histogram.
+ */
+public class LatencyHistogramTest
+    extends TestCase
+{
+    public LatencyHistogramTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LatencyHistogramTest.class );
+    }
+
+    private static final long MICROSECOND = 1000L;
+
+    public void testPercentiles()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals( 0, histogram.percentile( 0.5 ) );
+
+        for( int i = 1000; i >= 1; --i )
+            histogram.record( i * MICROSECOND );
+        assertEquals( 1000, histogram.count() );
+        assertEquals( 1000 * MICROSECOND, histogram.max() );
+
+        // Rounded up to the top of the bucket, never more than 1/16 over.
+        long[][] expected = { { 10, 100 }, { 50, 500 }, { 99, 990 } };
+        for( long[] percent : expected )
+        {
+            long value = histogram.percentile( percent[0] / 100.0 );
+            long exact = percent[1] * MICROSECOND;
+            assertTrue( percent[0] + ": " + value,
+                        value >= exact && value <= exact + exact / 16 );
+        }
+        assertEquals( 1000 * MICROSECOND, histogram.percentile( 1 ) );
+        // The smallest sample's bucket runs from 992 to 1023.
+        assertEquals( 1023, histogram.percentile( 0 ) );
+    }
+
+    public void testSmallValuesAreExact()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for( int i = 0; i < 16; ++i )
+            histogram.record( i );
+        histogram.record( -5 );
+
+        assertEquals( 0, histogram.percentile( 0.1 ) );
+        assertEquals( 7, histogram.percentile( 0.5 ) );
+        assertEquals( 15, histogram.percentile( 1 ) );
+    }
+
+    public void testMergeMatchesOneHistogram()
+    {
+        LatencyHistogram all = new LatencyHistogram();
+        LatencyHistogram odd = new LatencyHistogram();
+        LatencyHistogram even = new LatencyHistogram();
+        for( int i = 1; i <= 999; ++i )
+        {
+            long nanos = i * i * MICROSECOND;
+            all.record( nanos );
+            ( i % 2 == 0 ? even : odd ).record( nanos );
+        }
+
+        odd.merge( even );
+        assertEquals( all.count(), odd.count() );
+        assertEquals( all.max(), odd.max() );
+        for( double fraction : new double[] { 0, 0.25, 0.5, 0.9, 0.999, 1 } )
+            assertEquals( all.percentile( fraction ), odd.percentile( fraction ) );
+
+        // Merging leaves the other histogram as it was.
+        assertEquals( 499, even.count() );
+    }
+}
@@ -0,0 +1,147 @@
+package dh.net.dns;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the load generator against local stand-in servers.
+ */
+public class LoadGeneratorTest
+    extends TestCase
+{
+    public LoadGeneratorTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LoadGeneratorTest.class );
+    }
+
+    private static List<byte[]> queries() throws Exception
+    {
+        Path file = Files.createTempFile( "queries", ".txt" );
+        try
+        {
+            Files.write( file, ( "# names to ask\n" +
+                                 "www.example.com A\n" +
+                                 "missing.example.com. AAAA\n" +
+                                 "\n" +
+                                 "www.example.com bogus\n" +
+                                 "mail.example.com mx\n" +
+                                 "missing.example.com\n" )
+                         .getBytes( StandardCharsets.UTF_8 ) );
+            return LoadGenerator.readQueries( file );
+        }
+        finally
+        {
+            Files.delete( file );
+        }
+    }
+
+    // Answers NXDOMAIN for names starting "missing", NOERROR otherwise.
+    private static DatagramSocket standIn() throws Exception
+    {
+        final DatagramSocket socket =
+            new DatagramSocket( 0, InetAddress.getLoopbackAddress() );
+        Thread thread = new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    byte[] buffer = new byte[512];
+                    while( true )
+                    {
+                        DatagramPacket packet =
+                            new DatagramPacket( buffer, buffer.length );
+                        socket.receive( packet );
+                        buffer[2] |= (byte)0x80;
+                        buffer[3] = (byte)( buffer[13] == 'm' &&
+                                            buffer[14] == 'i' ? 3 : 0 );
+                        socket.send( packet );
+                    }
+                }
+                catch( Exception e )
+                {
+                    // Closed.
+                }
+            }
+        }, "stand-in" );
+        thread.setDaemon( true );
+        thread.start();
+        return socket;
+    }
+
+    public void testAgainstServer() throws Exception
+    {
+        List<byte[]> queries = queries();
+        assertEquals( 4, queries.size() );
+
+        DatagramSocket server = standIn();
+        try
+        {
+            LoadGenerator generator = new LoadGenerator( queries, 2, 0, 2000 );
+            LoadGenerator.Result result = generator.run(
+                new InetSocketAddress( InetAddress.getLoopbackAddress(),
+                                       server.getLocalPort() ), 2, 0 );
+            assertEquals( 4, result.sent );
+            assertEquals( 4, result.completed );
+            assertEquals( 0, result.lost );
+            assertEquals( 2, result.rcodes[Header.RCODE_NO_ERROR] );
+            assertEquals( 2, result.rcodes[Header.RCODE_NAME_ERROR] );
+            assertEquals( 4, result.latencies.count() );
+        }
+        finally
+        {
+            server.close();
+        }
+    }
+
+    public void testUnansweredQueriesAreLost() throws Exception
+    {
+        DatagramSocket gone =
+            new DatagramSocket( 0, InetAddress.getLoopbackAddress() );
+        int port = gone.getLocalPort();
+        gone.close();
+
+        LoadGenerator generator = new LoadGenerator( queries(), 10, 0, 200 );
+        LoadGenerator.Result result = generator.run(
+            new InetSocketAddress( InetAddress.getLoopbackAddress(), port ),
+            1, 0 );
+        assertEquals( 4, result.sent );
+        assertEquals( 0, result.completed );
+        assertEquals( 4, result.lost );
+    }
+
+    public void testAgainstResolver() throws Exception
+    {
+        LocalZoneData local = new LocalZoneData();
+        local.addZone( "example.com" );
+        local.add( new Answer.ResourceRecord(
+            "www.example.com", QType.A, QClass.IN, 60,
+            new byte[] { (byte)192, 0, 2, 1 } ) );
+        DnsResolver resolver =
+            new DnsResolver.Builder().setLocalData( local ).build();
+
+        LoadGenerator generator = new LoadGenerator( queries(), 2, 0, 2000 );
+        LoadGenerator.Result result = generator.run( resolver, 0 );
+        assertEquals( 4, result.sent );
+        assertEquals( 4, result.completed );
+        // Only www exists in the zone; the others are name errors.
+        assertEquals( 1, result.rcodes[Header.RCODE_NO_ERROR] );
+        assertEquals( 3, result.rcodes[Header.RCODE_NAME_ERROR] );
+    }
+}
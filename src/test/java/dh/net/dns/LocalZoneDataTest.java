@@ -0,0 +1,75 @@
+package dh.net.dns;
+
+import java.net.InetAddress;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for locally answered data.
+ */
+public class LocalZoneDataTest
+    extends TestCase
+{
+    public LocalZoneDataTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LocalZoneDataTest.class );
+    }
+
+    private static Answer.ResourceRecord a( String name, int lastOctet )
+    {
+        return new Answer.ResourceRecord( name, QType.A, QClass.IN, 60,
+                                          new byte[] { 10, 0, 0, (byte)lastOctet } );
+    }
+
+    public void testLocalZone() throws Exception
+    {
+        LocalZoneData local = new LocalZoneData();
+        local.addZone( "corp.internal." );
+        local.add( a( "www.corp.internal", 1 ) );
+        local.add( a( "www.corp.internal", 2 ) );
+        local.add( a( "*.apps.corp.internal", 3 ) );
+
+        RRset www = local.lookup( "WWW.Corp.Internal", QType.A, QClass.IN );
+        assertEquals( 2, www.size() );
+        assertSame( www, local.lookup( "www.corp.internal", QType.A, QClass.IN ) );
+
+        RRset wild = local.lookup( "x.apps.corp.internal", QType.A, QClass.IN );
+        assertEquals( "x.apps.corp.internal", wild.getName() );
+        assertEquals( "10.0.0.3", wild.get( 0 ).rdata().toString() );
+
+        RRset noData = local.lookup( "www.corp.internal", QType.AAAA, QClass.IN );
+        assertTrue( noData.isEmpty() );
+        assertFalse( noData.isNameError() );
+        RRset missing = local.lookup( "missing.corp.internal", QType.A, QClass.IN );
+        assertTrue( missing.isEmpty() );
+        assertTrue( missing.isNameError() );
+        assertNull( local.lookup( "www.example.com", QType.A, QClass.IN ) );
+
+        // Never leaves the process.
+        DnsResolver resolver =
+            new DnsResolver.Builder().setLocalData( local ).build();
+        assertTrue( resolver.query( "missing.corp.internal", QType.A,
+                                    QClass.IN ).isEmpty() );
+        assertEquals( 2, resolver.query( "www.corp.internal", QType.A,
+                                         QClass.IN ).size() );
+    }
+
+    public void testHostsOutsideZone() throws Exception
+    {
+        LocalZoneData local = new LocalZoneData();
+        local.addHost( "pinned.example.com", InetAddress.getByName( "192.0.2.7" ) );
+
+        assertEquals( "192.0.2.7", local.lookup( "pinned.example.com", QType.A,
+                                                 QClass.IN ).get( 0 ).rdata().toString() );
+        assertTrue( local.lookup( "pinned.example.com", QType.AAAA, QClass.IN ).isEmpty() );
+        assertNull( local.lookup( "example.com", QType.A, QClass.IN ) );
+        assertNull( local.lookup( "other.example.com", QType.A, QClass.IN ) );
+    }
+}
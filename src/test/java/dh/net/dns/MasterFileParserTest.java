@@ -0,0 +1,152 @@
+package dh.net.dns;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for the master file parser.
+ */
+public class MasterFileParserTest
+    extends TestCase
+{
+    public MasterFileParserTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MasterFileParserTest.class );
+    }
+
+    private static List<Answer.ResourceRecord> parse( String text, String origin )
+        throws IOException
+    {
+        File file = File.createTempFile( "zone", ".db" );
+        try
+        {
+            Files.write( file.toPath(), text.getBytes( StandardCharsets.UTF_8 ) );
+            final List<Answer.ResourceRecord> records = new ArrayList<>();
+            new MasterFileParser( file.toPath(), origin ).parse( new RecordSink()
+            {
+                @Override
+                public void add( Answer.ResourceRecord record )
+                {
+                    records.add( record );
+                }
+            } );
+            return records;
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    public void testZoneFile() throws IOException
+    {
+        List<Answer.ResourceRecord> records = parse(
+            "$ORIGIN example.com.\n" +
+            "$TTL 1h\n" +
+            "@   IN  SOA ns1 hostmaster.example.com. (\n" +
+            "           2024010101 ; serial\n" +
+            "           7200 3600 1209600 300 )\n" +
+            "    IN  NS  ns1\n" +
+            "ns1 300 IN A 192.0.2.1\n" +
+            "www IN 60 CNAME ns1\n" +
+            "\n" +
+            "; a comment line\n" +
+            "txt TXT \"hello; world\" \"say \\\"hi\\\"\"\n" +
+            "$ORIGIN sub\n" +
+            "mail MX 10 mx.example.net.\n", "" );
+
+        assertEquals( 6, records.size() );
+
+        Answer.ResourceRecord soa = records.get( 0 );
+        assertEquals( "example.com", soa.domainName );
+        assertEquals( 3600, soa.ttl );
+        assertEquals( "ns1.example.com hostmaster.example.com 2024010101 " +
+                      "7200 3600 1209600 300", soa.rdata().toString() );
+
+        assertEquals( "example.com", records.get( 1 ).domainName );
+        assertEquals( QType.NS, records.get( 1 ).type );
+        assertEquals( "ns1.example.com", records.get( 1 ).rdata().toString() );
+
+        assertEquals( "ns1.example.com", records.get( 2 ).domainName );
+        assertEquals( 300, records.get( 2 ).ttl );
+        assertEquals( "192.0.2.1", records.get( 2 ).rdata().toString() );
+
+        assertEquals( 60, records.get( 3 ).ttl );
+        assertEquals( QType.CNAME, records.get( 3 ).type );
+
+        assertEquals( "\"hello; world\" \"say \"hi\"\"",
+                      records.get( 4 ).rdata().toString() );
+
+        assertEquals( "mail.sub.example.com", records.get( 5 ).domainName );
+        assertEquals( 3600, records.get( 5 ).ttl );
+        assertEquals( "10 mx.example.net", records.get( 5 ).rdata().toString() );
+    }
+
+    public void testErrorsGiveLine() throws IOException
+    {
+        try
+        {
+            parse( "$TTL 60\na A 192.0.2.1\nb A 192.0.2.300\n", "example" );
+            fail();
+        }
+        catch( IOException e )
+        {
+            assertTrue( e.getMessage(), e.getMessage().contains( ":3:" ) );
+        }
+    }
+
+    public void testSkipsUnsupportedTypes() throws IOException
+    {
+        List<Answer.ResourceRecord> records = parse(
+            "$TTL 60\n" +
+            "a A 192.0.2.1\n" +
+            "@ CAA 0 issue \"ca.example.net\"\n" +
+            "b TYPE65534 \\# 1 00\n" +
+            "c HINFO PC Unix\n" +
+            "d A 192.0.2.4\n", "example" );
+
+        assertEquals( 2, records.size() );
+        assertEquals( "a.example", records.get( 0 ).domainName );
+        assertEquals( "d.example", records.get( 1 ).domainName );
+    }
+
+    public void testTxtKeepsBytes() throws IOException
+    {
+        // An escaped byte, and two bytes of UTF-8 in the file.
+        Answer.ResourceRecord txt = parse(
+            "$TTL 60\n" +
+            "t TXT \"\\255x\" \"caf\u00e9\"\n", "example" ).get( 0 );
+
+        byte[] wire = txt.rdata().toWire();
+        assertTrue( Arrays.equals( new byte[] {
+            2, (byte)0xFF, 'x',
+            5, 'c', 'a', 'f', (byte)0xC3, (byte)0xA9 }, wire ) );
+
+        try
+        {
+            StringBuilder text = new StringBuilder( "t TXT \"" );
+            for( int i = 0; i < 128; ++i )
+                text.append( "\u00e9" );
+            parse( "$TTL 60\n" + text + "\"\n", "example" );
+            fail();
+        }
+        catch( IOException e )
+        {
+            assertTrue( e.getMessage(), e.getMessage().contains( "255" ) );
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package dh.net.dns;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for answering clients from pre-encoded responses.
+ */
+public class MessageCacheTest
+    extends TestCase
+{
+    public MessageCacheTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MessageCacheTest.class );
+    }
+
+    private static final long SECOND = 1000000000L;
+
+    private static RRset rrset( String name, QType type, long ttl, byte[] data )
+    {
+        Answer.ResourceRecord rr =
+            new Answer.ResourceRecord( name, type, QClass.IN, ttl, data );
+        return new RRset( name, type, QClass.IN,
+                          new Answer.ResourceRecord[] { rr },
+                          System.nanoTime() + ttl * SECOND );
+    }
+
+    private static RecordCache aliasedAddress( int lastOctet )
+    {
+        RecordCache cache = new HeapRecordCache();
+        long now = System.nanoTime();
+        cache.put( rrset( "www.example.com", QType.CNAME, 300,
+                          RData.encodeName( "web.example.net" ) ), now );
+        cache.put( rrset( "web.example.net", QType.A, 60,
+                          new byte[] { (byte)192, 0, 2, (byte)lastOctet } ), now );
+        return cache;
+    }
+
+    private static byte[] query( int id, String name )
+    {
+        return new Question.Builder().setID( id ).setOpCode( OpCode.QUERY )
+            .setRecursionDesired( true ).addQuestion( name, QType.A, QClass.IN )
+            .build().getPacket();
+    }
+
+    public void testRepeatedQuestionAnsweredFromCopy()
+    {
+        RecordCache records = aliasedAddress( 1 );
+        DnsResolver resolver =
+            new DnsResolver.Builder().setRecordCache( records ).build();
+
+        byte[] first = resolver.respond( query( 0x1234, "www.example.com" ) );
+        Answer decoded = Answer.answerFromByteStream( first );
+        assertEquals( 0x1234, decoded.getHeader().getID() );
+        List<Answer.ResourceRecord> answers = decoded.getAuthorityAnswers();
+        assertEquals( 2, answers.size() );
+        assertEquals( "web.example.net",
+                      ( (RData.CNAME)answers.get( 0 ).rdata() ).name() );
+        assertEquals( "192.0.2.1", answers.get( 1 ).rdata().toString() );
+
+        // Changing the records underneath doesn't show, the response is
+        // served whole, with the new ID and the name as asked.
+        records.put( rrset( "web.example.net", QType.A, 60,
+                            new byte[] { (byte)192, 0, 2, 2 } ),
+                     System.nanoTime() );
+        byte[] query = query( 0x4321, "WWW.Example.COM" );
+        byte[] second = resolver.respond( query );
+        assertEquals( 0x43, second[0] );
+        assertEquals( 0x21, second[1] );
+        assertEquals( "WWW.Example.COM",
+                      new String( second, 13, 3 ) + "." +
+                      new String( second, 17, 7 ) + "." +
+                      new String( second, 25, 3 ) );
+        assertTrue( Arrays.equals(
+            Arrays.copyOfRange( first, query.length, first.length ),
+            Arrays.copyOfRange( second, query.length, second.length ) ) );
+    }
+
+    public void testTtlsCountDownUntilExpiry()
+    {
+        DnsResolver resolver = new DnsResolver.Builder()
+            .setRecordCache( aliasedAddress( 1 ) )
+            .setMessageCacheSize( 0 ).build();
+        byte[] query = query( 7, "www.example.com" );
+        byte[] response = resolver.respond( query );
+
+        MessageCache cache = new MessageCache( 16 );
+        long now = 1000 * SECOND;
+        cache.put( response, query.length, now + 50 * SECOND, now );
+
+        List<Answer.ResourceRecord> fresh = Answer.answerFromByteStream(
+            cache.get( query, query.length, now ) ).getAuthorityAnswers();
+        List<Answer.ResourceRecord> later = Answer.answerFromByteStream(
+            cache.get( query, query.length, now + 10 * SECOND ) )
+            .getAuthorityAnswers();
+        assertEquals( fresh.get( 0 ).ttl - 10, later.get( 0 ).ttl );
+        assertEquals( fresh.get( 1 ).ttl - 10, later.get( 1 ).ttl );
+
+        assertNull( cache.get( query, query.length, now + 50 * SECOND ) );
+        assertEquals( 0, cache.size() );
+    }
+
+    public void testNegativeAnswersKeepTheirKind()
+    {
+        RecordCache records = new HeapRecordCache();
+        long now = System.nanoTime();
+        Answer.ResourceRecord soa = new Answer.ResourceRecord(
+            "example.com", QType.SOA, QClass.IN, 3600,
+            new RData.SOA( "ns.example.com", "hostmaster.example.com",
+                           1, 7200, 3600, 1209600, 300 ) );
+        records.put( RRset.negative( "gone.example.com", QType.A, QClass.IN,
+                                     true, soa, now + 300 * SECOND ), now );
+        records.put( RRset.negative( "www.example.com", QType.A, QClass.IN,
+                                     false, soa, now + 300 * SECOND ), now );
+        DnsResolver resolver =
+            new DnsResolver.Builder().setRecordCache( records ).build();
+
+        // The name doesn't exist, the SOA comes along to say for how
+        // long, and it's the same when answered from the message cache.
+        for( int i = 0; i < 2; ++i )
+        {
+            Answer gone = Answer.answerFromByteStream(
+                resolver.respond( query( 1, "gone.example.com" ) ) );
+            assertEquals( Header.RCODE_NAME_ERROR, gone.getHeader().getRCode() );
+            assertTrue( gone.getAuthorityAnswers().isEmpty() );
+            assertEquals( 1, gone.getAuthorityNameservers().size() );
+            Answer.ResourceRecord authority =
+                gone.getAuthorityNameservers().get( 0 );
+            assertEquals( QType.SOA, authority.type );
+            assertEquals( "example.com", authority.domainName );
+            assertEquals( 300, ( (RData.SOA)authority.rdata() ).minimum() );
+            assertTrue( authority.ttl <= 300 );
+        }
+
+        // The name exists without an address: NODATA.
+        Answer noData = Answer.answerFromByteStream(
+            resolver.respond( query( 2, "www.example.com" ) ) );
+        assertEquals( Header.RCODE_NO_ERROR, noData.getHeader().getRCode() );
+        assertTrue( noData.getAuthorityAnswers().isEmpty() );
+        assertEquals( QType.SOA, noData.getAuthorityNameservers().get( 0 ).type );
+    }
+
+    public void testMalformedQueries()
+    {
+        DnsResolver resolver = new DnsResolver();
+        assertNull( resolver.respond( new byte[5] ) );
+
+        // Two questions aren't answered.
+        byte[] twice = new Question.Builder().setID( 9 )
+            .setOpCode( OpCode.QUERY )
+            .addQuestion( "a.example", QType.A, QClass.IN )
+            .addQuestion( "b.example", QType.A, QClass.IN )
+            .build().getPacket();
+        byte[] response = resolver.respond( twice );
+        assertEquals( 12, response.length );
+        assertEquals( Header.RCODE_FORMAT_ERROR, response[3] & 0x0F );
+    }
+}
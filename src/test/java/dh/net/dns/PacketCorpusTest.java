@@ -0,0 +1,165 @@
+package dh.net.dns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for reading packet captures and message files.
+ */
+public class PacketCorpusTest
+    extends TestCase
+{
+    public PacketCorpusTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( PacketCorpusTest.class );
+    }
+
+    private static final int UDP = 17;
+    private static final int TCP = 6;
+
+    private Path file;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = Files.createTempFile( "corpus", ".pcap" );
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        Files.delete( file );
+    }
+
+    // A DNS message of the given length with its ID set.
+    private static byte[] message( int id, int length )
+    {
+        byte[] message = new byte[length];
+        message[0] = (byte)( id >> 8 );
+        message[1] = (byte)id;
+        return message;
+    }
+
+    // An Ethernet frame carrying an IPv4 datagram, network order.
+    private static byte[] frame( int protocol, int sourcePort,
+                                 int destinationPort, byte[] payload )
+    {
+        ByteBuffer frame = ByteBuffer.allocate( 14 + 20 + 8 + payload.length );
+        frame.position( 12 );
+        frame.putShort( (short)0x0800 );
+        frame.put( (byte)0x45 );
+        frame.position( 14 + 9 );
+        frame.put( (byte)protocol );
+        frame.position( 14 + 20 );
+        frame.putShort( (short)sourcePort );
+        frame.putShort( (short)destinationPort );
+        frame.putShort( (short)( 8 + payload.length ) );
+        frame.putShort( (short)0 );
+        frame.put( payload );
+        return frame.array();
+    }
+
+    // A capture of the frames with its headers in the given order.
+    private static byte[] pcap( ByteOrder order, byte[]... frames )
+    {
+        int length = 24;
+        for( byte[] frame : frames )
+            length += 16 + frame.length;
+
+        ByteBuffer capture = ByteBuffer.allocate( length ).order( order );
+        capture.putInt( 0xA1B2C3D4 );
+        capture.putShort( (short)2 );
+        capture.putShort( (short)4 );
+        capture.putInt( 0 );
+        capture.putInt( 0 );
+        capture.putInt( 65535 );
+        capture.putInt( 1 );
+        for( byte[] frame : frames )
+        {
+            capture.putInt( 1700000000 );
+            capture.putInt( 0 );
+            capture.putInt( frame.length );
+            capture.putInt( frame.length );
+            capture.put( frame );
+        }
+        return capture.array();
+    }
+
+    private void checkCapture( ByteOrder order ) throws IOException
+    {
+        byte[] query = message( 1, 30 );
+        byte[] response = message( 2, 46 );
+        Files.write( file, pcap( order,
+                                 frame( UDP, 40000, 53, query ),
+                                 frame( TCP, 53, 40000, message( 3, 30 ) ),
+                                 frame( UDP, 53, 40000, response ),
+                                 frame( UDP, 40000, 123, message( 4, 48 ) ) ) );
+
+        List<byte[]> all = PacketCorpus.read( file, false );
+        assertEquals( 2, all.size() );
+        assertTrue( Arrays.equals( query, all.get( 0 ) ) );
+        assertTrue( Arrays.equals( response, all.get( 1 ) ) );
+
+        List<byte[]> responses = PacketCorpus.read( file, true );
+        assertEquals( 1, responses.size() );
+        assertTrue( Arrays.equals( response, responses.get( 0 ) ) );
+    }
+
+    public void testBigEndianCapture() throws IOException
+    {
+        checkCapture( ByteOrder.BIG_ENDIAN );
+    }
+
+    public void testLittleEndianCapture() throws IOException
+    {
+        checkCapture( ByteOrder.LITTLE_ENDIAN );
+    }
+
+    public void testLengthPrefixed() throws IOException
+    {
+        List<byte[]> messages = new ArrayList<>();
+        messages.add( message( 1, 12 ) );
+        messages.add( message( 2, 300 ) );
+        messages.add( message( 3, 40 ) );
+
+        ByteBuffer data = ByteBuffer.allocate( 6 + 12 + 300 + 40 );
+        for( byte[] message : messages )
+        {
+            data.putShort( (short)message.length );
+            data.put( message );
+        }
+        Files.write( file, data.array() );
+
+        List<byte[]> read = PacketCorpus.read( file, false );
+        assertEquals( 3, read.size() );
+        for( int i = 0; i < 3; ++i )
+            assertTrue( Arrays.equals( messages.get( i ), read.get( i ) ) );
+
+        // A message cut short is an error, not silently dropped.
+        Files.write( file, Arrays.copyOf( data.array(), 100 ) );
+        try
+        {
+            PacketCorpus.read( file, false );
+            fail();
+        }
+        catch( IOException e )
+        {
+            assertTrue( e.getMessage(), e.getMessage().contains( "truncated" ) );
+        }
+    }
+}
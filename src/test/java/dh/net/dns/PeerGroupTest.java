@@ -0,0 +1,284 @@
+package dh.net.dns;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for sharing answers between resolvers.
+ */
+public class PeerGroupTest
+    extends TestCase
+{
+    public PeerGroupTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( PeerGroupTest.class );
+    }
+
+    private static InetSocketAddress member( int port )
+    {
+        return new InetSocketAddress( InetAddress.getLoopbackAddress(), port );
+    }
+
+    // A loopback address nothing is listening on.
+    private static InetSocketAddress freeAddress() throws Exception
+    {
+        DatagramSocket socket =
+            new DatagramSocket( 0, InetAddress.getLoopbackAddress() );
+        InetSocketAddress address =
+            (InetSocketAddress)socket.getLocalSocketAddress();
+        socket.close();
+        return address;
+    }
+
+    // The member owning the name as the group sees it.
+    private static InetSocketAddress owner( PeerGroup group,
+                                            InetSocketAddress self,
+                                            String name, long now )
+    {
+        InetSocketAddress owner =
+            group.ownerOf( name, QType.A, QClass.IN, now );
+        return owner != null ? owner : self;
+    }
+
+    public void testMembersAgreeAndFewQuestionsMove()
+    {
+        List<InetSocketAddress> three =
+            Arrays.asList( member( 5301 ), member( 5302 ), member( 5303 ) );
+        List<InetSocketAddress> four = new ArrayList<>( three );
+        four.add( member( 5304 ) );
+
+        PeerGroup first = new PeerGroup( three.get( 0 ), three );
+        PeerGroup second = new PeerGroup( three.get( 1 ), three );
+        PeerGroup grown = new PeerGroup( three.get( 0 ), four );
+
+        int[] owned = new int[3];
+        int moved = 0;
+        for( int i = 0; i < 3000; ++i )
+        {
+            String name = "host" + i + ".example.com";
+            InetSocketAddress owner = owner( first, three.get( 0 ), name, 0 );
+            assertEquals( owner, owner( second, three.get( 1 ), name, 0 ) );
+            assertEquals( owner, owner( first, three.get( 0 ),
+                                        name.toUpperCase(), 0 ) );
+            ++owned[three.indexOf( owner )];
+
+            // Only questions taken over by the new member move.
+            InetSocketAddress now = owner( grown, three.get( 0 ), name, 0 );
+            if( !now.equals( owner ) )
+            {
+                assertEquals( member( 5304 ), now );
+                ++moved;
+            }
+        }
+
+        for( int share : owned )
+            assertTrue( "share " + share, share > 700 && share < 1300 );
+        assertTrue( "moved " + moved, moved > 500 && moved < 1000 );
+    }
+
+    public void testSilentMemberIsPassedOver()
+    {
+        List<InetSocketAddress> members =
+            Arrays.asList( member( 5301 ), member( 5302 ), member( 5303 ) );
+        PeerGroup group = new PeerGroup( members.get( 0 ), members );
+
+        String name = null;
+        for( int i = 0; name == null; ++i )
+        {
+            String candidate = "host" + i + ".example.com";
+            if( member( 5302 ).equals(
+                    group.ownerOf( candidate, QType.A, QClass.IN, 0 ) ) )
+            {
+                name = candidate;
+            }
+        }
+
+        for( int i = 0; i < 3; ++i )
+            group.onTimeout( member( 5302 ), 0 );
+        assertFalse( member( 5302 ).equals(
+            owner( group, members.get( 0 ), name, 1 ) ) );
+
+        // Back once it answers.
+        group.onAnswer( member( 5302 ) );
+        assertEquals( member( 5302 ),
+                      group.ownerOf( name, QType.A, QClass.IN, 1 ) );
+    }
+
+    public void testOwnerAnswersForTheGroup() throws Exception
+    {
+        InetSocketAddress asker = freeAddress();
+        InetSocketAddress answerer = freeAddress();
+        List<InetSocketAddress> members = Arrays.asList( asker, answerer );
+
+        // Only the answerer knows the zone, so anything the asker finds
+        // out about it came from there.
+        LocalZoneData local = new LocalZoneData();
+        local.addZone( "corp.internal" );
+        PeerGroup answering = new PeerGroup( answerer, members );
+        String found = null;
+        String missing = null;
+        for( int i = 0; found == null || missing == null; ++i )
+        {
+            String name = "host" + i + ".corp.internal";
+            if( answering.ownerOf( name, QType.A, QClass.IN, 0 ) != null )
+                continue;
+            if( found == null )
+            {
+                found = name;
+                local.add( new Answer.ResourceRecord(
+                    name, QType.A, QClass.IN, 60, new byte[] { 10, 0, 0, 7 } ) );
+            }
+            else
+                missing = name;
+        }
+
+        DnsResolver owner =
+            new DnsResolver.Builder().setLocalData( local )
+                                     .setPeers( answering ).build();
+        answering.serve( owner );
+
+        PeerGroup asking = new PeerGroup( asker, members, 2000 );
+        DnsResolver resolver =
+            new DnsResolver.Builder().setPeers( asking ).build();
+        try
+        {
+            RRset answer = resolver.query( found, QType.A, QClass.IN, 5000 );
+            assertNotNull( answer );
+            assertEquals( 1, answer.size() );
+            assertEquals( "10.0.0.7", answer.get( 0 ).rdata().toString() );
+
+            RRset none = resolver.query( missing, QType.A, QClass.IN, 5000 );
+            assertNotNull( none );
+            assertTrue( none.isEmpty() );
+        }
+        finally
+        {
+            answering.close();
+            asking.close();
+        }
+    }
+
+    // Names owned by the member, as the group sees it.
+    private static List<String> ownedBy( PeerGroup group,
+                                         InetSocketAddress member,
+                                         String prefix, int count )
+    {
+        List<String> names = new ArrayList<>();
+        for( int i = 0; names.size() < count; ++i )
+        {
+            String name = prefix + i + ".example.com";
+            if( member.equals( group.ownerOf( name, QType.A, QClass.IN, 0 ) ) )
+                names.add( name );
+        }
+        return names;
+    }
+
+    public void testSlowOwnerIsNotPassedOver() throws Exception
+    {
+        InetSocketAddress self =
+            new InetSocketAddress( InetAddress.getByName( "192.0.2.1" ), 53 );
+        InetSocketAddress owner =
+            new InetSocketAddress( InetAddress.getByName( "192.0.2.2" ), 53 );
+        PeerGroup group = new PeerGroup( self, Arrays.asList( self, owner ),
+                                         100 );
+        CannedTransport servers = new CannedTransport();
+        DnsResolver resolver = new DnsResolver.Builder()
+            .setTransport( servers ).setPeers( group ).build();
+
+        // The owner answers after the group's timeout, but before the
+        // roots do, every time.
+        List<String> slow = ownedBy( group, owner, "slow", 3 );
+        servers.delayMillis = 300;
+        for( String name : slow )
+        {
+            servers.answer( name, QType.A,
+                new CannedTransport.Message( name, QType.A, 0 )
+                    .a( name, 192, 0, 2, 80 ).build() );
+            assertNotNull( resolver.query( name, QType.A, QClass.IN, 5000 ) );
+            assertEquals( 1, servers.count( name + " A @192.0.2.2" ) );
+        }
+        assertEquals( owner, group.ownerOf( slow.get( 0 ), QType.A, QClass.IN,
+                                            System.nanoTime() ) );
+
+        // One that never answers is passed over.
+        servers.silence( "192.0.2.2" );
+        servers.delayMillis = 0;
+        for( String name : ownedBy( group, owner, "silent", 3 ) )
+        {
+            servers.answer( name, QType.A,
+                new CannedTransport.Message( name, QType.A, 0 )
+                    .a( name, 192, 0, 2, 80 ).build() );
+            assertNotNull( resolver.query( name, QType.A, QClass.IN, 5000 ) );
+        }
+        assertNull( group.ownerOf( slow.get( 0 ), QType.A, QClass.IN,
+                                   System.nanoTime() ) );
+        resolver.close();
+    }
+
+    public void testOnlyMembersAreAnswered() throws Exception
+    {
+        InetSocketAddress self = freeAddress();
+        InetAddress memberHost = InetAddress.getByName( "127.0.0.2" );
+        InetSocketAddress other = new InetSocketAddress( memberHost, 53 );
+        PeerGroup group = new PeerGroup( self, Arrays.asList( self, other ) );
+
+        LocalZoneData local = new LocalZoneData();
+        local.addZone( "corp.internal" );
+        local.add( new Answer.ResourceRecord(
+            "www.corp.internal", QType.A, QClass.IN, 60,
+            new byte[] { 10, 0, 0, 7 } ) );
+        DnsResolver resolver =
+            new DnsResolver.Builder().setLocalData( local ).build();
+        group.serve( resolver );
+
+        byte[] query = new Question.Builder().setID( 9 )
+            .setOpCode( OpCode.QUERY ).setRecursionDesired( true )
+            .addQuestion( "www.corp.internal", QType.A, QClass.IN )
+            .build().getPacket();
+        DatagramSocket member = new DatagramSocket( 0, memberHost );
+        DatagramSocket stranger =
+            new DatagramSocket( 0, InetAddress.getByName( "127.0.0.3" ) );
+        try
+        {
+            // A member asks from any port of its host.
+            member.setSoTimeout( 2000 );
+            member.send( new DatagramPacket( query, query.length, self ) );
+            DatagramPacket response = new DatagramPacket( new byte[512], 512 );
+            member.receive( response );
+            assertEquals( 9, response.getData()[1] );
+
+            stranger.setSoTimeout( 300 );
+            stranger.send( new DatagramPacket( query, query.length, self ) );
+            try
+            {
+                stranger.receive( response );
+                fail( "Answered a stranger." );
+            }
+            catch( SocketTimeoutException e )
+            {
+                // Ignored, as it should be.
+            }
+        }
+        finally
+        {
+            member.close();
+            stranger.close();
+            group.close();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package dh.net.dns;
+
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for the binary query log.
+ */
+public class QueryLogTest
+    extends TestCase
+{
+    public QueryLogTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( QueryLogTest.class );
+    }
+
+    private Path directory;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        directory = Files.createTempDirectory( "dnsj-log" );
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        for( Path file : QueryLog.files( directory ) )
+            Files.delete( file );
+        Files.delete( directory );
+    }
+
+    private static RRset addresses( String name, int count )
+    {
+        Answer.ResourceRecord[] records = new Answer.ResourceRecord[count];
+        for( int i = 0; i < count; ++i )
+            records[i] = new Answer.ResourceRecord(
+                name, QType.A, QClass.IN, 60, new byte[] { 10, 0, 0, (byte)i } );
+        return new RRset( name, QType.A, QClass.IN, records, 0 );
+    }
+
+    public void testEntriesReadBack() throws Exception
+    {
+        InetAddress v4 = InetAddress.getByName( "192.0.2.1" );
+        InetAddress v6 = InetAddress.getByName( "2001:db8::1" );
+        QueryLog log = new QueryLog( directory, 1 << 20, 4 );
+        log.record( "www.example.com", QType.A, QClass.IN,
+                    Priority.INTERACTIVE, addresses( "www.example.com", 2 ),
+                    Arrays.asList( v4, v6 ), 1500000000123L, 2500000 );
+        log.record( "missing.example.com", QType.AAAA, QClass.IN,
+                    Priority.BULK, addresses( "missing.example.com", 0 ),
+                    Collections.singletonList( v4 ), 1500000000124L, 1000 );
+        log.record( "broken.example.com", QType.MX, QClass.IN,
+                    Priority.INTERACTIVE, null,
+                    Collections.<InetAddress>emptyList(), 1500000000125L, 0 );
+        log.close();
+
+        List<Path> files = QueryLog.files( directory );
+        assertEquals( 1, files.size() );
+        List<QueryLog.Entry> entries = QueryLog.read( files.get( 0 ) );
+        assertEquals( 3, entries.size() );
+
+        QueryLog.Entry first = entries.get( 0 );
+        assertEquals( "www.example.com", first.name );
+        assertEquals( QType.A, first.type );
+        assertEquals( QClass.IN, first.qClass );
+        assertEquals( Priority.INTERACTIVE, first.priority );
+        assertEquals( QueryLog.ANSWERED, first.outcome );
+        assertEquals( 2, first.records );
+        assertEquals( Arrays.asList( v4, v6 ), first.servers );
+        assertEquals( 1500000000123000L, first.askedAtMicros );
+        assertEquals( 2500, first.elapsedMicros );
+
+        assertEquals( QueryLog.NO_DATA, entries.get( 1 ).outcome );
+        assertEquals( Priority.BULK, entries.get( 1 ).priority );
+        assertEquals( QType.AAAA, entries.get( 1 ).type );
+        assertEquals( QueryLog.FAILED, entries.get( 2 ).outcome );
+        assertTrue( entries.get( 2 ).servers.isEmpty() );
+        assertEquals( 0, log.dropped() );
+    }
+
+    public void testRotationKeepsNewestFiles() throws Exception
+    {
+        QueryLog log = new QueryLog( directory, 16384, 3 );
+        for( int i = 0; i < 2000; ++i )
+        {
+            log.record( "host" + i + ".example.com", QType.A, QClass.IN,
+                        Priority.BULK, null,
+                        Collections.<InetAddress>emptyList(), 0, 0 );
+        }
+        log.close();
+        assertEquals( 0, log.dropped() );
+
+        // The newest files, each within the limit, holding the last
+        // entries in order.
+        List<Path> files = QueryLog.files( directory );
+        assertEquals( 3, files.size() );
+        List<String> names = new ArrayList<>();
+        for( Path file : files )
+        {
+            assertTrue( Files.size( file ) <= 16384 );
+            for( QueryLog.Entry entry : QueryLog.read( file ) )
+                names.add( entry.name );
+        }
+        assertEquals( "host1999.example.com", names.get( names.size() - 1 ) );
+        int first = 2000 - names.size();
+        for( int i = 0; i < names.size(); ++i )
+            assertEquals( "host" + ( first + i ) + ".example.com", names.get( i ) );
+    }
+
+    public void testLargestEntryFitsSmallestFile() throws Exception
+    {
+        StringBuilder name = new StringBuilder( "a" );
+        while( name.length() < 255 )
+            name.append( ".a" );
+        List<InetAddress> servers = new ArrayList<>();
+        for( int i = 0; i < 255; ++i )
+            servers.add( InetAddress.getByName( "2001:db8::" + i ) );
+
+        try
+        {
+            new QueryLog( directory, 4096, 1 );
+            fail( "A 4096 byte file can't hold the largest entry." );
+        }
+        catch( IllegalArgumentException e )
+        {
+            // Expected.
+        }
+
+        QueryLog log = new QueryLog( directory, 9234, 2 );
+        for( int i = 0; i < 2; ++i )
+        {
+            log.record( name.toString(), QType.A, QClass.IN,
+                        Priority.INTERACTIVE, null, servers, 0, 0 );
+        }
+        log.close();
+        assertEquals( 0, log.dropped() );
+
+        // One to a file.
+        List<Path> files = QueryLog.files( directory );
+        assertEquals( 2, files.size() );
+        for( Path file : files )
+        {
+            List<QueryLog.Entry> entries = QueryLog.read( file );
+            assertEquals( 1, entries.size() );
+            assertEquals( name.toString(), entries.get( 0 ).name );
+            assertEquals( servers, entries.get( 0 ).servers );
+        }
+    }
+
+    public void testMessageCacheHitsAreLogged() throws Exception
+    {
+        RecordCache records = new HeapRecordCache();
+        records.put( new RRset( "www.example.com", QType.A, QClass.IN,
+            new Answer.ResourceRecord[] {
+                new Answer.ResourceRecord( "www.example.com", QType.A,
+                                           QClass.IN, 300,
+                                           new byte[] { 10, 0, 0, 1 } ) },
+            System.nanoTime() + 300000000000L ), System.nanoTime() );
+        QueryLog log = new QueryLog( directory, 1 << 20, 4 );
+        DnsResolver resolver = new DnsResolver.Builder()
+            .setRecordCache( records ).setQueryLog( log ).build();
+
+        byte[] query = new Question.Builder().setID( 1 )
+            .setOpCode( OpCode.QUERY ).setRecursionDesired( true )
+            .addQuestion( "www.example.com", QType.A, QClass.IN )
+            .build().getPacket();
+        resolver.respond( query );
+        resolver.respond( query );
+        log.close();
+
+        // Resolved from the record cache, then answered by the message
+        // cache, both logged the same.
+        List<QueryLog.Entry> entries =
+            QueryLog.read( QueryLog.files( directory ).get( 0 ) );
+        assertEquals( 2, entries.size() );
+        for( QueryLog.Entry entry : entries )
+        {
+            assertEquals( "www.example.com", entry.name );
+            assertEquals( QType.A, entry.type );
+            assertEquals( QueryLog.ANSWERED, entry.outcome );
+            assertEquals( 1, entry.records );
+            assertTrue( entry.servers.isEmpty() );
+        }
+    }
+
+    public void testResolverLogsQueries() throws Exception
+    {
+        LocalZoneData local = new LocalZoneData();
+        local.addZone( "corp.internal" );
+        local.add( new Answer.ResourceRecord( "www.corp.internal", QType.A,
+                                              QClass.IN, 60,
+                                              new byte[] { 10, 0, 0, 1 } ) );
+        QueryLog log = new QueryLog( directory, 1 << 20, 4 );
+        DnsResolver resolver = new DnsResolver.Builder()
+            .setLocalData( local ).setQueryLog( log ).build();
+
+        resolver.query( "www.corp.internal", QType.A, QClass.IN );
+        resolver.query( "ftp.corp.internal", QType.A, QClass.IN, 1000,
+                        Priority.BULK );
+        log.close();
+
+        List<QueryLog.Entry> entries =
+            QueryLog.read( QueryLog.files( directory ).get( 0 ) );
+        assertEquals( 2, entries.size() );
+        assertEquals( "www.corp.internal", entries.get( 0 ).name );
+        assertEquals( QueryLog.ANSWERED, entries.get( 0 ).outcome );
+        assertEquals( 1, entries.get( 0 ).records );
+        assertEquals( QueryLog.NO_DATA, entries.get( 1 ).outcome );
+        assertEquals( Priority.BULK, entries.get( 1 ).priority );
+    }
+}
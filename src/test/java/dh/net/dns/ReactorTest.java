@@ -0,0 +1,179 @@
+package dh.net.dns;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for the resolver's I/O threads.
+ */
+public class ReactorTest
+    extends TestCase
+{
+    public ReactorTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ReactorTest.class );
+    }
+
+    // Answers every query by setting QR, and also sends the answer from
+    // another port, which must be ignored.
+    private static DatagramSocket echoServer() throws Exception
+    {
+        final DatagramSocket socket =
+            new DatagramSocket( 0, InetAddress.getLoopbackAddress() );
+        final DatagramSocket spoofer =
+            new DatagramSocket( 0, InetAddress.getLoopbackAddress() );
+        Thread thread = new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    byte[] buffer = new byte[512];
+                    while( true )
+                    {
+                        DatagramPacket packet =
+                            new DatagramPacket( buffer, buffer.length );
+                        socket.receive( packet );
+                        buffer[2] |= (byte)0x80;
+                        spoofer.send( packet );
+                        socket.send( packet );
+                    }
+                }
+                catch( Exception e )
+                {
+                    spoofer.close();
+                }
+            }
+        }, "echo" );
+        thread.setDaemon( true );
+        thread.start();
+        return socket;
+    }
+
+    public void testResponsesReachTheirExchanges() throws Exception
+    {
+        DatagramSocket server = echoServer();
+        InetSocketAddress address = new InetSocketAddress(
+            InetAddress.getLoopbackAddress(), server.getLocalPort() );
+        Reactor reactor = new Reactor( "test-reactor" );
+        try
+        {
+            BlockingQueue<Transport.Response> inbox = new LinkedBlockingQueue<>();
+            Transport.Exchange[] exchanges = new Transport.Exchange[50];
+            for( int i = 0; i < exchanges.length; ++i )
+            {
+                // Every query has the same ID, yet each response goes to
+                // its own exchange with that ID restored.
+                byte[] query = new Question.Builder().setID( 7 )
+                    .setOpCode( OpCode.QUERY )
+                    .addQuestion( "q" + i + ".example", QType.A, QClass.IN )
+                    .build().getPacket();
+                exchanges[i] = reactor.send( query, address, inbox, i );
+            }
+
+            boolean[] seen = new boolean[exchanges.length];
+            for( int i = 0; i < exchanges.length; ++i )
+            {
+                Transport.Response response = inbox.poll( 5, TimeUnit.SECONDS );
+                assertNotNull( response );
+                int index = (Integer)response.attachment;
+                assertFalse( seen[index] );
+                seen[index] = true;
+                assertEquals( 0, response.packet[0] );
+                assertEquals( 7, response.packet[1] );
+                assertEquals( 'q', response.packet[13] );
+            }
+            assertNull( inbox.poll( 100, TimeUnit.MILLISECONDS ) );
+
+            for( Transport.Exchange exchange : exchanges )
+                reactor.cancel( exchange );
+            assertEquals( 0, reactor.outstanding() );
+        }
+        finally
+        {
+            reactor.close();
+            server.close();
+        }
+    }
+
+    public void testResponsesMustRepeatTheQuestion() throws Exception
+    {
+        DatagramSocket server =
+            new DatagramSocket( 0, InetAddress.getLoopbackAddress() );
+        server.setSoTimeout( 5000 );
+        InetSocketAddress address = new InetSocketAddress(
+            InetAddress.getLoopbackAddress(), server.getLocalPort() );
+        Reactor reactor = new Reactor( "test-reactor" );
+        try
+        {
+            BlockingQueue<Transport.Response> inbox = new LinkedBlockingQueue<>();
+            byte[] query = new Question.Builder().setID( 7 )
+                .setOpCode( OpCode.QUERY )
+                .addQuestion( "www.example", QType.A, QClass.IN )
+                .build().getPacket();
+            Transport.Exchange first = reactor.send( query, address, inbox, 1 );
+            Transport.Exchange second = reactor.send( query, address, inbox, 2 );
+
+            byte[] buffer = new byte[512];
+            DatagramPacket one = new DatagramPacket( buffer, buffer.length );
+            server.receive( one );
+            byte[] packet = Arrays.copyOf( buffer, one.getLength() );
+            DatagramPacket two = new DatagramPacket( buffer, buffer.length );
+            server.receive( two );
+
+            // Each exchange has a port of its own.
+            assertTrue( one.getPort() != two.getPort() );
+
+            // Another question, or none, is ignored; the same one in
+            // another case is taken.
+            packet[2] |= (byte)0x80;
+            packet[13] = 'x';
+            server.send( new DatagramPacket( packet, packet.length,
+                                             one.getSocketAddress() ) );
+            packet[13] = 'w';
+            packet[5] = 0;
+            server.send( new DatagramPacket( packet, packet.length,
+                                             one.getSocketAddress() ) );
+            packet[5] = 1;
+            packet[13] = 'W';
+            server.send( new DatagramPacket( packet, packet.length,
+                                             one.getSocketAddress() ) );
+
+            Transport.Response response = inbox.poll( 5, TimeUnit.SECONDS );
+            assertNotNull( response );
+            assertEquals( 1, response.attachment );
+            assertEquals( 'W', response.packet[13] );
+            assertNull( inbox.poll( 100, TimeUnit.MILLISECONDS ) );
+
+            reactor.cancel( first );
+            assertEquals( 1, reactor.outstanding() );
+
+            // Closing lets go of every exchange's port.
+            reactor.close();
+            assertEquals( 0, reactor.outstanding() );
+            new DatagramSocket( one.getPort() ).close();
+            new DatagramSocket( two.getPort() ).close();
+        }
+        finally
+        {
+            reactor.close();
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package dh.net.dns;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for the record cache backends.
+ */
+public class RecordCacheTest
+    extends TestCase
+{
+    public RecordCacheTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( RecordCacheTest.class );
+    }
+
+    private static final long NOW = 1000000000L;
+    private static final long MINUTE = 60L * 1000000000L;
+
+    private static RRset addresses( String name, int... lastOctets )
+    {
+        Answer.ResourceRecord[] records =
+            new Answer.ResourceRecord[lastOctets.length];
+        for( int i = 0; i < lastOctets.length; ++i )
+        {
+            byte[] address = new byte[] { 10, 0, 0, (byte)lastOctets[i] };
+            records[i] = new Answer.ResourceRecord( name, QType.A, QClass.IN,
+                                                    60, address );
+        }
+        return new RRset( name, QType.A, QClass.IN, records, NOW + MINUTE );
+    }
+
+    public void testOffHeapRoundTrip()
+    {
+        RecordCache cache = new OffHeapRecordCache( 1 << 20 );
+        cache.put( addresses( "www.example.com", 1, 2, 3 ), NOW );
+
+        RRset hit = cache.get( "WWW.Example.com", QType.A, QClass.IN, NOW );
+        assertNotNull( hit );
+        assertEquals( 3, hit.size() );
+        assertEquals( "10.0.0.2", hit.get( 1 ).rdata().toString() );
+        assertNull( cache.get( "www.example.com", QType.AAAA, QClass.IN, NOW ) );
+        assertNull( cache.get( "example.com", QType.A, QClass.IN, NOW ) );
+    }
+
+    public void testOffHeapNamesSurviveWithoutPacket()
+    {
+        RecordCache cache = new OffHeapRecordCache( 1 << 20 );
+        Answer.ResourceRecord cname = new Answer.ResourceRecord(
+            "www.example.com", QType.CNAME, QClass.IN, 60,
+            RData.encodeName( "web.example.net" ) );
+        cache.put( new RRset( "www.example.com", QType.CNAME, QClass.IN,
+                              new Answer.ResourceRecord[] { cname },
+                              NOW + MINUTE ), NOW );
+
+        RRset hit = cache.get( "www.example.com", QType.CNAME, QClass.IN, NOW );
+        assertEquals( "web.example.net",
+                      ( (RData.CNAME)hit.get( 0 ).rdata() ).name() );
+    }
+
+    public void testOffHeapReplaceAndExpire()
+    {
+        RecordCache cache = new OffHeapRecordCache( 1 << 20 );
+        cache.put( addresses( "a.example", 1 ), NOW );
+        cache.put( addresses( "a.example", 7, 8 ), NOW );
+
+        assertEquals( 2, cache.get( "a.example", QType.A, QClass.IN, NOW ).size() );
+        assertNull( cache.get( "a.example", QType.A, QClass.IN, NOW + MINUTE ) );
+    }
+
+    public void testOffHeapEvictsOldestWhenFull()
+    {
+        RecordCache cache = new OffHeapRecordCache( 64 * 1024, 64 );
+        for( int i = 0; i < 10000; ++i )
+            cache.put( addresses( "host" + i + ".example", 1 ), NOW );
+
+        assertNull( cache.get( "host0.example", QType.A, QClass.IN, NOW ) );
+        assertNotNull( cache.get( "host9999.example", QType.A, QClass.IN, NOW ) );
+        assertTrue( cache.size() <= 128 );
+    }
+
+    public void testMappedCacheSharedThroughFile() throws Exception
+    {
+        Path file = Files.createTempFile( "dnsj", ".cache" );
+        try( MappedRecordCache writer = new MappedRecordCache( file, 1 << 20 );
+             MappedRecordCache reader = new MappedRecordCache( file, 1 << 16 ) )
+        {
+            writer.put( addresses( "www.example.com", 1, 2, 3 ), NOW );
+            writer.put( new RRset( "gone.example", QType.A, QClass.IN,
+                                   RRset.NO_RECORDS, NOW + MINUTE ), NOW );
+
+            // The second opening sees the first's entries, whatever
+            // size it asked for.
+            RRset hit = reader.get( "WWW.Example.com", QType.A, QClass.IN, NOW );
+            assertNotNull( hit );
+            assertEquals( 3, hit.size() );
+            assertEquals( "10.0.0.2", hit.get( 1 ).rdata().toString() );
+            assertTrue( reader.get( "gone.example", QType.A, QClass.IN,
+                                    NOW ).isEmpty() );
+            assertNull( reader.get( "www.example.com", QType.AAAA, QClass.IN,
+                                    NOW ) );
+            assertEquals( 2, reader.size() );
+
+            reader.put( addresses( "www.example.com", 9 ), NOW );
+            assertEquals( 1, writer.get( "www.example.com", QType.A, QClass.IN,
+                                         NOW ).size() );
+            // Each opening has its own idea of the wall clock, so look
+            // a little past the TTL.
+            assertNull( writer.get( "www.example.com", QType.A, QClass.IN,
+                                    NOW + 2 * MINUTE ) );
+        }
+        finally
+        {
+            Files.delete( file );
+        }
+    }
+
+    public void testNegativeAnswersKeepTheirKind() throws Exception
+    {
+        Answer.ResourceRecord soa = new Answer.ResourceRecord(
+            "example.com", QType.SOA, QClass.IN, 3600,
+            new RData.SOA( "ns.example.com", "hostmaster.example.com",
+                           1, 7200, 3600, 1209600, 300 ) );
+        Path file = Files.createTempFile( "dnsj", ".cache" );
+        try( MappedRecordCache mapped = new MappedRecordCache( file, 1 << 16 ) )
+        {
+            RecordCache[] caches =
+                new RecordCache[] { new OffHeapRecordCache( 1 << 20 ), mapped };
+            for( RecordCache cache : caches )
+            {
+                cache.put( RRset.negative( "gone.example.com", QType.A,
+                                           QClass.IN, true, soa,
+                                           NOW + MINUTE ), NOW );
+                cache.put( RRset.negative( "www.example.com", QType.MX,
+                                           QClass.IN, false, null,
+                                           NOW + MINUTE ), NOW );
+
+                RRset gone = cache.get( "gone.example.com", QType.A,
+                                        QClass.IN, NOW );
+                assertTrue( gone.isEmpty() );
+                assertTrue( gone.isNameError() );
+                assertEquals( "example.com", gone.soa().domainName );
+                assertEquals( 60, gone.soa().ttl );
+                assertEquals( 300, ( (RData.SOA)gone.soa().rdata() ).minimum() );
+
+                RRset noData = cache.get( "www.example.com", QType.MX,
+                                          QClass.IN, NOW );
+                assertTrue( noData.isEmpty() );
+                assertFalse( noData.isNameError() );
+                assertNull( noData.soa() );
+            }
+        }
+        finally
+        {
+            Files.delete( file );
+        }
+    }
+
+    public void testMappedCacheReplacesSoonestExpiring() throws Exception
+    {
+        Path file = Files.createTempFile( "dnsj", ".cache" );
+        try( MappedRecordCache cache = new MappedRecordCache( file, 64 * 1024 ) )
+        {
+            for( int i = 0; i < 10000; ++i )
+                cache.put( addresses( "host" + i + ".example", 1 ), NOW );
+
+            assertNotNull( cache.get( "host9999.example", QType.A, QClass.IN,
+                                      NOW ) );
+            assertEquals( 128, cache.size() );
+
+            // Too big for a slot, so not kept.
+            int[] many = new int[200];
+            cache.put( addresses( "big.example", many ), NOW );
+            assertNull( cache.get( "big.example", QType.A, QClass.IN, NOW ) );
+        }
+        finally
+        {
+            Files.delete( file );
+        }
+    }
+
+    public void testBoundedCacheStaysWithinBytes()
+    {
+        BoundedRecordCache cache = new BoundedRecordCache( 100 * 1000 );
+        for( int i = 0; i < 10000; ++i )
+            cache.put( addresses( "host" + i + ".example", 1, 2 ), NOW );
+
+        assertTrue( cache.weightedSize() <= 100 * 1000 );
+        assertTrue( cache.evictionCount(
+            BoundedRecordCache.EvictionReason.SIZE ) +
+                    cache.evictionCount(
+            BoundedRecordCache.EvictionReason.ADMISSION ) > 0 );
+    }
+
+    public void testBoundedCacheResistsScans()
+    {
+        BoundedRecordCache cache = new BoundedRecordCache( 100 * 1000 );
+        for( int round = 0; round < 20; ++round )
+        {
+            for( int i = 0; i < 50; ++i )
+            {
+                String name = "hot" + i + ".example";
+                if( cache.get( name, QType.A, QClass.IN, NOW ) == null )
+                    cache.put( addresses( name, 1 ), NOW );
+            }
+        }
+
+        // A long scan of names that are only ever seen once.
+        for( int i = 0; i < 20000; ++i )
+        {
+            String name = "scan" + i + ".example";
+            cache.get( name, QType.A, QClass.IN, NOW );
+            cache.put( addresses( name, 1 ), NOW );
+        }
+
+        int hotHits = 0;
+        for( int i = 0; i < 50; ++i )
+        {
+            if( cache.get( "hot" + i + ".example", QType.A, QClass.IN, NOW ) != null )
+                ++hotHits;
+        }
+        assertTrue( "only " + hotHits + " hot names survived", hotHits >= 45 );
+        assertTrue( cache.evictionCount(
+            BoundedRecordCache.EvictionReason.ADMISSION ) > 0 );
+    }
+
+    public void testBoundedCacheExpires()
+    {
+        BoundedRecordCache cache = new BoundedRecordCache( 100 * 1000 );
+        cache.put( addresses( "a.example", 1 ), NOW );
+
+        assertNull( cache.get( "a.example", QType.A, QClass.IN, NOW + MINUTE ) );
+        assertEquals( 1, cache.evictionCount(
+            BoundedRecordCache.EvictionReason.EXPIRED ) );
+    }
+
+    public void testBoundedCacheSharedByThreads() throws Exception
+    {
+        final BoundedRecordCache cache = new BoundedRecordCache( 100 * 1000 );
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[8];
+        for( int t = 0; t < threads.length; ++t )
+        {
+            final int seed = t;
+            threads[t] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for( int i = 0; i < 20000; ++i )
+                        {
+                            // A few hot names and a long tail.
+                            String name = i % 2 == 0
+                                ? "hot" + ( i / 2 % 20 ) + ".example"
+                                : "cold" + seed + "-" + i + ".example";
+                            if( cache.get( name, QType.A, QClass.IN, NOW ) == null )
+                                cache.put( addresses( name, 1 ), NOW );
+                        }
+                    }
+                    catch( Throwable e )
+                    {
+                        failure[0] = e;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for( Thread thread : threads )
+            thread.join();
+
+        assertNull( failure[0] );
+        assertTrue( cache.weightedSize() <= 100 * 1000 );
+        int hotHits = 0;
+        for( int i = 0; i < 20; ++i )
+        {
+            if( cache.get( "hot" + i + ".example", QType.A, QClass.IN, NOW ) != null )
+                ++hotHits;
+        }
+        assertTrue( "only " + hotHits + " hot names survived", hotHits >= 18 );
+    }
+}
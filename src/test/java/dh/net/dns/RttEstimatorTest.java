@@ -0,0 +1,83 @@
+package dh.net.dns;
+
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for round trip time estimation.
+ */
+public class RttEstimatorTest
+    extends TestCase
+{
+    public RttEstimatorTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( RttEstimatorTest.class );
+    }
+
+    public void testSmoothedEstimate()
+    {
+        RttEstimator stats = new RttEstimator( new Random( 1 ) );
+        assertEquals( 800, stats.retransmitTimeout() );
+        assertTrue( stats.expectedRtt() >= 1 && stats.expectedRtt() <= 31 );
+
+        // The first sample sets SRTT, with RTTVAR half of it.
+        stats.addSample( 100 );
+        assertEquals( 100, stats.expectedRtt() );
+        assertEquals( 100 + 4 * 50, stats.retransmitTimeout() );
+
+        // RTTVAR = 3/4 * 50 + 1/4 * 100, SRTT = 7/8 * 100 + 1/8 * 200.
+        stats.addSample( 200 );
+        assertEquals( 112, stats.expectedRtt() );
+        assertEquals( 362, stats.retransmitTimeout() );
+    }
+
+    public void testTimeoutClampedAndBackedOff()
+    {
+        RttEstimator stats = new RttEstimator( new Random( 1 ) );
+        stats.addSample( 1 );
+        assertEquals( 20, stats.retransmitTimeout() );
+
+        RttEstimator silent = new RttEstimator( new Random( 1 ) );
+        silent.onTimeout();
+        assertEquals( 1600, silent.retransmitTimeout() );
+        silent.onTimeout();
+        assertEquals( 2000, silent.retransmitTimeout() );
+        long expected = silent.expectedRtt();
+        silent.onTimeout();
+        assertEquals( 2000, silent.retransmitTimeout() );
+        assertEquals( expected, silent.expectedRtt() );
+
+        // An answer ends the backoff.
+        silent.addSample( 100 );
+        assertEquals( 300, silent.retransmitTimeout() );
+    }
+
+    public void testHedgeDelayPercentile()
+    {
+        RttEstimator stats = new RttEstimator( new Random( 1 ) );
+        for( int i = 1; i <= 3; ++i )
+            stats.addSample( i * 10 );
+        // Too few samples to go by.
+        assertEquals( stats.retransmitTimeout(), stats.hedgeDelay( 0.5 ) );
+
+        for( int i = 4; i <= 10; ++i )
+            stats.addSample( i * 10 );
+        assertEquals( 50, stats.hedgeDelay( 0.5 ) );
+        assertEquals( 90, stats.hedgeDelay( 0.9 ) );
+        assertEquals( 10, stats.hedgeDelay( 0 ) );
+        assertTrue( stats.hedgeDelay( 1 ) <= stats.retransmitTimeout() );
+
+        RttEstimator fast = new RttEstimator( new Random( 1 ) );
+        for( int i = 0; i < 4; ++i )
+            fast.addSample( 1 );
+        assertEquals( 5, fast.hedgeDelay( 0.5 ) );
+    }
+}
@@ -0,0 +1,113 @@
+package dh.net.dns;
+
+import java.net.InetAddress;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for skipping name servers that keep failing.
+ */
+public class ServerHealthTest
+    extends TestCase
+{
+    public ServerHealthTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ServerHealthTest.class );
+    }
+
+    private static final long SECOND = 1000000000L;
+
+    private static InetAddress server( int lastOctet ) throws Exception
+    {
+        return InetAddress.getByAddress(
+            new byte[] { (byte)192, 0, 2, (byte)lastOctet } );
+    }
+
+    public void testTimeoutsBackOffExponentially() throws Exception
+    {
+        ServerHealth<InetAddress> health = new ServerHealth<>();
+        InetAddress server = server( 1 );
+        long now = 1000 * SECOND;
+
+        // A couple of lost packets don't sideline a server.
+        health.onFailure( server, ServerHealth.Failure.TIMEOUT, now );
+        health.onFailure( server, ServerHealth.Failure.TIMEOUT, now );
+        assertTrue( health.usable( server, now ) );
+        health.onFailure( server, ServerHealth.Failure.TIMEOUT, now );
+        assertFalse( health.usable( server, now ) );
+        assertFalse( health.usable( server, now + SECOND - 1 ) );
+
+        // Once the backoff runs out a single probe goes through, claimed
+        // when it's sent rather than when it's considered.
+        now += SECOND;
+        assertTrue( health.usable( server, now ) );
+        assertTrue( health.usable( server, now ) );
+        assertTrue( health.claim( server, now ) );
+        assertFalse( health.usable( server, now ) );
+        assertFalse( health.claim( server, now ) );
+
+        // The probe failing doubles the backoff.
+        health.onFailure( server, ServerHealth.Failure.TIMEOUT, now );
+        assertFalse( health.usable( server, now + 2 * SECOND - 1 ) );
+        assertTrue( health.usable( server, now + 2 * SECOND ) );
+
+        // An answer brings the server straight back.
+        health.onSuccess( server );
+        assertTrue( health.usable( server, now + 2 * SECOND ) );
+        assertTrue( health.usable( server, now + 2 * SECOND ) );
+    }
+
+    public void testLameServerSkippedAtOnce() throws Exception
+    {
+        ServerHealth<InetAddress> health = new ServerHealth<>();
+        long now = 1000 * SECOND;
+
+        health.onFailure( server( 1 ), ServerHealth.Failure.LAME, now );
+        health.onFailure( server( 2 ), ServerHealth.Failure.REFUSED, now );
+        health.onFailure( server( 3 ), ServerHealth.Failure.SERVER_FAILURE,
+                          now );
+        assertFalse( health.usable( server( 1 ), now ) );
+        assertFalse( health.usable( server( 2 ), now ) );
+        assertTrue( health.usable( server( 3 ), now ) );
+        assertTrue( health.usable( server( 4 ), now ) );
+    }
+
+    public void testUnansweredProbeIsRepeated() throws Exception
+    {
+        ServerHealth<InetAddress> health = new ServerHealth<>();
+        InetAddress server = server( 1 );
+        long now = 1000 * SECOND;
+
+        health.onFailure( server, ServerHealth.Failure.LAME, now );
+        now += SECOND;
+        assertTrue( health.claim( server, now ) );
+
+        // The probe's query was abandoned, so nothing was heard either
+        // way; another probe is allowed after a while.
+        assertFalse( health.usable( server, now + 4 * SECOND ) );
+        assertTrue( health.usable( server, now + 5 * SECOND ) );
+    }
+
+    public void testBackingOffServerSentWithoutProbing() throws Exception
+    {
+        ServerHealth<InetAddress> health = new ServerHealth<>();
+        InetAddress server = server( 1 );
+        long now = 1000 * SECOND;
+
+        // Queries sent to a server still backing off, for want of a
+        // better one, leave its probe for when the backoff runs out.
+        health.onFailure( server, ServerHealth.Failure.LAME, now );
+        assertTrue( health.claim( server, now ) );
+        assertTrue( health.claim( server, now ) );
+        assertTrue( health.usable( server, now + SECOND ) );
+        assertTrue( health.claim( server, now + SECOND ) );
+        assertFalse( health.claim( server, now + SECOND ) );
+    }
+}
@@ -0,0 +1,104 @@
+package dh.net.dns;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for resolving against simulated name servers.
+ */
+public class SimulatorTest
+    extends TestCase
+{
+    public SimulatorTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( SimulatorTest.class );
+    }
+
+    private static final long MILLISECOND = 1000000L;
+
+    // Root, then "test", then example.test with a fast server and one
+    // that loses the given share of its queries.
+    private static Simulator world( long seed, double loss )
+    {
+        Simulator simulator = new Simulator( seed );
+        simulator.addZone( "", Simulator.rootServers( 20, 0.2, 0 ) );
+        simulator.addZone( "test", Arrays.asList(
+            new Simulator.Server( "ns.nic.test", "10.0.0.1", 30, 0.2, 0 ) ) );
+        simulator.addZone( "example.test", Arrays.asList(
+            new Simulator.Server( "fast.example.test", "10.0.1.1", 10, 0.2, 0 ),
+            new Simulator.Server( "slow.example.test", "10.0.1.2", 50, 0.5,
+                                  loss ) ) );
+        return simulator;
+    }
+
+    private static Simulator.Result run( Simulator simulator, int queries )
+    {
+        DnsResolver resolver = new DnsResolver.Builder()
+            .setClock( simulator ).setTransport( simulator )
+            .setRandom( new Random( 1 ) ).build();
+        List<String> names = new ArrayList<>();
+        for( int i = 0; i < queries; ++i )
+            names.add( "host" + i + ".example.test" );
+        return simulator.run( resolver, names, 100 );
+    }
+
+    public void testSameSeedSameRun()
+    {
+        Simulator.Result first = run( world( 42, 0.1 ), 500 );
+        Simulator.Result second = run( world( 42, 0.1 ), 500 );
+
+        assertEquals( 500, first.answered );
+        assertEquals( first.simulatedNanos, second.simulatedNanos );
+        assertEquals( first.latencies.percentile( 0.5 ),
+                      second.latencies.percentile( 0.5 ) );
+        assertEquals( first.latencies.max(), second.latencies.max() );
+    }
+
+    public void testDeadServerIsRoutedAround()
+    {
+        Simulator.Result result = run( world( 7, 1 ), 1000 );
+
+        // Every query is answered, and once the dead server has been
+        // noticed almost all of them straight away by the fast one.
+        assertEquals( 1000, result.answered );
+        assertEquals( 0, result.failed );
+        assertTrue( result.latencies.percentile( 0.9 ) < 30 * MILLISECOND );
+
+        // Far more time passed than it took to run.
+        assertTrue( result.simulatedNanos > result.elapsedNanos );
+    }
+
+    public void testAnswersExpireWithSimulatedTime()
+    {
+        Simulator simulator = world( 1, 0 );
+        simulator.setAnswerTtl( 60 );
+        DnsResolver resolver = new DnsResolver.Builder()
+            .setClock( simulator ).setTransport( simulator ).build();
+
+        long start = simulator.nanoTime();
+        assertNotNull( resolver.query( "www.example.test", QType.A, QClass.IN ) );
+        assertTrue( simulator.nanoTime() > start );
+
+        // Answered from the cache, no time passes.
+        start = simulator.nanoTime();
+        assertNotNull( resolver.query( "www.example.test", QType.A, QClass.IN ) );
+        assertEquals( start, simulator.nanoTime() );
+
+        // Once the TTL runs out it's asked again.
+        simulator.advance( 61 * 1000 * MILLISECOND );
+        start = simulator.nanoTime();
+        assertNotNull( resolver.query( "www.example.test", QType.A, QClass.IN ) );
+        assertTrue( simulator.nanoTime() > start );
+    }
+}
@@ -0,0 +1,140 @@
+package dh.net.dns;
+
+import java.net.InetAddress;
+import java.util.LinkedList;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for the upstream query limits.
+ */
+public class UpstreamLimiterTest
+    extends TestCase
+{
+    public UpstreamLimiterTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( UpstreamLimiterTest.class );
+    }
+
+    private static final long SECOND = 1000000000L;
+
+    public void testOutstandingCaps() throws Exception
+    {
+        InetAddress a = InetAddress.getByName( "192.0.2.1" );
+        InetAddress b = InetAddress.getByName( "192.0.2.2" );
+        long now = System.nanoTime() + SECOND;
+        UpstreamLimiter limiter = new UpstreamLimiter( 2, 3, 1000 );
+
+        assertTrue( limiter.tryAcquire( a, "example", now ) );
+        assertTrue( limiter.tryAcquire( a, "example", now ) );
+        assertFalse( limiter.tryAcquire( a, "example", now ) );
+        assertTrue( limiter.waitTime( a, "example", now ) > 0 );
+
+        // The zone's third slot is on another server...
+        assertTrue( limiter.tryAcquire( b, "example", now ) );
+        // ...and it has no fourth.
+        assertFalse( limiter.tryAcquire( b, "example", now ) );
+        assertTrue( limiter.tryAcquire( b, "other", now ) );
+
+        limiter.release( a, "example" );
+        assertTrue( limiter.tryAcquire( a, "example", now ) );
+    }
+
+    public void testZoneCaseIsIgnored() throws Exception
+    {
+        InetAddress a = InetAddress.getByName( "192.0.2.1" );
+        InetAddress b = InetAddress.getByName( "192.0.2.2" );
+        InetAddress c = InetAddress.getByName( "192.0.2.3" );
+        long now = System.nanoTime() + SECOND;
+        UpstreamLimiter limiter = new UpstreamLimiter( 2, 3, 1000 );
+
+        assertTrue( limiter.tryAcquire( a, "example", now ) );
+        assertTrue( limiter.tryAcquire( b, "Example", now ) );
+        assertTrue( limiter.tryAcquire( c, "EXAMPLE", now ) );
+        assertFalse( limiter.tryAcquire( c, "eXample", now ) );
+        assertTrue( limiter.waitTime( c, "ExAmPlE", now ) > 0 );
+
+        limiter.release( a, "EXAMPLE" );
+        assertTrue( limiter.tryAcquire( c, "example", now ) );
+    }
+
+    public void testReserveKeptForInteractive() throws Exception
+    {
+        InetAddress a = InetAddress.getByName( "192.0.2.1" );
+        InetAddress b = InetAddress.getByName( "192.0.2.2" );
+        long now = System.nanoTime() + SECOND;
+        UpstreamLimiter limiter = new UpstreamLimiter( 4, 8, 1000 );
+
+        // Bulk work gets three of the server's four slots...
+        for( int i = 0; i < 3; ++i )
+            assertTrue( limiter.tryAcquire( a, "example", Priority.BULK, now ) );
+        assertFalse( limiter.tryAcquire( a, "example", Priority.BULK, now ) );
+        assertTrue( limiter.waitTime( a, "example", Priority.BULK, now ) > 0 );
+        assertEquals( 0, limiter.waitTime( a, "example", now ) );
+        assertTrue( limiter.tryAcquire( a, "example", now ) );
+
+        // ...and six of the zone's eight.
+        for( int i = 0; i < 3; ++i )
+            assertTrue( limiter.tryAcquire( b, "example", Priority.BULK, now ) );
+        assertFalse( limiter.tryAcquire( b, "example", Priority.BULK, now ) );
+        assertTrue( limiter.tryAcquire( b, "example", now ) );
+    }
+
+    public void testSlotsSharedByWeight() throws Exception
+    {
+        InetAddress a = InetAddress.getByName( "192.0.2.1" );
+        long now = System.nanoTime() + SECOND;
+        UpstreamLimiter limiter = new UpstreamLimiter( 8, 1000, 1000000 );
+
+        // Both classes always have queries waiting, and whenever one
+        // is answered the bulk queries ask for its slot first.
+        LinkedList<Priority> outstanding = new LinkedList<>();
+        int[] granted = new int[2];
+        for( int i = 0; i < 9000; ++i )
+        {
+            now += 1000000;
+            if( outstanding.size() == 8 )
+                limiter.release( a, "example", outstanding.removeFirst() );
+            for( Priority priority : new Priority[] { Priority.BULK,
+                                                      Priority.INTERACTIVE } )
+            {
+                if( limiter.tryAcquire( a, "example", priority, now ) )
+                {
+                    outstanding.add( priority );
+                    ++granted[priority.ordinal()];
+                }
+            }
+        }
+
+        double share = granted[Priority.INTERACTIVE.ordinal()] /
+                       (double)granted[Priority.BULK.ordinal()];
+        assertTrue( "share " + share, share > 7 && share < 9 );
+    }
+
+    public void testPacingBacksOffOnLoss() throws Exception
+    {
+        InetAddress a = InetAddress.getByName( "192.0.2.1" );
+        long now = System.nanoTime() + SECOND;
+        UpstreamLimiter limiter = new UpstreamLimiter( 1000, 1000, 100 );
+
+        // Starts at a quarter of the maximum, a burst of 2.5 queries.
+        int sent = 0;
+        while( limiter.tryAcquire( a, "example", now ) )
+            ++sent;
+        assertEquals( 2, sent );
+        assertTrue( limiter.waitTime( a, "example", now ) > 0 );
+
+        limiter.onLoss( a, now );
+        int refilled = 0;
+        while( limiter.tryAcquire( a, "example", now + SECOND ) )
+            ++refilled;
+        assertEquals( 1, refilled );
+    }
+}